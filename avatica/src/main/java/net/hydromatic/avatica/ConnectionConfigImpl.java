@@ -110,6 +110,20 @@ public boolean getBoolean(boolean defaultValue) {
       return get_(BOOLEAN_CONVERTER, Boolean.toString(defaultValue));
     }
 
+    /** Returns the int value of this property. Throws if not set and no
+     * default. */
+    public int getInt() {
+      return getInt((Number) property.defaultValue());
+    }
+
+    /** Returns the int value of this property. Throws if not set and no
+     * default. */
+    public int getInt(Number defaultValue) {
+      assert property.type() == ConnectionProperty.Type.NUMBER;
+      return get_(INT_CONVERTER,
+          defaultValue == null ? null : defaultValue.toString());
+    }
+
     /** Returns the enum value of this property. Throws if not set and no
      * default. */
     public <E extends Enum<E>> E getEnum(Class<E> enumClass) {
@@ -142,6 +156,23 @@ public Boolean apply(ConnectionProperty connectionProperty, String s) {
         }
       };
 
+  public static final Converter<Integer> INT_CONVERTER =
+      new Converter<Integer>() {
+        public Integer apply(ConnectionProperty connectionProperty, String s) {
+          if (s == null) {
+            throw new RuntimeException("Required property '"
+                + connectionProperty.camelName() + "' not specified");
+          }
+          try {
+            return Integer.valueOf(s);
+          } catch (NumberFormatException e) {
+            throw new RuntimeException("Property '"
+                + connectionProperty.camelName() + "' must be an integer; "
+                + "got '" + s + "'");
+          }
+        }
+      };
+
   public static final Converter<String> IDENTITY_CONVERTER =
       new Converter<String>() {
         public String apply(ConnectionProperty connectionProperty, String s) {
@@ -47,6 +47,7 @@ public interface ConnectionProperty {
   enum Type {
     BOOLEAN,
     STRING,
+    NUMBER,
     ENUM;
 
     public boolean valid(Object defaultValue) {
@@ -55,6 +56,8 @@ public boolean valid(Object defaultValue) {
         return defaultValue instanceof Boolean;
       case STRING:
         return defaultValue instanceof String;
+      case NUMBER:
+        return defaultValue instanceof Number;
       default:
         return defaultValue instanceof Enum;
       }
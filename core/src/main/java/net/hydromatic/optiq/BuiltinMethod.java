@@ -39,6 +39,8 @@
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.sql.DataSource;
 
 import static org.eigenbase.rel.metadata.BuiltInMetadata.*;
@@ -63,10 +65,24 @@ public enum BuiltinMethod {
   DATA_CONTEXT_GET(DataContext.class, "get", String.class),
   DATA_CONTEXT_GET_ROOT_SCHEMA(DataContext.class, "getRootSchema"),
   JDBC_SCHEMA_DATA_SOURCE(JdbcSchema.class, "getDataSource"),
+  JDBC_SCHEMA_OPTIONS(JdbcSchema.class, "getOptions"),
   RESULT_SET_ENUMERABLE_OF(ResultSetEnumerable.class, "of", DataSource.class,
       String.class, Function1.class),
+  RESULT_SET_ENUMERABLE_OF_OPTIONS(ResultSetEnumerable.class, "of",
+      DataSource.class, String.class, Function1.class,
+      ResultSetEnumerable.Options.class),
+  RESULT_SET_ENUMERABLE_OF_PARAMETERS(ResultSetEnumerable.class, "of",
+      DataSource.class, String.class, Function1.class,
+      ResultSetEnumerable.Options.class, Object[].class),
+  RESULT_SET_ENUMERABLE_PREFETCH(ResultSetEnumerable.class, "prefetch",
+      DataContext.class),
   JOIN(ExtendedEnumerable.class, "join", Enumerable.class, Function1.class,
       Function1.class, Function2.class),
+  MERGE_JOIN(MergeJoin.class, "join", Enumerable.class, Enumerable.class,
+      Function1.class, Function1.class, Function2.class),
+  HASH_JOIN(HashJoin.class, "join", Enumerable.class, Enumerable.class,
+      Function1.class, Function1.class, Function2.class,
+      EqualityComparer.class, boolean.class, boolean.class, int.class),
   SELECT(ExtendedEnumerable.class, "select", Function1.class),
   SELECT2(ExtendedEnumerable.class, "select", Function2.class),
   SELECT_MANY(ExtendedEnumerable.class, "selectMany", Function1.class),
@@ -77,10 +93,21 @@ public enum BuiltinMethod {
   GROUP_BY(ExtendedEnumerable.class, "groupBy", Function1.class),
   GROUP_BY2(ExtendedEnumerable.class, "groupBy", Function1.class,
       Function0.class, Function2.class, Function2.class),
+  HASH_AGGREGATE(HashAggregate.class, "groupBy", Enumerable.class,
+      Function1.class, Function0.class, Function2.class, Function2.class,
+      EqualityComparer.class, int.class),
+  SORTED_GROUP_BY(SortedAggregate.class, "groupBy", Enumerable.class,
+      Function1.class, Function0.class, Function2.class, Function2.class),
+  SORTED_DISTINCT(SortedAggregate.class, "distinct", Enumerable.class,
+      EqualityComparer.class),
   AGGREGATE(ExtendedEnumerable.class, "aggregate", Object.class,
       Function2.class, Function1.class),
   ORDER_BY(ExtendedEnumerable.class, "orderBy", Function1.class,
       Comparator.class),
+  EXTERNAL_SORT(ExternalSort.class, "orderBy", Enumerable.class,
+      Function1.class, Comparator.class, int.class),
+  TOP_N(TopN.class, "orderBy", Enumerable.class, Function1.class,
+      Comparator.class, int.class, int.class),
   UNION(ExtendedEnumerable.class, "union", Enumerable.class),
   CONCAT(ExtendedEnumerable.class, "concat", Enumerable.class),
   INTERSECT(ExtendedEnumerable.class, "intersect", Enumerable.class),
@@ -136,6 +163,17 @@ public enum BuiltinMethod {
   SORTED_MULTI_MAP_ARRAYS(SortedMultiMap.class, "arrays", Comparator.class),
   SORTED_MULTI_MAP_SINGLETON(SortedMultiMap.class, "singletonArrayIterator",
       Comparator.class, List.class),
+  SLIDING_MIN_MAX_REMOVE(SlidingMinMax.class, "remove", int.class),
+  SLIDING_MIN_MAX_IS_EMPTY(SlidingMinMax.class, "isEmpty"),
+  SLIDING_MIN_MAX_ADD(SlidingMinMax.OfComparable.class, "add", int.class,
+      Comparable.class),
+  SLIDING_MIN_MAX_GET(SlidingMinMax.OfComparable.class, "get"),
+  SLIDING_MIN_MAX_ADD_LONG(SlidingMinMax.OfLong.class, "add", int.class,
+      long.class),
+  SLIDING_MIN_MAX_GET_LONG(SlidingMinMax.OfLong.class, "getLong"),
+  SLIDING_MIN_MAX_ADD_DOUBLE(SlidingMinMax.OfDouble.class, "add", int.class,
+      double.class),
+  SLIDING_MIN_MAX_GET_DOUBLE(SlidingMinMax.OfDouble.class, "getDouble"),
   BINARY_SEARCH5_LOWER(BinarySearch.class, "lowerBound", Object[].class,
       Object.class, int.class, int.class, Comparator.class),
   BINARY_SEARCH5_UPPER(BinarySearch.class, "upperBound", Object[].class,
@@ -165,6 +203,14 @@ public enum BuiltinMethod {
   RTRIM(SqlFunctions.class, "rtrim", String.class),
   LIKE(SqlFunctions.class, "like", String.class, String.class),
   SIMILAR(SqlFunctions.class, "similar", String.class, String.class),
+  LIKE_PATTERN(Like.class, "likePattern", String.class, String.class),
+  SIMILAR_PATTERN(Like.class, "similarPattern", String.class, String.class),
+  PATTERN_MATCHER(Pattern.class, "matcher", CharSequence.class),
+  MATCHER_MATCHES(Matcher.class, "matches"),
+  STRING_EQUALS(String.class, "equals", Object.class),
+  STRING_STARTS_WITH(String.class, "startsWith", String.class),
+  STRING_ENDS_WITH(String.class, "endsWith", String.class),
+  STRING_CONTAINS(String.class, "contains", CharSequence.class),
   IS_TRUE(SqlFunctions.class, "isTrue", Boolean.class),
   IS_NOT_FALSE(SqlFunctions.class, "isNotFalse", Boolean.class),
   MODIFIABLE_TABLE_GET_MODIFIABLE_COLLECTION(ModifiableTable.class,
@@ -0,0 +1,37 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq;
+
+import org.eigenbase.rel.RelCollation;
+
+import java.util.List;
+
+/**
+ * {@link Statistic} that also knows the sort order of a table.
+ *
+ * <p>It is a separate interface so that existing implementations of
+ * {@link Statistic} do not need to change. The planner uses
+ * {@link Statistics#collations(Statistic)} to find the collations of a
+ * table.</p>
+ */
+public interface CollatedStatistic extends Statistic {
+  /** Returns the collections of columns on which this table is sorted. */
+  List<RelCollation> getCollations();
+}
+
+// End CollatedStatistic.java
@@ -27,6 +27,7 @@
 import org.eigenbase.util.Util;
 
 import java.lang.reflect.Modifier;
+import java.util.Collection;
 import java.util.TimeZone;
 
 /**
@@ -78,6 +79,12 @@ enum Variable {
     /** Sql advisor that suggests completion hints. */
     SQL_ADVISOR("sqlAdvisor", SqlAdvisor.class),
 
+    /** Resources, such as queries that have been started in the background,
+     * to be closed when the current statement is closed or cancelled. A
+     * {@link java.util.Collection} of {@link java.io.Closeable}; code that
+     * executes the statement adds to it. Optional. */
+    STATEMENT_RESOURCES("statementResources", Collection.class),
+
     /** Time zone in which the current statement is executing. Required;
      * defaults to the time zone of the JVM if the connection does not specify a
      * time zone. */
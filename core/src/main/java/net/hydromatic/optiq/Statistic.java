@@ -24,6 +24,9 @@
  *
  * <p>Each of the methods may return {@code null} meaning "not known".</p>
  *
+ * <p>A statistic that also knows the sort order of the table implements
+ * {@link CollatedStatistic}.</p>
+ *
  * @see Statistics
  */
 public interface Statistic {
@@ -19,6 +19,10 @@
 
 import net.hydromatic.optiq.util.BitSets;
 
+import org.eigenbase.rel.RelCollation;
+
+import com.google.common.collect.ImmutableList;
+
 import java.util.*;
 
 /**
@@ -30,7 +34,7 @@ private Statistics() {
 
   /** Returns a {@link Statistic} that knows nothing about a table. */
   public static final Statistic UNKNOWN =
-      new Statistic() {
+      new CollatedStatistic() {
         public Double getRowCount() {
           return null;
         }
@@ -38,11 +42,33 @@ public Double getRowCount() {
         public boolean isKey(BitSet columns) {
           return false;
         }
+
+        public List<RelCollation> getCollations() {
+          return ImmutableList.of();
+        }
       };
 
   /** Returns a statistic with a given row count and set of unique keys. */
   public static Statistic of(final double rowCount, final List<BitSet> keys) {
-    return new Statistic() {
+    return of(rowCount, keys, ImmutableList.<RelCollation>of());
+  }
+
+  /** Returns a statistic with a given set of unique keys, and an unknown row
+   * count. */
+  public static Statistic of(final List<BitSet> keys) {
+    return create(null, keys, ImmutableList.<RelCollation>of());
+  }
+
+  /** Returns a statistic with a given row count, set of unique keys, and
+   * collations. */
+  public static Statistic of(final double rowCount, final List<BitSet> keys,
+      final List<RelCollation> collations) {
+    return create(rowCount, keys, collations);
+  }
+
+  private static Statistic create(final Double rowCount,
+      final List<BitSet> keys, final List<RelCollation> collations) {
+    return new CollatedStatistic() {
       public Double getRowCount() {
         return rowCount;
       }
@@ -55,8 +81,25 @@ public boolean isKey(BitSet columns) {
         }
         return false;
       }
+
+      public List<RelCollation> getCollations() {
+        return collations;
+      }
     };
   }
+
+  /** Returns the collations of a table, or an empty list if the statistic
+   * does not know them. */
+  public static List<RelCollation> collations(Statistic statistic) {
+    if (statistic instanceof CollatedStatistic) {
+      final List<RelCollation> collations =
+          ((CollatedStatistic) statistic).getCollations();
+      if (collations != null) {
+        return collations;
+      }
+    }
+    return ImmutableList.of();
+  }
 }
 
 // End Statistics.java
@@ -34,6 +34,11 @@ public interface OptiqConnectionConfig extends ConnectionConfig {
   Casing quotedCasing();
   boolean caseSensitive();
   boolean spark();
+  boolean planCache();
+  int joinSpillThreshold();
+  int sortSpillThreshold();
+  int aggregateSpillThreshold();
+  int parallelJdbcQueries();
 }
 
 // End OptiqConnectionConfig.java
@@ -38,6 +38,30 @@ public enum OptiqConnectionProperty implements ConnectionProperty {
   /** URI of the model. */
   MODEL("model", Type.STRING, null),
 
+  /** Maximum number of rows of the build (right) input that a hash join holds
+   * in memory. If the input is larger, both inputs are partitioned to
+   * temporary files and joined one partition at a time. Negative (the
+   * default) means never spill. */
+  JOIN_SPILL_THRESHOLD("joinSpillThreshold", Type.NUMBER, -1),
+
+  /** Maximum number of rows that a sort holds in memory. If the input is
+   * larger, sorted runs are written to temporary files and merged. Negative
+   * (the default) means never spill. */
+  SORT_SPILL_THRESHOLD("sortSpillThreshold", Type.NUMBER, -1),
+
+  /** Maximum number of groups that a hash aggregate holds in memory. Once
+   * that many groups exist, rows belonging to other groups are partitioned to
+   * temporary files and aggregated one partition at a time. Negative (the
+   * default) means never spill. */
+  AGGREGATE_SPILL_THRESHOLD("aggregateSpillThreshold", Type.NUMBER, -1),
+
+  /** Maximum number of queries against JDBC data sources that a statement
+   * starts as soon as it is executed, so that they run at the same time,
+   * rather than each starting when its rows are first needed. Rows are
+   * buffered until they are needed. 0 (the default) means start each query
+   * when its rows are needed. */
+  PARALLEL_JDBC_QUERIES("parallelJdbcQueries", Type.NUMBER, 0),
+
   /** Lexical policy. */
   LEX("lex", Type.ENUM, Lex.ORACLE),
 
@@ -57,6 +81,11 @@ public enum OptiqConnectionProperty implements ConnectionProperty {
    *  If not specified, value from {@link #LEX} is used. */
   CASE_SENSITIVE("caseSensitive", Type.BOOLEAN, null),
 
+  /** Whether to cache prepared statements. If true, literals in
+   * comparisons are replaced with dynamic parameters, so that statements
+   * that differ only in their literal values share a plan. */
+  PLAN_CACHE("planCache", Type.BOOLEAN, false),
+
   /** Name of initial schema. */
   SCHEMA("schema", Type.STRING, null),
 
@@ -17,15 +17,22 @@
 */
 package net.hydromatic.optiq.impl.clone;
 
+import net.hydromatic.avatica.ColumnMetaData;
+
 import net.hydromatic.linq4j.*;
 import net.hydromatic.linq4j.expressions.Primitive;
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.impl.AbstractTableQueryable;
 import net.hydromatic.optiq.impl.java.AbstractQueryableTable;
+import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.runtime.BinarySearch;
 import net.hydromatic.optiq.util.BitSets;
 
+import org.eigenbase.rel.RelCollation;
+import org.eigenbase.rel.RelCollationImpl;
 import org.eigenbase.reltype.*;
+import org.eigenbase.sql.SqlKind;
 import org.eigenbase.util.*;
 
 import com.google.common.base.Supplier;
@@ -33,6 +40,8 @@
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Type;
+import java.nio.*;
+import java.nio.charset.Charset;
 import java.util.*;
 
 /**
@@ -41,10 +50,27 @@
  * values in the column; see {@link Representation} and
  * {@link RepresentationType}.
  */
-class ArrayTable extends AbstractQueryableTable {
+public class ArrayTable extends AbstractQueryableTable {
+  /** Compares a value of a column with a value of a literal. */
+  private static final Comparator<Object> VALUE_COMPARATOR =
+      new Comparator<Object>() {
+        public int compare(Object o, Object value) {
+          return Condition.compare(o, (Comparable) value);
+        }
+      };
+
+  /** Number of rows on which {@link #scan} evaluates conditions at a
+   * time. */
+  static final int BATCH_SIZE = 1024;
+
   private final RelProtoDataType protoRowType;
   private final Supplier<Content> supplier;
 
+  /** Contents added by {@link #append}, oldest first. The list is replaced,
+   * never modified, so a query that has taken a reference to it sees a
+   * consistent set of rows. */
+  private volatile ImmutableList<Content> deltas = ImmutableList.of();
+
   /** Creates an ArrayTable. */
   public ArrayTable(Type elementType, RelProtoDataType protoRowType,
       Supplier<Content> supplier) {
@@ -59,13 +85,140 @@ public RelDataType getRowType(RelDataTypeFactory typeFactory) {
 
   public Statistic getStatistic() {
     final List<BitSet> keys = new ArrayList<BitSet>();
-    final Content content = supplier.get();
-    for (Ord<Column> ord : Ord.zip(content.columns)) {
-      if (ord.e.cardinality == content.size) {
-        keys.add(BitSets.of(ord.i));
+    final List<Content> segments = segments();
+    final Content content = segments.get(0);
+    if (segments.size() == 1) {
+      for (Ord<Column> ord : Ord.zip(content.columns)) {
+        if (ord.e.cardinality == content.size) {
+          keys.add(BitSets.of(ord.i));
+        }
       }
+    } else if (content.sortField >= 0) {
+      // Each segment is sorted on, and unique in, the sort column, and each
+      // segment's values are greater than the previous segment's (append
+      // ensures it), so the sort column is unique over the whole table.
+      keys.add(BitSets.of(content.sortField));
+    }
+    int rowCount = 0;
+    for (Content segment : segments) {
+      rowCount += segment.size;
+    }
+    final List<RelCollation> collations = content.sortField >= 0
+        ? RelCollationImpl.createSingleton(content.sortField)
+        : ImmutableList.<RelCollation>of();
+    return Statistics.of(rowCount, keys, collations);
+  }
+
+  /** Returns whether every segment is sorted on a given column, and every
+   * value of the column is greater than every value in previous segments.
+   * A segment is only sorted on a column whose values are unique and not
+   * null. */
+  private static boolean ordered(List<Content> segments, int sortField) {
+    Object last = null;
+    for (Content segment : segments) {
+      if (segment.sortField != sortField) {
+        return false;
+      }
+      if (segment.size == 0) {
+        continue;
+      }
+      final Column column = segment.columns.get(sortField);
+      final Object first = column.representation.getObject(column.dataSet, 0);
+      if (first == null
+          || last != null && Condition.compare(first, (Comparable) last) <= 0) {
+        return false;
+      }
+      last = column.representation.getObject(column.dataSet,
+          segment.size - 1);
     }
-    return Statistics.of(content.size, keys);
+    return true;
+  }
+
+  /** Returns the segments of this table: the contents loaded when the table
+   * was first used, followed by the contents added by each call to
+   * {@link #append}. */
+  List<Content> segments() {
+    final ImmutableList<Content> deltas = this.deltas;
+    if (deltas.isEmpty()) {
+      return ImmutableList.of(supplier.get());
+    }
+    return ImmutableList.<Content>builder()
+        .add(supplier.get())
+        .addAll(deltas)
+        .build();
+  }
+
+  /** Appends rows to this table.
+   *
+   * <p>The rows are loaded into a new segment; existing segments are not
+   * re-encoded or copied. If the existing rows are stored outside the Java
+   * heap, so are the new rows. Queries that started before this method
+   * returns do not see the new rows; queries that start afterwards see all
+   * of them.</p>
+   *
+   * <p>If the table is sorted on a column, the planner may rely on that
+   * order, in plans that are cached or held by prepared statements, for
+   * instance to use a merge join or to remove a sort. Therefore the new
+   * segment must keep the table sorted: the new rows' values of the sort
+   * column must be unique, not null, and greater than every value already in
+   * the table. Otherwise this method throws and the table is unchanged. A
+   * table that has no sort column accepts any rows.</p>
+   *
+   * <p>To load only rows that are newer than those already in the table,
+   * filter the source on a column whose values increase over time, using
+   * {@link #max(int)} as the watermark.</p>
+   *
+   * @param typeFactory Type factory
+   * @param repList Physical row types, or null if not known
+   * @param source Rows to append
+   * @return Number of rows appended
+   *
+   * @throws IllegalArgumentException if the table is sorted and the rows
+   *   would not keep it sorted
+   */
+  public <T> int append(JavaTypeFactory typeFactory,
+      List<ColumnMetaData.Rep> repList, Enumerable<T> source) {
+    final int sortField = sortField();
+    final ColumnLoader<T> loader =
+        new ColumnLoader<T>(typeFactory, source, protoRowType, repList,
+            sortField, supplier.get().isOffHeap());
+    if (loader.size() == 0) {
+      return 0;
+    }
+    final Content content =
+        new Content(loader.representationValues, loader.size(),
+            loader.sortField);
+    synchronized (this) {
+      final List<Content> segments =
+          ImmutableList.<Content>builder()
+              .addAll(segments())
+              .add(content)
+              .build();
+      if (sortField >= 0 && !ordered(segments, sortField)) {
+        throw new IllegalArgumentException("Cannot append rows: values of "
+            + "column " + sortField + ", on which the table is sorted, must "
+            + "be unique, not null, and greater than existing values");
+      }
+      deltas = ImmutableList.<Content>builder()
+          .addAll(deltas)
+          .add(content)
+          .build();
+    }
+    return loader.size();
+  }
+
+  /** Returns the largest value of a column, or null if the table is empty
+   * or the column contains only null values. */
+  public Comparable max(int field) {
+    Comparable max = null;
+    for (Content segment : segments()) {
+      final Comparable value = segment.max(field);
+      if (value != null
+          && (max == null || Condition.compare(value, max) > 0)) {
+        max = value;
+      }
+    }
+    return max;
   }
 
   public <T> Queryable<T> asQueryable(final QueryProvider queryProvider,
@@ -74,13 +227,14 @@ public <T> Queryable<T> asQueryable(final QueryProvider queryProvider,
         tableName) {
       @SuppressWarnings("unchecked")
       public Enumerator<T> enumerator() {
-        final Content content = supplier.get();
+        final List<Content> segments = segments();
         return new Enumerator() {
-          final int rowCount = content.size;
-          final int columnCount = content.columns.size();
+          final int columnCount = segments.get(0).columns.size();
+          int s = 0;
           int i = -1;
 
           public Object[] current() {
+            final Content content = segments.get(s);
             Object[] objects = new Object[columnCount];
             for (int j = 0; j < objects.length; j++) {
               final Column pair = content.columns.get(j);
@@ -90,10 +244,18 @@ public Object[] current() {
           }
 
           public boolean moveNext() {
-            return ++i < rowCount;
+            while (s < segments.size()) {
+              if (++i < segments.get(s).size) {
+                return true;
+              }
+              ++s;
+              i = -1;
+            }
+            return false;
           }
 
           public void reset() {
+            s = 0;
             i = -1;
           }
 
@@ -104,6 +266,640 @@ public void close() {
     };
   }
 
+  /** Returns the ordinal of the column on which the rows of this table are
+   * sorted, or -1 if they are not sorted. Segments added by {@link #append}
+   * are sorted on the same column. */
+  int sortField() {
+    return supplier.get().sortField;
+  }
+
+  /** Returns whether the values of a column are stored in a dictionary, so
+   * that a condition on the column is evaluated once per distinct value
+   * rather than once per row. */
+  boolean isDictionary(int field) {
+    return supplier.get().columns.get(field).representation
+        instanceof ObjectDictionary;
+  }
+
+  /** Returns the rows of this table that satisfy all of the given
+   * conditions, with only the given columns.
+   *
+   * <p>Called from code generated by {@link ArrayTableAccessRel}. Only the
+   * columns referenced by conditions and by {@code fields} are decoded, and
+   * a row is created only if it satisfies every condition. Conditions are
+   * evaluated on batches of up to {@link #BATCH_SIZE} rows at a time, each
+   * condition removing rows from the batch's selection vector before the
+   * next condition is evaluated. If there is precisely one field, each row
+   * is the value of that column; otherwise each row is an
+   * {@code Object[]}.</p>
+   *
+   * <p>If {@code ranges} is not null, only rows whose value of the sort
+   * column falls within one of the ranges are read. The ranges must be in
+   * ascending order and must not overlap; rows in each range are found by
+   * binary search in each segment.</p>
+   *
+   * @param fields Ordinals of columns to return
+   * @param conditions Conditions that each returned row must satisfy
+   * @param ranges Ranges of values of the sort column, or null to read
+   *               all rows
+   */
+  public Enumerable<Object> scan(final int[] fields,
+      final Condition[] conditions, final Range[] ranges) {
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        return cursor(fields, conditions, ranges);
+      }
+    };
+  }
+
+  /** Returns a cursor over the rows of this table that satisfy all of the
+   * given conditions. Arguments are as for {@link #scan}.
+   *
+   * <p>Called from code generated by {@link ArrayTableAggregateRel}, which
+   * reads numeric values through {@link Cursor#getLong} and similar methods
+   * rather than creating a row object.</p> */
+  public Cursor cursor(int[] fields, Condition[] conditions, Range[] ranges) {
+    return new Cursor(segments(), fields, conditions, ranges);
+  }
+
+  /** Cursor over the rows of an {@link ArrayTable} that satisfy a list of
+   * conditions.
+   *
+   * <p>As an {@link Enumerator}, returns rows as described in
+   * {@link ArrayTable#scan}. Generated code may instead read the values of
+   * the current row using the typed accessors, such as {@link #getLong},
+   * which do not box values that are stored as primitives. Field {@code j}
+   * is the column whose ordinal is {@code fields[j]}.</p>
+   *
+   * <p>Or, generated code may read a batch of up to
+   * {@link ArrayTable#BATCH_SIZE} rows at a time: call {@link #nextBatch},
+   * then copy the values of each field it needs into a vector using
+   * {@link #getLongs} and similar methods, then loop over the vectors. Do
+   * not call both {@link #moveNext} and {@link #nextBatch} on the same
+   * cursor.</p> */
+  public static class Cursor implements Enumerator<Object> {
+    private final List<Content> segments;
+    private final int[] fields;
+    private final Condition[] conditions;
+    private final Range[] ranges;
+    private final int[] selection = new int[BATCH_SIZE];
+    private int s = -1;
+    private Column[] columns;
+    private Filter[] filters;
+    private int[] bounds = {};
+    private int b = 0;
+    private int next;
+    private int count = 0;
+    private int k = -1;
+    private int i = -1;
+
+    Cursor(List<Content> segments, int[] fields, Condition[] conditions,
+        Range[] ranges) {
+      this.segments = segments;
+      this.fields = fields;
+      this.conditions = conditions;
+      this.ranges = ranges;
+    }
+
+    /** Moves to the next segment, if there is one. */
+    private boolean nextSegment() {
+      if (++s >= segments.size()) {
+        return false;
+      }
+      final Content content = segments.get(s);
+      columns = new Column[fields.length];
+      for (int j = 0; j < fields.length; j++) {
+        columns[j] = content.columns.get(fields[j]);
+      }
+      final List<Filter> filterList = new ArrayList<Filter>();
+      for (Condition condition : conditions) {
+        filterList.add(
+            condition.filter(content.columns.get(condition.field)));
+      }
+      bounds = ranges == null
+          ? new int[] {0, content.size}
+          : content.search(ranges);
+      filters = filterList.toArray(new Filter[filterList.size()]);
+      b = 0;
+      next = bounds.length > 0 ? bounds[0] : 0;
+      return true;
+    }
+
+    /** Fills the selection vector with the next batch of rows, then removes
+     * those that do not satisfy every filter. The batch may be empty.
+     * Returns false if there are no more rows. */
+    private boolean loadBatch() {
+      while (b >= bounds.length) {
+        if (!nextSegment()) {
+          return false;
+        }
+      }
+      final int end = Math.min(bounds[b + 1], next + BATCH_SIZE);
+      count = 0;
+      for (int ordinal = next; ordinal < end; ordinal++) {
+        selection[count++] = ordinal;
+      }
+      next = end;
+      if (next >= bounds[b + 1]) {
+        b += 2;
+        if (b < bounds.length) {
+          next = bounds[b];
+        }
+      }
+      for (Filter filter : filters) {
+        if (count == 0) {
+          break;
+        }
+        count = filter.select(selection, count);
+      }
+      k = -1;
+      return true;
+    }
+
+    public Object current() {
+      if (columns.length == 1) {
+        return getObject(0);
+      }
+      final Object[] objects = new Object[columns.length];
+      for (int j = 0; j < objects.length; j++) {
+        objects[j] = getObject(j);
+      }
+      return objects;
+    }
+
+    public boolean moveNext() {
+      for (;;) {
+        if (++k < count) {
+          i = selection[k];
+          return true;
+        }
+        if (!loadBatch()) {
+          return false;
+        }
+      }
+    }
+
+    public void reset() {
+      s = -1;
+      bounds = new int[0];
+      b = 0;
+      count = 0;
+      k = -1;
+      i = -1;
+    }
+
+    public void close() {
+    }
+
+    /** Returns the value of field {@code j} of the current row. */
+    public Object getObject(int j) {
+      return columns[j].representation.getObject(columns[j].dataSet, i);
+    }
+
+    /** Returns whether the value of field {@code j} of the current row is
+     * null. */
+    public boolean isNull(int j) {
+      return columns[j].representation.isNull(columns[j].dataSet, i);
+    }
+
+    /** Returns the value of field {@code j} of the current row as an
+     * {@code int}. The value must not be null. */
+    public int getInt(int j) {
+      return columns[j].representation.getInt(columns[j].dataSet, i);
+    }
+
+    /** Returns the value of field {@code j} of the current row as a
+     * {@code long}. The value must not be null. */
+    public long getLong(int j) {
+      return columns[j].representation.getLong(columns[j].dataSet, i);
+    }
+
+    /** Returns the value of field {@code j} of the current row as a
+     * {@code double}. The value must not be null. */
+    public double getDouble(int j) {
+      return columns[j].representation.getDouble(columns[j].dataSet, i);
+    }
+
+    /** Moves to the next batch of rows that satisfy every condition.
+     * Returns false if there are no more rows; otherwise the batch contains
+     * between 1 and {@link ArrayTable#BATCH_SIZE} rows, and
+     * {@link #batchSize} returns how many. */
+    public boolean nextBatch() {
+      while (loadBatch()) {
+        if (count > 0) {
+          k = count;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Returns the number of rows in the current batch. */
+    public int batchSize() {
+      return count;
+    }
+
+    /** Copies whether the value of field {@code j} is null in each row of
+     * the current batch into a vector. */
+    public void getNulls(int j, boolean[] nulls) {
+      final Representation representation = columns[j].representation;
+      final Object dataSet = columns[j].dataSet;
+      for (int m = 0; m < count; m++) {
+        nulls[m] = representation.isNull(dataSet, selection[m]);
+      }
+    }
+
+    /** Copies the value of field {@code j} in each row of the current batch
+     * into a vector of {@code int} values. Elements for rows whose value is
+     * null are 0. */
+    public void getInts(int j, int[] values) {
+      final Representation representation = columns[j].representation;
+      final Object dataSet = columns[j].dataSet;
+      if (representation instanceof PrimitiveArray
+          && dataSet instanceof int[]) {
+        final int[] ints = (int[]) dataSet;
+        for (int m = 0; m < count; m++) {
+          values[m] = ints[selection[m]];
+        }
+        return;
+      }
+      for (int m = 0; m < count; m++) {
+        final int ordinal = selection[m];
+        values[m] = representation.isNull(dataSet, ordinal)
+            ? 0
+            : representation.getInt(dataSet, ordinal);
+      }
+    }
+
+    /** Copies the value of field {@code j} in each row of the current batch
+     * into a vector of {@code long} values. Elements for rows whose value is
+     * null are 0. */
+    public void getLongs(int j, long[] values) {
+      final Representation representation = columns[j].representation;
+      final Object dataSet = columns[j].dataSet;
+      if (representation instanceof PrimitiveArray
+          && dataSet instanceof long[]) {
+        final long[] longs = (long[]) dataSet;
+        for (int m = 0; m < count; m++) {
+          values[m] = longs[selection[m]];
+        }
+        return;
+      }
+      for (int m = 0; m < count; m++) {
+        final int ordinal = selection[m];
+        values[m] = representation.isNull(dataSet, ordinal)
+            ? 0L
+            : representation.getLong(dataSet, ordinal);
+      }
+    }
+
+    /** Copies the value of field {@code j} in each row of the current batch
+     * into a vector of {@code double} values. Elements for rows whose value
+     * is null are 0. */
+    public void getDoubles(int j, double[] values) {
+      final Representation representation = columns[j].representation;
+      final Object dataSet = columns[j].dataSet;
+      if (representation instanceof PrimitiveArray
+          && dataSet instanceof double[]) {
+        final double[] doubles = (double[]) dataSet;
+        for (int m = 0; m < count; m++) {
+          values[m] = doubles[selection[m]];
+        }
+        return;
+      }
+      for (int m = 0; m < count; m++) {
+        final int ordinal = selection[m];
+        values[m] = representation.isNull(dataSet, ordinal)
+            ? 0D
+            : representation.getDouble(dataSet, ordinal);
+      }
+    }
+  }
+
+  /** Condition on a column of an {@link ArrayTable} that compares the column's
+   * value with a literal, or with each of a list of literals. Evaluates to
+   * false if the column's value is null. */
+  public static class Condition {
+    final int field;
+    final SqlKind kind;
+    final Comparable value;
+    final Comparable[] values;
+
+    /** Creates a Condition that compares a column with a literal.
+     *
+     * @param field Ordinal of column
+     * @param kind Comparison operator: one of {@link SqlKind#EQUALS},
+     *             {@link SqlKind#NOT_EQUALS}, {@link SqlKind#LESS_THAN},
+     *             {@link SqlKind#LESS_THAN_OR_EQUAL},
+     *             {@link SqlKind#GREATER_THAN} or
+     *             {@link SqlKind#GREATER_THAN_OR_EQUAL}
+     * @param value Literal value; an integral {@link Number}, a
+     *              {@link String} or a {@link Boolean}
+     */
+    public Condition(int field, SqlKind kind, Comparable value) {
+      assert value != null;
+      assert kind != SqlKind.IN;
+      this.field = field;
+      this.kind = kind;
+      this.value = value;
+      this.values = null;
+    }
+
+    /** Creates a Condition that a column is equal to one of a list of
+     * literals.
+     *
+     * @param field Ordinal of column
+     * @param values Literal values
+     */
+    public Condition(int field, Comparable[] values) {
+      this.field = field;
+      this.kind = SqlKind.IN;
+      this.value = null;
+      this.values = values;
+    }
+
+    @Override public String toString() {
+      return kind + "($" + field + ", "
+          + (values != null ? Arrays.toString(values) : value) + ")";
+    }
+
+    /** Returns a filter that evaluates this condition on a given column.
+     *
+     * <p>If the column is dictionary-encoded, translates this condition
+     * once into the set of codes whose values satisfy it; the filter then
+     * tests each row's code and does not decode its value.</p> */
+    Filter filter(final Column column) {
+      if (column.representation instanceof ObjectDictionary) {
+        final ObjectDictionary dictionary =
+            (ObjectDictionary) column.representation;
+        final BitSet codes = dictionary.codes(column.dataSet, this);
+        return new Filter() {
+          boolean evaluate(int ordinal) {
+            return codes.get(dictionary.getCode(column.dataSet, ordinal));
+          }
+        };
+      }
+      if (isNumeric(column) && isNumeric()) {
+        final Representation representation = column.representation;
+        final Object dataSet = column.dataSet;
+        if (values != null) {
+          final long[] longs = new long[values.length];
+          for (int i = 0; i < values.length; i++) {
+            longs[i] = ((Number) values[i]).longValue();
+          }
+          return new Filter() {
+            boolean evaluate(int ordinal) {
+              final long v = representation.getLong(dataSet, ordinal);
+              for (long l : longs) {
+                if (v == l) {
+                  return true;
+                }
+              }
+              return false;
+            }
+          };
+        }
+        final long v = ((Number) value).longValue();
+        switch (kind) {
+        case EQUALS:
+          return new NumericFilter(representation, dataSet, v, v, false);
+        case NOT_EQUALS:
+          return new NumericFilter(representation, dataSet, v, v, true);
+        case LESS_THAN:
+          return v == Long.MIN_VALUE
+              ? new NumericFilter(representation, dataSet, 1, 0, false)
+              : new NumericFilter(representation, dataSet, Long.MIN_VALUE,
+                  v - 1, false);
+        case LESS_THAN_OR_EQUAL:
+          return new NumericFilter(representation, dataSet, Long.MIN_VALUE,
+              v, false);
+        case GREATER_THAN:
+          return v == Long.MAX_VALUE
+              ? new NumericFilter(representation, dataSet, 1, 0, false)
+              : new NumericFilter(representation, dataSet, v + 1,
+                  Long.MAX_VALUE, false);
+        case GREATER_THAN_OR_EQUAL:
+          return new NumericFilter(representation, dataSet, v,
+              Long.MAX_VALUE, false);
+        default:
+          throw new AssertionError(kind);
+        }
+      }
+      return new Filter() {
+        boolean evaluate(int ordinal) {
+          return Condition.this.evaluate(
+              column.representation.getObject(column.dataSet, ordinal));
+        }
+      };
+    }
+
+    /** Returns whether this condition's literals are all numbers. */
+    private boolean isNumeric() {
+      if (values != null) {
+        for (Comparable v : values) {
+          if (!(v instanceof Number)) {
+            return false;
+          }
+        }
+        return true;
+      }
+      return value instanceof Number;
+    }
+
+    /** Returns whether a column holds only non-null numbers, stored as
+     * primitive values. Such a column can be read using
+     * {@link Representation#getLong} without creating objects. */
+    private static boolean isNumeric(Column column) {
+      final Representation representation = column.representation;
+      if (representation instanceof PrimitiveArray) {
+        return isNumeric(((PrimitiveArray) representation).p);
+      }
+      if (representation instanceof BitSlicedPrimitiveArray) {
+        return isNumeric(((BitSlicedPrimitiveArray) representation).primitive);
+      }
+      if (representation instanceof Constant) {
+        return ((Pair) column.dataSet).left instanceof Number;
+      }
+      return false;
+    }
+
+    private static boolean isNumeric(Primitive p) {
+      switch (p) {
+      case BYTE:
+      case SHORT:
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+        return true;
+      default:
+        return false;
+      }
+    }
+
+    /** Returns whether a column value satisfies this condition. */
+    boolean evaluate(Object o) {
+      if (o == null) {
+        return false;
+      }
+      if (values != null) {
+        for (Comparable v : values) {
+          if (compare(o, v) == 0) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return test(compare(o, value));
+    }
+
+    /** Returns whether the result of comparing a column value with this
+     * condition's literal satisfies this condition. */
+    boolean test(int c) {
+      switch (kind) {
+      case EQUALS:
+        return c == 0;
+      case NOT_EQUALS:
+        return c != 0;
+      case LESS_THAN:
+        return c < 0;
+      case LESS_THAN_OR_EQUAL:
+        return c <= 0;
+      case GREATER_THAN:
+        return c > 0;
+      case GREATER_THAN_OR_EQUAL:
+        return c >= 0;
+      default:
+        throw new AssertionError(kind);
+      }
+    }
+
+    /** Compares a column value with a literal. Integral values are compared
+     * numerically, whatever their boxed type. */
+    static int compare(Object o, Comparable value) {
+      if (o instanceof Number && value instanceof Number) {
+        final long v0 = ((Number) o).longValue();
+        final long v1 = ((Number) value).longValue();
+        return v0 < v1 ? -1 : v0 == v1 ? 0 : 1;
+      }
+      //noinspection unchecked
+      return -Integer.signum(value.compareTo(o));
+    }
+  }
+
+  /** Evaluates a {@link Condition} on the rows of a particular column. */
+  abstract static class Filter {
+    /** Returns whether the row with a given ordinal satisfies the
+     * condition. */
+    abstract boolean evaluate(int ordinal);
+
+    /** Removes from a selection vector the rows that do not satisfy the
+     * condition, keeping the remaining rows in order.
+     *
+     * @param selection Ordinals of rows
+     * @param count Number of elements of {@code selection} that are valid
+     * @return Number of rows that satisfy the condition; they are now the
+     *   first elements of {@code selection}
+     */
+    int select(int[] selection, int count) {
+      int n = 0;
+      for (int k = 0; k < count; k++) {
+        final int ordinal = selection[k];
+        if (evaluate(ordinal)) {
+          selection[n++] = ordinal;
+        }
+      }
+      return n;
+    }
+  }
+
+  /** Filter on a column of non-null numbers, stored as primitive values,
+   * that tests whether each value is within a range, or, if
+   * {@code negate}, outside it.
+   *
+   * <p>If the values are in an {@code int[]} or {@code long[]}, selects
+   * rows in a loop that reads the array directly.</p> */
+  static class NumericFilter extends Filter {
+    final Representation representation;
+    final Object dataSet;
+    final long lower;
+    final long upper;
+    final boolean negate;
+
+    NumericFilter(Representation representation, Object dataSet, long lower,
+        long upper, boolean negate) {
+      this.representation = representation;
+      this.dataSet = dataSet;
+      this.lower = lower;
+      this.upper = upper;
+      this.negate = negate;
+    }
+
+    boolean evaluate(int ordinal) {
+      final long v = representation.getLong(dataSet, ordinal);
+      return (lower <= v && v <= upper) != negate;
+    }
+
+    @Override int select(int[] selection, int count) {
+      int n = 0;
+      if (dataSet instanceof int[]) {
+        final int[] values = (int[]) dataSet;
+        for (int k = 0; k < count; k++) {
+          final int ordinal = selection[k];
+          final long v = values[ordinal];
+          if ((lower <= v && v <= upper) != negate) {
+            selection[n++] = ordinal;
+          }
+        }
+        return n;
+      }
+      if (dataSet instanceof long[]
+          && representation instanceof PrimitiveArray) {
+        final long[] values = (long[]) dataSet;
+        for (int k = 0; k < count; k++) {
+          final int ordinal = selection[k];
+          final long v = values[ordinal];
+          if ((lower <= v && v <= upper) != negate) {
+            selection[n++] = ordinal;
+          }
+        }
+        return n;
+      }
+      return super.select(selection, count);
+    }
+  }
+
+  /** Range of values of a table's sort column. A null bound means that the
+   * range is unbounded in that direction. */
+  public static class Range {
+    final Comparable lower;
+    final boolean lowerInclusive;
+    final Comparable upper;
+    final boolean upperInclusive;
+
+    /** Creates a Range.
+     *
+     * @param lower Lower bound, or null if unbounded below; an integral
+     *              {@link Number}, a {@link String} or a {@link Boolean}
+     * @param lowerInclusive Whether the range contains its lower bound
+     * @param upper Upper bound, or null if unbounded above
+     * @param upperInclusive Whether the range contains its upper bound
+     */
+    public Range(Comparable lower, boolean lowerInclusive, Comparable upper,
+        boolean upperInclusive) {
+      this.lower = lower;
+      this.lowerInclusive = lowerInclusive;
+      this.upper = upper;
+      this.upperInclusive = upperInclusive;
+    }
+
+    @Override public String toString() {
+      return (lower == null ? "(-inf" : (lowerInclusive ? "[" : "(") + lower)
+          + ", "
+          + (upper == null ? "+inf)" : upper + (upperInclusive ? "]" : ")"));
+    }
+  }
+
   /** How a column's values are represented. */
   enum RepresentationType {
     /** Constant. Contains only one value.
@@ -168,16 +964,13 @@ enum RepresentationType {
     OBJECT_DICTIONARY,
 
     /**
-     * Compressed string table. Block of char data. Strings represented
-     * using an unsigned offset into the table (stored using one of the
-     * previous methods).
+     * String table. Block of UTF-8 data, outside the Java heap, and the
+     * offset of the end of each row's string within the block.
      *
-     * <p>First 2 bytes are unsigned length; subsequent bytes are string
-     * contents. The null value, strings longer than 64k and strings that
-     * occur very commonly are held in an 'exceptions' array and are
-     * recognized by their high offsets. Other strings are created on demand
-     * (this reduces the number of objects that need to be created during
-     * deserialization from cache.</p>
+     * <p>The null value is recognized by a negative offset. Strings are
+     * created on demand; this reduces the number of objects on the heap,
+     * and the number of objects that need to be created during
+     * deserialization from file.</p>
      *
      * @see StringDictionary
      */
@@ -210,6 +1003,15 @@ public Column permute(int[] sources) {
           cardinality);
     }
 
+    /** Returns whether this column's values are stored outside the Java
+     * heap. */
+    boolean isOffHeap() {
+      final Object data = dataSet instanceof Pair
+          ? ((Pair) dataSet).left
+          : dataSet;
+      return data instanceof Buffer && ((Buffer) data).isDirect();
+    }
+
     @Override
     public String toString() {
       return "Column(representation=" + representation
@@ -245,6 +1047,20 @@ public interface Representation {
     Object getObject(Object dataSet, int ordinal);
     int getInt(Object dataSet, int ordinal);
 
+    /** Returns the value in a given row as a {@code long}, without boxing
+     * it if the representation stores primitive values. The value must be
+     * a number and not null; floating-point values are truncated. */
+    long getLong(Object dataSet, int ordinal);
+
+    /** Returns the value in a given row as a {@code double}, without boxing
+     * it if the representation stores primitive values. The value must be
+     * a number and not null. */
+    double getDouble(Object dataSet, int ordinal);
+
+    /** Returns whether the value in a given row is null. Does not decode
+     * the value. */
+    boolean isNull(Object dataSet, int ordinal);
+
     /** Creates a data set that is the same as a given data set
      * but re-ordered. */
     Object permute(Object dataSet, int[] sources);
@@ -298,6 +1114,18 @@ public int getInt(Object dataSet, int ordinal) {
       return ((Number) getObject(dataSet, ordinal)).intValue();
     }
 
+    public long getLong(Object dataSet, int ordinal) {
+      return ((Number) getObject(dataSet, ordinal)).longValue();
+    }
+
+    public double getDouble(Object dataSet, int ordinal) {
+      return ((Number) getObject(dataSet, ordinal)).doubleValue();
+    }
+
+    public boolean isNull(Object dataSet, int ordinal) {
+      return getObject(dataSet, ordinal) == null;
+    }
+
     public int size(Object dataSet) {
       return ((Comparable[]) dataSet).length;
     }
@@ -311,8 +1139,8 @@ public String toString(Object dataSet) {
    * primitive values. */
   public static class PrimitiveArray implements Representation {
     final int ordinal;
-    private final Primitive primitive;
-    private final Primitive p;
+    final Primitive primitive;
+    final Primitive p;
 
     public PrimitiveArray(int ordinal, Primitive primitive, Primitive p) {
       this.ordinal = ordinal;
@@ -338,62 +1166,142 @@ public Object freeze(ColumnLoader.ValueSet valueSet, int[] sources) {
     }
 
     public Object permute(Object dataSet, int[] sources) {
+      if (dataSet instanceof Buffer) {
+        dataSet = toArray((Buffer) dataSet);
+      }
       return primitive.permute(dataSet, sources);
     }
 
     public Object getObject(Object dataSet, int ordinal) {
+      if (dataSet instanceof Buffer) {
+        return bufferItem(p, (Buffer) dataSet, ordinal);
+      }
       return p.arrayItem(dataSet, ordinal);
     }
 
     public int getInt(Object dataSet, int ordinal) {
-      return Array.getInt(dataSet, ordinal);
+      return (int) getLong(dataSet, ordinal);
+    }
+
+    public long getLong(Object dataSet, int ordinal) {
+      if (dataSet instanceof Buffer) {
+        return bufferLong((Buffer) dataSet, ordinal);
+      }
+      switch (primitive) {
+      case BOOLEAN:
+        return ((boolean[]) dataSet)[ordinal] ? 1 : 0;
+      case BYTE:
+        return ((byte[]) dataSet)[ordinal];
+      case CHAR:
+        return ((char[]) dataSet)[ordinal];
+      case SHORT:
+        return ((short[]) dataSet)[ordinal];
+      case INT:
+        return ((int[]) dataSet)[ordinal];
+      case LONG:
+        return ((long[]) dataSet)[ordinal];
+      case FLOAT:
+        return (long) ((float[]) dataSet)[ordinal];
+      case DOUBLE:
+        return (long) ((double[]) dataSet)[ordinal];
+      default:
+        throw new AssertionError(primitive + " unexpected");
+      }
+    }
+
+    public double getDouble(Object dataSet, int ordinal) {
+      if (dataSet instanceof Buffer) {
+        return bufferDouble((Buffer) dataSet, ordinal);
+      }
+      switch (primitive) {
+      case FLOAT:
+        return ((float[]) dataSet)[ordinal];
+      case DOUBLE:
+        return ((double[]) dataSet)[ordinal];
+      default:
+        return getLong(dataSet, ordinal);
+      }
+    }
+
+    public boolean isNull(Object dataSet, int ordinal) {
+      return false;
     }
 
     public int size(Object dataSet) {
+      if (dataSet instanceof Buffer) {
+        return ((Buffer) dataSet).limit();
+      }
       return Array.getLength(dataSet);
     }
 
     public String toString(Object dataSet) {
+      if (dataSet instanceof Buffer) {
+        return Column.asList(this, dataSet).toString();
+      }
       return p.arrayToString(dataSet);
     }
   }
 
-  /** Representation that stores column values in a dictionary of
-   * primitive values, then uses a short code for each row. */
-  public static class PrimitiveDictionary implements Representation {
-    public PrimitiveDictionary() {
-    }
-
-    public String toString() {
-      return "PrimitiveDictionary()";
-    }
-
-    public RepresentationType getType() {
-      return RepresentationType.PRIMITIVE_DICTIONARY;
+  /** Representation that is declared in {@link RepresentationType} but is
+   * not implemented yet. {@link ColumnLoader} never chooses it, so a table
+   * never contains a column of this representation; every method throws. */
+  abstract static class UnimplementedRepresentation
+      implements Representation {
+    private UnsupportedOperationException unsupported() {
+      return new UnsupportedOperationException(
+          "Representation " + getType() + " is not implemented");
     }
 
     public Object freeze(ColumnLoader.ValueSet valueSet, int[] sources) {
-      throw new UnsupportedOperationException(); // TODO:
+      throw unsupported();
     }
 
     public Object permute(Object dataSet, int[] sources) {
-      throw new UnsupportedOperationException(); // TODO:
+      throw unsupported();
     }
 
     public Object getObject(Object dataSet, int ordinal) {
-      throw new UnsupportedOperationException(); // TODO:
+      throw unsupported();
     }
 
     public int getInt(Object dataSet, int ordinal) {
-      throw new UnsupportedOperationException(); // TODO:
+      throw unsupported();
+    }
+
+    public long getLong(Object dataSet, int ordinal) {
+      throw unsupported();
+    }
+
+    public double getDouble(Object dataSet, int ordinal) {
+      throw unsupported();
+    }
+
+    public boolean isNull(Object dataSet, int ordinal) {
+      throw unsupported();
     }
 
     public int size(Object dataSet) {
-      throw new UnsupportedOperationException(); // TODO:
+      throw unsupported();
     }
 
     public String toString(Object dataSet) {
-      throw new UnsupportedOperationException(); // TODO:
+      throw unsupported();
+    }
+  }
+
+  /** Representation that stores column values in a dictionary of
+   * primitive values, then uses a short code for each row. Not implemented
+   * yet. */
+  public static class PrimitiveDictionary extends UnimplementedRepresentation {
+    public PrimitiveDictionary() {
+    }
+
+    public String toString() {
+      return "PrimitiveDictionary()";
+    }
+
+    public RepresentationType getType() {
+      return RepresentationType.PRIMITIVE_DICTIONARY;
     }
   }
 
@@ -462,6 +1370,79 @@ public int getInt(Object dataSet, int ordinal) {
       return ((Number) getObject(dataSet, ordinal)).intValue();
     }
 
+    public long getLong(Object dataSet, int ordinal) {
+      return ((Number) getObject(dataSet, ordinal)).longValue();
+    }
+
+    public double getDouble(Object dataSet, int ordinal) {
+      return ((Number) getObject(dataSet, ordinal)).doubleValue();
+    }
+
+    public boolean isNull(Object dataSet, int ordinal) {
+      return getObject(dataSet, ordinal) == null;
+    }
+
+    /** Returns the code of the value in a given row. */
+    int getCode(Object dataSet, int ordinal) {
+      final Pair<Object, Comparable[]> pair =
+          (Pair<Object, Comparable[]>) dataSet;
+      return representation.getInt(pair.left, ordinal);
+    }
+
+    /** Returns the set of codes whose values satisfy a condition.
+     *
+     * <p>Codes are assigned in value order, so a comparison with a literal
+     * is satisfied by a range of codes, which we find by binary search. The
+     * code of the null value, if present, is last, and never satisfies a
+     * condition. */
+    BitSet codes(Object dataSet, Condition condition) {
+      final Pair<Object, Comparable[]> pair =
+          (Pair<Object, Comparable[]>) dataSet;
+      final Comparable[] codeValues = pair.right;
+      final int n = codeValues.length > 0
+          && codeValues[codeValues.length - 1] == null
+          ? codeValues.length - 1
+          : codeValues.length;
+      final List<Comparable> list = Arrays.asList(codeValues).subList(0, n);
+      final BitSet codes = new BitSet(n);
+      if (condition.values != null) {
+        for (Comparable value : condition.values) {
+          codes.set(
+              BinarySearch.firstNotLess(list, value, VALUE_COMPARATOR),
+              BinarySearch.firstGreater(list, value, VALUE_COMPARATOR));
+        }
+        return codes;
+      }
+      final int lo =
+          BinarySearch.firstNotLess(list, condition.value, VALUE_COMPARATOR);
+      final int hi =
+          BinarySearch.firstGreater(list, condition.value, VALUE_COMPARATOR);
+      switch (condition.kind) {
+      case EQUALS:
+        codes.set(lo, hi);
+        break;
+      case NOT_EQUALS:
+        codes.set(0, lo);
+        codes.set(hi, n);
+        break;
+      case LESS_THAN:
+        codes.set(0, lo);
+        break;
+      case LESS_THAN_OR_EQUAL:
+        codes.set(0, hi);
+        break;
+      case GREATER_THAN:
+        codes.set(hi, n);
+        break;
+      case GREATER_THAN_OR_EQUAL:
+        codes.set(lo, n);
+        break;
+      default:
+        throw new AssertionError(condition.kind);
+      }
+      return codes;
+    }
+
     public int size(Object dataSet) {
       final Pair<Object, Comparable[]> pair =
           (Pair<Object, Comparable[]>) dataSet;
@@ -473,14 +1454,39 @@ public String toString(Object dataSet) {
     }
   }
 
-  /** Representation that stores string column values. */
+  /** Representation that stores string column values in a block of UTF-8
+   * data outside the Java heap.
+   *
+   * <p>The data set is a pair: an {@link IntBuffer} of offsets, and a
+   * {@link ByteBuffer} of data. There is one more offset than there are
+   * rows. Offset 0 is 0; offset {@code i + 1} is the end of row
+   * {@code i}'s string, or, if the value of row {@code i} is null, the
+   * complement of the end. Both buffers are direct, or are mapped from a
+   * file by {@link ContentFile}.</p>
+   *
+   * <p>Because offsets are {@code int} values, the UTF-8 data of a column
+   * (or of a segment added by {@link ArrayTable#append}) can be at most
+   * {@link #MAX_DATA_SIZE} bytes long. Encoding a column whose strings are
+   * longer in total fails with an {@link IllegalArgumentException}; store
+   * such a column on the Java heap, or split it across several
+   * segments.</p> */
   public static class StringDictionary implements Representation {
-    public StringDictionary() {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Maximum number of bytes of UTF-8 data in a column. A little less
+     * than {@link Integer#MAX_VALUE}, because some virtual machines cannot
+     * allocate a buffer of exactly that size. */
+    public static final int MAX_DATA_SIZE = Integer.MAX_VALUE - 8;
+
+    final int ordinal;
+
+    public StringDictionary(int ordinal) {
+      this.ordinal = ordinal;
     }
 
     @Override
     public String toString() {
-      return "StringDictionary()";
+      return "StringDictionary(ordinal=" + ordinal + ")";
     }
 
     public RepresentationType getType() {
@@ -488,23 +1494,100 @@ public RepresentationType getType() {
     }
 
     public Object freeze(ColumnLoader.ValueSet valueSet, int[] sources) {
-      throw new UnsupportedOperationException(); // TODO:
+      return encode(permuteList(valueSet.values, sources));
+    }
+
+    /** Encodes a list of strings.
+     *
+     * @throws IllegalArgumentException if the strings' UTF-8 data would be
+     *   longer than {@link #MAX_DATA_SIZE} bytes
+     */
+    private static Pair<IntBuffer, ByteBuffer> encode(List<?> list) {
+      final int n = list.size();
+      final IntBuffer offsets = directBuffer(n + 1, 4).asIntBuffer();
+      ByteBuffer data =
+          directBuffer((int) Math.min(Math.max(n * 8L, 16L), MAX_DATA_SIZE), 1);
+      offsets.put(0, 0);
+      for (int i = 0; i < n; i++) {
+        final String s = (String) list.get(i);
+        if (s == null) {
+          offsets.put(i + 1, ~data.position());
+          continue;
+        }
+        final ByteBuffer bytes = UTF_8.encode(s);
+        if (bytes.remaining() > data.remaining()) {
+          // Grow the block, to twice its size or enough for this string, but
+          // no larger than the limit. Compute in long so that neither sum
+          // overflows.
+          final long required = (long) data.position() + bytes.remaining();
+          if (required > MAX_DATA_SIZE) {
+            throw new IllegalArgumentException("Cannot store string column: "
+                + "UTF-8 data of rows 0 to " + i + " is " + required
+                + " bytes, exceeds limit of " + MAX_DATA_SIZE + " bytes");
+          }
+          final long capacity =
+              Math.min(Math.max(data.capacity() * 2L, required),
+                  MAX_DATA_SIZE);
+          final ByteBuffer data2 = directBuffer((int) capacity, 1);
+          data.flip();
+          data2.put(data);
+          data = data2;
+        }
+        data.put(bytes);
+        offsets.put(i + 1, data.position());
+      }
+
+      // Copy into a block of the exact size.
+      data.flip();
+      final ByteBuffer data2 = directBuffer(data.limit(), 1);
+      data2.put(data);
+      data2.flip();
+      return Pair.of(offsets, data2);
     }
 
     public Object permute(Object dataSet, int[] sources) {
-      throw new UnsupportedOperationException(); // TODO:
+      return encode(permuteList(Column.asList(this, dataSet), sources));
     }
 
     public Object getObject(Object dataSet, int ordinal) {
-      throw new UnsupportedOperationException(); // TODO:
+      @SuppressWarnings("unchecked")
+      final Pair<IntBuffer, ByteBuffer> pair =
+          (Pair<IntBuffer, ByteBuffer>) dataSet;
+      final int end = pair.left.get(ordinal + 1);
+      if (end < 0) {
+        return null;
+      }
+      final int start = pair.left.get(ordinal);
+      final ByteBuffer bytes = pair.right.duplicate();
+      bytes.position(start < 0 ? ~start : start);
+      bytes.limit(end);
+      return UTF_8.decode(bytes).toString();
     }
 
     public int getInt(Object dataSet, int ordinal) {
-      throw new UnsupportedOperationException(); // TODO:
+      return ((Number) getObject(dataSet, ordinal)).intValue();
+    }
+
+    public long getLong(Object dataSet, int ordinal) {
+      return ((Number) getObject(dataSet, ordinal)).longValue();
+    }
+
+    public double getDouble(Object dataSet, int ordinal) {
+      return ((Number) getObject(dataSet, ordinal)).doubleValue();
+    }
+
+    public boolean isNull(Object dataSet, int ordinal) {
+      @SuppressWarnings("unchecked")
+      final Pair<IntBuffer, ByteBuffer> pair =
+          (Pair<IntBuffer, ByteBuffer>) dataSet;
+      return pair.left.get(ordinal + 1) < 0;
     }
 
     public int size(Object dataSet) {
-      throw new UnsupportedOperationException(); // TODO:
+      @SuppressWarnings("unchecked")
+      final Pair<IntBuffer, ByteBuffer> pair =
+          (Pair<IntBuffer, ByteBuffer>) dataSet;
+      return pair.left.limit() - 1;
     }
 
     public String toString(Object dataSet) {
@@ -512,8 +1595,10 @@ public String toString(Object dataSet) {
     }
   }
 
-  /** Representation that stores byte-string column values. */
-  public static class ByteStringDictionary implements Representation {
+  /** Representation that stores byte-string column values. Not
+   * implemented yet. */
+  public static class ByteStringDictionary
+      extends UnimplementedRepresentation {
     public ByteStringDictionary() {
     }
 
@@ -524,30 +1609,6 @@ public String toString() {
     public RepresentationType getType() {
       return RepresentationType.BYTE_STRING_DICTIONARY;
     }
-
-    public Object freeze(ColumnLoader.ValueSet valueSet, int[] sources) {
-      throw new UnsupportedOperationException(); // TODO:
-    }
-
-    public Object permute(Object dataSet, int[] sources) {
-      throw new UnsupportedOperationException(); // TODO:
-    }
-
-    public Object getObject(Object dataSet, int ordinal) {
-      throw new UnsupportedOperationException(); // TODO:
-    }
-
-    public int getInt(Object dataSet, int ordinal) {
-      throw new UnsupportedOperationException(); // TODO:
-    }
-
-    public int size(Object dataSet) {
-      throw new UnsupportedOperationException(); // TODO:
-    }
-
-    public String toString(Object dataSet) {
-      return Column.asList(this, dataSet).toString();
-    }
   }
 
   /** Representation of a column that has the same value for every row. */
@@ -577,7 +1638,7 @@ public Object permute(Object dataSet, int[] sources) {
 
     public Object getObject(Object dataSet, int ordinal) {
       Pair<Object, Integer> pair = (Pair<Object, Integer>) dataSet;
-      return pair.getValue();
+      return pair.left;
     }
 
     public int getInt(Object dataSet, int ordinal) {
@@ -585,6 +1646,21 @@ public int getInt(Object dataSet, int ordinal) {
       return ((Number) pair.left).intValue();
     }
 
+    public long getLong(Object dataSet, int ordinal) {
+      Pair<Object, Integer> pair = (Pair<Object, Integer>) dataSet;
+      return ((Number) pair.left).longValue();
+    }
+
+    public double getDouble(Object dataSet, int ordinal) {
+      Pair<Object, Integer> pair = (Pair<Object, Integer>) dataSet;
+      return ((Number) pair.left).doubleValue();
+    }
+
+    public boolean isNull(Object dataSet, int ordinal) {
+      Pair<Object, Integer> pair = (Pair<Object, Integer>) dataSet;
+      return pair.left == null;
+    }
+
     public int size(Object dataSet) {
       Pair<Object, Integer> pair = (Pair<Object, Integer>) dataSet;
       return pair.right;
@@ -680,7 +1756,9 @@ public Object freeze(ColumnLoader.ValueSet valueSet, int[] sources) {
     }
 
     public Object permute(Object dataSet, int[] sources) {
-      final long[] longs0 = (long[]) dataSet;
+      final long[] longs0 = dataSet instanceof LongBuffer
+          ? (long[]) toArray((LongBuffer) dataSet)
+          : (long[]) dataSet;
       int n = sources.length;
       final long[] longs = new long[longs0.length];
       for (int i = 0; i < n; i++) {
@@ -692,19 +1770,7 @@ public Object permute(Object dataSet, int[] sources) {
     }
 
     public Object getObject(Object dataSet, int ordinal) {
-      final long[] longs = (long[]) dataSet;
-      final int chunksPerWord = 64 / bitCount;
-      final int word = ordinal / chunksPerWord;
-      final long v = longs[word];
-      final int chunk = ordinal % chunksPerWord;
-      final int mask = (1 << bitCount) - 1;
-      final int signMask = 1 << (bitCount - 1);
-      final int shift = chunk * bitCount;
-      final long w = v >> shift;
-      long x = w & mask;
-      if (signed && (x & signMask) != 0) {
-        x = -x;
-      }
+      final long x = getLong(dataSet, ordinal);
       switch (primitive) {
       case BOOLEAN:
         return x != 0;
@@ -724,10 +1790,13 @@ public Object getObject(Object dataSet, int ordinal) {
     }
 
     public int getInt(Object dataSet, int ordinal) {
-      final long[] longs = (long[]) dataSet;
+      return (int) getLong(dataSet, ordinal);
+    }
+
+    public long getLong(Object dataSet, int ordinal) {
       final int chunksPerWord = 64 / bitCount;
       final int word = ordinal / chunksPerWord;
-      final long v = longs[word];
+      final long v = word(dataSet, word);
       final int chunk = ordinal % chunksPerWord;
       final int mask = (1 << bitCount) - 1;
       final int signMask = 1 << (bitCount - 1);
@@ -737,7 +1806,24 @@ public int getInt(Object dataSet, int ordinal) {
       if (signed && (x & signMask) != 0) {
         x = -x;
       }
-      return (int) x;
+      return x;
+    }
+
+    public double getDouble(Object dataSet, int ordinal) {
+      return getLong(dataSet, ordinal);
+    }
+
+    public boolean isNull(Object dataSet, int ordinal) {
+      return false;
+    }
+
+    /** Returns a word of a data set. The data set is a {@code long[]}, or a
+     * {@link LongBuffer} if it was read from a file by
+     * {@link ContentFile}. */
+    private static long word(Object dataSet, int word) {
+      return dataSet instanceof long[]
+          ? ((long[]) dataSet)[word]
+          : ((LongBuffer) dataSet).get(word);
     }
 
     public static long getLong(int bitCount, long[] values, int ordinal) {
@@ -774,9 +1860,11 @@ public static void orLong(
     }
 
     public int size(Object dataSet) {
-      final long[] longs = (long[]) dataSet;
+      final int wordCount = dataSet instanceof long[]
+          ? ((long[]) dataSet).length
+          : ((LongBuffer) dataSet).limit();
       final int chunksPerWord = 64 / bitCount;
-      return longs.length * chunksPerWord; // may be slightly too high
+      return wordCount * chunksPerWord; // may be slightly too high
     }
 
     public String toString(Object dataSet) {
@@ -784,6 +1872,205 @@ public String toString(Object dataSet) {
     }
   }
 
+  /** Reads a value from a buffer that holds the values of a
+   * {@link PrimitiveArray}, and converts it to a given type. */
+  private static Object bufferItem(Primitive p, Buffer buffer, int ordinal) {
+    switch (p) {
+    case DOUBLE:
+      return bufferDouble(buffer, ordinal);
+    case FLOAT:
+      return (float) bufferDouble(buffer, ordinal);
+    }
+    final long v = bufferLong(buffer, ordinal);
+    switch (p) {
+    case BOOLEAN:
+      return v != 0;
+    case BYTE:
+      return (byte) v;
+    case CHAR:
+      return (char) v;
+    case SHORT:
+      return (short) v;
+    case INT:
+      return (int) v;
+    case LONG:
+      return v;
+    default:
+      throw new AssertionError(p + " unexpected");
+    }
+  }
+
+  /** Reads a value from a buffer that holds the values of a
+   * {@link PrimitiveArray}, as a {@code long}. Floating-point values are
+   * truncated. */
+  private static long bufferLong(Buffer buffer, int ordinal) {
+    if (buffer instanceof LongBuffer) {
+      return ((LongBuffer) buffer).get(ordinal);
+    } else if (buffer instanceof IntBuffer) {
+      return ((IntBuffer) buffer).get(ordinal);
+    } else if (buffer instanceof ShortBuffer) {
+      return ((ShortBuffer) buffer).get(ordinal);
+    } else if (buffer instanceof CharBuffer) {
+      return ((CharBuffer) buffer).get(ordinal);
+    } else if (buffer instanceof ByteBuffer) {
+      return ((ByteBuffer) buffer).get(ordinal);
+    } else {
+      return (long) bufferDouble(buffer, ordinal);
+    }
+  }
+
+  /** Reads a value from a buffer that holds the values of a
+   * {@link PrimitiveArray}, as a {@code double}. */
+  private static double bufferDouble(Buffer buffer, int ordinal) {
+    if (buffer instanceof DoubleBuffer) {
+      return ((DoubleBuffer) buffer).get(ordinal);
+    } else if (buffer instanceof FloatBuffer) {
+      return ((FloatBuffer) buffer).get(ordinal);
+    } else {
+      return bufferLong(buffer, ordinal);
+    }
+  }
+
+  /** Allocates a buffer outside the Java heap, in the platform's native byte
+   * order.
+   *
+   * @param n Number of elements
+   * @param width Size of each element, in bytes
+   *
+   * @throws IllegalArgumentException if the buffer would be larger than
+   *   {@link Integer#MAX_VALUE} bytes
+   */
+  static ByteBuffer directBuffer(int n, int width) {
+    final long size = (long) n * width;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Cannot allocate buffer of " + n
+          + " elements of " + width + " bytes: " + size
+          + " bytes exceeds limit of " + Integer.MAX_VALUE + " bytes");
+    }
+    return ByteBuffer.allocateDirect((int) size)
+        .order(ByteOrder.nativeOrder());
+  }
+
+  /** Converts a data set, created by freezing a representation, so that its
+   * values are stored outside the Java heap. Returns the data set unchanged
+   * if the representation has no off-heap form. */
+  static Object toOffHeap(Representation representation, Object dataSet) {
+    switch (representation.getType()) {
+    case PRIMITIVE_ARRAY:
+    case BIT_SLICED_PRIMITIVE_ARRAY:
+      return toDirectBuffer(dataSet);
+    case OBJECT_DICTIONARY:
+      @SuppressWarnings("unchecked")
+      final Pair<Object, Comparable[]> pair =
+          (Pair<Object, Comparable[]>) dataSet;
+      return Pair.of(
+          toOffHeap(((ObjectDictionary) representation).representation,
+              pair.left),
+          pair.right);
+    default:
+      return dataSet;
+    }
+  }
+
+  /** Copies an array of primitive values into a direct buffer. */
+  private static Object toDirectBuffer(Object array) {
+    if (array instanceof Buffer) {
+      return array;
+    }
+    final int n = Array.getLength(array);
+    if (array instanceof long[]) {
+      final LongBuffer buffer = directBuffer(n, 8).asLongBuffer();
+      buffer.put((long[]) array).rewind();
+      return buffer;
+    } else if (array instanceof int[]) {
+      final IntBuffer buffer = directBuffer(n, 4).asIntBuffer();
+      buffer.put((int[]) array).rewind();
+      return buffer;
+    } else if (array instanceof short[]) {
+      final ShortBuffer buffer = directBuffer(n, 2).asShortBuffer();
+      buffer.put((short[]) array).rewind();
+      return buffer;
+    } else if (array instanceof char[]) {
+      final CharBuffer buffer = directBuffer(n, 2).asCharBuffer();
+      buffer.put((char[]) array).rewind();
+      return buffer;
+    } else if (array instanceof double[]) {
+      final DoubleBuffer buffer = directBuffer(n, 8).asDoubleBuffer();
+      buffer.put((double[]) array).rewind();
+      return buffer;
+    } else if (array instanceof float[]) {
+      final FloatBuffer buffer = directBuffer(n, 4).asFloatBuffer();
+      buffer.put((float[]) array).rewind();
+      return buffer;
+    } else if (array instanceof byte[]) {
+      final ByteBuffer buffer = directBuffer(n, 1);
+      buffer.put((byte[]) array).rewind();
+      return buffer;
+    } else {
+      // There is no buffer of booleans.
+      return array;
+    }
+  }
+
+  /** Copies the contents of a buffer into a new array of the corresponding
+   * primitive type. */
+  static Object toArray(Buffer buffer) {
+    buffer = duplicate(buffer);
+    final int n = buffer.limit();
+    if (buffer instanceof LongBuffer) {
+      final long[] longs = new long[n];
+      ((LongBuffer) buffer).get(longs);
+      return longs;
+    } else if (buffer instanceof IntBuffer) {
+      final int[] ints = new int[n];
+      ((IntBuffer) buffer).get(ints);
+      return ints;
+    } else if (buffer instanceof ShortBuffer) {
+      final short[] shorts = new short[n];
+      ((ShortBuffer) buffer).get(shorts);
+      return shorts;
+    } else if (buffer instanceof CharBuffer) {
+      final char[] chars = new char[n];
+      ((CharBuffer) buffer).get(chars);
+      return chars;
+    } else if (buffer instanceof DoubleBuffer) {
+      final double[] doubles = new double[n];
+      ((DoubleBuffer) buffer).get(doubles);
+      return doubles;
+    } else if (buffer instanceof FloatBuffer) {
+      final float[] floats = new float[n];
+      ((FloatBuffer) buffer).get(floats);
+      return floats;
+    } else {
+      final byte[] bytes = new byte[n];
+      ((ByteBuffer) buffer).get(bytes);
+      return bytes;
+    }
+  }
+
+  /** Returns a copy of a buffer that has its own position, so that reading
+   * from it does not affect other readers. */
+  private static Buffer duplicate(Buffer buffer) {
+    final Buffer copy;
+    if (buffer instanceof LongBuffer) {
+      copy = ((LongBuffer) buffer).duplicate();
+    } else if (buffer instanceof IntBuffer) {
+      copy = ((IntBuffer) buffer).duplicate();
+    } else if (buffer instanceof ShortBuffer) {
+      copy = ((ShortBuffer) buffer).duplicate();
+    } else if (buffer instanceof CharBuffer) {
+      copy = ((CharBuffer) buffer).duplicate();
+    } else if (buffer instanceof DoubleBuffer) {
+      copy = ((DoubleBuffer) buffer).duplicate();
+    } else if (buffer instanceof FloatBuffer) {
+      copy = ((FloatBuffer) buffer).duplicate();
+    } else {
+      copy = ((ByteBuffer) buffer).duplicate();
+    }
+    copy.rewind();
+    return copy;
+  }
+
   private static <E> List<E> permuteList(
       final List<E> list, final int[] sources) {
     if (sources == null) {
@@ -800,17 +2087,161 @@ public int size() {
     };
   }
 
-  /** Contents of a table. */
+  /** Progress of loading the contents of a table.
+   *
+   * <p>The loader updates a LoadStats as it reads rows and encodes columns,
+   * and passes it to {@link net.hydromatic.optiq.runtime.Hook#CLONE_LOAD}
+   * after each step.</p> */
+  public static class LoadStats {
+    /** Number of columns in the table. */
+    public final int columnCount;
+    /** Number of threads that analyze and encode columns. */
+    public final int threadCount;
+    int rowCount;
+    int frozenColumnCount;
+    long readMillis;
+    long totalMillis;
+    boolean done;
+
+    LoadStats(int columnCount, int threadCount) {
+      this.columnCount = columnCount;
+      this.threadCount = threadCount;
+    }
+
+    /** Returns the number of rows read so far. */
+    public int getRowCount() {
+      return rowCount;
+    }
+
+    /** Returns the number of columns that have been encoded. */
+    public int getFrozenColumnCount() {
+      return frozenColumnCount;
+    }
+
+    /** Returns the time taken to read all rows and analyze their values, in
+     * milliseconds, or 0 if reading is not complete. */
+    public long getReadMillis() {
+      return readMillis;
+    }
+
+    /** Returns the total time taken to load the table, in milliseconds, or 0
+     * if loading is not complete. */
+    public long getTotalMillis() {
+      return totalMillis;
+    }
+
+    /** Returns whether loading is complete. */
+    public boolean isDone() {
+      return done;
+    }
+
+    @Override public String toString() {
+      return "Load(rows: " + rowCount
+          + ", columns: " + frozenColumnCount + "/" + columnCount
+          + ", threads: " + threadCount
+          + ", readMillis: " + readMillis
+          + ", totalMillis: " + totalMillis
+          + (done ? ", done" : "") + ")";
+    }
+  }
+
+  /** Contents of a table.
+   *
+   * <p>Contents can be written to a file, and read back without rebuilding
+   * each column, using {@link ContentFile}.</p> */
   public static class Content {
-    private final List<Column> columns;
-    private final int size;
-    private final int sortField;
+    final List<Column> columns;
+    final int size;
+    final int sortField;
 
     public Content(List<? extends Column> columns, int size, int sortField) {
       this.columns = ImmutableList.copyOf(columns);
       this.size = size;
       this.sortField = sortField;
     }
+
+    /** Finds the rows whose value of the sort column is within the given
+     * ranges. Returns pairs of row ordinals {start, end} (start inclusive,
+     * end exclusive) in ascending order, omitting empty pairs. */
+    int[] search(Range[] ranges) {
+      assert sortField >= 0 : "table is not sorted";
+      final Column column = columns.get(sortField);
+      final List<Object> values =
+          new AbstractList<Object>() {
+            public Object get(int index) {
+              return column.representation.getObject(column.dataSet, index);
+            }
+
+            public int size() {
+              return size;
+            }
+          };
+      final int[] bounds = new int[ranges.length * 2];
+      int n = 0;
+      for (Range range : ranges) {
+        final int start =
+            range.lower == null ? 0
+            : range.lowerInclusive
+            ? BinarySearch.firstNotLess(values, range.lower, VALUE_COMPARATOR)
+            : BinarySearch.firstGreater(values, range.lower, VALUE_COMPARATOR);
+        final int end =
+            range.upper == null ? size
+            : range.upperInclusive
+            ? BinarySearch.firstGreater(values, range.upper, VALUE_COMPARATOR)
+            : BinarySearch.firstNotLess(values, range.upper, VALUE_COMPARATOR);
+        if (start < end) {
+          bounds[n++] = start;
+          bounds[n++] = end;
+        }
+      }
+      return n == bounds.length ? bounds : Arrays.copyOf(bounds, n);
+    }
+
+    /** Returns whether any column is stored outside the Java heap. */
+    boolean isOffHeap() {
+      for (Column column : columns) {
+        if (column.isOffHeap()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Returns the largest value of a column, or null if there are no rows
+     * or the column contains only null values. */
+    Comparable max(int field) {
+      if (size == 0) {
+        return null;
+      }
+      final Column column = columns.get(field);
+      if (field == sortField) {
+        // The sort column contains no nulls.
+        return (Comparable) column.representation.getObject(column.dataSet,
+            size - 1);
+      }
+      if (column.representation instanceof ObjectDictionary) {
+        // Code values are sorted, with null (if present) last.
+        @SuppressWarnings("unchecked")
+        final Pair<Object, Comparable[]> pair =
+            (Pair<Object, Comparable[]>) column.dataSet;
+        for (int i = pair.right.length - 1; i >= 0; i--) {
+          if (pair.right[i] != null) {
+            return pair.right[i];
+          }
+        }
+        return null;
+      }
+      Comparable max = null;
+      for (int i = 0; i < size; i++) {
+        final Comparable value =
+            (Comparable) column.representation.getObject(column.dataSet, i);
+        if (value != null
+            && (max == null || Condition.compare(value, max) > 0)) {
+          max = value;
+        }
+      }
+      return max;
+    }
   }
 }
 
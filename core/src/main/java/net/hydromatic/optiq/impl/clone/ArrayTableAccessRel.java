@@ -0,0 +1,201 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.clone;
+
+import net.hydromatic.linq4j.expressions.*;
+
+import net.hydromatic.optiq.rules.java.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.reltype.RelDataTypeFactory;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.SqlKind;
+
+import com.google.common.collect.ImmutableList;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Relational expression that reads some of the columns of an
+ * {@link ArrayTable}, returning only rows that satisfy a list of simple
+ * conditions.
+ *
+ * <p>Created by {@link ArrayTablePushDownRule} from a scan of an
+ * {@link ArrayTable} and an {@link JavaRules.EnumerableCalcRel} on top of
+ * it.</p>
+ */
+public class ArrayTableAccessRel
+    extends TableAccessRelBase
+    implements EnumerableRel {
+  private static final Method SCAN_METHOD =
+      Types.lookupMethod(ArrayTable.class, "scan", int[].class,
+          ArrayTable.Condition[].class, ArrayTable.Range[].class);
+
+  final ArrayTable arrayTable;
+
+  /** Ordinals of the columns of the table that this scan returns. */
+  final ImmutableList<Integer> fields;
+
+  /** Conditions that each returned row satisfies. Each is a comparison
+   * between a {@link RexInputRef} and a {@link RexLiteral}, or a disjunction
+   * of equality comparisons between the same {@link RexInputRef} and
+   * literals; input references are ordinals of columns of the table, not of
+   * the fields returned. */
+  final ImmutableList<RexNode> conditions;
+
+  /** Condition on the column on which the table is sorted, or null. The
+   * scan converts it into ranges of values, and uses binary search to find
+   * the rows in each range. */
+  final RexNode search;
+
+  protected ArrayTableAccessRel(
+      RelOptCluster cluster,
+      RelTraitSet traitSet,
+      RelOptTable table,
+      ArrayTable arrayTable,
+      List<Integer> fields,
+      List<RexNode> conditions,
+      RexNode search) {
+    super(cluster, traitSet, table);
+    this.arrayTable = arrayTable;
+    this.fields = ImmutableList.copyOf(fields);
+    this.conditions = ImmutableList.copyOf(conditions);
+    this.search = search;
+    assert getConvention() instanceof EnumerableConvention;
+    assert !fields.isEmpty();
+  }
+
+  @Override public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+    assert inputs.isEmpty();
+    return new ArrayTableAccessRel(getCluster(), traitSet, table, arrayTable,
+        fields, conditions, search);
+  }
+
+  @Override
+  public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw)
+        .item("fields", fields)
+        .itemIf("condition",
+            RexUtil.composeConjunction(getCluster().getRexBuilder(),
+                conditions, false),
+            !conditions.isEmpty())
+        .itemIf("search", search, search != null);
+  }
+
+  @Override
+  public RelDataType deriveRowType() {
+    final List<RelDataTypeField> fieldList =
+        table.getRowType().getFieldList();
+    final RelDataTypeFactory.FieldInfoBuilder builder =
+        getCluster().getTypeFactory().builder();
+    for (int field : fields) {
+      builder.add(fieldList.get(field));
+    }
+    return builder.build();
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    final PhysType physType =
+        PhysTypeImpl.of(
+            implementor.getTypeFactory(),
+            getRowType(),
+            JavaRowFormat.ARRAY);
+    return implementor.result(
+        physType,
+        Blocks.toBlock(
+            Expressions.call(
+                table.getExpression(ArrayTable.class),
+                SCAN_METHOD,
+                scanArguments())));
+  }
+
+  /** Returns the arguments to {@link ArrayTable#scan} and
+   * {@link ArrayTable#cursor}: the ordinals of the fields, the conditions,
+   * and the ranges of the sort column. */
+  List<Expression> scanArguments() {
+    final List<Expression> fieldExpressions = new ArrayList<Expression>();
+    for (int field : fields) {
+      fieldExpressions.add(Expressions.constant(field));
+    }
+    final List<Expression> conditionExpressions = new ArrayList<Expression>();
+    for (RexNode condition : conditions) {
+      if (condition.getKind() == SqlKind.OR) {
+        final List<Expression> valueExpressions = new ArrayList<Expression>();
+        RexInputRef ref = null;
+        for (RexNode operand : ((RexCall) condition).getOperands()) {
+          final RexCall call = (RexCall) operand;
+          ref = (RexInputRef) call.getOperands().get(0);
+          final RexLiteral literal = (RexLiteral) call.getOperands().get(1);
+          valueExpressions.add(
+              Expressions.constant(ArrayTablePushDownRule.value(literal)));
+        }
+        assert ref != null;
+        conditionExpressions.add(
+            Expressions.new_(ArrayTable.Condition.class,
+                Expressions.constant(ref.getIndex()),
+                Expressions.newArrayInit(Comparable.class,
+                    valueExpressions)));
+        continue;
+      }
+      final RexCall call = (RexCall) condition;
+      final RexInputRef ref = (RexInputRef) call.getOperands().get(0);
+      final RexLiteral literal = (RexLiteral) call.getOperands().get(1);
+      conditionExpressions.add(
+          Expressions.new_(ArrayTable.Condition.class,
+              Expressions.constant(ref.getIndex()),
+              Expressions.field(null, SqlKind.class, call.getKind().name()),
+              Expressions.constant(ArrayTablePushDownRule.value(literal))));
+    }
+    final Expression rangesExpression;
+    if (search == null) {
+      rangesExpression =
+          Expressions.constant(null, ArrayTable.Range[].class);
+    } else {
+      final List<Expression> rangeExpressions = new ArrayList<Expression>();
+      for (ArrayTable.Range range
+          : ArrayTablePushDownRule.ranges(getCluster().getRexBuilder(),
+              search)) {
+        rangeExpressions.add(
+            Expressions.new_(ArrayTable.Range.class,
+                bound(range.lower),
+                Expressions.constant(range.lowerInclusive),
+                bound(range.upper),
+                Expressions.constant(range.upperInclusive)));
+      }
+      rangesExpression =
+          Expressions.newArrayInit(ArrayTable.Range.class, rangeExpressions);
+    }
+    return ImmutableList.<Expression>of(
+        Expressions.newArrayInit(int.class, fieldExpressions),
+        Expressions.newArrayInit(ArrayTable.Condition.class,
+            conditionExpressions),
+        rangesExpression);
+  }
+
+  private static Expression bound(Comparable value) {
+    return value == null
+        ? Expressions.constant(null, Comparable.class)
+        : Expressions.constant(value);
+  }
+}
+
+// End ArrayTableAccessRel.java
@@ -0,0 +1,344 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.clone;
+
+import net.hydromatic.linq4j.expressions.*;
+
+import net.hydromatic.optiq.BuiltinMethod;
+import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.rules.java.*;
+import net.hydromatic.optiq.rules.java.impl.AggAddContextImpl;
+import net.hydromatic.optiq.rules.java.impl.AggResetContextImpl;
+import net.hydromatic.optiq.rules.java.impl.AggResultContextImpl;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.rex.*;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.*;
+
+/**
+ * Relational expression that computes aggregate functions over the rows of
+ * an {@link ArrayTableAccessRel}, reading numeric values without boxing
+ * them.
+ *
+ * <p>The generated code reads batches of rows from an
+ * {@link ArrayTable.Cursor}. For each batch, it copies the values of each
+ * argument column into a primitive vector, using
+ * {@link ArrayTable.Cursor#getInts}, {@link ArrayTable.Cursor#getLongs} or
+ * {@link ArrayTable.Cursor#getDoubles}, and, if the column is nullable,
+ * copies a null mask using {@link ArrayTable.Cursor#getNulls}. Then a tight
+ * loop over the vectors updates the accumulators, skipping an aggregate
+ * function for rows whose argument is null. Accumulators are local
+ * variables. Therefore no object is created per row, and the inner loop
+ * reads only primitive arrays.</p>
+ *
+ * <p>Created by {@link ArrayTableAggregateRule}. There are no group keys;
+ * arguments are columns of numeric type.</p>
+ */
+public class ArrayTableAggregateRel
+    extends AggregateRelBase
+    implements EnumerableRel {
+  private static final Method CURSOR_METHOD =
+      Types.lookupMethod(ArrayTable.class, "cursor", int[].class,
+          ArrayTable.Condition[].class, ArrayTable.Range[].class);
+
+  public ArrayTableAggregateRel(
+      RelOptCluster cluster,
+      RelTraitSet traitSet,
+      ArrayTableAccessRel child,
+      BitSet groupSet,
+      List<AggregateCall> aggCalls) {
+    super(cluster, traitSet, child, groupSet, aggCalls);
+    assert getConvention() instanceof EnumerableConvention;
+    assert groupSet.isEmpty();
+  }
+
+  @Override public ArrayTableAggregateRel copy(RelTraitSet traitSet,
+      RelNode input, BitSet groupSet, List<AggregateCall> aggCalls) {
+    return new ArrayTableAggregateRel(getCluster(), traitSet,
+        (ArrayTableAccessRel) input, groupSet, aggCalls);
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    final JavaTypeFactory typeFactory = implementor.getTypeFactory();
+    final ArrayTableAccessRel scan = (ArrayTableAccessRel) getChild();
+    final RelDataType inputRowType = scan.getRowType();
+    final PhysType physType =
+        PhysTypeImpl.of(typeFactory, getRowType(), pref.preferCustom());
+
+    // ArrayTable.Cursor cursor = table.cursor(fields, conditions, ranges);
+    // int[] v0 = new int[1024];
+    // boolean[] n0 = new boolean[1024];
+    // int a0s0 = 0;
+    // while (cursor.nextBatch()) {
+    //   cursor.getInts(0, v0);
+    //   cursor.getNulls(0, n0);
+    //   int count = cursor.batchSize();
+    //   for (int k = 0; k < count; k++) {
+    //     if (!n0[k]) {
+    //       a0s0 += v0[k];
+    //     }
+    //   }
+    // }
+    // return Linq4j.singletonEnumerable(a0s0);
+    final BlockBuilder builder = new BlockBuilder();
+    final DeclarationStatement cursorDecl =
+        Expressions.declare(0, "cursor",
+            Expressions.call(
+                scan.getTable().getExpression(ArrayTable.class),
+                CURSOR_METHOD,
+                scan.scanArguments()));
+    builder.add(cursorDecl);
+    final ParameterExpression cursor_ = cursorDecl.parameter;
+
+    final List<AggImplementor> aggImplementors =
+        new ArrayList<AggImplementor>();
+    final List<AggContext> contexts = new ArrayList<AggContext>();
+    final List<List<Expression>> states = new ArrayList<List<Expression>>();
+    for (int i = 0; i < aggCalls.size(); i++) {
+      final AggregateCall call = aggCalls.get(i);
+      final AggImplementor aggImplementor =
+          RexImpTable.INSTANCE.get(call.getAggregation(), false);
+      final AggContext context =
+          new AggContext() {
+            public Aggregation aggregation() {
+              return call.getAggregation();
+            }
+
+            public RelDataType returnRelType() {
+              return call.type;
+            }
+
+            public Type returnType() {
+              return typeFactory.getJavaClass(returnRelType());
+            }
+
+            public List<? extends RelDataType> parameterRelTypes() {
+              final List<RelDataType> types = new ArrayList<RelDataType>();
+              for (int arg : call.getArgList()) {
+                types.add(inputRowType.getFieldList().get(arg).getType());
+              }
+              return types;
+            }
+
+            public List<? extends Type> parameterTypes() {
+              final List<Type> types = new ArrayList<Type>();
+              for (RelDataType type : parameterRelTypes()) {
+                types.add(typeFactory.getJavaClass(type));
+              }
+              return types;
+            }
+          };
+      final List<Expression> state = new ArrayList<Expression>();
+      for (Type type : aggImplementor.getStateType(context)) {
+        final ParameterExpression pe =
+            Expressions.parameter(type,
+                builder.newName("a" + i + "s" + state.size()));
+        builder.add(Expressions.declare(0, pe, null));
+        state.add(pe);
+      }
+      aggImplementor.implementReset(context,
+          new AggResetContextImpl(builder, state));
+      aggImplementors.add(aggImplementor);
+      contexts.add(context);
+      states.add(state);
+    }
+
+    // Vectors of the values, and null masks, of the fields that are
+    // arguments. Each vector's element type is the field's primitive type,
+    // widened to int, long or double. The loop body fills them.
+    final BlockBuilder body = new BlockBuilder();
+    final Map<Integer, Expression> vectors = new HashMap<Integer, Expression>();
+    final Map<Integer, Expression> nullVectors =
+        new HashMap<Integer, Expression>();
+    for (AggregateCall call : aggCalls) {
+      for (int arg : call.getArgList()) {
+        if (vectors.containsKey(arg)) {
+          continue;
+        }
+        final RelDataType type = inputRowType.getFieldList().get(arg).getType();
+        final Class vectorType = vectorType(primitiveClass(typeFactory, type));
+        final Expression vector =
+            declareVector(builder, vectorType, "v" + arg);
+        body.add(
+            Expressions.statement(
+                Expressions.call(cursor_, fillMethod(vectorType),
+                    Expressions.constant(arg), vector)));
+        vectors.put(arg, vector);
+        if (type.isNullable()) {
+          final Expression nullVector =
+              declareVector(builder, boolean.class, "n" + arg);
+          body.add(
+              Expressions.statement(
+                  Expressions.call(cursor_, "getNulls",
+                      Expressions.constant(arg), nullVector)));
+          nullVectors.put(arg, nullVector);
+        }
+      }
+    }
+    final DeclarationStatement countDecl =
+        Expressions.declare(0, "count",
+            Expressions.call(cursor_, "batchSize"));
+    body.add(countDecl);
+    final ParameterExpression k_ =
+        Expressions.parameter(int.class, body.newName("k"));
+
+    // Reads field i of row k of the batch from its vector, converting to
+    // the field's primitive type. Only called when the value is not null.
+    final RexToLixTranslator.InputGetter inputGetter =
+        new RexToLixTranslator.InputGetter() {
+          public Expression field(BlockBuilder list, int index,
+              Type storageType) {
+            final Expression x =
+                RexToLixTranslator.convert(
+                    Expressions.arrayIndex(vectors.get(index), k_),
+                    primitiveClass(typeFactory,
+                        inputRowType.getFieldList().get(index).getType()));
+            return storageType == null
+                ? x
+                : RexToLixTranslator.convert(x, storageType);
+          }
+        };
+
+    final BlockBuilder rowBody = new BlockBuilder();
+    for (int i = 0; i < aggCalls.size(); i++) {
+      final AggregateCall call = aggCalls.get(i);
+      final AggAddContextImpl addContext =
+          new AggAddContextImpl(rowBody, states.get(i)) {
+            public List<RexNode> rexArguments() {
+              final List<RexNode> args = new ArrayList<RexNode>();
+              for (int arg : call.getArgList()) {
+                args.add(
+                    new RexInputRef(arg,
+                        inputRowType.getFieldList().get(arg).getType()));
+              }
+              return args;
+            }
+
+            public RexToLixTranslator rowTranslator() {
+              return RexToLixTranslator.forAggregation(typeFactory,
+                  currentBlock(), inputGetter)
+                  .setNullable(currentNullables());
+            }
+          };
+
+      // If an argument may be null, add this row only if it is not.
+      final List<Expression> notNulls = new ArrayList<Expression>();
+      final Map<RexNode, Boolean> nullables = new HashMap<RexNode, Boolean>();
+      for (RexNode arg : addContext.rexArguments()) {
+        if (arg.getType().isNullable()) {
+          notNulls.add(
+              Expressions.not(
+                  Expressions.arrayIndex(
+                      nullVectors.get(((RexInputRef) arg).getIndex()),
+                      k_)));
+          nullables.put(arg, false);
+        }
+      }
+      if (notNulls.isEmpty()) {
+        aggImplementors.get(i).implementAdd(contexts.get(i), addContext);
+      } else {
+        final BlockBuilder block = new BlockBuilder(true, rowBody);
+        addContext.nestBlock(block, nullables);
+        aggImplementors.get(i).implementAdd(contexts.get(i), addContext);
+        addContext.exitBlock();
+        rowBody.add(
+            Expressions.ifThen(Expressions.foldAnd(notNulls),
+                block.toBlock()));
+      }
+    }
+    body.add(
+        Expressions.for_(
+            Expressions.declare(0, k_, Expressions.constant(0)),
+            Expressions.lessThan(k_, countDecl.parameter),
+            Expressions.preIncrementAssign(k_),
+            rowBody.toBlock()));
+    builder.add(
+        Expressions.while_(
+            Expressions.call(cursor_, "nextBatch"),
+            body.toBlock()));
+
+    final List<Expression> results = new ArrayList<Expression>();
+    for (int i = 0; i < aggCalls.size(); i++) {
+      results.add(
+          aggImplementors.get(i).implementResult(contexts.get(i),
+              new AggResultContextImpl(builder, states.get(i))));
+    }
+    builder.add(
+        Expressions.return_(null,
+            Expressions.call(BuiltinMethod.SINGLETON_ENUMERABLE.method,
+                physType.record(results))));
+    return implementor.result(physType, builder.toBlock());
+  }
+
+  /** Declares a vector that can hold one batch of values. */
+  private static Expression declareVector(BlockBuilder builder,
+      Class elementType, String name) {
+    final DeclarationStatement decl =
+        Expressions.declare(0, name,
+            Expressions.newArrayBounds(elementType, 1,
+                Expressions.constant(ArrayTable.BATCH_SIZE)));
+    builder.add(decl);
+    return decl.parameter;
+  }
+
+  /** Returns the type of the elements of the vector that holds values of a
+   * given primitive type. */
+  private static Class vectorType(Class primitiveClass) {
+    if (primitiveClass == long.class) {
+      return long.class;
+    } else if (primitiveClass == double.class
+        || primitiveClass == float.class) {
+      return double.class;
+    } else {
+      return int.class;
+    }
+  }
+
+  /** Returns the name of the method of {@link ArrayTable.Cursor} that fills a
+   * vector of a given element type. */
+  private static String fillMethod(Class vectorType) {
+    return vectorType == long.class ? "getLongs"
+        : vectorType == double.class ? "getDoubles"
+        : "getInts";
+  }
+
+  /** Returns the primitive class of a column, ignoring its nullability. */
+  private static Class primitiveClass(JavaTypeFactory typeFactory,
+      RelDataType type) {
+    return (Class) typeFactory.getJavaClass(
+        typeFactory.createTypeWithNullability(type, false));
+  }
+
+  /** Returns whether a column of a given type can be an argument. */
+  static boolean isNumeric(JavaTypeFactory typeFactory, RelDataType type) {
+    final Type clazz = primitiveClass(typeFactory, type);
+    return clazz == int.class
+        || clazz == short.class
+        || clazz == byte.class
+        || clazz == long.class
+        || clazz == double.class
+        || clazz == float.class;
+  }
+}
+
+// End ArrayTableAggregateRel.java
@@ -0,0 +1,112 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.clone;
+
+import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.rules.java.JavaRules;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.rex.RexNode;
+import org.eigenbase.sql.fun.SqlStdOperatorTable;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Rule that converts an {@link JavaRules.EnumerableAggregateRel} on top of a
+ * scan of an {@link ArrayTable} into an {@link ArrayTableAggregateRel}.
+ *
+ * <p>The rule fires if the aggregate has no group keys, each aggregate
+ * function is {@code COUNT}, {@code SUM}, {@code MIN} or {@code MAX} without
+ * {@code DISTINCT}, and each argument is a column of numeric type other than
+ * {@code DECIMAL}. If the aggregate's input is a calc that
+ * {@link ArrayTablePushDownRule} could not remove, the rule does not
+ * fire.</p>
+ *
+ * <p>Like {@link ArrayTablePushDownRule}, the rule applies in the "physical
+ * tweaks" phase; the new expression never creates more objects than the old
+ * one, so it does not need to be costed.</p>
+ */
+public class ArrayTableAggregateRule extends RelOptRule {
+  public static final ArrayTableAggregateRule INSTANCE =
+      new ArrayTableAggregateRule();
+
+  private static final List<Aggregation> SUPPORTED_AGGREGATIONS =
+      ImmutableList.<Aggregation>of(
+          SqlStdOperatorTable.COUNT,
+          SqlStdOperatorTable.MIN,
+          SqlStdOperatorTable.MAX,
+          SqlStdOperatorTable.SUM);
+
+  private ArrayTableAggregateRule() {
+    super(
+        operand(JavaRules.EnumerableAggregateRel.class,
+            operand(TableAccessRelBase.class, none())),
+        "ArrayTableAggregateRule");
+  }
+
+  @Override
+  public void onMatch(RelOptRuleCall call) {
+    final JavaRules.EnumerableAggregateRel aggregate = call.rel(0);
+    final TableAccessRelBase scan = call.rel(1);
+    if (!aggregate.getGroupSet().isEmpty()) {
+      return;
+    }
+    final JavaTypeFactory typeFactory =
+        (JavaTypeFactory) aggregate.getCluster().getTypeFactory();
+    for (AggregateCall aggCall : aggregate.getAggCallList()) {
+      if (aggCall.isDistinct()
+          || !SUPPORTED_AGGREGATIONS.contains(aggCall.getAggregation())) {
+        return;
+      }
+      for (int arg : aggCall.getArgList()) {
+        if (!ArrayTableAggregateRel.isNumeric(typeFactory,
+            scan.getRowType().getFieldList().get(arg).getType())) {
+          return;
+        }
+      }
+    }
+    final ArrayTableAccessRel arrayScan;
+    if (scan instanceof ArrayTableAccessRel) {
+      arrayScan = (ArrayTableAccessRel) scan;
+    } else if (scan instanceof JavaRules.EnumerableTableAccessRel) {
+      final ArrayTable arrayTable = scan.getTable().unwrap(ArrayTable.class);
+      if (arrayTable == null) {
+        return;
+      }
+      final ImmutableList.Builder<Integer> fields = ImmutableList.builder();
+      for (int i = 0; i < scan.getRowType().getFieldCount(); i++) {
+        fields.add(i);
+      }
+      arrayScan =
+          new ArrayTableAccessRel(scan.getCluster(), scan.getTraitSet(),
+              scan.getTable(), arrayTable, fields.build(),
+              ImmutableList.<RexNode>of(), null);
+    } else {
+      return;
+    }
+    call.transformTo(
+        new ArrayTableAggregateRel(aggregate.getCluster(),
+            aggregate.getTraitSet(), arrayScan, aggregate.getGroupSet(),
+            aggregate.getAggCallList()));
+  }
+}
+
+// End ArrayTableAggregateRule.java
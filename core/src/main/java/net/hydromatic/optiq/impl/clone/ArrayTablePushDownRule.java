@@ -0,0 +1,559 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.clone;
+
+import net.hydromatic.optiq.rules.java.JavaRules;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.rex.*;
+import org.eigenbase.sarg.*;
+import org.eigenbase.sql.SqlKind;
+import org.eigenbase.sql.SqlOperator;
+import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.sql.type.SqlTypeName;
+import org.eigenbase.util.NlsString;
+
+import com.google.common.collect.ImmutableList;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Rule that pushes the projections and simple conditions of an
+ * {@link JavaRules.EnumerableCalcRel} into a scan of an {@link ArrayTable},
+ * creating an {@link ArrayTableAccessRel}.
+ *
+ * <p>The scan then decodes only the columns that the calc uses, and does not
+ * create a row for values that fail a condition. A condition can be pushed
+ * down if it compares a column of integer, character or boolean type with a
+ * literal of the same family, or is an IN list of such literals; other
+ * conditions remain in the calc. If the calc is left with nothing to do, it
+ * is removed.</p>
+ *
+ * <p>If the table is sorted, conditions on the sort column, including
+ * disjunctions and IN lists, are converted into ranges of rows that the scan
+ * finds by binary search.</p>
+ *
+ * <p>The rule applies in the "physical tweaks" phase that follows
+ * optimization, alongside the rules that create calcs; the choice is always
+ * beneficial, so it does not need to be costed.</p>
+ */
+public class ArrayTablePushDownRule extends RelOptRule {
+  public static final ArrayTablePushDownRule INSTANCE =
+      new ArrayTablePushDownRule();
+
+  /** Receives the indexes of dynamic parameters that prevented a condition
+   * from being pushed down: parameters compared with the sort column or a
+   * dictionary-encoded column of a table, where a literal would have allowed
+   * a binary search or a test on dictionary codes.
+   *
+   * <p>Set by {@link net.hydromatic.optiq.prepare.OptiqPrepareImpl} while it
+   * prepares a statement whose literals it has replaced with parameters, to
+   * share its plan via the plan cache; otherwise null.</p> */
+  public static final ThreadLocal<BitSet> THREAD_BLOCKED_PARAMETERS =
+      new ThreadLocal<BitSet>();
+
+  private ArrayTablePushDownRule() {
+    super(
+        operand(JavaRules.EnumerableCalcRel.class,
+            operand(TableAccessRelBase.class, none())),
+        "ArrayTablePushDownRule");
+  }
+
+  @Override
+  public void onMatch(RelOptRuleCall call) {
+    final JavaRules.EnumerableCalcRel calc = call.rel(0);
+    final TableAccessRelBase scan = call.rel(1);
+    final ArrayTable arrayTable;
+    final List<Integer> fields0;
+    final List<RexNode> conditions0;
+    final List<RexNode> searches0;
+    if (scan instanceof ArrayTableAccessRel) {
+      final ArrayTableAccessRel arrayScan = (ArrayTableAccessRel) scan;
+      arrayTable = arrayScan.arrayTable;
+      fields0 = arrayScan.fields;
+      conditions0 = arrayScan.conditions;
+      searches0 = arrayScan.search == null
+          ? ImmutableList.<RexNode>of()
+          : ImmutableList.of(arrayScan.search);
+    } else if (scan instanceof JavaRules.EnumerableTableAccessRel) {
+      arrayTable = scan.getTable().unwrap(ArrayTable.class);
+      if (arrayTable == null) {
+        return;
+      }
+      final ImmutableList.Builder<Integer> builder = ImmutableList.builder();
+      for (int i = 0; i < scan.getRowType().getFieldCount(); i++) {
+        builder.add(i);
+      }
+      fields0 = builder.build();
+      conditions0 = ImmutableList.of();
+      searches0 = ImmutableList.of();
+    } else {
+      return;
+    }
+
+    // Split the calc's condition into conditions on the sort column that
+    // the scan can evaluate by binary search, other conditions that the scan
+    // can evaluate row by row, and conditions that remain in the calc.
+    // Pushed conditions reference columns of the table.
+    final RexProgram program = calc.getProgram();
+    final RexBuilder rexBuilder = calc.getCluster().getRexBuilder();
+    final int sortField = arrayTable.sortField();
+    final List<RexNode> searches = new ArrayList<RexNode>(searches0);
+    final List<RexNode> pushed = new ArrayList<RexNode>(conditions0);
+    final List<RexNode> remaining = new ArrayList<RexNode>();
+    if (program.getCondition() != null) {
+      final RexNode condition =
+          program.expandLocalRef(program.getCondition());
+      for (RexNode node : RelOptUtil.conjunctions(condition)) {
+        final RexNode search =
+            search(rexBuilder, node, scan.getRowType(), fields0, sortField);
+        if (search != null) {
+          searches.add(search);
+          continue;
+        }
+        final RexNode simple = simplify(rexBuilder, node, fields0);
+        if (simple != null) {
+          pushed.add(simple);
+        } else {
+          remaining.add(node);
+          final BitSet blocked = THREAD_BLOCKED_PARAMETERS.get();
+          if (blocked != null) {
+            addBlockedParameters(blocked, node, fields0, arrayTable,
+                sortField);
+          }
+        }
+      }
+    }
+
+    // Fields used by the calc, in the order that its projections first use
+    // them, then those used by remaining conditions.
+    final List<RexNode> projects = new ArrayList<RexNode>();
+    for (RexLocalRef ref : program.getProjectList()) {
+      projects.add(program.expandLocalRef(ref));
+    }
+    final List<Integer> used = new ArrayList<Integer>();
+    addInputs(used, projects);
+    addInputs(used, remaining);
+    if (used.isEmpty()) {
+      // The scan must return at least one column.
+      used.add(0);
+    }
+    if (used.size() == fields0.size()
+        && pushed.size() == conditions0.size()
+        && searches.size() == searches0.size()) {
+      // Nothing to gain.
+      return;
+    }
+
+    final List<Integer> fields = new ArrayList<Integer>();
+    for (int i : used) {
+      fields.add(fields0.get(i));
+    }
+    final ArrayTableAccessRel newScan =
+        new ArrayTableAccessRel(scan.getCluster(),
+            scan.getTraitSet().replace(collation(scan, used)),
+            scan.getTable(), arrayTable, fields, pushed,
+            searches.isEmpty()
+                ? null
+                : RexUtil.composeConjunction(rexBuilder, searches, false));
+
+    // Rewrite the calc's expressions in terms of the new scan's fields.
+    final RexShuttle shuttle =
+        new RexShuttle() {
+          @Override public RexNode visitInputRef(RexInputRef inputRef) {
+            return new RexInputRef(used.indexOf(inputRef.getIndex()),
+                inputRef.getType());
+          }
+        };
+    final RexProgram newProgram =
+        RexProgram.create(newScan.getRowType(),
+            shuttle.apply(projects),
+            remaining.isEmpty()
+                ? null
+                : RexUtil.composeConjunction(rexBuilder,
+                    shuttle.apply(remaining), false),
+            calc.getRowType(),
+            rexBuilder);
+    if (newProgram.isTrivial()
+        && RelOptUtil.areRowTypesEqual(newScan.getRowType(),
+            calc.getRowType(), true)) {
+      call.transformTo(newScan);
+    } else {
+      call.transformTo(
+          calc.copy(calc.getTraitSet(), newScan, newProgram,
+              calc.getCollationList()));
+    }
+  }
+
+  /** Adds the ordinals of the inputs referenced by a list of expressions to
+   * a list, if they are not already present. */
+  private static void addInputs(final List<Integer> used,
+      List<RexNode> nodes) {
+    final RexVisitor<Void> visitor =
+        new RexVisitorImpl<Void>(true) {
+          @Override public Void visitInputRef(RexInputRef inputRef) {
+            if (!used.contains(inputRef.getIndex())) {
+              used.add(inputRef.getIndex());
+            }
+            return null;
+          }
+        };
+    for (RexNode node : nodes) {
+      node.accept(visitor);
+    }
+  }
+
+  /** Returns the collation of the new scan: the leading columns of the
+   * existing scan's collation that it still returns. */
+  private static RelCollation collation(RelNode scan, List<Integer> used) {
+    final RelCollation collation =
+        scan.getTraitSet().getTrait(RelCollationTraitDef.INSTANCE);
+    final List<RelFieldCollation> fieldCollations =
+        new ArrayList<RelFieldCollation>();
+    if (collation != null) {
+      for (RelFieldCollation fieldCollation
+          : collation.getFieldCollations()) {
+        final int i = used.indexOf(fieldCollation.getFieldIndex());
+        if (i < 0) {
+          break;
+        }
+        fieldCollations.add(fieldCollation.copy(i));
+      }
+    }
+    return RelCollationImpl.of(fieldCollations);
+  }
+
+  /** If a condition references only the column on which the table is
+   * sorted, and can be converted into ranges of values of that column,
+   * returns it with the column reference converted to an ordinal of a table
+   * column; otherwise returns null. */
+  private static RexNode search(RexBuilder rexBuilder, RexNode node,
+      RelDataType rowType, final List<Integer> fields, int sortField) {
+    if (sortField < 0 || !(node instanceof RexCall)) {
+      return null;
+    }
+    final List<Integer> inputs = new ArrayList<Integer>();
+    addInputs(inputs, ImmutableList.of(node));
+    if (inputs.size() != 1 || fields.get(inputs.get(0)) != sortField) {
+      return null;
+    }
+    // Check literal types before the sarg analyzer sees them; it asserts
+    // that each literal is assignable to the column's type.
+    final RelDataType columnType =
+        rowType.getFieldList().get(inputs.get(0)).getType();
+    final boolean[] ok = {true};
+    node.accept(
+        new RexVisitorImpl<Void>(true) {
+          @Override public Void visitLiteral(RexLiteral literal) {
+            if (!compatible(columnType, literal.getType())) {
+              ok[0] = false;
+            }
+            return null;
+          }
+        });
+    if (!ok[0]) {
+      return null;
+    }
+    final RexNode search =
+        node.accept(
+            new RexShuttle() {
+              @Override public RexNode visitInputRef(RexInputRef inputRef) {
+                return new RexInputRef(fields.get(inputRef.getIndex()),
+                    inputRef.getType());
+              }
+            });
+    return ranges(rexBuilder, search) == null ? null : search;
+  }
+
+  /** Converts a condition on a table's sort column into a list of ranges
+   * of values of that column, ascending and not overlapping; or returns null
+   * if the condition cannot be converted.
+   *
+   * <p>Uses {@link SargRexAnalyzer} to convert the condition, including
+   * disjunctions such as {@code x = 1 OR x BETWEEN 5 AND 10}, into a
+   * sequence of intervals. */
+  static List<ArrayTable.Range> ranges(RexBuilder rexBuilder,
+      RexNode search) {
+    final SargRexAnalyzer analyzer =
+        new SargFactory(rexBuilder).newRexAnalyzer();
+    final List<SargBinding> bindings = analyzer.analyzeAll(search);
+    if (bindings.size() != 1
+        || analyzer.getNonSargFilterRexNode() != null) {
+      return null;
+    }
+    final SargBinding binding = bindings.get(0);
+    final RelDataType type = binding.getInputRef().getType();
+    final List<ArrayTable.Range> ranges = new ArrayList<ArrayTable.Range>();
+    for (SargInterval interval : binding.getExpr().evaluate().getList()) {
+      final SargEndpoint lower = interval.getLowerBound();
+      final SargEndpoint upper = interval.getUpperBound();
+      if (upper.isNull()) {
+        // The interval contains at most the null value, and the sort column
+        // has no null values: a segment is only sorted on a column whose
+        // values are unique and not null, and ArrayTable.append refuses
+        // segments that are not sorted on the table's sort column.
+        continue;
+      }
+      if (!convertible(lower, type) || !convertible(upper, type)) {
+        return null;
+      }
+      ranges.add(
+          new ArrayTable.Range(bound(lower), lower.isClosed(),
+              bound(upper), upper.isClosed()));
+    }
+    return ranges;
+  }
+
+  /** Returns whether an endpoint is infinite, null, or a literal that
+   * {@link #bound(SargEndpoint)} can convert. */
+  private static boolean convertible(SargEndpoint endpoint,
+      RelDataType type) {
+    if (!endpoint.isFinite() || endpoint.isNull()) {
+      return true;
+    }
+    if (!(endpoint.getCoordinate() instanceof RexLiteral)) {
+      return false;
+    }
+    final RexLiteral literal = (RexLiteral) endpoint.getCoordinate();
+    return compatible(type, literal.getType()) && value(literal) != null;
+  }
+
+  /** Returns the value of an endpoint, or null if it is unbounded. The sort
+   * column has no null values, so an endpoint whose value is null (as in
+   * "x &gt; NULL", the lower bound of "x &lt; 5") is also unbounded. */
+  private static Comparable bound(SargEndpoint endpoint) {
+    if (!endpoint.isFinite() || endpoint.isNull()) {
+      return null;
+    }
+    return value((RexLiteral) endpoint.getCoordinate());
+  }
+
+  /** If a condition can be evaluated by an {@link ArrayTableAccessRel},
+   * returns it in canonical form; otherwise returns null.
+   *
+   * <p>The condition must be a comparison between a column and a literal,
+   * or a disjunction of equality comparisons between the same column and
+   * literals (which is how the validator expands short IN lists). */
+  private static RexNode simplify(RexBuilder rexBuilder, RexNode node,
+      List<Integer> fields) {
+    if (node.getKind() != SqlKind.OR) {
+      return comparison(rexBuilder, node, fields);
+    }
+    final List<RexNode> list = new ArrayList<RexNode>();
+    int column = -1;
+    for (RexNode operand : ((RexCall) node).getOperands()) {
+      final RexNode comparison = comparison(rexBuilder, operand, fields);
+      if (comparison == null || comparison.getKind() != SqlKind.EQUALS) {
+        return null;
+      }
+      final RexInputRef ref =
+          (RexInputRef) ((RexCall) comparison).getOperands().get(0);
+      if (column >= 0 && ref.getIndex() != column) {
+        return null;
+      }
+      column = ref.getIndex();
+      list.add(comparison);
+    }
+    return RexUtil.composeDisjunction(rexBuilder, list, false);
+  }
+
+  /** If a condition is a comparison between a column and a literal that
+   * {@link ArrayTable.Condition} can evaluate, returns it in canonical form
+   * (column on the left, literal on the right, and the column reference
+   * converted to an ordinal of a table column); otherwise returns null. */
+  private static RexNode comparison(RexBuilder rexBuilder, RexNode node,
+      List<Integer> fields) {
+    if (!(node instanceof RexCall)
+        || ((RexCall) node).getOperands().size() != 2) {
+      return null;
+    }
+    final RexCall call = (RexCall) node;
+    final RexNode op0 = call.getOperands().get(0);
+    final RexNode op1 = call.getOperands().get(1);
+    final RexInputRef ref;
+    final RexLiteral literal;
+    final SqlKind kind;
+    if (op0 instanceof RexInputRef && op1 instanceof RexLiteral) {
+      ref = (RexInputRef) op0;
+      literal = (RexLiteral) op1;
+      kind = call.getKind();
+    } else if (op0 instanceof RexLiteral && op1 instanceof RexInputRef) {
+      ref = (RexInputRef) op1;
+      literal = (RexLiteral) op0;
+      kind = reverse(call.getKind());
+    } else {
+      return null;
+    }
+    final SqlOperator operator = operator(kind);
+    if (operator == null
+        || value(literal) == null
+        || !compatible(ref.getType(), literal.getType())) {
+      return null;
+    }
+    return rexBuilder.makeCall(operator,
+        ImmutableList.<RexNode>of(
+            new RexInputRef(fields.get(ref.getIndex()), ref.getType()),
+            literal));
+  }
+
+  /** Adds to a bit set the index of each dynamic parameter that a condition
+   * compares with the sort column or a dictionary-encoded column, in a
+   * comparison that would be pushed down if the parameter were a
+   * literal. */
+  private static void addBlockedParameters(BitSet blocked, RexNode node,
+      List<Integer> fields, ArrayTable arrayTable, int sortField) {
+    final List<RexNode> comparisons = node.getKind() == SqlKind.OR
+        ? ((RexCall) node).getOperands()
+        : ImmutableList.of(node);
+    for (RexNode comparison : comparisons) {
+      if (!(comparison instanceof RexCall)
+          || operator(comparison.getKind()) == null
+          || ((RexCall) comparison).getOperands().size() != 2) {
+        continue;
+      }
+      final RexNode op0 = ((RexCall) comparison).getOperands().get(0);
+      final RexNode op1 = ((RexCall) comparison).getOperands().get(1);
+      final RexInputRef ref;
+      final RexDynamicParam param;
+      if (op0 instanceof RexInputRef && dynamicParam(op1) != null) {
+        ref = (RexInputRef) op0;
+        param = dynamicParam(op1);
+      } else if (dynamicParam(op0) != null && op1 instanceof RexInputRef) {
+        ref = (RexInputRef) op1;
+        param = dynamicParam(op0);
+      } else {
+        continue;
+      }
+      final int field = fields.get(ref.getIndex());
+      if ((field == sortField || arrayTable.isDictionary(field))
+          && compatible(ref.getType(), param.getType())) {
+        blocked.set(param.getIndex());
+      }
+    }
+  }
+
+  /** Returns an expression if it is a dynamic parameter, or a cast of one,
+   * otherwise null. */
+  private static RexDynamicParam dynamicParam(RexNode node) {
+    if (node.getKind() == SqlKind.CAST) {
+      node = ((RexCall) node).getOperands().get(0);
+    }
+    return node instanceof RexDynamicParam ? (RexDynamicParam) node : null;
+  }
+
+  /** Returns the comparison that is equivalent to a given comparison with
+   * its operands swapped. */
+  private static SqlKind reverse(SqlKind kind) {
+    switch (kind) {
+    case LESS_THAN:
+      return SqlKind.GREATER_THAN;
+    case LESS_THAN_OR_EQUAL:
+      return SqlKind.GREATER_THAN_OR_EQUAL;
+    case GREATER_THAN:
+      return SqlKind.LESS_THAN;
+    case GREATER_THAN_OR_EQUAL:
+      return SqlKind.LESS_THAN_OR_EQUAL;
+    default:
+      return kind;
+    }
+  }
+
+  /** Returns the operator for a comparison that
+   * {@link ArrayTable.Condition} can evaluate, or null. */
+  private static SqlOperator operator(SqlKind kind) {
+    switch (kind) {
+    case EQUALS:
+      return SqlStdOperatorTable.EQUALS;
+    case NOT_EQUALS:
+      return SqlStdOperatorTable.NOT_EQUALS;
+    case LESS_THAN:
+      return SqlStdOperatorTable.LESS_THAN;
+    case LESS_THAN_OR_EQUAL:
+      return SqlStdOperatorTable.LESS_THAN_OR_EQUAL;
+    case GREATER_THAN:
+      return SqlStdOperatorTable.GREATER_THAN;
+    case GREATER_THAN_OR_EQUAL:
+      return SqlStdOperatorTable.GREATER_THAN_OR_EQUAL;
+    default:
+      return null;
+    }
+  }
+
+  /** Returns whether a column of a given type can be compared with a
+   * literal of a given type by {@link ArrayTable.Condition}.
+   *
+   * <p>{@code CHAR} columns are compared in the same way as {@code VARCHAR}
+   * columns, by {@link String#compareTo}, without padding values to a common
+   * length. That is what the generated code that the scan replaces does, so
+   * pushing down a condition does not change its result. */
+  private static boolean compatible(RelDataType columnType,
+      RelDataType literalType) {
+    final SqlTypeName literalTypeName = literalType.getSqlTypeName();
+    switch (columnType.getSqlTypeName()) {
+    case TINYINT:
+    case SMALLINT:
+    case INTEGER:
+    case BIGINT:
+      switch (literalTypeName) {
+      case TINYINT:
+      case SMALLINT:
+      case INTEGER:
+      case BIGINT:
+        return true;
+      default:
+        return false;
+      }
+    case CHAR:
+    case VARCHAR:
+      return literalTypeName == SqlTypeName.CHAR
+          || literalTypeName == SqlTypeName.VARCHAR;
+    case BOOLEAN:
+      return literalTypeName == SqlTypeName.BOOLEAN;
+    default:
+      return false;
+    }
+  }
+
+  /** Converts a literal to the value that {@link ArrayTable.Condition}
+   * compares column values with: a {@link Long}, {@link String} or
+   * {@link Boolean}. Returns null if the literal is null or has some other
+   * type. */
+  static Comparable value(RexLiteral literal) {
+    final Comparable value = literal.getValue();
+    if (value instanceof BigDecimal) {
+      final BigDecimal bigDecimal = (BigDecimal) value;
+      if (bigDecimal.scale() > 0
+          || bigDecimal.unscaledValue().bitLength() >= 64) {
+        return null;
+      }
+      return bigDecimal.longValue();
+    }
+    if (value instanceof NlsString) {
+      return ((NlsString) value).getValue();
+    }
+    if (value instanceof Boolean) {
+      return value;
+    }
+    return null;
+  }
+}
+
+// End ArrayTablePushDownRule.java
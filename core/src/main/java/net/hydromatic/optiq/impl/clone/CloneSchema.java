@@ -25,17 +25,27 @@
 import net.hydromatic.optiq.impl.AbstractSchema;
 import net.hydromatic.optiq.impl.java.*;
 import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
+import net.hydromatic.optiq.jdbc.MetaImpl;
 import net.hydromatic.optiq.jdbc.OptiqConnection;
+import net.hydromatic.optiq.jdbc.OptiqPrepare;
+import net.hydromatic.optiq.jdbc.OptiqSchema;
 
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.reltype.RelDataTypeField;
 import org.eigenbase.reltype.RelProtoDataType;
 
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static net.hydromatic.optiq.impl.MaterializedViewTable.MATERIALIZATION_CONNECTION;
 
@@ -43,11 +53,36 @@
  * Schema that contains in-memory copies of tables from a JDBC schema.
  */
 public class CloneSchema extends AbstractSchema {
+  private static final Logger LOGGER =
+      Logger.getLogger(CloneSchema.class.getName());
+
   // TODO: implement 'driver' property
   // TODO: implement 'source' property
   // TODO: test Factory
 
   private final SchemaPlus sourceSchema;
+  private final File directory;
+  private final boolean offHeap;
+
+  /** Tables, created on first use. We create each table only once so that
+   * its contents are loaded only once, and so that rows appended by
+   * {@link #refresh} are retained. */
+  private final Supplier<Map<String, Table>> tableMapSupplier =
+      Suppliers.memoize(
+          new Supplier<Map<String, Table>>() {
+            public Map<String, Table> get() {
+              final Map<String, Table> map =
+                  new LinkedHashMap<String, Table>();
+              for (String name : sourceSchema.getTableNames()) {
+                final QueryableTable sourceTable =
+                    (QueryableTable) sourceSchema.getTable(name);
+                map.put(name,
+                    createCloneTable(MATERIALIZATION_CONNECTION, sourceTable,
+                        name));
+              }
+              return map;
+            }
+          });
 
   /**
    * Creates a CloneSchema.
@@ -55,20 +90,99 @@ public class CloneSchema extends AbstractSchema {
    * @param sourceSchema JDBC data source
    */
   public CloneSchema(SchemaPlus sourceSchema) {
+    this(sourceSchema, null, false);
+  }
+
+  /**
+   * Creates a CloneSchema that may save the contents of its tables to files
+   * and may store them outside the Java heap.
+   *
+   * <p>The contents of each table are stored in a file in
+   * {@code directory}. The first time a table is used, if its file exists,
+   * the contents are read from the file rather than from the source; if it
+   * does not exist, the contents are read from the source and written to
+   * the file. To reload a table, delete its file.</p>
+   *
+   * <p>If {@code offHeap} is true, the values of primitive and string
+   * columns are stored outside the Java heap, in direct buffers, so that the
+   * garbage collector does not need to scan them. (Contents read from a
+   * file are stored outside the heap in any case.) The size of direct
+   * buffers is limited by the JVM's {@code -XX:MaxDirectMemorySize}
+   * option.</p>
+   *
+   * @param sourceSchema JDBC data source
+   * @param directory Directory in which to store table contents, or null
+   * @param offHeap Whether to store values outside the Java heap
+   */
+  public CloneSchema(SchemaPlus sourceSchema, File directory,
+      boolean offHeap) {
     super();
     this.sourceSchema = sourceSchema;
+    this.directory = directory;
+    this.offHeap = offHeap;
   }
 
   @Override
   protected Map<String, Table> getTableMap() {
-    final Map<String, Table> map = new LinkedHashMap<String, Table>();
-    for (String name : sourceSchema.getTableNames()) {
-      final QueryableTable sourceTable =
-          (QueryableTable) sourceSchema.getTable(name);
-      map.put(name,
-          createCloneTable(MATERIALIZATION_CONNECTION, sourceTable, name));
+    return tableMapSupplier.get();
+  }
+
+  /** Appends to a table the rows of its source whose value of a given
+   * column is greater than any value already in the table.
+   *
+   * <p>The column should be one whose values increase as rows are added to
+   * the source, such as a sequence number. The source is queried for only
+   * the rows whose value is greater than the largest value in the table (the
+   * watermark); a JDBC source evaluates the condition in its database. Rows
+   * already in the table are not re-read or re-encoded, and queries can use
+   * the table while it is being refreshed.</p>
+   *
+   * <p>If the table is sorted on a column, the new rows must keep it
+   * sorted; see {@link ArrayTable#append}. This is the case if the watermark
+   * column is the sort column.</p>
+   *
+   * @param tableName Name of table
+   * @param watermarkColumn Name of column whose values increase over time
+   * @return Number of rows appended
+   */
+  public int refresh(String tableName, String watermarkColumn) {
+    final ArrayTable table = (ArrayTable) getTableMap().get(tableName);
+    if (table == null) {
+      throw new IllegalArgumentException("Unknown table " + tableName);
+    }
+    final JavaTypeFactory typeFactory =
+        ((OptiqConnection) MATERIALIZATION_CONNECTION).getTypeFactory();
+    final RelDataType rowType = table.getRowType(typeFactory);
+    final RelDataTypeField field = rowType.getField(watermarkColumn, true);
+    if (field == null) {
+      throw new IllegalArgumentException(
+          "Table " + tableName + " has no column '" + watermarkColumn + "'");
     }
-    return map;
+    final Comparable watermark = table.max(field.getIndex());
+    final OptiqSchema schema = OptiqSchema.from(sourceSchema);
+    final OptiqConnection connection = MetaImpl.connect(schema.root(), null);
+    String sql = "select * from " + quote(tableName);
+    final List<Object> parameterValues;
+    if (watermark == null) {
+      parameterValues = ImmutableList.of();
+    } else {
+      sql += " where " + quote(field.getName()) + " > ?";
+      parameterValues = ImmutableList.<Object>of(watermark);
+    }
+    final OptiqPrepare.PrepareResult<Object> prepareResult =
+        Schemas.prepare(connection, schema, schema.path(null), sql);
+    final DataContext dataContext =
+        MetaImpl.createDataContext(connection, parameterValues);
+    return table.append(typeFactory, null,
+        new AbstractEnumerable<Object>() {
+          public Enumerator<Object> enumerator() {
+            return prepareResult.enumerator(dataContext);
+          }
+        });
+  }
+
+  private static String quote(String name) {
+    return "\"" + name.replace("\"", "\"\"") + "\"";
   }
 
   private Table createCloneTable(QueryProvider queryProvider,
@@ -78,13 +192,38 @@ private Table createCloneTable(QueryProvider queryProvider,
     final JavaTypeFactory typeFactory =
         ((OptiqConnection) queryProvider).getTypeFactory();
     return createCloneTable(typeFactory, Schemas.proto(sourceTable), null,
-        queryable);
+        queryable,
+        directory == null
+            ? null
+            : new File(directory, name + ContentFile.SUFFIX),
+        offHeap);
   }
 
   public static <T> Table createCloneTable(final JavaTypeFactory typeFactory,
       final RelProtoDataType protoRowType,
       final List<ColumnMetaData.Rep> repList,
       final Enumerable<T> source) {
+    return createCloneTable(typeFactory, protoRowType, repList, source, null,
+        false);
+  }
+
+  /** Creates a table that holds a copy of the rows of a source.
+   *
+   * <p>If {@code file} is not null and holds the contents of a table with
+   * the same row type (names and types of columns), the table reads its
+   * contents from that file and does not read the source. Otherwise it reads
+   * the source and, if {@code file} is not null, writes the contents to the
+   * file, creating its directory if necessary. If the file cannot be
+   * written, the table keeps its contents in memory.</p>
+   *
+   * <p>If {@code offHeap} is true, the values of primitive and string
+   * columns are stored outside the Java heap.</p> */
+  public static <T> Table createCloneTable(final JavaTypeFactory typeFactory,
+      final RelProtoDataType protoRowType,
+      final List<ColumnMetaData.Rep> repList,
+      final Enumerable<T> source,
+      final File file,
+      final boolean offHeap) {
     final Type elementType = source instanceof QueryableTable
         ? ((QueryableTable) source).getElementType()
         : Object[].class;
@@ -94,11 +233,41 @@ public static <T> Table createCloneTable(final JavaTypeFactory typeFactory,
         Suppliers.memoize(
             new Supplier<ArrayTable.Content>() {
               public ArrayTable.Content get() {
+                final RelDataType rowType = protoRowType.apply(typeFactory);
+                if (file != null && file.exists()) {
+                  try {
+                    return ContentFile.read(file, rowType);
+                  } catch (IOException e) {
+                    // The file is corrupt, has an old format, or was written
+                    // for a different row type. Reload.
+                    LOGGER.log(Level.FINE,
+                        "Reloading table contents; could not read " + file,
+                        e);
+                  }
+                }
                 final ColumnLoader loader =
                     new ColumnLoader<T>(typeFactory, source, protoRowType,
-                        repList);
-                return new ArrayTable.Content(loader.representationValues,
-                    loader.size(), loader.sortField);
+                        repList, -1, offHeap);
+                final ArrayTable.Content content =
+                    new ArrayTable.Content(loader.representationValues,
+                        loader.size(), loader.sortField);
+                if (file == null) {
+                  return content;
+                }
+                try {
+                  final File parent = file.getAbsoluteFile().getParentFile();
+                  if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create directory "
+                        + parent);
+                  }
+                  ContentFile.write(content, rowType, file);
+                  return ContentFile.read(file, rowType);
+                } catch (IOException e) {
+                  LOGGER.log(Level.WARNING,
+                      "Error while saving contents of table to " + file
+                      + "; keeping them in memory", e);
+                  return content;
+                }
               }
             }));
   }
@@ -120,12 +289,19 @@ public ArrayTable.Content get() {
    *         jdbcDriver: 'com.mysql.jdbc.Driver',
    *         jdbcUrl: 'jdbc:mysql://localhost/foodmart',
    *         jdbcUser: 'foodmart',
-   *         jdbcPassword: 'foodmart'
+   *         jdbcPassword: 'foodmart',
+   *         directory: '/var/cache/foodmart',
+   *         offHeap: true
    *       }
    *     }
    *   ]
    * }
    * }</pre>
+   *
+   * <p>The optional {@code directory} operand is a directory in which to
+   * save the contents of each table, and the optional {@code offHeap}
+   * operand (default false) causes values to be stored outside the Java
+   * heap; see {@link CloneSchema#CloneSchema(SchemaPlus, File, boolean)}.</p>
    */
   public static class Factory implements SchemaFactory {
     public Schema create(
@@ -135,7 +311,11 @@ public Schema create(
       SchemaPlus schema =
           parentSchema.add(name,
               JdbcSchema.create(parentSchema, name + "$source", operand));
-      return new CloneSchema(schema);
+      final String directory = (String) operand.get("directory");
+      final Boolean offHeap = (Boolean) operand.get("offHeap");
+      return new CloneSchema(schema,
+          directory == null ? null : new File(directory),
+          offHeap != null && offHeap);
     }
   }
 }
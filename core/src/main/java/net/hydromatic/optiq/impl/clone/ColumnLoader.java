@@ -20,23 +20,29 @@
 import net.hydromatic.avatica.ColumnMetaData;
 
 import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
 import net.hydromatic.linq4j.Ord;
 import net.hydromatic.linq4j.expressions.Primitive;
 import net.hydromatic.linq4j.function.Function1;
 import net.hydromatic.linq4j.function.Functions;
 
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.runtime.Hook;
 
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeField;
 import org.eigenbase.reltype.RelProtoDataType;
 import org.eigenbase.util14.DateTimeUtil;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import java.lang.reflect.Type;
 import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Column loader.
@@ -75,11 +81,27 @@ public Integer apply(Date a0) {
         }
       };
 
-  public final List<T> list = new ArrayList<T>();
+  /** Number of rows read from the source before their values are added to
+   * the columns' value sets. */
+  static final int BATCH_SIZE = 4096;
+
+  /** Number of threads that analyze and encode columns. Set by the system
+   * property "optiq.clone.threads"; default is the number of processors. */
+  static final int THREAD_COUNT =
+      Integer.getInteger("optiq.clone.threads",
+          Runtime.getRuntime().availableProcessors());
+
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("optiq-clone-%d")
+          .build();
+
   public final List<ArrayTable.Column> representationValues =
       new ArrayList<ArrayTable.Column>();
   private final JavaTypeFactory typeFactory;
   public final int sortField;
+  private int size;
 
   /** Creates a column loader, and performs the load.
    *
@@ -91,6 +113,27 @@ public Integer apply(Date a0) {
       Enumerable<T> sourceTable,
       RelProtoDataType protoRowType,
       List<ColumnMetaData.Rep> repList) {
+    this(typeFactory, sourceTable, protoRowType, repList, -1, false);
+  }
+
+  /** Creates a column loader that prefers to sort on a given column, and
+   * performs the load.
+   *
+   * @param typeFactory Type factory
+   * @param sourceTable Source data
+   * @param protoRowType Logical row type
+   * @param repList Physical row types, or null if not known
+   * @param preferredSortField Ordinal of column to sort on if its values
+   *     are unique, or -1 to sort on the first column whose values are
+   *     unique
+   * @param offHeap Whether to store primitive and string values outside the
+   *     Java heap */
+  ColumnLoader(JavaTypeFactory typeFactory,
+      Enumerable<T> sourceTable,
+      RelProtoDataType protoRowType,
+      List<ColumnMetaData.Rep> repList,
+      int preferredSortField,
+      boolean offHeap) {
     this.typeFactory = typeFactory;
     final RelDataType rowType = protoRowType.apply(typeFactory);
     if (repList == null) {
@@ -98,10 +141,19 @@ public Integer apply(Date a0) {
           Collections.nCopies(rowType.getFieldCount(),
               ColumnMetaData.Rep.OBJECT);
     }
-    sourceTable.into(list);
-    final int[] sorts = {-1};
-    load(rowType, repList, sorts);
-    this.sortField = sorts[0];
+    final int threadCount =
+        Math.max(1, Math.min(THREAD_COUNT, rowType.getFieldCount()));
+    final ExecutorService executor =
+        Executors.newFixedThreadPool(threadCount, THREAD_FACTORY);
+    try {
+      this.sortField =
+          load(rowType, repList, sourceTable, preferredSortField, offHeap,
+              executor,
+              new ArrayTable.LoadStats(rowType.getFieldCount(),
+                  threadCount));
+    } finally {
+      executor.shutdownNow();
+    }
   }
 
   static int nextPowerOf2(int v) {
@@ -167,84 +219,172 @@ static boolean isIdentity(int[] sources) {
   }
 
   public int size() {
-    return list.size();
+    return size;
   }
 
-  private void load(final RelDataType elementType,
-      List<ColumnMetaData.Rep> repList, int[] sort) {
-    final List<Type> types =
-        new AbstractList<Type>() {
-          final List<RelDataTypeField> fields =
-              elementType.getFieldList();
-          public Type get(int index) {
-            return typeFactory.getJavaClass(
-                fields.get(index).getType());
-          }
-
-          public int size() {
-            return fields.size();
-          }
-        };
-    int[] sources = null;
-    for (final Ord<Type> pair : Ord.zip(types)) {
-      @SuppressWarnings("unchecked")
-      final List<?> sliceList =
-          types.size() == 1
-              ? list
-              : new AbstractList<Object>() {
-                final int slice = pair.i;
-
-                public Object get(int index) {
-                  return ((Object[]) list.get(index))[slice];
+  /** Reads the rows of the source and converts each column into a compact
+   * representation; returns the ordinal of the column on which the rows
+   * have been sorted, or -1.
+   *
+   * <p>Rows are read in batches. While this thread reads the next batch,
+   * the executor adds the values of the previous batch to each column's
+   * value set, one task per column; rows are not retained once their
+   * values have been added. When all rows have been read, the preferred
+   * sort column, if its values are unique, or otherwise the first column
+   * whose values are unique, becomes the sort column, and the executor
+   * freezes the columns in parallel, permuting each into the order of the
+   * sort column.</p>
+   *
+   * <p>Progress is reported to {@link Hook#CLONE_LOAD}.</p> */
+  private int load(RelDataType elementType,
+      final List<ColumnMetaData.Rep> repList, Enumerable<T> source,
+      int preferredSortField, final boolean offHeap, ExecutorService executor,
+      ArrayTable.LoadStats stats) {
+    final long start = System.currentTimeMillis();
+    final List<RelDataTypeField> fields = elementType.getFieldList();
+    final int columnCount = fields.size();
+    final List<ValueSet> valueSets = new ArrayList<ValueSet>();
+    for (RelDataTypeField field : fields) {
+      final Type type = typeFactory.getJavaClass(field.getType());
+      valueSets.add(
+          new ValueSet(type instanceof Class ? (Class) type : Object.class));
+    }
+    final List<Future<?>> futures =
+        new ArrayList<Future<?>>(
+            Collections.<Future<?>>nCopies(columnCount, null));
+    final Enumerator<T> enumerator = source.enumerator();
+    try {
+      boolean more = true;
+      while (more) {
+        final List<T> batch = new ArrayList<T>(BATCH_SIZE);
+        while (batch.size() < BATCH_SIZE && (more = enumerator.moveNext())) {
+          batch.add(enumerator.current());
+        }
+        if (batch.isEmpty()) {
+          break;
+        }
+        size += batch.size();
+        for (int i = 0; i < columnCount; i++) {
+          // Values must be added to a value set in row order, so wait for
+          // the previous batch of this column.
+          get(futures.get(i));
+          final ValueSet valueSet = valueSets.get(i);
+          final List<?> values =
+              wrap(repList.get(i), slice(batch, i, columnCount),
+                  fields.get(i).getType());
+          futures.set(i,
+              executor.submit(
+                  new Runnable() {
+                    public void run() {
+                      for (Object o : values) {
+                        valueSet.add((Comparable) o);
+                      }
+                    }
+                  }));
+        }
+        stats.rowCount = size;
+        Hook.CLONE_LOAD.run(stats);
+      }
+    } finally {
+      enumerator.close();
+    }
+    for (Future<?> future : futures) {
+      get(future);
+    }
+    stats.readMillis = System.currentTimeMillis() - start;
+
+    // Sort on the preferred column if its values are unique, otherwise on
+    // the first column whose values are unique.
+    int sortField = -1;
+    if (preferredSortField >= 0
+        && valueSets.get(preferredSortField).map.keySet().size() == size) {
+      sortField = preferredSortField;
+    } else {
+      for (Ord<ValueSet> valueSet : Ord.zip(valueSets)) {
+        if (valueSet.e.map.keySet().size() == size) {
+          sortField = valueSet.i;
+          break;
+        }
+      }
+    }
+    final int[] sources = sortField < 0
+        ? null
+        : sortPermutation(valueSets.get(sortField));
+
+    // Freeze each column, in parallel. Release each value set as soon as its
+    // column is frozen.
+    final List<Future<ArrayTable.Column>> columnFutures =
+        new ArrayList<Future<ArrayTable.Column>>();
+    for (int i = 0; i < columnCount; i++) {
+      final int ordinal = i;
+      final ValueSet valueSet = valueSets.get(i);
+      columnFutures.add(
+          executor.submit(
+              new Callable<ArrayTable.Column>() {
+                public ArrayTable.Column call() {
+                  return valueSet.freeze(ordinal, sources, offHeap);
                 }
+              }));
+    }
+    valueSets.clear();
+    for (Future<ArrayTable.Column> future : columnFutures) {
+      representationValues.add(get(future));
+      ++stats.frozenColumnCount;
+      Hook.CLONE_LOAD.run(stats);
+    }
+    stats.totalMillis = System.currentTimeMillis() - start;
+    stats.done = true;
+    Hook.CLONE_LOAD.run(stats);
+    return sortField;
+  }
 
-                public int size() {
-                  return list.size();
-                }
-              };
-      final List<?> list2 =
-          wrap(
-              repList.get(pair.i),
-              sliceList,
-              elementType.getFieldList().get(pair.i).getType());
-      final Class clazz = pair.e instanceof Class
-          ? (Class) pair.e
-          : Object.class;
-      ValueSet valueSet = new ValueSet(clazz);
-      for (Object o : list2) {
-        valueSet.add((Comparable) o);
+  /** Returns a view of one column of a batch of rows. If there is only one
+   * column, each row is the value. */
+  private static <T> List<?> slice(final List<T> rows, final int i,
+      int columnCount) {
+    if (columnCount == 1) {
+      return rows;
+    }
+    return new AbstractList<Object>() {
+      public Object get(int index) {
+        return ((Object[]) rows.get(index))[i];
       }
-      if (sort != null
-          && sort[0] < 0
-          && valueSet.map.keySet().size() == list.size()) {
-        // We have discovered a the first unique key in the table.
-        sort[0] = pair.i;
-        final Comparable[] values =
-            valueSet.values.toArray(new Comparable[list.size()]);
-        final Kev[] kevs = new Kev[list.size()];
-        for (int i = 0; i < kevs.length; i++) {
-          kevs[i] = new Kev(i, values[i]);
-        }
-        Arrays.sort(kevs);
-        sources = new int[list.size()];
-        for (int i = 0; i < sources.length; i++) {
-          sources[i] = kevs[i].source;
-        }
 
-        if (isIdentity(sources)) {
-          // Table was already sorted. Clear the permutation.
-          // We've already set sort[0], so we won't check for another
-          // sorted column.
-          sources = null;
-        } else {
-          // Re-sort all previous columns.
-          for (int i = 0; i < pair.i; i++) {
-            representationValues.set(
-                i, representationValues.get(i).permute(sources));
-          }
-        }
+      public int size() {
+        return rows.size();
       }
-      representationValues.add(valueSet.freeze(pair.i, sources));
+    };
+  }
+
+  /** Returns the permutation that sorts the values of a column whose values
+   * are unique, or null if the values are already sorted. */
+  private static int[] sortPermutation(ValueSet valueSet) {
+    final List<Comparable> values = valueSet.values;
+    final Kev[] kevs = new Kev[values.size()];
+    for (int i = 0; i < kevs.length; i++) {
+      kevs[i] = new Kev(i, values.get(i));
+    }
+    Arrays.sort(kevs);
+    final int[] sources = new int[kevs.length];
+    for (int i = 0; i < sources.length; i++) {
+      sources[i] = kevs[i].source;
+    }
+    return isIdentity(sources) ? null : sources;
+  }
+
+  /** Waits for a task to complete, and returns its result. Returns null if
+   * {@code future} is null. */
+  private static <V> V get(Future<V> future) {
+    if (future == null) {
+      return null;
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
     }
   }
 
@@ -325,13 +465,23 @@ void add(Comparable e) {
     /** Freezes the contents of this value set into a column, optionally
      * re-ordering if {@code sources} is specified. */
     ArrayTable.Column freeze(int ordinal, int[] sources) {
-      ArrayTable.Representation representation = chooseRep(ordinal);
+      return freeze(ordinal, sources, false);
+    }
+
+    /** Freezes the contents of this value set into a column, optionally
+     * re-ordering if {@code sources} is specified, and optionally storing
+     * the values outside the Java heap. */
+    ArrayTable.Column freeze(int ordinal, int[] sources, boolean offHeap) {
+      ArrayTable.Representation representation = chooseRep(ordinal, offHeap);
       final int cardinality = map.size() + (containsNull ? 1 : 0);
-      final Object data = representation.freeze(this, sources);
+      Object data = representation.freeze(this, sources);
+      if (offHeap) {
+        data = ArrayTable.toOffHeap(representation, data);
+      }
       return new ArrayTable.Column(representation, data, cardinality);
     }
 
-    ArrayTable.Representation chooseRep(int ordinal) {
+    ArrayTable.Representation chooseRep(int ordinal, boolean offHeap) {
       Primitive primitive = Primitive.of(clazz);
       Primitive boxPrimitive = Primitive.ofBox(clazz);
       Primitive p = primitive != null ? primitive : boxPrimitive;
@@ -363,6 +513,9 @@ ArrayTable.Representation chooseRep(int ordinal) {
             chooseFixedRep(-1, Primitive.INT, 0, codeCount - 1);
         return new ArrayTable.ObjectDictionary(ordinal, representation);
       }
+      if (offHeap && clazz == String.class) {
+        return new ArrayTable.StringDictionary(ordinal);
+      }
       return new ArrayTable.ObjectArray(ordinal);
     }
 
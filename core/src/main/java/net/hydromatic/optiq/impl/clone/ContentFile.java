@@ -0,0 +1,542 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.clone;
+
+import net.hydromatic.linq4j.expressions.Primitive;
+
+import net.hydromatic.optiq.runtime.Spill;
+
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.util.Pair;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the contents of an {@link ArrayTable} in a columnar file.
+ *
+ * <p>The file consists of a header followed by the representation and data
+ * of each column. Primitive arrays, bit-sliced arrays and string tables are
+ * stored in blocks that start on 8-byte boundaries. When the file is read,
+ * each such block is memory-mapped, and the column reads the mapped buffer
+ * directly rather than a copy on the heap; several JVMs that read the same
+ * file share the operating system's page cache. Objects (the values of
+ * {@link ArrayTable.ObjectArray} columns, dictionaries and constants) are
+ * deserialized onto the heap.</p>
+ *
+ * <p>The file starts with a magic number, a format version and the row type
+ * of the table. A file whose version is not {@link #VERSION}, or whose row
+ * type is not the expected row type, is rejected rather than misread.</p>
+ */
+public class ContentFile {
+  /** Suffix of content files. */
+  public static final String SUFFIX = ".optiq";
+
+  /** Version of the file format. Increase it whenever the format
+   * changes. */
+  public static final int VERSION = 2;
+
+  /** First 4 bytes of a content file, "OPTC". */
+  private static final int MAGIC = 0x4f505443;
+
+  /** Number of objects after which the writer resets its object stream,
+   * so that the stream does not hold references to every object written. */
+  private static final int RESET_INTERVAL = 1024;
+
+  private ContentFile() {
+  }
+
+  /** Writes the contents of a table to a file, without a row type. */
+  public static void write(ArrayTable.Content content, File file)
+      throws IOException {
+    write(content, null, file);
+  }
+
+  /** Writes the contents of a table to a file.
+   *
+   * <p>The contents are written to a temporary file in the same directory,
+   * which is then renamed, so that a reader never sees a partially written
+   * file.</p>
+   *
+   * @param content Contents of the table
+   * @param rowType Row type of the table, stored in the header so that
+   *   {@link #read(File, RelDataType)} can check it; or null
+   * @param file File
+   */
+  public static void write(ArrayTable.Content content, RelDataType rowType,
+      File file) throws IOException {
+    final File tmp =
+        File.createTempFile(file.getName(), ".tmp",
+            file.getAbsoluteFile().getParentFile());
+    boolean success = false;
+    try {
+      final ContentWriter writer =
+          new ContentWriter(new FileOutputStream(tmp));
+      try {
+        writer.write(content, digest(rowType));
+      } finally {
+        writer.close();
+      }
+      if (!tmp.renameTo(file)) {
+        // On some platforms, rename fails if the target exists.
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        //noinspection ResultOfMethodCallIgnored
+        tmp.delete();
+      }
+    }
+  }
+
+  /** Reads the contents of a table from a file written by
+   * {@link #write}, whatever its row type. */
+  public static ArrayTable.Content read(File file) throws IOException {
+    return read(file, null);
+  }
+
+  /** Reads the contents of a table from a file written by
+   * {@link #write}.
+   *
+   * @param file File
+   * @param rowType Expected row type, or null to accept any row type
+   *
+   * @throws IOException if the file cannot be read, is not a content file,
+   *   was written in a different version of the format or for a different
+   *   row type, or is corrupt
+   */
+  public static ArrayTable.Content read(File file, RelDataType rowType)
+      throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() < 8 || raf.readInt() != MAGIC) {
+        throw new IOException("Not a table content file: " + file);
+      }
+      final int version = raf.readInt();
+      if (version != VERSION) {
+        throw new IOException("Table content file " + file + " has version "
+            + version + "; expected " + VERSION);
+      }
+      final String digest = readString(raf);
+      if (rowType != null && !digest.equals(digest(rowType))) {
+        throw new IOException("Table content file " + file + " has row type "
+            + digest + "; expected " + digest(rowType));
+      }
+      return new ContentReader(raf).read();
+    } catch (IllegalArgumentException e) {
+      throw corrupt(file, e);
+    } catch (IndexOutOfBoundsException e) {
+      throw corrupt(file, e);
+    } catch (NegativeArraySizeException e) {
+      throw corrupt(file, e);
+    } catch (BufferUnderflowException e) {
+      throw corrupt(file, e);
+    } catch (ClassCastException e) {
+      throw corrupt(file, e);
+    } catch (ClassNotFoundException e) {
+      throw corrupt(file, e);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Creates the exception thrown if a file's contents do not make sense,
+   * for example because it has been truncated or overwritten. */
+  private static IOException corrupt(File file, Exception e) {
+    final IOException e2 =
+        new IOException("Table content file " + file + " is corrupt");
+    e2.initCause(e);
+    return e2;
+  }
+
+  /** Returns the string that describes a row type in the header of a file:
+   * the names, types and nullability of its fields. */
+  private static String digest(RelDataType rowType) {
+    return rowType == null ? "" : rowType.getFullTypeString();
+  }
+
+  private static String readString(RandomAccessFile raf) throws IOException {
+    final int length = raf.readInt();
+    if (length < 0 || length > raf.length() - raf.getFilePointer()) {
+      throw new IOException("Invalid string length " + length);
+    }
+    final byte[] bytes = new byte[length];
+    raf.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /** Returns the number of bytes occupied by a value of a primitive type
+   * in a data block. */
+  private static int width(Primitive primitive) {
+    switch (primitive) {
+    case BYTE:
+      return 1;
+    case CHAR:
+    case SHORT:
+      return 2;
+    case INT:
+    case FLOAT:
+      return 4;
+    case LONG:
+    case DOUBLE:
+      return 8;
+    default:
+      throw new UnsupportedOperationException(
+          "Cannot store array of " + primitive);
+    }
+  }
+
+  /** Writes the contents of a table to a stream. */
+  private static class ContentWriter {
+    private final FileOutputStream fos;
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+
+    ContentWriter(FileOutputStream fos) {
+      this.fos = fos;
+      this.counter =
+          new CountingOutputStream(new BufferedOutputStream(fos));
+      this.out = new DataOutputStream(counter);
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+
+    void write(ArrayTable.Content content, String digest)
+        throws IOException {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeString(digest);
+      out.writeInt(content.size);
+      out.writeInt(content.sortField);
+      out.writeInt(content.columns.size());
+      for (ArrayTable.Column column : content.columns) {
+        out.writeInt(column.cardinality);
+        writeRep(column.representation, column.dataSet);
+      }
+    }
+
+    private void writeRep(ArrayTable.Representation representation,
+        Object dataSet) throws IOException {
+      out.writeUTF(representation.getType().name());
+      switch (representation.getType()) {
+      case OBJECT_ARRAY:
+        out.writeInt(((ArrayTable.ObjectArray) representation).ordinal);
+        writeObjects((Comparable[]) dataSet);
+        break;
+      case PRIMITIVE_ARRAY:
+        final ArrayTable.PrimitiveArray primitiveArray =
+            (ArrayTable.PrimitiveArray) representation;
+        out.writeInt(primitiveArray.ordinal);
+        out.writeUTF(primitiveArray.primitive.name());
+        out.writeUTF(primitiveArray.p.name());
+        writePrimitives(primitiveArray.primitive, dataSet);
+        break;
+      case BIT_SLICED_PRIMITIVE_ARRAY:
+        final ArrayTable.BitSlicedPrimitiveArray bitSliced =
+            (ArrayTable.BitSlicedPrimitiveArray) representation;
+        out.writeInt(bitSliced.ordinal);
+        out.writeInt(bitSliced.bitCount);
+        out.writeUTF(bitSliced.primitive.name());
+        out.writeBoolean(bitSliced.signed);
+        writePrimitives(Primitive.LONG, dataSet);
+        break;
+      case STRING_DICTIONARY:
+        @SuppressWarnings("unchecked")
+        final Pair<IntBuffer, ByteBuffer> strings =
+            (Pair<IntBuffer, ByteBuffer>) dataSet;
+        out.writeInt(((ArrayTable.StringDictionary) representation).ordinal);
+        writePrimitives(Primitive.INT, strings.left);
+        writePrimitives(Primitive.BYTE, strings.right);
+        break;
+      case OBJECT_DICTIONARY:
+        final ArrayTable.ObjectDictionary dictionary =
+            (ArrayTable.ObjectDictionary) representation;
+        @SuppressWarnings("unchecked")
+        final Pair<Object, Comparable[]> pair =
+            (Pair<Object, Comparable[]>) dataSet;
+        out.writeInt(dictionary.ordinal);
+        writeObjects(pair.right);
+        writeRep(dictionary.representation, pair.left);
+        break;
+      case CONSTANT:
+        @SuppressWarnings("unchecked")
+        final Pair<Comparable, Integer> constant =
+            (Pair<Comparable, Integer>) dataSet;
+        out.writeInt(((ArrayTable.Constant) representation).ordinal);
+        out.writeInt(constant.right);
+        writeObjects(new Comparable[] {constant.left});
+        break;
+      default:
+        throw new UnsupportedOperationException(
+            "Cannot store representation " + representation);
+      }
+    }
+
+    /** Writes a string that may be longer than {@link
+     * DataOutput#writeUTF} allows. */
+    private void writeString(String s) throws IOException {
+      final byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    /** Pads the file to an 8-byte boundary and writes the length of the
+     * block that follows. */
+    private void startBlock(long length) throws IOException {
+      while (counter.getCount() % 8 != 0) {
+        out.writeByte(0);
+      }
+      out.writeLong(length);
+    }
+
+    private void writePrimitives(Primitive primitive, Object dataSet)
+        throws IOException {
+      if (dataSet instanceof Buffer) {
+        dataSet = ArrayTable.toArray((Buffer) dataSet);
+      }
+      final int n = Array.getLength(dataSet);
+      startBlock((long) n * width(primitive));
+      switch (primitive) {
+      case BYTE:
+        out.write((byte[]) dataSet);
+        break;
+      case CHAR:
+        for (char v : (char[]) dataSet) {
+          out.writeChar(v);
+        }
+        break;
+      case SHORT:
+        for (short v : (short[]) dataSet) {
+          out.writeShort(v);
+        }
+        break;
+      case INT:
+        for (int v : (int[]) dataSet) {
+          out.writeInt(v);
+        }
+        break;
+      case LONG:
+        for (long v : (long[]) dataSet) {
+          out.writeLong(v);
+        }
+        break;
+      case FLOAT:
+        for (float v : (float[]) dataSet) {
+          out.writeFloat(v);
+        }
+        break;
+      case DOUBLE:
+        for (double v : (double[]) dataSet) {
+          out.writeDouble(v);
+        }
+        break;
+      default:
+        throw new AssertionError(primitive);
+      }
+    }
+
+    /** Writes a block of objects. We do not know the length of the block
+     * until we have written it, so we write a placeholder and patch it
+     * afterwards. */
+    private void writeObjects(Comparable[] values) throws IOException {
+      startBlock(0L);
+      final long start = counter.getCount();
+      final ObjectOutputStream oos = new ObjectOutputStream(out);
+      oos.writeInt(values.length);
+      for (int i = 0; i < values.length; i++) {
+        Spill.write(oos, values[i]);
+        if ((i + 1) % RESET_INTERVAL == 0) {
+          oos.reset();
+        }
+      }
+      oos.flush();
+      out.flush();
+      final long length = counter.getCount() - start;
+      final ByteBuffer buffer = ByteBuffer.allocate(8);
+      buffer.putLong(0, length);
+      fos.getChannel().write(buffer, start - 8);
+    }
+  }
+
+  /** Reads the contents of a table from a file, mapping data blocks into
+   * memory. */
+  private static class ContentReader {
+    private final RandomAccessFile raf;
+
+    ContentReader(RandomAccessFile raf) {
+      this.raf = raf;
+    }
+
+    ArrayTable.Content read() throws IOException, ClassNotFoundException {
+      final int size = raf.readInt();
+      final int sortField = raf.readInt();
+      final int columnCount = raf.readInt();
+      final List<ArrayTable.Column> columns =
+          new ArrayList<ArrayTable.Column>();
+      for (int i = 0; i < columnCount; i++) {
+        final int cardinality = raf.readInt();
+        final Pair<ArrayTable.Representation, Object> pair = readRep();
+        columns.add(new ArrayTable.Column(pair.left, pair.right, cardinality));
+      }
+      return new ArrayTable.Content(columns, size, sortField);
+    }
+
+    private Pair<ArrayTable.Representation, Object> readRep()
+        throws IOException, ClassNotFoundException {
+      final String typeName = raf.readUTF();
+      final ArrayTable.RepresentationType type;
+      try {
+        type = ArrayTable.RepresentationType.valueOf(typeName);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Unknown representation " + typeName);
+      }
+      final int ordinal = raf.readInt();
+      switch (type) {
+      case OBJECT_ARRAY:
+        return Pair.<ArrayTable.Representation, Object>of(
+            new ArrayTable.ObjectArray(ordinal), readObjects());
+      case PRIMITIVE_ARRAY:
+        final Primitive primitive = Primitive.valueOf(raf.readUTF());
+        final Primitive p = Primitive.valueOf(raf.readUTF());
+        return Pair.<ArrayTable.Representation, Object>of(
+            new ArrayTable.PrimitiveArray(ordinal, primitive, p),
+            readPrimitives(primitive));
+      case BIT_SLICED_PRIMITIVE_ARRAY:
+        final int bitCount = raf.readInt();
+        final Primitive primitive2 = Primitive.valueOf(raf.readUTF());
+        final boolean signed = raf.readBoolean();
+        return Pair.<ArrayTable.Representation, Object>of(
+            new ArrayTable.BitSlicedPrimitiveArray(ordinal, bitCount,
+                primitive2, signed),
+            readPrimitives(Primitive.LONG));
+      case STRING_DICTIONARY:
+        final IntBuffer offsets = (IntBuffer) readPrimitives(Primitive.INT);
+        final ByteBuffer data = (ByteBuffer) readPrimitives(Primitive.BYTE);
+        return Pair.<ArrayTable.Representation, Object>of(
+            new ArrayTable.StringDictionary(ordinal), Pair.of(offsets, data));
+      case OBJECT_DICTIONARY:
+        final Comparable[] codeValues = readObjects();
+        final Pair<ArrayTable.Representation, Object> codes = readRep();
+        return Pair.<ArrayTable.Representation, Object>of(
+            new ArrayTable.ObjectDictionary(ordinal, codes.left),
+            Pair.of(codes.right, codeValues));
+      case CONSTANT:
+        final int size = raf.readInt();
+        final Comparable[] values = readObjects();
+        return Pair.<ArrayTable.Representation, Object>of(
+            new ArrayTable.Constant(ordinal), Pair.of(values[0], size));
+      default:
+        throw new IOException("Cannot read representation " + type);
+      }
+    }
+
+    /** Maps the next block of the file into memory, and moves to the end of
+     * the block. */
+    private ByteBuffer readBlock() throws IOException {
+      long position = raf.getFilePointer();
+      raf.seek((position + 7) / 8 * 8);
+      final long length = raf.readLong();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Block too large: " + length + " bytes");
+      }
+      position = raf.getFilePointer();
+      final ByteBuffer buffer =
+          raf.getChannel().map(FileChannel.MapMode.READ_ONLY, position,
+              length);
+      raf.seek(position + length);
+      return buffer;
+    }
+
+    private Buffer readPrimitives(Primitive primitive) throws IOException {
+      final ByteBuffer buffer = readBlock();
+      switch (primitive) {
+      case BYTE:
+        return buffer;
+      case CHAR:
+        return buffer.asCharBuffer();
+      case SHORT:
+        return buffer.asShortBuffer();
+      case INT:
+        return buffer.asIntBuffer();
+      case LONG:
+        return buffer.asLongBuffer();
+      case FLOAT:
+        return buffer.asFloatBuffer();
+      case DOUBLE:
+        return buffer.asDoubleBuffer();
+      default:
+        throw new IOException("Cannot read array of " + primitive);
+      }
+    }
+
+    private Comparable[] readObjects()
+        throws IOException, ClassNotFoundException {
+      final ObjectInputStream in =
+          new ObjectInputStream(new ByteBufferInputStream(readBlock()));
+      final Comparable[] values = new Comparable[in.readInt()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = (Comparable) Spill.read(in);
+      }
+      return values;
+    }
+  }
+
+  /** Input stream that reads from a {@link ByteBuffer}. */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override public int read(byte[] bytes, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(bytes, off, len);
+      return len;
+    }
+
+    @Override public int available() {
+      return buffer.remaining();
+    }
+  }
+}
+
+// End ContentFile.java
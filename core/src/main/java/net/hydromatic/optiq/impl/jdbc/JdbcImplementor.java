@@ -37,6 +37,7 @@
 
 import com.google.common.collect.ImmutableList;
 
+import java.math.BigDecimal;
 import java.util.*;
 
 /**
@@ -47,12 +48,42 @@ public class JdbcImplementor {
 
   final SqlDialect dialect;
   private final Set<String> aliasSet = new LinkedHashSet<String>();
+  private final boolean bind;
+  private final List<Parameter> parameters = new ArrayList<Parameter>();
 
   public JdbcImplementor(SqlDialect dialect, JavaTypeFactory typeFactory) {
+    this(dialect, typeFactory, false);
+  }
+
+  /** Creates a JdbcImplementor.
+   *
+   * @param dialect SQL dialect
+   * @param typeFactory Type factory
+   * @param bind Whether to generate parameters ("?") for dynamic parameters
+   *             and for literals in comparisons; if false, literals are
+   *             generated inline and dynamic parameters are not allowed
+   */
+  public JdbcImplementor(SqlDialect dialect, JavaTypeFactory typeFactory,
+      boolean bind) {
     this.dialect = dialect;
+    this.bind = bind;
     Util.discard(typeFactory);
   }
 
+  /** Converts a node to a SQL string, and records the parameters that occur
+   * in it, in the order that they occur; see {@link #parameters()}. */
+  public String toSql(SqlNode node) {
+    parameters.clear();
+    return node.toSqlString(dialect).getSql();
+  }
+
+  /** Returns the parameters in the most recent SQL string generated by
+   * {@link #toSql(SqlNode)}, in the order that their values must be
+   * bound. */
+  public List<Parameter> parameters() {
+    return Collections.unmodifiableList(parameters);
+  }
+
   /** Creates a result based on a single relational expression. */
   public Result result(SqlNode node, Collection<Clause> clauses, RelNode rel) {
     final String alias2 = SqlValidatorUtil.getAlias(node, -1);
@@ -116,6 +147,12 @@ SqlNode toSql(RexProgram program, RexNode rex) {
       case INPUT_REF:
         return field(((RexInputRef) rex).getIndex());
 
+      case DYNAMIC_PARAM:
+        if (!bind) {
+          throw new AssertionError("cannot generate SQL for parameter " + rex);
+        }
+        return new Parameter(null, (RexDynamicParam) rex);
+
       case LITERAL:
         final RexLiteral literal = (RexLiteral) rex;
         if (literal.getTypeName() == SqlTypeName.SYMBOL) {
@@ -184,6 +221,11 @@ SqlNode toSql(RexProgram program, RexNode rex) {
         final RexCall call = (RexCall) rex;
         final SqlOperator op = call.getOperator();
         final List<SqlNode> nodeList = toSql(program, call.getOperands());
+        if (bind
+            && rex.isA(SqlKind.COMPARISON)
+            && nodeList.size() == 2) {
+          bindLiterals(program, call.getOperands(), nodeList);
+        }
         switch (rex.getKind()) {
         case CAST:
           nodeList.add(toSql(call.getType()));
@@ -197,6 +239,56 @@ SqlNode toSql(RexProgram program, RexNode rex) {
       }
     }
 
+    /** Replaces the literal operands of a comparison with parameters. A
+     * literal is replaced only if the other operand is neither a literal nor
+     * a parameter, so that the database can deduce the parameter's type from
+     * the other operand. */
+    private void bindLiterals(RexProgram program, List<RexNode> operands,
+        List<SqlNode> nodeList) {
+      for (int i = 0; i < 2; i++) {
+        final RexNode operand = deref(program, operands.get(i));
+        final RexNode other = deref(program, operands.get(1 - i));
+        if (operand instanceof RexLiteral
+            && !(other instanceof RexLiteral)
+            && !(other instanceof RexDynamicParam)) {
+          final Object value = bindValue((RexLiteral) operand);
+          if (value != null) {
+            nodeList.set(i, new Parameter(value, null));
+          }
+        }
+      }
+    }
+
+    private RexNode deref(RexProgram program, RexNode rex) {
+      while (rex instanceof RexLocalRef) {
+        rex = program.getExprList().get(((RexLocalRef) rex).getIndex());
+      }
+      return rex;
+    }
+
+    /** Returns the value to bind to a parameter that replaces a literal, or
+     * null if the literal should remain in the SQL.
+     *
+     * <p>A {@code CHAR} literal stays in the SQL. Bound as a string, it would
+     * reach the database as a {@code VARCHAR}, and comparisons would no
+     * longer ignore trailing spaces.</p> */
+    private Object bindValue(RexLiteral literal) {
+      switch (literal.getTypeName().getFamily()) {
+      case CHARACTER:
+        if (literal.getTypeName() == SqlTypeName.CHAR) {
+          return null;
+        }
+        return literal.getValue2();
+      case NUMERIC:
+      case EXACT_NUMERIC:
+        return literal.getValue();
+      case APPROXIMATE_NUMERIC:
+        return ((BigDecimal) literal.getValue()).doubleValue();
+      default:
+        return null;
+      }
+    }
+
     private SqlNode createLeftCall(SqlOperator op, List<SqlNode> nodeList) {
       if (nodeList.size() == 2) {
         return op.createCall(new SqlNodeList(nodeList, POS));
@@ -493,6 +585,44 @@ public Result result() {
     }
   }
 
+  /** Parameter in a generated SQL statement, with the value to be bound to
+   * it: either a constant (a literal that has been taken out of the SQL), or
+   * a dynamic parameter of the statement being executed.
+   *
+   * <p>A parameter's position is determined when it is written, because a
+   * node's textual position in the SQL is not known until then; the index is
+   * not significant.</p> */
+  public class Parameter extends SqlDynamicParam {
+    /** Value, if this parameter replaces a literal; otherwise null. */
+    public final Object value;
+
+    /** Dynamic parameter that supplies the value at execution time, or
+     * null. */
+    public final RexDynamicParam dynamicParam;
+
+    Parameter(Object value, RexDynamicParam dynamicParam) {
+      this(value, dynamicParam, POS);
+    }
+
+    private Parameter(Object value, RexDynamicParam dynamicParam,
+        SqlParserPos pos) {
+      super(-1, pos);
+      assert (value == null) != (dynamicParam == null);
+      this.value = value;
+      this.dynamicParam = dynamicParam;
+    }
+
+    @Override public SqlNode clone(SqlParserPos pos) {
+      return new Parameter(value, dynamicParam, pos);
+    }
+
+    @Override public void unparse(SqlWriter writer, int leftPrec,
+        int rightPrec) {
+      super.unparse(writer, leftPrec, rightPrec);
+      parameters.add(this);
+    }
+  }
+
   /** Clauses in a SQL query. Ordered by evaluation order.
    * SELECT is set only when there is a NON-TRIVIAL SELECT clause. */
   enum Clause {
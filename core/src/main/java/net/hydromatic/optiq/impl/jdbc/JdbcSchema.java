@@ -21,19 +21,26 @@
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.Table;
+import net.hydromatic.optiq.runtime.ResultSetEnumerable;
 
+import org.eigenbase.rel.RelCollation;
 import org.eigenbase.reltype.*;
 import org.eigenbase.sql.SqlDialect;
 import org.eigenbase.sql.type.SqlTypeFactoryImpl;
 import org.eigenbase.sql.type.SqlTypeName;
 import org.eigenbase.util.Util;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
 
 import org.apache.commons.dbcp.BasicDataSource;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.sql.DataSource;
 
 /**
@@ -42,14 +49,56 @@
  * <p>The tables in the JDBC data source appear to be tables in this schema;
  * queries against this schema are executed against those tables, pushing down
  * as much as possible of the query logic to SQL.</p>
+ *
+ * <p>The schema caches the metadata that it reads from the data source: the
+ * list of tables, the columns of each table, primary keys, and statistics
+ * (row counts and unique keys). An entry that
+ * is older than the time-to-live ({@link #metadataTtl}) is refreshed in a
+ * background thread the next time it is used, and in the meantime the old
+ * value is used; an entry older than twice the time-to-live is re-read
+ * before it is used. Call {@link #invalidate()} to discard all cached
+ * metadata, for example after changing tables in the database.</p>
  */
 public class JdbcSchema implements Schema {
+  /** Maximum number of prepared statements that a data source created by
+   * {@link #dataSource} keeps open on each connection. */
+  public static final int MAX_OPEN_PREPARED_STATEMENTS = 100;
+
+  /** Default time-to-live of cached metadata, in seconds. */
+  public static final int DEFAULT_METADATA_TTL = 60;
+
+  /** Key of the sole entry in {@link #tableMapCache}. */
+  private static final String TABLES = "TABLES";
+
+  /** Executes background refreshes of cached metadata. */
+  private static final ExecutorService METADATA_EXECUTOR =
+      Executors.newFixedThreadPool(2,
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("optiq-jdbc-metadata-%d")
+              .build());
+
   final DataSource dataSource;
   final String catalog;
   final String schema;
   public final SqlDialect dialect;
   final JdbcConvention convention;
-  private ImmutableMap<String, JdbcTable> tableMap;
+  final ResultSetEnumerable.Options options;
+
+  /** Number of seconds for which metadata is cached; 0 means do not
+   * cache. */
+  public final int metadataTtl;
+
+  private final LoadingCache<String, ImmutableMap<String, JdbcTable>>
+  tableMapCache;
+  private final LoadingCache<List<String>, RelProtoDataType> rowTypeCache;
+  private final LoadingCache<List<String>, ImmutableList<String>>
+  primaryKeyCache;
+  private final LoadingCache<List<String>, Statistic> statisticCache;
+
+  /** Time at which the list of tables was last reloaded by the cache, or
+   * the cache was invalidated. */
+  private volatile long tableMapTimestamp = Long.MIN_VALUE;
 
   /**
    * Creates a JDBC schema.
@@ -62,14 +111,99 @@ public class JdbcSchema implements Schema {
    */
   public JdbcSchema(DataSource dataSource, SqlDialect dialect,
       JdbcConvention convention, String catalog, String schema) {
+    this(dataSource, dialect, convention, catalog, schema,
+        ResultSetEnumerable.Options.DEFAULT);
+  }
+
+  /**
+   * Creates a JDBC schema with options for executing queries.
+   *
+   * @param dataSource Data source
+   * @param dialect SQL dialect
+   * @param convention Calling convention
+   * @param catalog Catalog name, or null
+   * @param schema Schema name pattern
+   * @param options Fetch size, query timeout and other options for queries
+   *                executed against the data source
+   */
+  public JdbcSchema(DataSource dataSource, SqlDialect dialect,
+      JdbcConvention convention, String catalog, String schema,
+      ResultSetEnumerable.Options options) {
+    this(dataSource, dialect, convention, catalog, schema, options,
+        DEFAULT_METADATA_TTL);
+  }
+
+  /**
+   * Creates a JDBC schema with options for executing queries and caching
+   * metadata.
+   *
+   * @param dataSource Data source
+   * @param dialect SQL dialect
+   * @param convention Calling convention
+   * @param catalog Catalog name, or null
+   * @param schema Schema name pattern
+   * @param options Fetch size, query timeout and other options for queries
+   *                executed against the data source
+   * @param metadataTtl Number of seconds to cache metadata; 0 means do not
+   *                    cache
+   */
+  public JdbcSchema(DataSource dataSource, SqlDialect dialect,
+      JdbcConvention convention, String catalog, String schema,
+      ResultSetEnumerable.Options options, int metadataTtl) {
     super();
     this.dataSource = dataSource;
     this.dialect = dialect;
     this.convention = convention;
     this.catalog = catalog;
     this.schema = schema;
+    this.options = options;
+    this.metadataTtl = metadataTtl;
     assert dialect != null;
     assert dataSource != null;
+    assert options != null;
+    assert metadataTtl >= 0;
+    this.tableMapCache =
+        cacheBuilder().build(
+            new AsyncLoader<String, ImmutableMap<String, JdbcTable>>() {
+              public ImmutableMap<String, JdbcTable> load(String key) {
+                final ImmutableMap<String, JdbcTable> tableMap =
+                    computeTables();
+                tableMapTimestamp = System.currentTimeMillis();
+                return tableMap;
+              }
+            });
+    this.rowTypeCache =
+        cacheBuilder().build(
+            new AsyncLoader<List<String>, RelProtoDataType>() {
+              public RelProtoDataType load(List<String> key)
+                  throws SQLException {
+                return computeRelDataType(key.get(0), key.get(1), key.get(2));
+              }
+            });
+    this.primaryKeyCache =
+        cacheBuilder().build(
+            new AsyncLoader<List<String>, ImmutableList<String>>() {
+              public ImmutableList<String> load(List<String> key)
+                  throws SQLException {
+                return computePrimaryKeys(key.get(0), key.get(1), key.get(2));
+              }
+            });
+    this.statisticCache =
+        cacheBuilder().build(
+            new AsyncLoader<List<String>, Statistic>() {
+              public Statistic load(List<String> key) throws SQLException {
+                return computeStatistic(key.get(0), key.get(1), key.get(2));
+              }
+            });
+  }
+
+  private CacheBuilder<Object, Object> cacheBuilder() {
+    final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+    if (metadataTtl == 0) {
+      return builder.maximumSize(0);
+    }
+    return builder.refreshAfterWrite(metadataTtl, TimeUnit.SECONDS)
+        .expireAfterWrite(2L * metadataTtl, TimeUnit.SECONDS);
   }
 
   public static JdbcSchema create(
@@ -78,12 +212,36 @@ public static JdbcSchema create(
       DataSource dataSource,
       String catalog,
       String schema) {
+    return create(parentSchema, name, dataSource, catalog, schema,
+        ResultSetEnumerable.Options.DEFAULT);
+  }
+
+  public static JdbcSchema create(
+      SchemaPlus parentSchema,
+      String name,
+      DataSource dataSource,
+      String catalog,
+      String schema,
+      ResultSetEnumerable.Options options) {
+    return create(parentSchema, name, dataSource, catalog, schema, options,
+        DEFAULT_METADATA_TTL);
+  }
+
+  public static JdbcSchema create(
+      SchemaPlus parentSchema,
+      String name,
+      DataSource dataSource,
+      String catalog,
+      String schema,
+      ResultSetEnumerable.Options options,
+      int metadataTtl) {
     final Expression expression =
         Schemas.subSchemaExpression(parentSchema, name, JdbcSchema.class);
     final SqlDialect dialect = createDialect(dataSource);
     final JdbcConvention convention =
         JdbcConvention.of(dialect, expression, name);
-    return new JdbcSchema(dataSource, dialect, convention, catalog, schema);
+    return new JdbcSchema(dataSource, dialect, convention, catalog, schema,
+        options, metadataTtl);
   }
 
   /**
@@ -116,8 +274,12 @@ public static JdbcSchema create(
     }
     String jdbcCatalog = (String) operand.get("jdbcCatalog");
     String jdbcSchema = (String) operand.get("jdbcSchema");
+    final Object metadataTtl = operand.get("metadataTtl");
     return JdbcSchema.create(parentSchema, name, dataSource, jdbcCatalog,
-        jdbcSchema);
+        jdbcSchema, ResultSetEnumerable.Options.of(operand),
+        metadataTtl == null
+            ? DEFAULT_METADATA_TTL
+            : Integer.parseInt(metadataTtl.toString()));
   }
 
   /** Returns a suitable SQL dialect for the given data source. */
@@ -125,7 +287,11 @@ public static SqlDialect createDialect(DataSource dataSource) {
     return JdbcUtils.DialectPool.INSTANCE.get(dataSource);
   }
 
-  /** Creates a JDBC data source with the given specification. */
+  /** Creates a JDBC data source with the given specification.
+   *
+   * <p>The data source pools connections and, within each connection,
+   * prepared statements, so that a query that is executed repeatedly is
+   * prepared only once per connection. */
   public static DataSource dataSource(String url, String driverClassName,
       String username, String password) {
     if (url.startsWith("jdbc:hsqldb:")) {
@@ -137,6 +303,8 @@ public static DataSource dataSource(String url, String driverClassName,
     dataSource.setUsername(username);
     dataSource.setPassword(password);
     dataSource.setDriverClassName(driverClassName);
+    dataSource.setPoolPreparedStatements(true);
+    dataSource.setMaxOpenPreparedStatements(MAX_OPEN_PREPARED_STATEMENTS);
     return dataSource;
   }
 
@@ -145,7 +313,23 @@ public boolean isMutable() {
   }
 
   public boolean contentsHaveChangedSince(long lastCheck, long now) {
-    return false;
+    // Reading the list of tables re-reads it if it has expired, and starts a
+    // background refresh if it is stale. The list has changed if it has
+    // been reloaded, or the cache invalidated, since the last check.
+    getTableMap();
+    return tableMapTimestamp >= lastCheck;
+  }
+
+  /** Discards all cached metadata. The list of tables, and the definition
+   * of each table, will be read from the data source next time they are
+   * needed; until then, {@link #contentsHaveChangedSince} reports that the
+   * schema has changed. */
+  public void invalidate() {
+    tableMapCache.invalidateAll();
+    rowTypeCache.invalidateAll();
+    primaryKeyCache.invalidateAll();
+    statisticCache.invalidateAll();
+    tableMapTimestamp = System.currentTimeMillis();
   }
 
   // Used by generated code.
@@ -153,6 +337,11 @@ public DataSource getDataSource() {
     return dataSource;
   }
 
+  // Used by generated code.
+  public ResultSetEnumerable.Options getOptions() {
+    return options;
+  }
+
   public Expression getExpression(SchemaPlus parentSchema, String name) {
     return Schemas.subSchemaExpression(parentSchema, name, JdbcSchema.class);
   }
@@ -210,19 +399,61 @@ private ImmutableMap<String, JdbcTable> computeTables() {
   }
 
   public Table getTable(String name) {
-    return getTableMap(false).get(name);
+    return getTableMap().get(name);
   }
 
-  private synchronized ImmutableMap<String, JdbcTable> getTableMap(
-      boolean force) {
-    if (force || tableMap == null) {
-      tableMap = computeTables();
-    }
-    return tableMap;
+  private ImmutableMap<String, JdbcTable> getTableMap() {
+    return tableMapCache.getUnchecked(TABLES);
   }
 
+  /** Returns the row type of a table, from the cache if possible. */
   RelProtoDataType getRelDataType(String catalogName, String schemaName,
       String tableName) throws SQLException {
+    return get(rowTypeCache, Arrays.asList(catalogName, schemaName, tableName));
+  }
+
+  /** Returns the names of the columns in the primary key of a table, in
+   * order, or an empty list if the table has no primary key. Uses the cache
+   * if possible. */
+  ImmutableList<String> getPrimaryKeys(String catalogName, String schemaName,
+      String tableName) throws SQLException {
+    return get(primaryKeyCache,
+        Arrays.asList(catalogName, schemaName, tableName));
+  }
+
+  /** Returns statistics about a table, from the cache if possible. */
+  Statistic getStatistic(String catalogName, String schemaName,
+      String tableName) throws SQLException {
+    return get(statisticCache,
+        Arrays.asList(catalogName, schemaName, tableName));
+  }
+
+  private static <K, V> V get(LoadingCache<K, V> cache, K key)
+      throws SQLException {
+    try {
+      return cache.get(key);
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw unwrap(e.getCause());
+    }
+  }
+
+  private static SQLException unwrap(Throwable e) throws SQLException {
+    if (e instanceof SQLException) {
+      return (SQLException) e;
+    }
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    throw new RuntimeException(e);
+  }
+
+  private RelProtoDataType computeRelDataType(String catalogName,
+      String schemaName, String tableName) throws SQLException {
     Connection connection = null;
     try {
       connection = dataSource.getConnection();
@@ -258,6 +489,127 @@ RelProtoDataType getRelDataType(DatabaseMetaData metaData, String catalogName,
     return RelDataTypeImpl.proto(fieldInfo.build());
   }
 
+  private ImmutableList<String> computePrimaryKeys(String catalogName,
+      String schemaName, String tableName) throws SQLException {
+    Connection connection = null;
+    ResultSet resultSet = null;
+    try {
+      connection = dataSource.getConnection();
+      resultSet =
+          connection.getMetaData().getPrimaryKeys(catalogName, schemaName,
+              tableName);
+      final SortedMap<Short, String> columns = new TreeMap<Short, String>();
+      while (resultSet.next()) {
+        final String columnName = resultSet.getString(4);
+        final short keySeq = resultSet.getShort(5);
+        columns.put(keySeq, columnName);
+      }
+      return ImmutableList.copyOf(columns.values());
+    } finally {
+      close(connection, null, resultSet);
+    }
+  }
+
+  /** Reads statistics about a table. Unique keys are the primary key and the
+   * unique indexes. The row count is the cardinality that the database
+   * reports for the table, or failing that, the largest cardinality of a
+   * unique index; the database may estimate either. */
+  private Statistic computeStatistic(String catalogName, String schemaName,
+      String tableName) throws SQLException {
+    final RelDataType rowType =
+        getRelDataType(catalogName, schemaName, tableName)
+            .apply(new SqlTypeFactoryImpl());
+    final List<BitSet> keys = new ArrayList<BitSet>();
+    addKey(keys, rowType,
+        getPrimaryKeys(catalogName, schemaName, tableName));
+    long rowCount = -1;
+    long indexCardinality = -1;
+    Connection connection = null;
+    ResultSet resultSet = null;
+    try {
+      connection = dataSource.getConnection();
+      resultSet =
+          connection.getMetaData().getIndexInfo(catalogName, schemaName,
+              tableName, true, true);
+      final Map<String, SortedMap<Short, String>> indexes =
+          new LinkedHashMap<String, SortedMap<Short, String>>();
+      final Map<String, Long> indexCardinalities =
+          new HashMap<String, Long>();
+      while (resultSet.next()) {
+        final boolean nonUnique = resultSet.getBoolean(4);
+        final String indexName = resultSet.getString(6);
+        final short type = resultSet.getShort(7);
+        final short ordinalPosition = resultSet.getShort(8);
+        final String columnName = resultSet.getString(9);
+        final long cardinality = resultSet.getLong(11);
+        if (type == DatabaseMetaData.tableIndexStatistic) {
+          rowCount = Math.max(rowCount, cardinality);
+          continue;
+        }
+        if (nonUnique || indexName == null || columnName == null) {
+          continue;
+        }
+        final Long previous = indexCardinalities.get(indexName);
+        indexCardinalities.put(indexName,
+            previous == null ? cardinality : Math.max(previous, cardinality));
+        SortedMap<Short, String> columns = indexes.get(indexName);
+        if (columns == null) {
+          columns = new TreeMap<Short, String>();
+          indexes.put(indexName, columns);
+        }
+        columns.put(ordinalPosition, columnName);
+      }
+      for (Map.Entry<String, SortedMap<Short, String>> entry
+          : indexes.entrySet()) {
+        // A unique index allows several rows with null in its columns, so
+        // an index is a key, and tells us how many rows there are, only if
+        // its columns are all NOT NULL.
+        if (addKey(keys, rowType, entry.getValue().values())) {
+          indexCardinality = Math.max(indexCardinality,
+              indexCardinalities.get(entry.getKey()));
+        }
+      }
+    } catch (SQLException e) {
+      // Some databases cannot provide index information for all kinds of
+      // table (for example, views). Make do with what we have.
+    } finally {
+      close(connection, null, resultSet);
+    }
+    if (rowCount <= 0) {
+      // A count of 0 more often means "not known" than "empty".
+      rowCount = indexCardinality;
+    }
+    return rowCount > 0
+        ? Statistics.of(rowCount, keys, ImmutableList.<RelCollation>of())
+        : keys.isEmpty()
+        ? Statistics.UNKNOWN
+        : Statistics.of(keys);
+  }
+
+  /** Adds a key to a list of keys, if it is not empty and all of its columns
+   * are NOT NULL fields of the table. Returns whether the columns form a
+   * key. */
+  private static boolean addKey(List<BitSet> keys, RelDataType rowType,
+      Collection<String> columnNames) {
+    if (columnNames.isEmpty()) {
+      return false;
+    }
+    final List<String> fieldNames = rowType.getFieldNames();
+    final BitSet key = new BitSet();
+    for (String columnName : columnNames) {
+      final int i = fieldNames.indexOf(columnName);
+      if (i < 0
+          || rowType.getFieldList().get(i).getType().isNullable()) {
+        return false;
+      }
+      key.set(i);
+    }
+    if (!keys.contains(key)) {
+      keys.add(key);
+    }
+    return true;
+  }
+
   private RelDataType sqlType(RelDataTypeFactory typeFactory, int dataType,
       int precision, int scale, String typeString) {
     SqlTypeName sqlTypeName = SqlTypeName.getNameForJdbcType(dataType);
@@ -323,9 +675,9 @@ private RelDataType parseTypeString(RelDataTypeFactory typeFactory,
   }
 
   public Set<String> getTableNames() {
-    // This method is called during a cache refresh. We can take it as a signal
-    // that we need to re-build our own cache.
-    return getTableMap(true).keySet();
+    // The list of tables is re-read only when it expires or the cache is
+    // invalidated; see invalidate().
+    return getTableMap().keySet();
   }
 
   public Schema getSubSchema(String name) {
@@ -362,6 +714,27 @@ private static void close(
     }
   }
 
+  /** Cache loader that reloads values in a background thread, so that the
+   * old value can be used until the new value is ready. If the reload fails,
+   * the old value remains.
+   *
+   * @param <K> Key type
+   * @param <V> Value type
+   */
+  private abstract static class AsyncLoader<K, V> extends CacheLoader<K, V> {
+    @Override public ListenableFuture<V> reload(final K key, V oldValue) {
+      final ListenableFutureTask<V> task =
+          ListenableFutureTask.create(
+              new Callable<V>() {
+                public V call() throws Exception {
+                  return load(key);
+                }
+              });
+      METADATA_EXECUTOR.execute(task);
+      return task;
+    }
+  }
+
   /** Schema factory that creates a
    * {@link net.hydromatic.optiq.impl.jdbc.JdbcSchema}.
    * This allows you to create a jdbc schema inside a model.json file.
@@ -379,7 +752,10 @@ private static void close(
    *         jdbcDriver: 'com.mysql.jdbc.Driver',
    *         jdbcUrl: 'jdbc:mysql://localhost/foodmart',
    *         jdbcUser: 'foodmart',
-   *         jdbcPassword: 'foodmart'
+   *         jdbcPassword: 'foodmart',
+   *         fetchSize: 1000,
+   *         streaming: true,
+   *         metadataTtl: 300
    *       }
    *     }
    *   ]
@@ -54,7 +54,6 @@
  * executed efficiently on the JDBC server.</p>
  */
 class JdbcTable extends AbstractQueryableTable implements TranslatableTable {
-  private RelProtoDataType protoRowType;
   private final JdbcSchema jdbcSchema;
   private final String jdbcCatalogName;
   private final String jdbcSchemaName;
@@ -79,26 +78,38 @@ public String toString() {
     return jdbcTableType;
   }
 
+  @Override public Statistic getStatistic() {
+    try {
+      return jdbcSchema.getStatistic(
+          jdbcCatalogName,
+          jdbcSchemaName,
+          jdbcTableName);
+    } catch (SQLException e) {
+      // Statistics are advisory. Better to plan without them than to fail.
+      return Statistics.UNKNOWN;
+    }
+  }
+
   public RelDataType getRowType(RelDataTypeFactory typeFactory) {
-    if (protoRowType == null) {
-      try {
-        protoRowType =
-            jdbcSchema.getRelDataType(
-                jdbcCatalogName,
-                jdbcSchemaName,
-                jdbcTableName);
-      } catch (SQLException e) {
-        throw new RuntimeException(
-            "Exception while reading definition of table '" + jdbcTableName
-            + "'", e);
-      }
+    // The schema caches the row type, and refreshes it periodically.
+    final RelProtoDataType protoRowType;
+    try {
+      protoRowType =
+          jdbcSchema.getRelDataType(
+              jdbcCatalogName,
+              jdbcSchemaName,
+              jdbcTableName);
+    } catch (SQLException e) {
+      throw new RuntimeException(
+          "Exception while reading definition of table '" + jdbcTableName
+          + "'", e);
     }
     return protoRowType.apply(typeFactory);
   }
 
   private List<Pair<Primitive, Integer>> fieldClasses(
       final JavaTypeFactory typeFactory) {
-    final RelDataType rowType = protoRowType.apply(typeFactory);
+    final RelDataType rowType = getRowType(typeFactory);
     return Functions.adapt(
         rowType.getFieldList(),
         new Function1<RelDataTypeField, Pair<Primitive, Integer>>() {
@@ -36,6 +36,7 @@
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -69,7 +70,11 @@ public RelOptCost computeSelfCost(RelOptPlanner planner) {
 
   public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
     // Generate:
-    //   ResultSetEnumerable.of(schema.getDataSource(), "select ...")
+    //   ResultSetEnumerable.of(schema.getDataSource(), "select ...",
+    //       rowBuilderFactory, schema.getOptions(), new Object[] {...})
+    //
+    // followed by ".prefetch(root)" if the query is to start as soon as the
+    // statement is executed.
     final BlockBuilder builder0 = new BlockBuilder(false);
     final JdbcRel child = (JdbcRel) getChild();
     final PhysType physType =
@@ -78,7 +83,12 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
             pref.prefer(JavaRowFormat.CUSTOM));
     final JdbcConvention jdbcConvention =
         (JdbcConvention) child.getConvention();
-    String sql = generateSql(jdbcConvention.dialect);
+    final JdbcImplementor jdbcImplementor =
+        new JdbcImplementor(jdbcConvention.dialect,
+            (JavaTypeFactory) getCluster().getTypeFactory(), true);
+    final JdbcImplementor.Result result =
+        jdbcImplementor.visitChild(0, getChild());
+    final String sql = jdbcImplementor.toSql(result.asQuery());
     if (OptiqPrepareImpl.DEBUG) {
       System.out.println("[" + sql + "]");
     }
@@ -140,22 +150,53 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
                                                 RuntimeException.class,
                                                 e_)))))))),
                 resultSet_));
+    final Expression schema_ =
+        builder0.append("schema",
+            Schemas.unwrap(jdbcConvention.expression, JdbcSchema.class));
+    final List<Expression> parameters_ = new ArrayList<Expression>();
+    for (JdbcImplementor.Parameter parameter : jdbcImplementor.parameters()) {
+      parameters_.add(parameterValue(implementor, parameter));
+    }
+    Expression enumerable_ =
+        Expressions.call(
+            BuiltinMethod.RESULT_SET_ENUMERABLE_OF_PARAMETERS.method,
+            Expressions.call(schema_,
+                BuiltinMethod.JDBC_SCHEMA_DATA_SOURCE.method),
+            sql_,
+            rowBuilderFactory_,
+            Expressions.call(schema_,
+                BuiltinMethod.JDBC_SCHEMA_OPTIONS.method),
+            Expressions.newArrayInit(Object.class, parameters_));
+    if (implementor.reserveParallelQuery()) {
+      enumerable_ =
+          Expressions.call(enumerable_,
+              BuiltinMethod.RESULT_SET_ENUMERABLE_PREFETCH.method,
+              implementor.getRootExpression());
+    }
     final Expression enumerable =
-        builder0.append(
-            "enumerable",
-            Expressions.call(
-                BuiltinMethod.RESULT_SET_ENUMERABLE_OF.method,
-                Expressions.call(
-                    Schemas.unwrap(jdbcConvention.expression,
-                        JdbcSchema.class),
-                    BuiltinMethod.JDBC_SCHEMA_DATA_SOURCE.method),
-                sql_,
-                rowBuilderFactory_));
+        builder0.append("enumerable", enumerable_);
     builder0.add(
         Expressions.return_(null, enumerable));
     return implementor.result(physType, builder0.toBlock());
   }
 
+  /** Generates an expression for the value of a parameter: a constant, or
+   * a dynamic parameter read from the data context. */
+  private Expression parameterValue(EnumerableRelImplementor implementor,
+      JdbcImplementor.Parameter parameter) {
+    if (parameter.dynamicParam != null) {
+      return Expressions.call(
+          implementor.getRootExpression(),
+          "get",
+          Expressions.constant("?" + parameter.dynamicParam.getIndex()));
+    }
+    if (parameter.value instanceof BigDecimal) {
+      return Expressions.new_(BigDecimal.class,
+          Expressions.constant(parameter.value.toString()));
+    }
+    return Expressions.constant(parameter.value);
+  }
+
   private UnaryExpression getTimeZoneExpression(
       EnumerableRelImplementor implementor) {
     return Expressions.convert_(
@@ -270,15 +311,6 @@ private String jdbcGetMethod(Primitive primitive) {
         : "get" + SqlFunctions.initcap(primitive.primitiveName);
   }
 
-  private String generateSql(SqlDialect dialect) {
-    final JdbcImplementor jdbcImplementor =
-        new JdbcImplementor(dialect,
-            (JavaTypeFactory) getCluster().getTypeFactory());
-    final JdbcImplementor.Result result =
-        jdbcImplementor.visitChild(0, getChild());
-    return result.asQuery().toSqlString(dialect).getSql();
-  }
-
   /** Whether this JDBC driver needs you to pass a Calendar object to methods
    * such as {@link ResultSet#getTimestamp(int, java.util.Calendar)}. */
   private enum CalendarPolicy {
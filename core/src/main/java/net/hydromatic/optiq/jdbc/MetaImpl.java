@@ -607,7 +607,8 @@ public Cursor createCursor(AvaticaResultSet resultSet_) {
     final DataContext dataContext =
         connection.createDataContext(
             OptiqConnectionImpl.TROJAN.getParameterValues(
-                resultSet.getStatement()));
+                resultSet.getStatement()),
+            resultSet.resources);
     OptiqPrepare.PrepareResult prepareResult = resultSet.getPrepareResult();
     return prepareResult.createCursor(dataContext);
   }
@@ -627,6 +628,13 @@ public static DataContext createDataContext(OptiqConnection connection) {
         .createDataContext(ImmutableList.of());
   }
 
+  /** A trojan-horse method, subject to change without notice. */
+  public static DataContext createDataContext(OptiqConnection connection,
+      List<Object> parameterValues) {
+    return ((OptiqConnectionImpl) connection)
+        .createDataContext(parameterValues);
+  }
+
   /** A trojan-horse method, subject to change without notice. */
   @VisibleForTesting
   public static OptiqConnection connect(OptiqRootSchema schema,
@@ -42,6 +42,7 @@
 
 import com.google.common.collect.*;
 
+import java.io.Closeable;
 import java.io.Serializable;
 import java.lang.reflect.*;
 import java.sql.*;
@@ -200,10 +201,21 @@ public <T> Enumerator<T> executeQuery(Queryable<T> queryable) {
   }
 
   public DataContext createDataContext(List<Object> parameterValues) {
+    return createDataContext(parameterValues, null);
+  }
+
+  /** Creates a data context for executing a statement.
+   *
+   * @param parameterValues Values of the statement's parameters
+   * @param resources Collection to which to add resources that are to be
+   *                  closed when the statement is closed, or null
+   */
+  public DataContext createDataContext(List<Object> parameterValues,
+      Collection<Closeable> resources) {
     if (config().spark()) {
       return new SlimDataContext();
     }
-    return new DataContextImpl(this, parameterValues);
+    return new DataContextImpl(this, parameterValues, resources);
   }
 
   // do not make public
@@ -265,7 +277,7 @@ static class DataContextImpl implements DataContext {
     private final JavaTypeFactory typeFactory;
 
     DataContextImpl(OptiqConnectionImpl connection,
-        List<Object> parameterValues) {
+        List<Object> parameterValues, Collection<Closeable> resources) {
       this.queryProvider = connection;
       this.typeFactory = connection.getTypeFactory();
       this.rootSchema = connection.rootSchema;
@@ -290,6 +302,9 @@ static class DataContextImpl implements DataContext {
         }
         builder.put("?" + value.i, e);
       }
+      if (resources != null) {
+        builder.put(Variable.STATEMENT_RESOURCES.camelName, resources);
+      }
       map = builder.build();
     }
 
@@ -436,6 +451,30 @@ public boolean caseSensitive() {
     public boolean spark() {
       return OptiqConnectionProperty.SPARK.wrap(properties).getBoolean();
     }
+
+    public boolean planCache() {
+      return OptiqConnectionProperty.PLAN_CACHE.wrap(properties).getBoolean();
+    }
+
+    public int joinSpillThreshold() {
+      return OptiqConnectionProperty.JOIN_SPILL_THRESHOLD.wrap(properties)
+          .getInt();
+    }
+
+    public int sortSpillThreshold() {
+      return OptiqConnectionProperty.SORT_SPILL_THRESHOLD.wrap(properties)
+          .getInt();
+    }
+
+    public int aggregateSpillThreshold() {
+      return OptiqConnectionProperty.AGGREGATE_SPILL_THRESHOLD.wrap(properties)
+          .getInt();
+    }
+
+    public int parallelJdbcQueries() {
+      return OptiqConnectionProperty.PARALLEL_JDBC_QUERIES.wrap(properties)
+          .getInt();
+    }
   }
 }
 
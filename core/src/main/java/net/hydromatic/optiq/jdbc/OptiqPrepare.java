@@ -254,6 +254,10 @@ public String getSql() {
       return sql;
     }
 
+    public Bindable<T> getBindable() {
+      return bindable;
+    }
+
     private Enumerable<T> getEnumerable(DataContext dataContext) {
       Enumerable<T> enumerable = bindable.bind(dataContext);
       if (maxRowCount >= 0) {
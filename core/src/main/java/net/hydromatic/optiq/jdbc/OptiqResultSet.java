@@ -26,6 +26,8 @@
 
 import com.google.common.collect.ImmutableList;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
 
@@ -34,6 +36,12 @@
  * for the Optiq engine.
  */
 public class OptiqResultSet extends AvaticaResultSet {
+  /** Resources, such as queries started in the background, that are closed
+   * when this result set is closed or its statement is cancelled. See
+   * {@link net.hydromatic.optiq.DataContext.Variable#STATEMENT_RESOURCES}. */
+  final Collection<Closeable> resources =
+      Collections.synchronizedList(new ArrayList<Closeable>());
+
   OptiqResultSet(
       AvaticaStatement statement,
       OptiqPrepare.PrepareResult prepareResult,
@@ -60,6 +68,32 @@ public void toBeCompleted() {
     return this;
   }
 
+  @Override public void close() {
+    super.close();
+    closeResources();
+  }
+
+  /** Stops queries that the statement has started in the background.
+   * Whoever is reading their rows gets an error. */
+  @Override protected void cancel() {
+    closeResources();
+  }
+
+  private void closeResources() {
+    final List<Closeable> list;
+    synchronized (resources) {
+      list = new ArrayList<Closeable>(resources);
+      resources.clear();
+    }
+    for (Closeable resource : list) {
+      try {
+        resource.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
   @Override public ResultSet create(ColumnMetaData.AvaticaType elementType,
       Iterable iterable) {
     final OptiqResultSet resultSet =
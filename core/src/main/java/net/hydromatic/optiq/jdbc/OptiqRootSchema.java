@@ -18,15 +18,35 @@
 package net.hydromatic.optiq.jdbc;
 
 import net.hydromatic.optiq.Schema;
+import net.hydromatic.optiq.prepare.PlanCache;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Root schema.
  */
 public class OptiqRootSchema extends OptiqSchema {
+  private final AtomicInteger version = new AtomicInteger();
+
+  /** Cache of prepared statements. Used only if the connection property
+   * "planCache" is true. */
+  public final PlanCache planCache = new PlanCache();
+
   /** Creates a root schema. */
   OptiqRootSchema(Schema schema) {
     super(null, schema, "");
   }
+
+  /** Returns the version of this schema. The version increases each time a
+   * table, function or sub-schema is explicitly added to this schema or any
+   * of its descendants. */
+  public int getVersion() {
+    return version.get();
+  }
+
+  void incrementVersion() {
+    version.incrementAndGet();
+  }
 }
 
 // End OptiqRootSchema.java
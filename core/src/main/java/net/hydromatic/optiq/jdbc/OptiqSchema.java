@@ -120,6 +120,7 @@ public TableEntry add(String tableName, Table table) {
     final TableEntryImpl entry =
         new TableEntryImpl(this, tableName, table);
     tableMap.put(tableName, entry);
+    root().incrementVersion();
     return entry;
   }
 
@@ -131,6 +132,7 @@ private FunctionEntry add(String name, Function function) {
     if (function.getParameters().isEmpty()) {
       nullaryFunctionMap.put(name, entry);
     }
+    root().incrementVersion();
     return entry;
   }
 
@@ -208,6 +210,7 @@ public final OptiqSchema getSubSchema(String schemaName,
   public OptiqSchema add(String name, Schema schema) {
     final OptiqSchema optiqSchema = new OptiqSchema(this, schema, name);
     subSchemaMap.put(name, optiqSchema);
+    root().incrementVersion();
     return optiqSchema;
   }
 
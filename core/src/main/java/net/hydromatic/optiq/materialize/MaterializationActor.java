@@ -22,25 +22,74 @@
 
 import org.eigenbase.reltype.RelDataType;
 
+import com.google.common.collect.ImmutableList;
+
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Actor that manages the state of materializations in the system.
+ *
+ * <p>Materializations may be defined and looked up by several threads at
+ * once. Lookups do not lock.</p>
  */
 class MaterializationActor {
   // Not an actor yet -- TODO make members private and add request/response
   // queues
 
   final Map<MaterializationKey, Materialization> keyMap =
-      new HashMap<MaterializationKey, Materialization>();
+      new ConcurrentHashMap<MaterializationKey, Materialization>();
+
+  /** Materializations, indexed by root schema. Each list is replaced, never
+   * modified, so readers can iterate over it without locking. */
+  final ConcurrentMap<OptiqRootSchema, List<Materialization>> rootSchemaMap =
+      new ConcurrentHashMap<OptiqRootSchema, List<Materialization>>();
+
+  /** Registers a materialization. */
+  void add(Materialization materialization) {
+    keyMap.put(materialization.key, materialization);
+    final OptiqRootSchema rootSchema = materialization.rootSchema;
+    for (;;) {
+      final List<Materialization> list = rootSchemaMap.get(rootSchema);
+      if (list == null) {
+        if (rootSchemaMap.putIfAbsent(rootSchema,
+            ImmutableList.of(materialization)) == null) {
+          return;
+        }
+      } else {
+        final List<Materialization> list2 =
+            ImmutableList.<Materialization>builder()
+                .addAll(list)
+                .add(materialization)
+                .build();
+        if (rootSchemaMap.replace(rootSchema, list, list2)) {
+          return;
+        }
+      }
+    }
+  }
+
+  /** Returns the materializations within a given root schema. */
+  List<Materialization> get(OptiqSchema rootSchema) {
+    final List<Materialization> list = rootSchemaMap.get(rootSchema);
+    return list == null ? ImmutableList.<Materialization>of() : list;
+  }
+
+  /** Removes all materializations. */
+  void clear() {
+    keyMap.clear();
+    rootSchemaMap.clear();
+  }
 
   /** A query materialized in a table, so that reading from the table gives the
    * same results as executing the query. */
   static class Materialization {
     final MaterializationKey key;
     final OptiqRootSchema rootSchema;
-    OptiqSchema.TableEntry materializedTable;
+    volatile OptiqSchema.TableEntry materializedTable;
     final String sql;
+    final List<String> viewSchemaPath;
     final RelDataType rowType;
 
     /** Creates a materialization.
@@ -52,17 +101,21 @@ static class Materialization {
      *                          May be null when the materialization is created;
      *                          materialization service will change the value as
      * @param sql  Query that is materialized
+     * @param viewSchemaPath Schema path in which the query is validated, or
+     *                       null
      * @param rowType Row type
      */
     Materialization(MaterializationKey key,
         OptiqRootSchema rootSchema,
         OptiqSchema.TableEntry materializedTable,
         String sql,
+        List<String> viewSchemaPath,
         RelDataType rowType) {
       this.key = key;
       this.rootSchema = rootSchema;
       this.materializedTable = materializedTable; // may be null
       this.sql = sql;
+      this.viewSchemaPath = viewSchemaPath;
       this.rowType = rowType;
     }
   }
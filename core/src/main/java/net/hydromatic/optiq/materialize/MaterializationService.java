@@ -25,15 +25,19 @@
 import net.hydromatic.linq4j.function.Functions;
 
 import net.hydromatic.optiq.*;
+import net.hydromatic.optiq.impl.clone.ArrayTable;
 import net.hydromatic.optiq.impl.clone.CloneSchema;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.jdbc.*;
 import net.hydromatic.optiq.prepare.Prepare;
 
 import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.reltype.RelDataTypeField;
 import org.eigenbase.reltype.RelDataTypeImpl;
 import org.eigenbase.util.Pair;
 
+import com.google.common.collect.ImmutableList;
+
 import java.lang.reflect.Type;
 import java.util.*;
 
@@ -79,37 +83,9 @@ public MaterializationKey defineMaterialization(final OptiqSchema schema,
         materializedTable =
             CloneSchema.createCloneTable(typeFactory,
                 RelDataTypeImpl.proto(prepareResult.rowType),
-                Functions.adapt(prepareResult.structType.columns,
-                    new Function1<ColumnMetaData, ColumnMetaData.Rep>() {
-                      public ColumnMetaData.Rep apply(ColumnMetaData column) {
-                        return column.type.representation;
-                      }
-                    }),
-                new AbstractQueryable<Object>() {
-                  public Enumerator<Object> enumerator() {
-                    final DataContext dataContext =
-                        Schemas.createDataContext(connection);
-                    return prepareResult.enumerator(dataContext);
-                  }
-
-                  public Type getElementType() {
-                    return Object.class;
-                  }
-
-                  public Expression getExpression() {
-                    throw new UnsupportedOperationException();
-                  }
-
-                  public QueryProvider getProvider() {
-                    return connection;
-                  }
-
-                  public Iterator<Object> iterator() {
-                    final DataContext dataContext =
-                        Schemas.createDataContext(connection);
-                    return prepareResult.iterator(dataContext);
-                  }
-                });
+                reps(prepareResult),
+                queryable(connection, prepareResult,
+                    Schemas.createDataContext(connection)));
         schema.add(tableName, materializedTable);
       }
       tableEntry = schema.add(tableName, materializedTable);
@@ -124,11 +100,108 @@ public Iterator<Object> iterator() {
     }
     final MaterializationActor.Materialization materialization =
         new MaterializationActor.Materialization(key, schema.root(),
-            tableEntry, viewSql, rowType);
-    actor.keyMap.put(materialization.key, materialization);
+            tableEntry, viewSql, viewSchemaPath, rowType);
+    actor.add(materialization);
     return key;
   }
 
+  /** Returns the physical representation of each column of a query. */
+  private static List<ColumnMetaData.Rep> reps(
+      OptiqPrepare.PrepareResult<Object> prepareResult) {
+    return Functions.adapt(prepareResult.structType.columns,
+        new Function1<ColumnMetaData, ColumnMetaData.Rep>() {
+          public ColumnMetaData.Rep apply(ColumnMetaData column) {
+            return column.type.representation;
+          }
+        });
+  }
+
+  /** Returns a queryable that executes a prepared query each time it is
+   * enumerated. */
+  private static Queryable<Object> queryable(
+      final OptiqConnection connection,
+      final OptiqPrepare.PrepareResult<Object> prepareResult,
+      final DataContext dataContext) {
+    return new AbstractQueryable<Object>() {
+      public Enumerator<Object> enumerator() {
+        return prepareResult.enumerator(dataContext);
+      }
+
+      public Type getElementType() {
+        return Object.class;
+      }
+
+      public Expression getExpression() {
+        throw new UnsupportedOperationException();
+      }
+
+      public QueryProvider getProvider() {
+        return connection;
+      }
+
+      public Iterator<Object> iterator() {
+        return prepareResult.iterator(dataContext);
+      }
+    };
+  }
+
+  /** Appends to the table of a materialization the rows of its query whose
+   * value of a given column is greater than any value already in the table.
+   *
+   * <p>The column should be one whose values increase as rows are added to
+   * the sources of the query, such as a timestamp or a sequence number. Rows
+   * already in the table are neither re-read nor re-encoded, and queries
+   * can use the table while it is being refreshed; see
+   * {@link ArrayTable#append}. If the table is sorted on a column, the new
+   * rows must keep it sorted, or the method throws.</p>
+   *
+   * @param key Materialization key
+   * @param watermarkColumn Name of column whose values increase over time
+   * @return Number of rows appended
+   */
+  public int refreshMaterialization(MaterializationKey key,
+      String watermarkColumn) {
+    final MaterializationActor.Materialization materialization =
+        actor.keyMap.get(key);
+    if (materialization == null
+        || materialization.materializedTable == null) {
+      throw new IllegalArgumentException(
+          "Materialization " + key + " has no table");
+    }
+    final Table table = materialization.materializedTable.getTable();
+    if (!(table instanceof ArrayTable)) {
+      throw new IllegalArgumentException("Materialization " + key
+          + " cannot be refreshed; its table is not an in-memory table");
+    }
+    final ArrayTable arrayTable = (ArrayTable) table;
+    final RelDataTypeField field =
+        materialization.rowType.getField(watermarkColumn, true);
+    if (field == null) {
+      throw new IllegalArgumentException("Materialization " + key
+          + " has no column '" + watermarkColumn + "'");
+    }
+    final Comparable watermark = arrayTable.max(field.getIndex());
+    final OptiqSchema schema = materialization.materializedTable.schema;
+    final OptiqConnection connection = MetaImpl.connect(schema.root(), null);
+    final String sql;
+    final List<Object> parameterValues;
+    if (watermark == null) {
+      sql = materialization.sql;
+      parameterValues = ImmutableList.of();
+    } else {
+      sql = "select * from (" + materialization.sql + ") as m where \""
+          + watermarkColumn.replace("\"", "\"\"") + "\" > ?";
+      parameterValues = ImmutableList.<Object>of(watermark);
+    }
+    final OptiqPrepare.PrepareResult<Object> prepareResult =
+        Schemas.prepare(connection, schema, materialization.viewSchemaPath,
+            sql);
+    return arrayTable.append(connection.getTypeFactory(),
+        reps(prepareResult),
+        queryable(connection, prepareResult,
+            MetaImpl.createDataContext(connection, parameterValues)));
+  }
+
   /** Checks whether a materialization is valid, and if so, returns the table
    * where the data are stored. */
   public OptiqSchema.TableEntry checkValid(MaterializationKey key) {
@@ -143,16 +216,20 @@ public OptiqSchema.TableEntry checkValid(MaterializationKey key) {
   /** Gathers a list of all materialized tables known within a given root
    * schema. (Each root schema defines a disconnected namespace, with no overlap
    * with the current schema. Especially in a test run, the contents of two
-   * root schemas may look similar.) */
+   * root schemas may look similar.)
+   *
+   * <p>Safe to call while other threads are defining materializations. Only
+   * the materializations of the given root schema are examined.</p> */
   public List<Prepare.Materialization> query(OptiqSchema rootSchema) {
     final List<Prepare.Materialization> list =
         new ArrayList<Prepare.Materialization>();
     for (MaterializationActor.Materialization materialization
-        : actor.keyMap.values()) {
-      if (materialization.rootSchema == rootSchema
-          && materialization.materializedTable != null) {
+        : actor.get(rootSchema)) {
+      final OptiqSchema.TableEntry materializedTable =
+          materialization.materializedTable;
+      if (materializedTable != null) {
         list.add(
-            new Prepare.Materialization(materialization.materializedTable,
+            new Prepare.Materialization(materializedTable,
                 materialization.sql));
       }
     }
@@ -161,7 +238,7 @@ public List<Prepare.Materialization> query(OptiqSchema rootSchema) {
 
   /** De-registers all materialized tables in the system. */
   public void clear() {
-    actor.keyMap.clear();
+    actor.clear();
   }
 
   /** Used by tests, to ensure that they see their own service. */
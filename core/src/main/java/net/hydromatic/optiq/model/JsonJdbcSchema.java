@@ -30,6 +30,29 @@ public class JsonJdbcSchema extends JsonSchema {
   public String jdbcCatalog;
   public String jdbcSchema;
 
+  /** Number of rows to fetch from the database at a time. If not specified,
+   * uses the driver's default. */
+  public Integer fetchSize;
+
+  /** Number of seconds to wait for a query to execute, or 0 for no limit.
+   * Default value is 10. */
+  public Integer queryTimeout;
+
+  /** Whether to read results as a forward-only, read-only result set outside
+   * auto-commit mode, so that drivers return rows as they arrive rather than
+   * reading the whole result into memory. Default value is {@code false}. */
+  public Boolean streaming;
+
+  /** Number of rows to read ahead in a background thread while earlier rows
+   * are being processed. Default value is 0, which means read rows only when
+   * they are needed. */
+  public Integer readAhead;
+
+  /** Number of seconds for which to cache the list of tables, column types
+   * and other metadata read from the database, or 0 to not cache. Default
+   * value is 60. */
+  public Integer metadataTtl;
+
   @Override
   public void accept(ModelHandler handler) {
     handler.visit(this);
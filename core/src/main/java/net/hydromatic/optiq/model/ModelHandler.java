@@ -22,6 +22,7 @@
 import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
 import net.hydromatic.optiq.jdbc.OptiqConnection;
 import net.hydromatic.optiq.jdbc.OptiqSchema;
+import net.hydromatic.optiq.runtime.ResultSetEnumerable;
 
 import org.eigenbase.util.Pair;
 import org.eigenbase.util.Util;
@@ -200,9 +201,17 @@ public void visit(JsonJdbcSchema jsonSchema) {
             jsonSchema.jdbcDriver,
             jsonSchema.jdbcUser,
             jsonSchema.jdbcPassword);
+    final Map<String, Object> operand = new HashMap<String, Object>();
+    operand.put("fetchSize", jsonSchema.fetchSize);
+    operand.put("queryTimeout", jsonSchema.queryTimeout);
+    operand.put("streaming", jsonSchema.streaming);
+    operand.put("readAhead", jsonSchema.readAhead);
     JdbcSchema schema =
         JdbcSchema.create(parentSchema, jsonSchema.name, dataSource,
-            jsonSchema.jdbcCatalog, jsonSchema.jdbcSchema);
+            jsonSchema.jdbcCatalog, jsonSchema.jdbcSchema,
+            ResultSetEnumerable.Options.of(operand),
+            Util.first(jsonSchema.metadataTtl,
+                JdbcSchema.DEFAULT_METADATA_TTL));
     final SchemaPlus optiqSchema = parentSchema.add(jsonSchema.name, schema);
     populateSchema(jsonSchema, optiqSchema);
   }
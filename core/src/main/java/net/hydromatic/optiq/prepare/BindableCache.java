@@ -0,0 +1,183 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.prepare;
+
+import net.hydromatic.optiq.runtime.Bindable;
+
+import com.google.common.cache.*;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.codehaus.commons.compiler.CompileException;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of compiled {@link Bindable} classes, keyed by the Java source code
+ * from which they were generated.
+ *
+ * <p>Statements that differ only in their literal values, or that are
+ * prepared on different connections, often generate identical code. The cache
+ * allows such statements to skip Janino compilation entirely.</p>
+ *
+ * <p>The cache is safe for concurrent use. It is bounded by the total length
+ * of the source strings it holds, evicting the least recently used classes
+ * first. The default instance, {@link #INSTANCE}, is shared by all
+ * connections in the JVM; its capacity is set by the system property
+ * "optiq.bindable.cache.maxWeight" (in characters of source code, default
+ * 10,000,000; 0 disables caching).</p>
+ *
+ * <p>The cache holds classes, not instances; each call to
+ * {@link #get(String, Callable)} returns a new instance.</p>
+ */
+public class BindableCache {
+  /** Default maximum weight of the cache, in characters of source code. */
+  public static final long DEFAULT_MAX_WEIGHT = 10000000L;
+
+  /** Cache shared by all connections in this JVM. */
+  public static final BindableCache INSTANCE =
+      new BindableCache(
+          Long.getLong("optiq.bindable.cache.maxWeight", DEFAULT_MAX_WEIGHT));
+
+  private final Cache<String, Class> cache;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /** Creates a BindableCache.
+   *
+   * @param maxWeight Maximum total length of source strings held in the
+   *                  cache; 0 means do not cache
+   */
+  public BindableCache(long maxWeight) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxWeight)
+        .weigher(
+            new Weigher<String, Class>() {
+              public int weigh(String key, Class value) {
+                return key.length();
+              }
+            })
+        .removalListener(
+            new RemovalListener<String, Class>() {
+              public void onRemoval(
+                  RemovalNotification<String, Class> notification) {
+                if (notification.wasEvicted()) {
+                  evictionCount.incrementAndGet();
+                }
+              }
+            })
+        .build();
+  }
+
+  /** Returns an instance of the class compiled from the given source, calling
+   * {@code compiler} to compile the source if it is not in the cache.
+   *
+   * <p>If several threads ask for the same source at the same time, only one
+   * of them compiles it; the others wait for the result.</p>
+   *
+   * @param source Java source code of the class body
+   * @param compiler Compiles the source code and returns the class
+   * @return New instance of the compiled class
+   */
+  public Bindable get(String source, final Callable<Class> compiler)
+      throws CompileException, IOException {
+    final boolean[] loaded = {false};
+    final Class clazz;
+    try {
+      clazz = cache.get(source,
+          new Callable<Class>() {
+            public Class call() throws Exception {
+              loaded[0] = true;
+              return compiler.call();
+            }
+          });
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw unwrap(e.getCause());
+    }
+    if (loaded[0]) {
+      missCount.incrementAndGet();
+    } else {
+      hitCount.incrementAndGet();
+    }
+    try {
+      return (Bindable) clazz.newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static RuntimeException unwrap(Throwable e)
+      throws CompileException, IOException {
+    if (e instanceof CompileException) {
+      throw (CompileException) e;
+    }
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    }
+    if (e instanceof RuntimeException) {
+      return (RuntimeException) e;
+    }
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    return new RuntimeException(e);
+  }
+
+  /** Returns the number of requests that found a compiled class in the
+   * cache. */
+  public long hitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of requests that had to compile a class. */
+  public long missCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of classes that have been evicted to keep the cache
+   * within its maximum weight. */
+  public long evictionCount() {
+    return evictionCount.get();
+  }
+
+  /** Returns the approximate number of classes in the cache. */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Removes all classes from the cache. Does not reset the counters. */
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  @Override public String toString() {
+    return "BindableCache(size: " + size()
+        + ", hits: " + hitCount()
+        + ", misses: " + missCount()
+        + ", evictions: " + evictionCount() + ")";
+  }
+}
+
+// End BindableCache.java
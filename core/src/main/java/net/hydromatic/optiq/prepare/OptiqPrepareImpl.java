@@ -27,6 +27,7 @@
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.config.OptiqConnectionConfig;
+import net.hydromatic.optiq.impl.clone.ArrayTablePushDownRule;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.jdbc.OptiqPrepare;
 import net.hydromatic.optiq.jdbc.OptiqSchema;
@@ -53,6 +54,7 @@
 import org.eigenbase.sql.validate.*;
 import org.eigenbase.sql2rel.SqlToRelConverter;
 import org.eigenbase.sql2rel.StandardConvertletTable;
+import org.eigenbase.util.EigenbaseException;
 import org.eigenbase.util.Util;
 
 import com.google.common.collect.*;
@@ -70,6 +72,7 @@
 import java.math.BigDecimal;
 import java.sql.DatabaseMetaData;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * Shit just got real.
@@ -101,10 +104,13 @@ public class OptiqPrepareImpl implements OptiqPrepare {
   private static final List<RelOptRule> DEFAULT_RULES =
       ImmutableList.of(
           JavaRules.ENUMERABLE_JOIN_RULE,
+          JavaRules.ENUMERABLE_MERGE_JOIN_RULE,
           JavaRules.ENUMERABLE_PROJECT_RULE,
           JavaRules.ENUMERABLE_FILTER_RULE,
           JavaRules.ENUMERABLE_AGGREGATE_RULE,
+          JavaRules.ENUMERABLE_SORTED_AGGREGATE_RULE,
           JavaRules.ENUMERABLE_SORT_RULE,
+          JavaRules.ENUMERABLE_TOP_N_RULE,
           JavaRules.ENUMERABLE_LIMIT_RULE,
           JavaRules.ENUMERABLE_COLLECT_RULE,
           JavaRules.ENUMERABLE_UNCOLLECT_RULE,
@@ -248,6 +254,24 @@ <T> PrepareResult<T> prepare_(
     if (SIMPLE_SQLS.contains(sql)) {
       return simplePrepare(context, sql);
     }
+    if (sql != null && context.config().planCache()) {
+      return prepareCached(context, sql, elementType, maxRowCount);
+    }
+    return prepare_(context, sql, null, queryable, elementType, maxRowCount);
+  }
+
+  /** Prepares a statement, trying each planner in turn.
+   *
+   * @param sqlNode Parse tree of {@code sql}, or null if the statement has
+   *                not been parsed yet or is a queryable
+   */
+  private <T> PrepareResult<T> prepare_(
+      Context context,
+      String sql,
+      SqlNode sqlNode,
+      Queryable<T> queryable,
+      Type elementType,
+      int maxRowCount) {
     final JavaTypeFactory typeFactory = context.getTypeFactory();
     OptiqCatalogReader catalogReader =
         new OptiqCatalogReader(
@@ -268,7 +292,7 @@ <T> PrepareResult<T> prepare_(
       }
       try {
         return prepare2_(
-            context, sql, queryable, elementType, maxRowCount,
+            context, sql, sqlNode, queryable, elementType, maxRowCount,
             catalogReader, planner);
       } catch (RelOptPlanner.CannotPlanException e) {
         exception = e;
@@ -277,6 +301,98 @@ <T> PrepareResult<T> prepare_(
     throw exception;
   }
 
+  /** Prepares a SQL statement using the root schema's
+   * {@link PlanCache}.
+   *
+   * <p>Literals are replaced with dynamic parameters before the statement is
+   * looked up, so statements that differ only in their literal values share a
+   * plan. If the normalized statement fails validation or cannot be
+   * planned, or if a literal's value cannot be converted to the type inferred
+   * for its parameter, the statement is prepared as written, and cached
+   * under its own text. Other errors are thrown, and nothing is cached.</p>
+   *
+   * <p>{@link ArrayTablePushDownRule} pushes into the scan of a clone table
+   * only conditions that compare a column with a literal. A parameter in
+   * place of the literal would stop the scan from using binary search on
+   * the table's sort column, or from testing the codes of a
+   * dictionary-encoded column. If the normalized statement has such a
+   * comparison, it is not shared either; the statement is prepared, and
+   * cached, with its literals. Other conditions on clone tables, once
+   * parameterized, are evaluated by a calc rather than by the scan.</p>
+   */
+  private <T> PrepareResult<T> prepareCached(
+      Context context,
+      String sql,
+      Type elementType,
+      int maxRowCount) {
+    final OptiqConnectionConfig config = context.config();
+    final PlanCache planCache = context.getRootSchema().planCache;
+    final int version = context.getRootSchema().getVersion();
+    final SqlNode sqlNode = parse_(config, sql);
+    Hook.PARSE_TREE.run(new Object[] {sql, sqlNode});
+    if (!sqlNode.isA(SqlKind.QUERY)) {
+      // DML and EXPLAIN are not cached.
+      return prepare_(context, sql, sqlNode, null, elementType, maxRowCount);
+    }
+    final PlanCache.Normalized normalized = PlanCache.normalize(sqlNode);
+    final PlanCache.Key key =
+        PlanCache.key(context, normalized.sql, true, elementType, version);
+    PlanCache.Entry entry = planCache.get(key);
+    if (entry == null) {
+      final BitSet blockedParameters = new BitSet();
+      ArrayTablePushDownRule.THREAD_BLOCKED_PARAMETERS.set(blockedParameters);
+      try {
+        entry = new PlanCache.Entry(
+            prepare_(context, sql, normalized.sqlNode, null, elementType, -1),
+            normalized.userParameterCount);
+      } catch (EigenbaseException e) {
+        // The statement is not valid after its literals have been replaced
+        // with parameters. We will prepare it with literals.
+        entry = PlanCache.Entry.NOT_PARAMETERIZABLE;
+      } catch (RelOptPlanner.CannotPlanException e) {
+        // The statement contains parameters in a place that the planner
+        // cannot handle.
+        entry = PlanCache.Entry.NOT_PARAMETERIZABLE;
+      } finally {
+        ArrayTablePushDownRule.THREAD_BLOCKED_PARAMETERS.remove();
+      }
+      if (blockedParameters.nextSetBit(normalized.userParameterCount) >= 0) {
+        // A literal, once replaced with a parameter, would prevent a binary
+        // search or a dictionary lookup on a clone table.
+        entry = PlanCache.Entry.NOT_PARAMETERIZABLE;
+      }
+      planCache.put(key, entry);
+    }
+    PrepareResult<T> prepareResult =
+        entry.bind(sql, normalized.literals, maxRowCount);
+    if (prepareResult != null) {
+      return prepareResult;
+    }
+
+    final PlanCache.Key rawKey =
+        PlanCache.key(context, sql, false, elementType, version);
+    entry = planCache.get(rawKey);
+    if (entry == null) {
+      final PrepareResult<T> rawResult =
+          prepare_(context, sql, parse_(config, sql), null, elementType, -1);
+      entry = new PlanCache.Entry(rawResult, rawResult.parameterList.size());
+      planCache.put(rawKey, entry);
+    }
+    return entry.bind(sql, ImmutableList.of(), maxRowCount);
+  }
+
+  /** Parses a SQL statement. */
+  private static SqlNode parse_(OptiqConnectionConfig config, String sql) {
+    SqlParser parser = SqlParser.create(SqlParserImpl.FACTORY, sql,
+        config.quoting(), config.unquotedCasing(), config.quotedCasing());
+    try {
+      return parser.parseStmt();
+    } catch (SqlParseException e) {
+      throw new RuntimeException(
+          "parse failed: " + e.getMessage(), e);
+    }
+  }
+
   /** Quickly prepares a simple SQL statement, circumventing the usual
    * preparation process. */
   private <T> PrepareResult<T> simplePrepare(Context context, String sql) {
@@ -305,6 +421,7 @@ public Enumerable<T> bind(DataContext dataContext) {
   <T> PrepareResult<T> prepare2_(
       Context context,
       String sql,
+      SqlNode sqlNode,
       Queryable<T> queryable,
       Type elementType,
       int maxRowCount,
@@ -332,18 +449,11 @@ <T> PrepareResult<T> prepare2_(
     if (sql != null) {
       assert queryable == null;
       final OptiqConnectionConfig config = context.config();
-      SqlParser parser = SqlParser.create(SqlParserImpl.FACTORY, sql,
-          config.quoting(), config.unquotedCasing(), config.quotedCasing());
-      SqlNode sqlNode;
-      try {
-        sqlNode = parser.parseStmt();
-      } catch (SqlParseException e) {
-        throw new RuntimeException(
-            "parse failed: " + e.getMessage(), e);
+      if (sqlNode == null) {
+        sqlNode = parse_(config, sql);
+        Hook.PARSE_TREE.run(new Object[] {sql, sqlNode});
       }
 
-      Hook.PARSE_TREE.run(new Object[] {sql, sqlNode});
-
       final OptiqSchema rootSchema = context.getRootSchema();
       final ChainedSqlOperatorTable opTab =
           new ChainedSqlOperatorTable(
@@ -651,7 +761,7 @@ protected SqlToRelConverter getSqlToRelConverter(
     @Override
     protected EnumerableRelImplementor getRelImplementor(
         RexBuilder rexBuilder) {
-      return new EnumerableRelImplementor(rexBuilder);
+      return new EnumerableRelImplementor(rexBuilder, context.config());
     }
 
     @Override
@@ -810,11 +920,22 @@ private void debugCode(PrintStream out, String code) {
       }
     }
 
-    private Bindable getBindable(ClassDeclaration expr,
-        String s) throws CompileException, IOException {
+    private Bindable getBindable(final ClassDeclaration expr,
+        final String s) throws CompileException, IOException {
       if (context.spark().enabled()) {
         return context.spark().compile(expr, s);
       }
+      return BindableCache.INSTANCE.get(s,
+          new Callable<Class>() {
+            public Class call() throws Exception {
+              return compile(expr, s);
+            }
+          });
+    }
+
+    /** Compiles the body of a class using Janino. */
+    private Class compile(ClassDeclaration expr, String s)
+        throws CompileException, IOException {
       ICompilerFactory compilerFactory;
       try {
         compilerFactory = CompilerFactoryFactory.getDefaultCompilerFactory();
@@ -831,7 +952,8 @@ private Bindable getBindable(ClassDeclaration expr,
         // Add line numbers to the generated janino class
         cbe.setDebuggingInformation(true, true, true);
       }
-      return (Bindable) cbe.createInstance(new StringReader(s));
+      cbe.cook(new StringReader(s));
+      return cbe.getClazz();
     }
   }
 
@@ -0,0 +1,402 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.prepare;
+
+import net.hydromatic.avatica.AvaticaParameter;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.QueryProvider;
+
+import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.config.OptiqConnectionConfig;
+import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.jdbc.OptiqPrepare;
+import net.hydromatic.optiq.runtime.Bindable;
+
+import org.eigenbase.sql.*;
+import org.eigenbase.sql.util.SqlBasicVisitor;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of prepared statements.
+ *
+ * <p>Before a statement is looked up, its literals are replaced with dynamic
+ * parameters (see {@link #normalize(SqlNode)}), so statements that differ
+ * only in their literal values share an entry. When the statement is
+ * executed, the literal values are supplied to the generated code as if they
+ * were the values of parameters, via the {@link DataContext} variables
+ * "?0", "?1", et cetera.</p>
+ *
+ * <p>Entries are keyed by the normalized SQL, the version of the root schema,
+ * the default schema path, the connection properties that affect
+ * preparation, and the requested element type.</p>
+ */
+public class PlanCache {
+  /** Maximum number of statements held by a cache. */
+  public static final int DEFAULT_MAX_SIZE = 1000;
+
+  private final Cache<Key, Entry> cache =
+      CacheBuilder.newBuilder().maximumSize(DEFAULT_MAX_SIZE).build();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /** Returns the entry for a given key, or null. */
+  public Entry get(Key key) {
+    final Entry entry = cache.getIfPresent(key);
+    if (entry == null) {
+      missCount.incrementAndGet();
+    } else {
+      hitCount.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /** Adds an entry to the cache. */
+  public void put(Key key, Entry entry) {
+    cache.put(key, entry);
+  }
+
+  /** Removes all entries. */
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  /** Returns the number of look-ups that found an entry. */
+  public long hitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of look-ups that did not find an entry. */
+  public long missCount() {
+    return missCount.get();
+  }
+
+  /** Creates a key.
+   *
+   * @param context Context in which the statement is being prepared
+   * @param sql SQL text; normalized, if {@code normalized} is true
+   * @param normalized Whether literals in the SQL have been replaced with
+   *                   dynamic parameters
+   * @param elementType Element type of the result
+   * @param version Version of the root schema
+   */
+  public static Key key(OptiqPrepare.Context context, String sql,
+      boolean normalized, Type elementType, int version) {
+    final OptiqConnectionConfig config = context.config();
+    final List<Object> configValues =
+        ImmutableList.<Object>of(
+            config.caseSensitive(),
+            config.quoting(),
+            config.unquotedCasing(),
+            config.quotedCasing(),
+            config.materializationsEnabled(),
+            config.spark(),
+            config.joinSpillThreshold(),
+            config.sortSpillThreshold(),
+            config.aggregateSpillThreshold(),
+            config.parallelJdbcQueries());
+    return new Key(sql, normalized, version,
+        ImmutableList.copyOf(context.getDefaultSchemaPath()), configValues,
+        elementType);
+  }
+
+  /** Replaces literals in a statement with dynamic parameters.
+   *
+   * <p>Only numeric and character literals that are an argument to a
+   * comparison whose other argument is not a literal or parameter are
+   * replaced; in such positions, the validator can deduce the type of the
+   * parameter. Literals in other positions, such as {@code ORDER BY 1}, may
+   * affect the structure of the plan and are left alone.</p>
+   *
+   * <p>The new parameters are numbered after any parameters already in the
+   * statement. The tree is modified in place.</p>
+   */
+  public static Normalized normalize(SqlNode sqlNode) {
+    final int[] userParameterCount = {0};
+    sqlNode.accept(
+        new SqlBasicVisitor<Void>() {
+          @Override public Void visit(SqlDynamicParam param) {
+            userParameterCount[0] =
+                Math.max(userParameterCount[0], param.getIndex() + 1);
+            return null;
+          }
+        });
+    final LiteralReplacer replacer =
+        new LiteralReplacer(userParameterCount[0]);
+    sqlNode.accept(replacer);
+    final String sql = replacer.signature
+        + ":" + sqlNode.toSqlString(SqlDialect.EIGENBASE).getSql();
+    return new Normalized(sqlNode, sql, userParameterCount[0],
+        ImmutableList.copyOf(replacer.literals));
+  }
+
+  /** Converts a literal value to the Java representation expected by
+   * generated code for a parameter of a given JDBC type. Returns null if the
+   * value cannot be converted without loss. */
+  static Object convert(Object value, int parameterType) {
+    try {
+      switch (parameterType) {
+      case Types.CHAR:
+      case Types.VARCHAR:
+        return value instanceof String ? value : null;
+      case Types.TINYINT:
+        return value instanceof BigDecimal
+            ? ((BigDecimal) value).byteValueExact() : null;
+      case Types.SMALLINT:
+        return value instanceof BigDecimal
+            ? ((BigDecimal) value).shortValueExact() : null;
+      case Types.INTEGER:
+        return value instanceof BigDecimal
+            ? ((BigDecimal) value).intValueExact() : null;
+      case Types.BIGINT:
+        return value instanceof BigDecimal
+            ? ((BigDecimal) value).longValueExact() : null;
+      case Types.DECIMAL:
+      case Types.NUMERIC:
+        return value instanceof BigDecimal ? value : null;
+      case Types.DOUBLE:
+        return value instanceof BigDecimal
+            ? ((BigDecimal) value).doubleValue() : null;
+      case Types.REAL:
+      case Types.FLOAT:
+        return value instanceof BigDecimal
+            ? ((BigDecimal) value).floatValue() : null;
+      default:
+        return null;
+      }
+    } catch (ArithmeticException e) {
+      // Value has a fractional part, or does not fit.
+      return null;
+    }
+  }
+
+  /** Visitor that replaces literals with dynamic parameters. */
+  private static class LiteralReplacer extends SqlBasicVisitor<Void> {
+    private int nextIndex;
+    final List<Object> literals = new ArrayList<Object>();
+    final StringBuilder signature = new StringBuilder();
+
+    LiteralReplacer(int userParameterCount) {
+      this.nextIndex = userParameterCount;
+    }
+
+    @Override public Void visit(SqlDynamicParam param) {
+      signature.append('p');
+      return null;
+    }
+
+    @Override public Void visit(SqlCall call) {
+      if (call.getKind().belongsTo(SqlKind.COMPARISON)
+          && call instanceof SqlBasicCall
+          && call.getOperandList().size() == 2) {
+        for (int i = 0; i < 2; i++) {
+          final SqlNode operand = call.operand(i);
+          final SqlNode other = call.operand(1 - i);
+          if (other instanceof SqlLiteral
+              || other instanceof SqlDynamicParam) {
+            continue;
+          }
+          if (operand instanceof SqlNumericLiteral) {
+            literals.add(((SqlLiteral) operand).bigDecimalValue());
+            signature.append('n');
+          } else if (operand instanceof SqlCharStringLiteral) {
+            literals.add(((SqlLiteral) operand).getStringValue());
+            signature.append('c');
+          } else {
+            continue;
+          }
+          call.setOperand(i,
+              new SqlDynamicParam(nextIndex++, operand.getParserPosition()));
+        }
+      }
+      return super.visit(call);
+    }
+  }
+
+  /** Result of {@link PlanCache#normalize(SqlNode)}. */
+  public static class Normalized {
+    /** Statement, with literals replaced by dynamic parameters. */
+    public final SqlNode sqlNode;
+    /** Key for the statement; the same for all statements that differ only
+     * in the values of their literals. */
+    public final String sql;
+    /** Number of parameters in the original statement. */
+    public final int userParameterCount;
+    /** Values of the literals that were replaced. */
+    public final List<Object> literals;
+
+    Normalized(SqlNode sqlNode, String sql, int userParameterCount,
+        List<Object> literals) {
+      this.sqlNode = sqlNode;
+      this.sql = sql;
+      this.userParameterCount = userParameterCount;
+      this.literals = literals;
+    }
+  }
+
+  /** Key of an entry in a {@link PlanCache}. */
+  public static class Key {
+    private final String sql;
+    private final boolean normalized;
+    private final int version;
+    private final List<String> schemaPath;
+    private final List<Object> configValues;
+    private final Type elementType;
+    private final int hashCode;
+
+    Key(String sql, boolean normalized, int version, List<String> schemaPath,
+        List<Object> configValues, Type elementType) {
+      this.sql = sql;
+      this.normalized = normalized;
+      this.version = version;
+      this.schemaPath = schemaPath;
+      this.configValues = configValues;
+      this.elementType = elementType;
+      this.hashCode = Objects.hashCode(sql, normalized, version, schemaPath,
+          configValues, elementType);
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+
+    @Override public boolean equals(Object obj) {
+      return obj == this
+          || obj instanceof Key
+          && sql.equals(((Key) obj).sql)
+          && normalized == ((Key) obj).normalized
+          && version == ((Key) obj).version
+          && schemaPath.equals(((Key) obj).schemaPath)
+          && configValues.equals(((Key) obj).configValues)
+          && elementType.equals(((Key) obj).elementType);
+    }
+  }
+
+  /** Entry in a {@link PlanCache}. */
+  public static class Entry {
+    /** Entry indicating that a normalized statement could not be prepared;
+     * the statement must be prepared with its literals intact. */
+    public static final Entry NOT_PARAMETERIZABLE = new Entry(null, 0);
+
+    private final OptiqPrepare.PrepareResult<?> prepareResult;
+    private final int userParameterCount;
+
+    public Entry(OptiqPrepare.PrepareResult<?> prepareResult,
+        int userParameterCount) {
+      this.prepareResult = prepareResult;
+      this.userParameterCount = userParameterCount;
+    }
+
+    /** Creates a result for a particular execution of this entry's
+     * statement. Returns null if a literal value is not compatible with the
+     * type inferred for its parameter.
+     *
+     * @param sql SQL text as supplied by the user
+     * @param literals Values of literals replaced by parameters
+     * @param maxRowCount Maximum number of rows to return, or -1
+     */
+    public <T> OptiqPrepare.PrepareResult<T> bind(String sql,
+        List<Object> literals, int maxRowCount) {
+      if (prepareResult == null) {
+        return null;
+      }
+      final List<AvaticaParameter> parameterList =
+          prepareResult.parameterList;
+      assert parameterList.size() == userParameterCount + literals.size();
+      final List<Object> values = new ArrayList<Object>();
+      for (int i = 0; i < literals.size(); i++) {
+        final Object value =
+            convert(literals.get(i),
+                parameterList.get(userParameterCount + i).parameterType);
+        if (value == null) {
+          return null;
+        }
+        values.add(value);
+      }
+      @SuppressWarnings("unchecked")
+      final Bindable<T> bindable = (Bindable<T>) prepareResult.getBindable();
+      return new OptiqPrepare.PrepareResult<T>(
+          sql,
+          parameterList.subList(0, userParameterCount),
+          prepareResult.rowType,
+          prepareResult.structType,
+          maxRowCount,
+          values.isEmpty()
+              ? bindable
+              : new LiteralBindable<T>(bindable, userParameterCount, values),
+          prepareResult.resultClazz);
+    }
+  }
+
+  /** Bindable that supplies the values of literals that were replaced by
+   * parameters. */
+  private static class LiteralBindable<T> implements Bindable<T> {
+    private final Bindable<T> bindable;
+    private final int userParameterCount;
+    private final List<Object> values;
+
+    LiteralBindable(Bindable<T> bindable, int userParameterCount,
+        List<Object> values) {
+      this.bindable = bindable;
+      this.userParameterCount = userParameterCount;
+      this.values = values;
+    }
+
+    public Enumerable<T> bind(final DataContext dataContext) {
+      return bindable.bind(
+          new DataContext() {
+            public SchemaPlus getRootSchema() {
+              return dataContext.getRootSchema();
+            }
+
+            public JavaTypeFactory getTypeFactory() {
+              return dataContext.getTypeFactory();
+            }
+
+            public QueryProvider getQueryProvider() {
+              return dataContext.getQueryProvider();
+            }
+
+            public Object get(String name) {
+              if (name.startsWith("?")) {
+                final int i = Integer.parseInt(name.substring(1))
+                    - userParameterCount;
+                if (i >= 0 && i < values.size()) {
+                  return values.get(i);
+                }
+              }
+              return dataContext.get(name);
+            }
+          });
+    }
+  }
+}
+
+// End PlanCache.java
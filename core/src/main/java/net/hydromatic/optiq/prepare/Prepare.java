@@ -19,6 +19,8 @@
 
 import net.hydromatic.optiq.DataContext;
 import net.hydromatic.optiq.impl.StarTable;
+import net.hydromatic.optiq.impl.clone.ArrayTableAggregateRule;
+import net.hydromatic.optiq.impl.clone.ArrayTablePushDownRule;
 import net.hydromatic.optiq.jdbc.OptiqPrepare;
 import net.hydromatic.optiq.jdbc.OptiqSchema;
 import net.hydromatic.optiq.rules.java.JavaRules;
@@ -71,7 +73,12 @@ public abstract class Prepare {
           // combination of MergeCalcRule, FilterToCalcRule, and
           // ProjectToCalcRule have the same effect?
           MergeFilterOntoCalcRule.INSTANCE,
-          MergeProjectOntoCalcRule.INSTANCE);
+          MergeProjectOntoCalcRule.INSTANCE,
+
+          // Push projections and simple filters into scans of clone tables,
+          // and compute aggregates over them without boxing.
+          ArrayTablePushDownRule.INSTANCE,
+          ArrayTableAggregateRule.INSTANCE);
 
   protected final OptiqPrepare.Context context;
   protected final CatalogReader catalogReader;
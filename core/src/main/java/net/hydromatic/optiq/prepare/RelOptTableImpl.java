@@ -20,6 +20,7 @@
 import net.hydromatic.linq4j.expressions.Expression;
 
 import net.hydromatic.optiq.QueryableTable;
+import net.hydromatic.optiq.Statistics;
 import net.hydromatic.optiq.Table;
 import net.hydromatic.optiq.TranslatableTable;
 import net.hydromatic.optiq.jdbc.OptiqSchema;
@@ -30,6 +31,7 @@
 import org.eigenbase.rel.RelNode;
 import org.eigenbase.relopt.RelOptCluster;
 import org.eigenbase.relopt.RelOptSchema;
+import org.eigenbase.relopt.RelTraitSet;
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.sql.SqlAccessType;
 import org.eigenbase.sql.validate.SqlMonotonicity;
@@ -152,9 +154,13 @@ public RelNode toRel(ToRelContext context) {
     }
     RelOptCluster cluster = context.getCluster();
     Class elementType = deduceElementType();
+    RelTraitSet traitSet = cluster.traitSetOf(EnumerableConvention.INSTANCE);
+    final List<RelCollation> collations = getCollationList();
+    if (!collations.isEmpty()) {
+      traitSet = traitSet.replace(collations.get(0));
+    }
     return new JavaRules.EnumerableTableAccessRel(
-        cluster, cluster.traitSetOf(EnumerableConvention.INSTANCE),
-        this, elementType);
+        cluster, traitSet, this, elementType);
   }
 
   private Class deduceElementType() {
@@ -172,6 +178,9 @@ private Class deduceElementType() {
   }
 
   public List<RelCollation> getCollationList() {
+    if (table != null) {
+      return Statistics.collations(table.getStatistic());
+    }
     return Collections.emptyList();
   }
 
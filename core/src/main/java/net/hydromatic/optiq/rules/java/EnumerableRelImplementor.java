@@ -23,6 +23,7 @@
 
 import net.hydromatic.optiq.BuiltinMethod;
 import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.config.OptiqConnectionConfig;
 import net.hydromatic.optiq.jdbc.JavaTypeFactoryImpl;
 import net.hydromatic.optiq.runtime.*;
 
@@ -43,9 +44,35 @@
 public class EnumerableRelImplementor extends JavaRelImplementor {
   public final Map<String, Queryable> map =
       new LinkedHashMap<String, Queryable>();
+  private final OptiqConnectionConfig config;
+  private int parallelQueryCount;
 
   public EnumerableRelImplementor(RexBuilder rexBuilder) {
+    this(rexBuilder, null);
+  }
+
+  public EnumerableRelImplementor(RexBuilder rexBuilder,
+      OptiqConnectionConfig config) {
     super(rexBuilder);
+    this.config = config;
+  }
+
+  /** Returns the configuration of the connection for which code is being
+   * generated, or null if not known. */
+  public OptiqConnectionConfig getConfig() {
+    return config;
+  }
+
+  /** Returns whether a query against an external data source may start as
+   * soon as the statement is executed, in parallel with other such queries.
+   * Each call that returns true counts towards the statement's limit,
+   * {@link OptiqConnectionConfig#parallelJdbcQueries()}. */
+  public boolean reserveParallelQuery() {
+    if (config == null || parallelQueryCount >= config.parallelJdbcQueries()) {
+      return false;
+    }
+    ++parallelQueryCount;
+    return true;
   }
 
   public EnumerableRel.Result visitChild(
@@ -67,6 +67,9 @@ public class JavaRules {
   public static final RelOptRule ENUMERABLE_JOIN_RULE =
       new EnumerableJoinRule();
 
+  public static final RelOptRule ENUMERABLE_MERGE_JOIN_RULE =
+      new EnumerableMergeJoinRule();
+
   public static final String[] LEFT_RIGHT = new String[]{"left", "right"};
 
   private static final boolean B = false;
@@ -255,27 +258,45 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       final PhysType keyPhysType =
           leftResult.physType.project(
               leftKeys, JavaRowFormat.LIST);
+      final Expressions.FluentList<Expression> arguments =
+          Expressions.list(
+              rightExpression,
+              leftResult.physType.generateAccessor(leftKeys),
+              rightResult.physType.generateAccessor(rightKeys),
+              generateSelector(
+                  physType,
+                  ImmutableList.of(
+                      leftResult.physType, rightResult.physType)))
+              .append(
+                  Util.first(keyPhysType.comparer(),
+                      Expressions.constant(null)))
+              .append(Expressions.constant(
+                  joinType.generatesNullsOnLeft()))
+              .append(Expressions.constant(
+                  joinType.generatesNullsOnRight()));
+      final int spillThreshold = implementor.getConfig() == null
+          ? -1
+          : implementor.getConfig().joinSpillThreshold();
+      final Expression join;
+      if (spillThreshold > 0) {
+        // Join that writes its inputs to disk if the right input has more
+        // than spillThreshold rows.
+        join =
+            Expressions.call(
+                BuiltinMethod.HASH_JOIN.method,
+                Expressions.<Expression>list(leftExpression)
+                    .appendAll(arguments)
+                    .append(Expressions.constant(spillThreshold)));
+      } else {
+        join =
+            Expressions.call(
+                leftExpression,
+                BuiltinMethod.JOIN.method,
+                arguments);
+      }
       return implementor.result(
           physType,
-          builder.append(
-              Expressions.call(
-                  leftExpression,
-                  BuiltinMethod.JOIN.method,
-                  Expressions.list(
-                      rightExpression,
-                      leftResult.physType.generateAccessor(leftKeys),
-                      rightResult.physType.generateAccessor(rightKeys),
-                      generateSelector(
-                          physType,
-                          ImmutableList.of(
-                              leftResult.physType, rightResult.physType)))
-                      .append(
-                          Util.first(keyPhysType.comparer(),
-                              Expressions.constant(null)))
-                      .append(Expressions.constant(
-                          joinType.generatesNullsOnLeft()))
-                      .append(Expressions.constant(
-                          joinType.generatesNullsOnRight())))).toBlock());
+          builder.append(join).toBlock());
     }
 
     Expression generateSelector(PhysType physType,
@@ -316,6 +337,184 @@ Expression generateSelector(PhysType physType,
     }
   }
 
+  /**
+   * Rule to convert an inner {@link org.eigenbase.rel.JoinRel} whose inputs
+   * are both sorted on the join keys to an {@link EnumerableMergeJoinRel}.
+   *
+   * <p>The rule only fires if each input already has an enumerable
+   * implementation sorted on its join keys, such as a scan of a clone table
+   * whose rows are sorted by the key column. It does not ask for inputs to
+   * be sorted; if they are not, a hash join is cheaper.</p>
+   */
+  private static class EnumerableMergeJoinRule extends RelOptRule {
+    private EnumerableMergeJoinRule() {
+      super(
+          operand(JoinRel.class,
+              operand(EnumerableRel.class, any()),
+              operand(EnumerableRel.class, any())),
+          "EnumerableMergeJoinRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final JoinRel join = call.rel(0);
+      final RelNode left = call.rel(1);
+      final RelNode right = call.rel(2);
+      if (join.getJoinType() != JoinRelType.INNER) {
+        return;
+      }
+      final List<Integer> leftKeys = new ArrayList<Integer>();
+      final List<Integer> rightKeys = new ArrayList<Integer>();
+      final RexNode remaining =
+          RelOptUtil.splitJoinCondition(join.getLeft(), join.getRight(),
+              join.getCondition(), leftKeys, rightKeys);
+      if (!remaining.isAlwaysTrue() || leftKeys.isEmpty()) {
+        return;
+      }
+      for (Pair<Integer, Integer> pair : Pair.zip(leftKeys, rightKeys)) {
+        final RelDataType leftType =
+            left.getRowType().getFieldList().get(pair.left).getType();
+        final RelDataType rightType =
+            right.getRowType().getFieldList().get(pair.right).getType();
+        if (leftType.getSqlTypeName() != rightType.getSqlTypeName()) {
+          // Values of different types might not be comparable.
+          return;
+        }
+      }
+      if (!sortedOn(left, leftKeys) || !sortedOn(right, rightKeys)) {
+        return;
+      }
+      final RelCollation leftCollation = collation(leftKeys);
+      final RelCollation rightCollation = collation(rightKeys);
+      final RelTraitSet traitSet =
+          join.getTraitSet().replace(EnumerableConvention.INSTANCE)
+              .replace(leftCollation);
+      try {
+        call.transformTo(
+            new EnumerableMergeJoinRel(
+                join.getCluster(),
+                traitSet,
+                convert(left,
+                    left.getTraitSet().replace(leftCollation)),
+                convert(right,
+                    right.getTraitSet().replace(rightCollation)),
+                join.getCondition(),
+                join.getJoinType(),
+                join.getVariablesStopped()));
+      } catch (InvalidRelException e) {
+        LOGGER.fine(e.toString());
+      }
+    }
+
+    /** Returns an ascending collation on the given fields. */
+    private static RelCollation collation(List<Integer> keys) {
+      final List<RelFieldCollation> fieldCollations =
+          new ArrayList<RelFieldCollation>();
+      for (int key : keys) {
+        fieldCollations.add(new RelFieldCollation(key));
+      }
+      return RelCollationImpl.of(fieldCollations);
+    }
+
+    /** Returns whether a relational expression's rows are sorted in
+     * ascending order on the given fields, in order. */
+    private static boolean sortedOn(RelNode rel, List<Integer> keys) {
+      final RelCollation collation =
+          rel.getTraitSet().getTrait(RelCollationTraitDef.INSTANCE);
+      if (collation == null
+          || collation.getFieldCollations().size() < keys.size()) {
+        return false;
+      }
+      for (Ord<Integer> key : Ord.zip(keys)) {
+        final RelFieldCollation fieldCollation =
+            collation.getFieldCollations().get(key.i);
+        if (fieldCollation.getFieldIndex() != key.e) {
+          return false;
+        }
+        switch (fieldCollation.direction) {
+        case ASCENDING:
+        case STRICTLY_ASCENDING:
+          break;
+        default:
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Implementation of an inner {@link org.eigenbase.rel.JoinRel} in
+   * {@link EnumerableConvention enumerable calling convention} that merges
+   * inputs sorted on their join keys. */
+  public static class EnumerableMergeJoinRel extends EnumerableJoinRel {
+    protected EnumerableMergeJoinRel(
+        RelOptCluster cluster,
+        RelTraitSet traits,
+        RelNode left,
+        RelNode right,
+        RexNode condition,
+        JoinRelType joinType,
+        Set<String> variablesStopped)
+      throws InvalidRelException {
+      super(cluster, traits, left, right, condition, joinType,
+          variablesStopped);
+      assert joinType == JoinRelType.INNER;
+    }
+
+    @Override
+    public EnumerableMergeJoinRel copy(RelTraitSet traitSet,
+        RexNode conditionExpr, RelNode left, RelNode right,
+        JoinRelType joinType) {
+      try {
+        return new EnumerableMergeJoinRel(getCluster(), traitSet, left, right,
+            conditionExpr, joinType, variablesStopped);
+      } catch (InvalidRelException e) {
+        // Semantic error not possible. Must be a bug. Convert to
+        // internal error.
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner) {
+      // Same as a hash join, less the cost of building a hash table.
+      return super.computeSelfCost(planner).multiplyBy(0.9d);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+      BlockBuilder builder = new BlockBuilder();
+      final Result leftResult =
+          implementor.visitChild(this, 0, (EnumerableRel) left, pref);
+      Expression leftExpression =
+          builder.append(
+              "left", leftResult.block);
+      final Result rightResult =
+          implementor.visitChild(this, 1, (EnumerableRel) right, pref);
+      Expression rightExpression =
+          builder.append(
+              "right", rightResult.block);
+      final PhysType physType =
+          PhysTypeImpl.of(
+              implementor.getTypeFactory(), getRowType(), pref.preferArray());
+      return implementor.result(
+          physType,
+          builder.append(
+              Expressions.call(
+                  BuiltinMethod.MERGE_JOIN.method,
+                  Expressions.list(
+                      leftExpression,
+                      rightExpression,
+                      leftResult.physType.generateAccessor(leftKeys),
+                      rightResult.physType.generateAccessor(rightKeys),
+                      generateSelector(
+                          physType,
+                          ImmutableList.of(
+                              leftResult.physType, rightResult.physType)))))
+              .toBlock());
+    }
+  }
+
   /**
    * Utilities for generating programs in the Enumerable (functional)
    * style.
@@ -835,6 +1034,80 @@ public RelNode convert(RelNode rel) {
     }
   }
 
+  public static final RelOptRule ENUMERABLE_SORTED_AGGREGATE_RULE =
+      new EnumerableSortedAggregateRule();
+
+  /**
+   * Rule to convert an {@link org.eigenbase.rel.AggregateRel} whose input is
+   * sorted on the group keys to an {@link EnumerableSortedAggregateRel}.
+   *
+   * <p>Like {@link EnumerableMergeJoinRule}, the rule only fires if the input
+   * already has an enumerable implementation that is sorted on the group
+   * keys, such as a scan of a clone table whose rows are sorted by the key
+   * column. The leading columns of the input's collation must be the group
+   * keys, in any order and direction.</p>
+   */
+  private static class EnumerableSortedAggregateRule extends RelOptRule {
+    private EnumerableSortedAggregateRule() {
+      super(
+          operand(AggregateRel.class,
+              operand(EnumerableRel.class, any())),
+          "EnumerableSortedAggregateRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final AggregateRel agg = call.rel(0);
+      final RelNode child = call.rel(1);
+      final BitSet groupSet = agg.getGroupSet();
+      final int groupCount = groupSet.cardinality();
+      if (groupCount == 0) {
+        return;
+      }
+      final RelCollation collation =
+          child.getTraitSet().getTrait(RelCollationTraitDef.INSTANCE);
+      if (collation == null
+          || collation.getFieldCollations().size() < groupCount) {
+        return;
+      }
+      final List<RelFieldCollation> leading =
+          collation.getFieldCollations().subList(0, groupCount);
+      final BitSet leadingSet = new BitSet();
+      for (RelFieldCollation fieldCollation : leading) {
+        leadingSet.set(fieldCollation.getFieldIndex());
+      }
+      if (!leadingSet.equals(groupSet)) {
+        return;
+      }
+
+      // Output rows are in the same order as input rows. Group key i of the
+      // output is the i'th member of the group set.
+      final List<Integer> groupList = BitSets.toList(groupSet);
+      final List<RelFieldCollation> outputFieldCollations =
+          new ArrayList<RelFieldCollation>();
+      for (RelFieldCollation fieldCollation : leading) {
+        outputFieldCollations.add(
+            fieldCollation.copy(
+                groupList.indexOf(fieldCollation.getFieldIndex())));
+      }
+      final RelTraitSet traitSet =
+          agg.getTraitSet().replace(EnumerableConvention.INSTANCE)
+              .replace(RelCollationImpl.of(outputFieldCollations));
+      try {
+        call.transformTo(
+            new EnumerableSortedAggregateRel(
+                agg.getCluster(),
+                traitSet,
+                convert(child,
+                    child.getTraitSet().replace(collation)),
+                groupSet,
+                agg.getAggCallList()));
+      } catch (InvalidRelException e) {
+        LOGGER.fine(e.toString());
+      }
+    }
+  }
+
   /** Implementation of {@link org.eigenbase.rel.AggregateRel} in
    * {@link EnumerableConvention enumerable calling convention}. */
   public static class EnumerableAggregateRel
@@ -883,6 +1156,12 @@ public EnumerableAggregateRel(
       }
     }
 
+    /** Returns whether rows with the same key are adjacent in the input,
+     * so that each group can be emitted as soon as its key changes. */
+    protected boolean isInputGrouped() {
+      return false;
+    }
+
     public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       final JavaTypeFactory typeFactory = implementor.getTypeFactory();
       final BlockBuilder builder = new BlockBuilder();
@@ -1172,6 +1451,16 @@ public RexToLixTranslator rowTranslator() {
                         Expressions.call(accumulatorInitializer, "apply"),
                         accumulatorAdder,
                         resultSelector))));
+      } else if (aggCalls.isEmpty() && isInputGrouped()) {
+        builder.add(
+            Expressions.return_(
+                null,
+                Expressions.call(
+                    BuiltinMethod.SORTED_DISTINCT.method,
+                    childExp,
+                    Util.<Expression>first(physType.comparer(),
+                        Expressions.constant(null,
+                            EqualityComparer.class)))));
       } else if (aggCalls.isEmpty()) {
         builder.add(
             Expressions.return_(
@@ -1181,7 +1470,7 @@ public RexToLixTranslator rowTranslator() {
                     BuiltinMethod.DISTINCT.method,
                     Expressions.<Expression>list()
                         .appendIfNotNull(physType.comparer()))));
-      } else {
+      } else if (isInputGrouped()) {
         final Expression resultSelector =
             builder.append(
                 "resultSelector",
@@ -1194,21 +1483,99 @@ public RexToLixTranslator rowTranslator() {
             Expressions.return_(
                 null,
                 Expressions.call(
+                    BuiltinMethod.SORTED_GROUP_BY.method,
                     childExp,
-                    BuiltinMethod.GROUP_BY2.method,
-                    Expressions
-                        .list(
-                            keySelector,
-                            accumulatorInitializer,
-                            accumulatorAdder,
-                            resultSelector)
-                        .appendIfNotNull(
-                            keyPhysType.comparer()))));
+                    keySelector,
+                    accumulatorInitializer,
+                    accumulatorAdder,
+                    resultSelector)));
+      } else {
+        final Expression resultSelector =
+            builder.append(
+                "resultSelector",
+                Expressions.lambda(
+                    Function2.class,
+                    resultBlock.toBlock(),
+                    key_,
+                    acc_));
+        final int spillThreshold = implementor.getConfig() == null
+            ? -1
+            : implementor.getConfig().aggregateSpillThreshold();
+        final Expression groupBy;
+        if (spillThreshold > 0) {
+          // Aggregate that writes rows to disk if there are more than
+          // spillThreshold groups.
+          groupBy =
+              Expressions.call(
+                  BuiltinMethod.HASH_AGGREGATE.method,
+                  childExp,
+                  keySelector,
+                  accumulatorInitializer,
+                  accumulatorAdder,
+                  resultSelector,
+                  Util.<Expression>first(keyPhysType.comparer(),
+                      Expressions.constant(null, EqualityComparer.class)),
+                  Expressions.constant(spillThreshold));
+        } else {
+          groupBy =
+              Expressions.call(
+                  childExp,
+                  BuiltinMethod.GROUP_BY2.method,
+                  Expressions
+                      .list(
+                          keySelector,
+                          accumulatorInitializer,
+                          accumulatorAdder,
+                          resultSelector)
+                      .appendIfNotNull(
+                          keyPhysType.comparer()));
+        }
+        builder.add(Expressions.return_(null, groupBy));
       }
       return implementor.result(physType, builder.toBlock());
     }
   }
 
+  /** Implementation of {@link org.eigenbase.rel.AggregateRel} in
+   * {@link EnumerableConvention enumerable calling convention} whose input is
+   * sorted on the group keys. Emits each group as soon as the key changes,
+   * holding only one accumulator at a time. */
+  public static class EnumerableSortedAggregateRel
+      extends EnumerableAggregateRel {
+    public EnumerableSortedAggregateRel(
+        RelOptCluster cluster,
+        RelTraitSet traitSet,
+        RelNode child,
+        BitSet groupSet,
+        List<AggregateCall> aggCalls)
+      throws InvalidRelException {
+      super(cluster, traitSet, child, groupSet, aggCalls);
+      assert groupSet.cardinality() > 0;
+    }
+
+    @Override public EnumerableSortedAggregateRel copy(RelTraitSet traitSet,
+        RelNode input, BitSet groupSet, List<AggregateCall> aggCalls) {
+      try {
+        return new EnumerableSortedAggregateRel(getCluster(), traitSet, input,
+            groupSet, aggCalls);
+      } catch (InvalidRelException e) {
+        // Semantic error not possible. Must be a bug. Convert to
+        // internal error.
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner) {
+      // Same as a hash aggregate, less the cost of the hash table.
+      return super.computeSelfCost(planner).multiplyBy(0.9d);
+    }
+
+    @Override protected boolean isInputGrouped() {
+      return true;
+    }
+  }
+
   public static final EnumerableSortRule ENUMERABLE_SORT_RULE =
       new EnumerableSortRule();
 
@@ -1247,7 +1614,10 @@ public RelNode convert(RelNode rel) {
   }
 
   /** Implementation of {@link org.eigenbase.rel.SortRel} in
-   * {@link EnumerableConvention enumerable calling convention}. */
+   * {@link EnumerableConvention enumerable calling convention}.
+   *
+   * <p>If {@code fetch} is set, keeps only the first {@code offset + fetch}
+   * rows in a bounded heap; see {@link EnumerableTopNRule}.</p> */
   public static class EnumerableSortRel
       extends SortRel
       implements EnumerableRel {
@@ -1274,6 +1644,21 @@ public EnumerableSortRel copy(
           fetch);
     }
 
+    @Override public RelOptCost computeSelfCost(RelOptPlanner planner) {
+      if (fetch == null) {
+        return super.computeSelfCost(planner);
+      }
+      // A bounded heap of k = offset + fetch rows costs O(n log k), not
+      // O(n log n).
+      final double rowCount = RelMetadataQuery.getRowCount(getChild());
+      final double k = RexLiteral.intValue(fetch)
+          + (offset == null ? 0 : RexLiteral.intValue(offset));
+      final double bytesPerRow = getRowType().getFieldCount() * 4;
+      return planner.getCostFactory().makeCost(
+          rowCount * Math.log(Math.max(k, Math.E)) * bytesPerRow,
+          rowCount, 0);
+    }
+
     public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       final BlockBuilder builder = new BlockBuilder();
       final EnumerableRel child = (EnumerableRel) getChild();
@@ -1291,21 +1676,96 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       final Pair<Expression, Expression> pair =
           inputPhysType.generateCollationKey(
               collation.getFieldCollations());
-
+      final Expression keySelector = builder.append("keySelector", pair.left);
+      final Expression comparator =
+          builder.appendIfNotNull("comparator", pair.right);
+      final int spillThreshold = implementor.getConfig() == null
+          ? -1
+          : implementor.getConfig().sortSpillThreshold();
+
+      Expression v;
+      if (fetch != null) {
+        v = Expressions.call(
+            BuiltinMethod.TOP_N.method,
+            childExp,
+            keySelector,
+            Util.first(comparator, Expressions.constant(null)),
+            Expressions.constant(
+                offset == null ? 0 : RexLiteral.intValue(offset)),
+            Expressions.constant(RexLiteral.intValue(fetch)));
+      } else {
+        if (spillThreshold > 0) {
+          v = Expressions.call(
+              BuiltinMethod.EXTERNAL_SORT.method,
+              childExp,
+              keySelector,
+              Util.first(comparator, Expressions.constant(null)),
+              Expressions.constant(spillThreshold));
+        } else {
+          v = Expressions.call(
+              childExp,
+              BuiltinMethod.ORDER_BY.method,
+              Expressions.list(keySelector)
+                  .appendIfNotNull(comparator));
+        }
+        if (offset != null) {
+          v = Expressions.call(
+              builder.append("sorted", v),
+              BuiltinMethod.SKIP.method,
+              Expressions.constant(RexLiteral.intValue(offset)));
+        }
+      }
       builder.add(
           Expressions.return_(
               null,
-              Expressions.call(
-                  childExp,
-                  BuiltinMethod.ORDER_BY.method,
-                  Expressions.list(
-                      builder.append("keySelector", pair.left))
-                  .appendIfNotNull(builder.appendIfNotNull("comparator",
-                      pair.right)))));
+              v));
       return implementor.result(physType, builder.toBlock());
     }
   }
 
+  public static final EnumerableTopNRule ENUMERABLE_TOP_N_RULE =
+      new EnumerableTopNRule();
+
+  /**
+   * Rule to convert an {@link org.eigenbase.rel.SortRel} that has a sort key
+   * and a {@code fetch} to an {@link EnumerableSortRel} that has the same
+   * {@code offset} and {@code fetch}.
+   *
+   * <p>The resulting sort keeps only the first {@code offset + fetch} rows,
+   * in a bounded heap, rather than sorting its whole input and then skipping
+   * and taking rows as an {@link EnumerableLimitRel} would.</p>
+   */
+  private static class EnumerableTopNRule
+      extends ConverterRule {
+    private EnumerableTopNRule() {
+      super(
+          SortRel.class,
+          Convention.NONE,
+          EnumerableConvention.INSTANCE,
+          "EnumerableTopNRule");
+    }
+
+    public RelNode convert(RelNode rel) {
+      final SortRel sort = (SortRel) rel;
+      if (sort.fetch == null
+          || sort.getCollation().getFieldCollations().isEmpty()) {
+        return null;
+      }
+      final RelTraitSet traitSet =
+          sort.getTraitSet().replace(EnumerableConvention.INSTANCE);
+      final RelNode input = sort.getChild();
+      return new EnumerableSortRel(
+          rel.getCluster(),
+          traitSet,
+          convert(
+              input,
+              input.getTraitSet().replace(EnumerableConvention.INSTANCE)),
+          sort.getCollation(),
+          sort.offset,
+          sort.fetch);
+    }
+  }
+
   public static final EnumerableLimitRule ENUMERABLE_LIMIT_RULE =
       new EnumerableLimitRule();
 
@@ -2107,6 +2567,12 @@ private void sampleOfTheGeneratedWindowedAggregate() {
             actualStart = start;
             // implementReset
           } else { // must be start == prevStart && end > prevEnd
+            // If all aggregates can remove values, we also come here when
+            // the frame slides forward (start > prevStart, end >= prevEnd),
+            // and first remove the rows that left the frame:
+            // for (int k = prevStart; k < start; k++) {
+            //   // implementRemove
+            // }
             actualStart = prevEnd + 1;
           }
           prevStart = start;
@@ -2359,18 +2825,86 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
             lowerBoundCanChange,
             Expressions.lessThan(endX, prevEnd));
 
+        final PhysType inputPhysTypeFinal = inputPhysType;
+        final Function<AggImpState, List<RexNode>> rexArguments =
+            new Function<AggImpState, List<RexNode>>() {
+              public List<RexNode> apply(AggImpState agg) {
+                List<Integer> argList = agg.call.getArgList();
+                List<RelDataType> inputTypes =
+                    EnumUtil.fieldRowTypes(
+                        result.physType.getRowType(),
+                        constants,
+                        argList);
+                List<RexNode> args = new ArrayList<RexNode>(
+                    inputTypes.size());
+                for (int i = 0; i < argList.size(); i++) {
+                  Integer idx = argList.get(i);
+                  args.add(new RexInputRef(idx, inputTypes.get(i)));
+                }
+                return args;
+              }
+            };
+
+        // If the frame moves forward and every aggregate can remove values,
+        // remove the rows that left the frame rather than recomputing it.
+        //
+        //   if (prevStart >= 0 && start >= prevStart
+        //       && start <= prevEnd + 1 && end >= prevEnd) {
+        //     for (int k = prevStart; k < start; k++) {
+        //       // implementRemove
+        //     }
+        //     actualStart = prevEnd + 1;
+        //   }
+        Statement removeLoop = null;
+        if (lowerBoundCanChange instanceof BinaryExpression
+            && canRemove(aggs)) {
+          final BlockBuilder builderRemove = new BlockBuilder(true, builder5);
+          final DeclarationStatement kDecl =
+              Expressions.declare(0, "k", prevStart);
+          implementAdd(aggs, builderRemove,
+              getBlockBuilderWinAggFrameResultContextFunction(typeFactory,
+                  result, translatedConstants, comparator_, rows_, i_, startX,
+                  endX, minX, maxX, hasRows, frameRowCount, partitionRowCount,
+                  kDecl, inputPhysTypeFinal),
+              rexArguments, kDecl, true);
+          BlockStatement removeBlock = builderRemove.toBlock();
+          if (!removeBlock.statements.isEmpty()) {
+            removeLoop = Expressions.for_(
+                Arrays.asList(kDecl),
+                Expressions.lessThan(kDecl.parameter, startX),
+                Expressions.preIncrementAssign(kDecl.parameter),
+                removeBlock);
+          }
+          Expression canSlide = Expressions.foldAnd(
+              ImmutableList.<Expression>of(
+                  Expressions.greaterThanOrEqual(prevStart,
+                      Expressions.constant(0)),
+                  Expressions.greaterThanOrEqual(startX, prevStart),
+                  Expressions.lessThanOrEqual(startX,
+                      Expressions.add(prevEnd, Expressions.constant(1))),
+                  Expressions.greaterThanOrEqual(endX, prevEnd)));
+          needRecomputeWindow = Expressions.andAlso(needRecomputeWindow,
+              Expressions.not(canSlide));
+        }
+
         BlockStatement resetWindowState = builder6.toBlock();
-        if (resetWindowState.statements.size() == 1) {
+        if (resetWindowState.statements.size() == 1 && removeLoop == null) {
           builder5.add(Expressions.declare(0, actualStart,
               Expressions.condition(needRecomputeWindow,
                   startX, Expressions.add(prevEnd, Expressions.constant(1)))));
         } else {
           builder5.add(Expressions.declare(0, actualStart,
               null));
-          builder5.add(Expressions.ifThenElse(needRecomputeWindow,
-              resetWindowState,
+          Statement advance =
               Expressions.statement(Expressions.assign(actualStart,
-                  Expressions.add(prevEnd, Expressions.constant(1))))));
+                  Expressions.add(prevEnd, Expressions.constant(1))));
+          if (removeLoop != null) {
+            // When the frame is intact, prevStart == start and the loop does
+            // not execute.
+            advance = Expressions.block(removeLoop, advance);
+          }
+          builder5.add(Expressions.ifThenElse(needRecomputeWindow,
+              resetWindowState, advance));
         }
 
         if (lowerBoundCanChange instanceof BinaryExpression) {
@@ -2384,7 +2918,6 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
         final DeclarationStatement jDecl =
             Expressions.declare(0, "j", actualStart);
 
-        final PhysType inputPhysTypeFinal = inputPhysType;
         final Function<BlockBuilder, WinAggFrameResultContext>
             resultContextBuilder =
             getBlockBuilderWinAggFrameResultContextFunction(typeFactory, result,
@@ -2393,26 +2926,8 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
                 hasRows, frameRowCount, partitionRowCount,
                 jDecl, inputPhysTypeFinal);
 
-        final Function<AggImpState, List<RexNode>> rexArguments =
-            new Function<AggImpState, List<RexNode>>() {
-              public List<RexNode> apply(AggImpState agg) {
-                List<Integer> argList = agg.call.getArgList();
-                List<RelDataType> inputTypes =
-                    EnumUtil.fieldRowTypes(
-                        result.physType.getRowType(),
-                        constants,
-                        argList);
-                List<RexNode> args = new ArrayList<RexNode>(
-                    inputTypes.size());
-                for (int i = 0; i < argList.size(); i++) {
-                  Integer idx = argList.get(i);
-                  args.add(new RexInputRef(idx, inputTypes.get(i)));
-                }
-                return args;
-              }
-            };
-
-        implementAdd(aggs, builder7, resultContextBuilder, rexArguments, jDecl);
+        implementAdd(aggs, builder7, resultContextBuilder, rexArguments, jDecl,
+            false);
 
         BlockStatement forBlock = builder7.toBlock();
         if (!forBlock.statements.isEmpty()) {
@@ -2776,11 +3291,25 @@ public List<? extends RelDataType> parameterRelTypes() {
       }
     }
 
+    /** Returns whether every aggregate can remove values from its
+     * accumulator. */
+    private static boolean canRemove(List<AggImpState> aggs) {
+      for (AggImpState agg : aggs) {
+        if (!(agg.implementor instanceof RemovableAggImplementor)
+            || !((RemovableAggImplementor) agg.implementor)
+                .canRemove(agg.context)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
     private void implementAdd(List<AggImpState> aggs,
         final BlockBuilder builder7,
         final Function<BlockBuilder, WinAggFrameResultContext> frame,
         final Function<AggImpState, List<RexNode>> rexArguments,
-        final DeclarationStatement jDecl) {
+        final DeclarationStatement jDecl,
+        boolean remove) {
       for (final AggImpState agg : aggs) {
         final WinAggAddContext addContext =
             new WinAggAddContextImpl(builder7, agg.state, frame) {
@@ -2792,7 +3321,12 @@ public List<RexNode> rexArguments() {
                 return rexArguments.apply(agg);
               }
             };
-        agg.implementor.implementAdd(agg.context, addContext);
+        if (remove) {
+          ((RemovableAggImplementor) agg.implementor).implementRemove(
+              agg.context, addContext);
+        } else {
+          agg.implementor.implementAdd(agg.context, addContext);
+        }
       }
     }
 
@@ -0,0 +1,60 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.rules.java;
+
+/**
+ * Aggregate implementor that can also remove a value from its accumulator.
+ *
+ * <p>When the frame of a window moves forward, an aggregate that supports
+ * removal is updated by removing the rows that left the frame and adding the
+ * rows that entered it, instead of being reset and recomputed over the whole
+ * frame. This makes sliding windows such as
+ * {@code ROWS BETWEEN 10 PRECEDING AND CURRENT ROW} linear in the size of
+ * the partition.</p>
+ *
+ * <p>Rows are removed in the order they were added.</p>
+ *
+ * @see net.hydromatic.optiq.rules.java.RexImpTable.SumImplementor
+ * @see net.hydromatic.optiq.rules.java.RexImpTable.CountWinImplementor
+ * @see net.hydromatic.optiq.rules.java.RexImpTable.MinMaxWinImplementor
+ */
+public interface RemovableAggImplementor extends AggImplementor {
+  /**
+   * Returns whether {@link #implementRemove} can be used for the given
+   * aggregate call. For instance, a sum of floating-point values would
+   * accumulate rounding errors if values were subtracted, so it is
+   * recomputed instead.
+   * Optiq calls this method after {@link #getStateType}.
+   * @param info aggregate context
+   * @return whether values can be removed from the accumulator
+   */
+  boolean canRemove(AggContext info);
+
+  /**
+   * Updates intermediate values to account for a value that has left the
+   * frame. The value was previously passed to {@link #implementAdd}.
+   * {@link AggAddContext#accumulator()} should be used to reference
+   * the state variables, and {@link AggAddContext#arguments()} the value
+   * being removed.
+   * @param info aggregate context
+   * @param remove context of the row being removed
+   */
+  void implementRemove(AggContext info, AggAddContext remove);
+}
+
+// End RemovableAggImplementor.java
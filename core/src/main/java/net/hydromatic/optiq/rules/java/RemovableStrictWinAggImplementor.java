@@ -0,0 +1,48 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.rules.java;
+
+/**
+ * The base implementation of strict window aggregate function that can
+ * remove values from its accumulator.
+ * @see net.hydromatic.optiq.rules.java.RexImpTable.CountWinImplementor
+ * @see net.hydromatic.optiq.rules.java.RexImpTable.MinMaxWinImplementor
+ */
+public abstract class RemovableStrictWinAggImplementor
+    extends StrictWinAggImplementor implements RemovableAggImplementor {
+  public boolean canRemove(AggContext info) {
+    return true;
+  }
+
+  public final void implementRemove(AggContext info, AggAddContext remove) {
+    implementAddOrRemove(info, remove, true);
+  }
+
+  /** Updates the accumulator to account for a not-null value leaving the
+   * window. */
+  protected abstract void implementNotNullRemove(WinAggContext info,
+      WinAggAddContext remove);
+
+  @Override
+  final void implementNotNullRemoveInternal(AggContext info,
+      AggAddContext remove) {
+    implementNotNullRemove((WinAggContext) info, (WinAggAddContext) remove);
+  }
+}
+
+// End RemovableStrictWinAggImplementor.java
@@ -23,6 +23,8 @@
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.Function;
 import net.hydromatic.optiq.impl.AggregateFunctionImpl;
+import net.hydromatic.optiq.runtime.Like;
+import net.hydromatic.optiq.runtime.SlidingMinMax;
 import net.hydromatic.optiq.runtime.SqlFunctions;
 
 import org.eigenbase.rel.Aggregation;
@@ -134,13 +136,12 @@ public class RexImpTable {
     map.put(IS_NOT_FALSE, new IsXxxImplementor(false, true));
 
     // LIKE and SIMILAR
-    final MethodImplementor likeImplementor =
-        new MethodImplementor(BuiltinMethod.LIKE.method);
+    final PatternImplementor likeImplementor = new PatternImplementor(false);
     defineImplementor(LIKE, NullPolicy.STRICT, likeImplementor, false);
     defineImplementor(NOT_LIKE, NullPolicy.STRICT,
         NotImplementor.of(likeImplementor), false);
-    final MethodImplementor similarImplementor =
-        new MethodImplementor(BuiltinMethod.SIMILAR.method);
+    final PatternImplementor similarImplementor =
+        new PatternImplementor(true);
     defineImplementor(SIMILAR_TO, NullPolicy.STRICT, similarImplementor, false);
     defineImplementor(NOT_SIMILAR_TO, NullPolicy.STRICT,
         NotImplementor.of(similarImplementor), false);
@@ -198,6 +199,10 @@ public class RexImpTable {
     winAggMap.put(LAG, constructorSupplier(LagImplementor.class));
     winAggMap.put(NTILE, constructorSupplier(NtileImplementor.class));
     winAggMap.put(COUNT, constructorSupplier(CountWinImplementor.class));
+    final Supplier<MinMaxWinImplementor> minMaxWin =
+        constructorSupplier(MinMaxWinImplementor.class);
+    winAggMap.put(MIN, minMaxWin);
+    winAggMap.put(MAX, minMaxWin);
   }
 
   private <T> Supplier<T> constructorSupplier(Class<T> klass) {
@@ -776,7 +781,7 @@ public void implementNotNullAdd(AggContext info, AggAddContext add) {
     }
   }
 
-  static class CountWinImplementor extends StrictWinAggImplementor {
+  static class CountWinImplementor extends RemovableStrictWinAggImplementor {
     boolean justFrameRowCount;
 
     @Override
@@ -804,6 +809,16 @@ public void implementNotNullAdd(WinAggContext info, WinAggAddContext add) {
           Expressions.postIncrementAssign(add.accumulator().get(0))));
     }
 
+    @Override
+    protected void implementNotNullRemove(WinAggContext info,
+        WinAggAddContext remove) {
+      if (justFrameRowCount) {
+        return;
+      }
+      remove.currentBlock().add(Expressions.statement(
+          Expressions.postDecrementAssign(remove.accumulator().get(0))));
+    }
+
     @Override
     protected Expression implementNotNullResult(WinAggContext info,
         WinAggResultContext result) {
@@ -814,7 +829,7 @@ protected Expression implementNotNullResult(WinAggContext info,
     }
   }
 
-  static class SumImplementor extends StrictAggImplementor {
+  static class SumImplementor extends RemovableStrictAggImplementor {
     @Override
     protected void implementNotNullReset(AggContext info,
         AggResetContext reset) {
@@ -839,6 +854,42 @@ public void implementNotNullAdd(AggContext info, AggAddContext add) {
       accAdvance(add, acc, next);
     }
 
+    /** Returns true for exact types; subtracting floating-point values
+     * would accumulate rounding errors. */
+    @Override
+    public boolean canRemove(AggContext info) {
+      if (info.returnType() == BigDecimal.class) {
+        return true;
+      }
+      Primitive p = Primitive.ofBoxOr(info.returnType());
+      if (p == null) {
+        return false;
+      }
+      switch (p) {
+      case BYTE:
+      case SHORT:
+      case INT:
+      case LONG:
+        return true;
+      default:
+        return false;
+      }
+    }
+
+    @Override
+    protected void implementNotNullRemove(AggContext info,
+        AggAddContext remove) {
+      Expression acc = remove.accumulator().get(0);
+      Expression next;
+      if (info.returnType() == BigDecimal.class) {
+        next = Expressions.call(acc, "subtract", remove.arguments().get(0));
+      } else {
+        next = Expressions.subtract(acc,
+            Types.castIfNecessary(acc.type, remove.arguments().get(0)));
+      }
+      accAdvance(remove, acc, next);
+    }
+
     @Override
     public Expression implementNotNullResult(AggContext info,
         AggResultContext result) {
@@ -872,6 +923,119 @@ public void implementNotNullAdd(AggContext info, AggAddContext add) {
     }
   }
 
+  /** Implementor of MIN and MAX in a window. Uses a {@link SlidingMinMax}
+   * so that values can be removed when the frame moves forward. Integer and
+   * floating-point values use a deque specialized for {@code long} or
+   * {@code double}, so that they are not boxed. */
+  static class MinMaxWinImplementor extends RemovableStrictWinAggImplementor {
+    @Override
+    public List<Type> getNotNullState(WinAggContext info) {
+      return Collections.<Type>singletonList(
+          accumulatorClass(info.returnType()));
+    }
+
+    /** Returns the kind of {@link SlidingMinMax} that holds values of a
+     * given type. */
+    private static Class accumulatorClass(Type type) {
+      final Primitive p = Primitive.ofBoxOr(type);
+      if (p != null) {
+        switch (p) {
+        case BYTE:
+        case SHORT:
+        case INT:
+        case LONG:
+          return SlidingMinMax.OfLong.class;
+        case FLOAT:
+        case DOUBLE:
+          return SlidingMinMax.OfDouble.class;
+        default:
+          break;
+        }
+      }
+      return SlidingMinMax.OfComparable.class;
+    }
+
+    @Override
+    protected void implementNotNullReset(WinAggContext info,
+        WinAggResetContext reset) {
+      reset.currentBlock().add(Expressions.statement(Expressions.assign(
+          reset.accumulator().get(0),
+          Expressions.new_(accumulatorClass(info.returnType()),
+              Expressions.constant(MIN == info.aggregation())))));
+    }
+
+    @Override
+    protected void implementNotNullAdd(WinAggContext info,
+        WinAggAddContext add) {
+      final Class clazz = accumulatorClass(info.returnType());
+      final Expression arg = add.arguments().get(0);
+      final Expression call;
+      if (clazz == SlidingMinMax.OfLong.class) {
+        call = Expressions.call(add.accumulator().get(0),
+            BuiltinMethod.SLIDING_MIN_MAX_ADD_LONG.method,
+            add.currentPosition(),
+            RexToLixTranslator.convert(arg, long.class));
+      } else if (clazz == SlidingMinMax.OfDouble.class) {
+        call = Expressions.call(add.accumulator().get(0),
+            BuiltinMethod.SLIDING_MIN_MAX_ADD_DOUBLE.method,
+            add.currentPosition(),
+            RexToLixTranslator.convert(arg, double.class));
+      } else {
+        call = Expressions.call(add.accumulator().get(0),
+            BuiltinMethod.SLIDING_MIN_MAX_ADD.method,
+            add.currentPosition(),
+            Expressions.box(arg));
+      }
+      add.currentBlock().add(Expressions.statement(call));
+    }
+
+    @Override
+    protected void implementNotNullRemove(WinAggContext info,
+        WinAggAddContext remove) {
+      remove.currentBlock().add(Expressions.statement(
+          Expressions.call(remove.accumulator().get(0),
+              BuiltinMethod.SLIDING_MIN_MAX_REMOVE.method,
+              remove.currentPosition())));
+    }
+
+    @Override
+    protected Expression implementNotNullResult(WinAggContext info,
+        WinAggResultContext result) {
+      final Expression acc = result.accumulator().get(0);
+      final Type returnType = info.returnType();
+      final Class clazz = accumulatorClass(returnType);
+      if (clazz == SlidingMinMax.OfComparable.class) {
+        final Expression value = Expressions.convert_(
+            Expressions.call(acc, BuiltinMethod.SLIDING_MIN_MAX_GET.method),
+            Primitive.box(returnType));
+        final Primitive p = Primitive.of(returnType);
+        if (p == null) {
+          return value;
+        }
+        return emptyOr(info, acc, p, Expressions.unbox(value));
+      }
+      final Primitive p = Primitive.ofBoxOr(returnType);
+      final Expression value = RexToLixTranslator.convert(
+          Expressions.call(acc,
+              clazz == SlidingMinMax.OfLong.class
+                  ? BuiltinMethod.SLIDING_MIN_MAX_GET_LONG.method
+                  : BuiltinMethod.SLIDING_MIN_MAX_GET_DOUBLE.method),
+          p.primitiveClass);
+      return emptyOr(info, acc, p, value);
+    }
+
+    /** Returns the same value as {@link MinMaxImplementor} if the frame is
+     * empty, otherwise the given value. */
+    private static Expression emptyOr(WinAggContext info, Expression acc,
+        Primitive p, Expression value) {
+      boolean isMin = MIN == info.aggregation();
+      return Expressions.condition(
+          Expressions.call(acc, BuiltinMethod.SLIDING_MIN_MAX_IS_EMPTY.method),
+          Expressions.constant(isMin ? p.max : p.min, p.primitiveClass),
+          value);
+    }
+  }
+
   static class SingleValueImplementor implements AggImplementor {
     public List<Type> getStateType(AggContext info) {
       return Arrays.asList(boolean.class, info.returnType());
@@ -1245,6 +1409,80 @@ public Expression implement(
     }
   }
 
+  /** Implementor for the {@code LIKE} and {@code SIMILAR TO} operators.
+   *
+   * <p>If the pattern (and escape, if any) are constant, the compiled
+   * regular expression is obtained by a deterministic call, which the code
+   * generator hoists out of the per-row code. A constant {@code LIKE} pattern
+   * of the form 'abc', 'abc%', '%abc' or '%abc%' does not need a regular
+   * expression; it becomes a call to {@link String#equals},
+   * {@link String#startsWith}, {@link String#endsWith} or
+   * {@link String#contains}.</p>
+   *
+   * <p>Otherwise calls {@link SqlFunctions#like} or
+   * {@link SqlFunctions#similar}, which look up the pattern in a cache.</p>
+   */
+  private static class PatternImplementor implements NotNullImplementor {
+    private final boolean similar;
+    private final MethodImplementor implementor;
+
+    PatternImplementor(boolean similar) {
+      this.similar = similar;
+      this.implementor = new MethodImplementor(
+          similar ? BuiltinMethod.SIMILAR.method : BuiltinMethod.LIKE.method);
+    }
+
+    public Expression implement(
+        RexToLixTranslator translator,
+        RexCall call,
+        List<Expression> translatedOperands) {
+      final String pattern = constantString(translatedOperands.get(1));
+      String escape = null;
+      if (translatedOperands.size() > 2) {
+        escape = constantString(translatedOperands.get(2));
+        if (escape == null) {
+          return implementor.implement(translator, call, translatedOperands);
+        }
+      }
+      if (pattern == null) {
+        return implementor.implement(translator, call, translatedOperands);
+      }
+      final Expression s = translatedOperands.get(0);
+      final Like.SimpleLike simpleLike =
+          similar ? null : Like.simpleLike(pattern, escape);
+      if (simpleLike != null) {
+        final BuiltinMethod method =
+            simpleLike.startsWithAny
+                ? (simpleLike.endsWithAny
+                    ? BuiltinMethod.STRING_CONTAINS
+                    : BuiltinMethod.STRING_ENDS_WITH)
+                : (simpleLike.endsWithAny
+                    ? BuiltinMethod.STRING_STARTS_WITH
+                    : BuiltinMethod.STRING_EQUALS);
+        return Expressions.call(s, method.method,
+            Expressions.constant(simpleLike.literal));
+      }
+      final Expression regex =
+          Expressions.call(
+              similar
+                  ? BuiltinMethod.SIMILAR_PATTERN.method
+                  : BuiltinMethod.LIKE_PATTERN.method,
+              Expressions.constant(pattern),
+              Expressions.constant(escape, String.class));
+      return Expressions.call(
+          Expressions.call(regex, BuiltinMethod.PATTERN_MATCHER.method, s),
+          BuiltinMethod.MATCHER_MATCHES.method);
+    }
+
+    private static String constantString(Expression e) {
+      if (e instanceof ConstantExpression
+          && ((ConstantExpression) e).value instanceof String) {
+        return (String) ((ConstantExpression) e).value;
+      }
+      return null;
+    }
+  }
+
   private static class MethodNameImplementor implements NotNullImplementor {
     private final String methodName;
 
@@ -33,6 +33,7 @@
 public abstract class StrictAggImplementor implements AggImplementor {
   private boolean needTrackEmptySet;
   private boolean trackNullsPerRow;
+  private boolean countNotNullRows;
   private int stateSize;
 
   protected boolean nonDefaultOnEmptySet(AggContext info) {
@@ -65,10 +66,15 @@ public final List<Type> getStateType(AggContext info) {
       }
     }
     trackNullsPerRow = !(info instanceof WinAggContext) || hasNullableArgs;
+    // A flag cannot be cleared when a row leaves a sliding window, so
+    // removable window aggregates count the not-null rows instead.
+    countNotNullRows = trackNullsPerRow
+        && info instanceof WinAggContext
+        && this instanceof RemovableAggImplementor;
 
     List<Type> res = new ArrayList<Type>(subState.size() + 1);
     res.addAll(subState);
-    res.add(boolean.class); // has not nulls
+    res.add(countNotNullRows ? int.class : boolean.class); // has not nulls
     return res;
   }
 
@@ -101,6 +107,14 @@ protected void implementNotNullReset(AggContext info,
   }
 
   public final void implementAdd(AggContext info, final AggAddContext add) {
+    implementAddOrRemove(info, add, false);
+  }
+
+  /** Adds a value to, or removes a value from, the accumulator. Removal is
+   * only used by {@link RemovableStrictAggImplementor} and
+   * {@link RemovableStrictWinAggImplementor}. */
+  final void implementAddOrRemove(AggContext info, final AggAddContext add,
+      boolean remove) {
     List<RexNode> args = add.rexArguments();
     RexToLixTranslator translator = add.rowTranslator();
     List<Expression> conditions =
@@ -117,11 +131,16 @@ public final void implementAdd(AggContext info, final AggAddContext add) {
         : new BlockBuilder(true, add.currentBlock());
     if (trackNullsPerRow) {
       List<Expression> acc = add.accumulator();
-      thenBlock.add(Expressions.statement(Expressions.assign(
-          acc.get(acc.size() - 1), Expressions.constant(true))));
+      Expression flag = acc.get(acc.size() - 1);
+      thenBlock.add(Expressions.statement(
+          !countNotNullRows
+          ? Expressions.assign(flag, Expressions.constant(true))
+          : remove
+          ? Expressions.postDecrementAssign(flag)
+          : Expressions.postIncrementAssign(flag)));
     }
     if (argsNotNull) {
-      implementNotNullAdd(info, add);
+      implementNotNullAddOrRemove(info, add, remove);
       return;
     }
 
@@ -132,14 +151,31 @@ public final void implementAdd(AggContext info, final AggAddContext add) {
       }
     }
     add.nestBlock(thenBlock, nullables);
-    implementNotNullAdd(info, add);
+    implementNotNullAddOrRemove(info, add, remove);
     add.exitBlock();
     add.currentBlock().add(Expressions.ifThen(condition, thenBlock.toBlock()));
   }
 
+  private void implementNotNullAddOrRemove(AggContext info, AggAddContext add,
+      boolean remove) {
+    if (remove) {
+      implementNotNullRemoveInternal(info, add);
+    } else {
+      implementNotNullAdd(info, add);
+    }
+  }
+
   protected abstract void implementNotNullAdd(AggContext info,
       AggAddContext add);
 
+  /** Dispatches to the {@code implementNotNullRemove} method of a removable
+   * sub-class. Not reached for other implementors, because only removable
+   * sub-classes call {@link #implementAddOrRemove} with {@code remove}
+   * true. */
+  void implementNotNullRemoveInternal(AggContext info, AggAddContext remove) {
+    throw new AssertionError(getClass() + " cannot remove");
+  }
+
   public final Expression implementResult(AggContext info,
       final AggResultContext result) {
     if (!needTrackEmptySet) {
@@ -160,9 +196,11 @@ public final Expression implementResult(AggContext info,
     thenBlock.add(Expressions.statement(Expressions.assign(res, nonNull)));
     BlockStatement thenBranch = thenBlock.toBlock();
     Expression seenNotNullRows =
-        trackNullsPerRow
-        ? acc.get(acc.size() - 1)
-        : ((WinAggResultContext) result).hasRows();
+        !trackNullsPerRow
+        ? ((WinAggResultContext) result).hasRows()
+        : countNotNullRows
+        ? Expressions.notEqual(acc.get(acc.size() - 1), Expressions.constant(0))
+        : acc.get(acc.size() - 1);
 
     if (thenBranch.statements.size() == 1) {
       return Expressions.condition(seenNotNullRows,
@@ -21,6 +21,7 @@
 import net.hydromatic.linq4j.function.Functions;
 
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * Binary search for the implementation of
@@ -162,6 +163,65 @@ public static <T> int upperBound(T[] a, T key, int imin, int imax,
         Functions.<T>identitySelector(), comparator);
   }
 
+  /**
+   * Returns the index of the first element of a sorted list that is greater
+   * than or equal to a given key.
+   *
+   * <p>Unlike {@link #lowerBound(Object[], Object, Comparator)}, the result
+   * is always a valid start of a half-open range: it is {@code list.size()}
+   * if every element is less than the key.</p>
+   *
+   * @param list list that holds the values, sorted consistently with
+   *             {@code comparator}
+   * @param key element to look for
+   * @param comparator comparator that compares keys
+   * @param <T> the type of elements in list
+   * @return minimal index of an element not less than the key, or the size
+   *   of the list
+   */
+  public static <T> int firstNotLess(List<? extends T> list, T key,
+      Comparator<? super T> comparator) {
+    int imin = 0;
+    int imax = list.size();
+    while (imin < imax) {
+      final int imid = (imin + imax) >>> 1;
+      if (comparator.compare(list.get(imid), key) < 0) {
+        imin = imid + 1;
+      } else {
+        imax = imid;
+      }
+    }
+    return imin;
+  }
+
+  /**
+   * Returns the index of the first element of a sorted list that is greater
+   * than a given key, or the size of the list if no element is greater than
+   * the key.
+   *
+   * @param list list that holds the values, sorted consistently with
+   *             {@code comparator}
+   * @param key element to look for
+   * @param comparator comparator that compares keys
+   * @param <T> the type of elements in list
+   * @return minimal index of an element greater than the key, or the size
+   *   of the list
+   */
+  public static <T> int firstGreater(List<? extends T> list, T key,
+      Comparator<? super T> comparator) {
+    int imin = 0;
+    int imax = list.size();
+    while (imin < imax) {
+      final int imid = (imin + imax) >>> 1;
+      if (comparator.compare(list.get(imid), key) <= 0) {
+        imin = imid + 1;
+      } else {
+        imax = imid;
+      }
+    }
+    return imin;
+  }
+
   /**
    * Taken from http://en.wikipedia.org/wiki/Binary_search_algorithm
    * #Deferred_detection_of_equality
@@ -0,0 +1,267 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.Function1;
+
+import java.util.*;
+
+/**
+ * Sort that writes sorted runs to disk if its input has more rows than a
+ * given threshold, then merges the runs.
+ *
+ * <p>If the input fits within the threshold, it is sorted in memory. Either
+ * way, the sort is stable: rows with equal keys are returned in the order
+ * they were read, as with the {@code orderBy} method of
+ * {@link ExtendedEnumerable}.</p>
+ *
+ * <p>Runs are written in the compact format of {@link Spill.RowFile}. If
+ * there are more runs than can be merged at once, the earliest runs are
+ * merged into a single, longer run until few enough remain.</p>
+ *
+ * @param <T> Row type
+ * @param <K> Key type
+ */
+public class ExternalSort<T, K> extends AbstractEnumerable<T> {
+  /** Maximum number of runs that are merged at the same time. */
+  static final int MAX_MERGE_WIDTH = 64;
+
+  private final Enumerable<T> source;
+  private final Function1<T, K> keySelector;
+  private final Comparator<K> comparator;
+  private final int spillThreshold;
+
+  private ExternalSort(Enumerable<T> source, Function1<T, K> keySelector,
+      Comparator<K> comparator, int spillThreshold) {
+    this.source = source;
+    this.keySelector = keySelector;
+    this.comparator = comparator == null
+        ? ExternalSort.<K>naturalOrder()
+        : comparator;
+    this.spillThreshold = spillThreshold;
+  }
+
+  /** Sorts the rows of {@code source}, writing them to disk if there are
+   * more than {@code spillThreshold} of them.
+   *
+   * @param source Input
+   * @param keySelector Computes the sort key of a row
+   * @param comparator Compares sort keys; if null, keys must be
+   *                   {@link Comparable}
+   * @param spillThreshold Maximum number of rows to hold in memory
+   */
+  public static <T, K> Enumerable<T> orderBy(Enumerable<T> source,
+      Function1<T, K> keySelector, Comparator<K> comparator,
+      int spillThreshold) {
+    return new ExternalSort<T, K>(source, keySelector, comparator,
+        spillThreshold);
+  }
+
+  /** Returns a comparator that uses the natural order of its arguments. */
+  static <K> Comparator<K> naturalOrder() {
+    return new Comparator<K>() {
+      public int compare(K o1, K o2) {
+        //noinspection unchecked
+        return ((Comparable) o1).compareTo(o2);
+      }
+    };
+  }
+
+  public Enumerator<T> enumerator() {
+    final List<Spill.RowFile<T>> runs = new ArrayList<Spill.RowFile<T>>();
+    final List<T> buffer = new ArrayList<T>();
+    try {
+      final Enumerator<T> rows = source.enumerator();
+      try {
+        while (rows.moveNext()) {
+          buffer.add(rows.current());
+          if (buffer.size() >= spillThreshold) {
+            runs.add(writeRun(buffer));
+            buffer.clear();
+          }
+        }
+      } finally {
+        rows.close();
+      }
+      sort(buffer);
+      if (runs.isEmpty()) {
+        return Linq4j.enumerator(buffer);
+      }
+      final Spill.Stats stats = new Spill.Stats("sort");
+      for (Spill.RowFile<T> run : runs) {
+        stats.add(run);
+      }
+      Hook.SPILL.run(stats);
+
+      // Reduce the number of runs until the runs on disk, plus the rows in
+      // memory, can be merged in one pass. The earliest runs are merged
+      // first and their result replaces them, which keeps the sort stable.
+      while (runs.size() + 1 > MAX_MERGE_WIDTH) {
+        final List<Spill.RowFile<T>> earliest =
+            runs.subList(0, MAX_MERGE_WIDTH);
+        final Spill.RowFile<T> merged = new Spill.RowFile<T>("sort");
+        final MergeEnumerator merger = new MergeEnumerator(earliest, null);
+        try {
+          while (merger.moveNext()) {
+            merged.add(merger.current());
+          }
+        } finally {
+          merger.close();
+        }
+        merged.close();
+        earliest.clear();
+        runs.add(0, merged);
+      }
+    } catch (RuntimeException e) {
+      for (Spill.RowFile<T> run : runs) {
+        run.delete();
+      }
+      throw e;
+    }
+    return new MergeEnumerator(runs, buffer);
+  }
+
+  private void sort(List<T> rows) {
+    final List<K> keys = new ArrayList<K>(rows.size());
+    final Integer[] ordinals = new Integer[rows.size()];
+    for (int i = 0; i < ordinals.length; i++) {
+      keys.add(keySelector.apply(rows.get(i)));
+      ordinals[i] = i;
+    }
+    Arrays.sort(ordinals,
+        new Comparator<Integer>() {
+          public int compare(Integer o1, Integer o2) {
+            return comparator.compare(keys.get(o1), keys.get(o2));
+          }
+        });
+    final List<T> sorted = new ArrayList<T>(rows.size());
+    for (Integer ordinal : ordinals) {
+      sorted.add(rows.get(ordinal));
+    }
+    rows.clear();
+    rows.addAll(sorted);
+  }
+
+  private Spill.RowFile<T> writeRun(List<T> rows) {
+    sort(rows);
+    final Spill.RowFile<T> run = new Spill.RowFile<T>("sort");
+    for (T row : rows) {
+      run.add(row);
+    }
+    run.close();
+    return run;
+  }
+
+  /** Current row of a run, during a merge. */
+  private class Cursor {
+    final int ordinal;
+    final Enumerator<T> enumerator;
+    T row;
+    K key;
+
+    Cursor(int ordinal, Enumerator<T> enumerator) {
+      this.ordinal = ordinal;
+      this.enumerator = enumerator;
+    }
+
+    boolean advance() {
+      if (enumerator.moveNext()) {
+        row = enumerator.current();
+        key = keySelector.apply(row);
+        return true;
+      }
+      enumerator.close();
+      return false;
+    }
+  }
+
+  /** Enumerator that merges sorted runs. Deletes the runs when it is
+   * closed. */
+  private class MergeEnumerator implements Enumerator<T> {
+    private final List<Spill.RowFile<T>> runs;
+    private final PriorityQueue<Cursor> queue;
+    private final List<Cursor> cursors = new ArrayList<Cursor>();
+    private Cursor current;
+
+    /** Creates a MergeEnumerator.
+     *
+     * @param runs Sorted runs on disk
+     * @param last Sorted rows in memory, later in the input than all of the
+     *             runs, or null
+     */
+    MergeEnumerator(List<Spill.RowFile<T>> runs, List<T> last) {
+      this.runs = new ArrayList<Spill.RowFile<T>>(runs);
+      this.queue = new PriorityQueue<Cursor>(runs.size() + 1,
+          new Comparator<Cursor>() {
+            public int compare(Cursor o1, Cursor o2) {
+              final int c = comparator.compare(o1.key, o2.key);
+              if (c != 0) {
+                return c;
+              }
+              // Rows from earlier runs come first, so the sort is stable.
+              return o1.ordinal - o2.ordinal;
+            }
+          });
+      for (Spill.RowFile<T> run : runs) {
+        cursors.add(
+            new Cursor(cursors.size(), run.asEnumerable().enumerator()));
+      }
+      if (last != null) {
+        cursors.add(new Cursor(cursors.size(), Linq4j.enumerator(last)));
+      }
+      for (Cursor cursor : cursors) {
+        if (cursor.advance()) {
+          queue.add(cursor);
+        }
+      }
+    }
+
+    public T current() {
+      return current.row;
+    }
+
+    public boolean moveNext() {
+      if (current != null && current.advance()) {
+        queue.add(current);
+      }
+      current = queue.poll();
+      if (current == null) {
+        close();
+        return false;
+      }
+      return true;
+    }
+
+    public void reset() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      for (Cursor cursor : cursors) {
+        cursor.enumerator.close();
+      }
+      queue.clear();
+      for (Spill.RowFile<T> run : runs) {
+        run.delete();
+      }
+    }
+  }
+}
+
+// End ExternalSort.java
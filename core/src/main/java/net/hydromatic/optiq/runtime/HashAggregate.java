@@ -0,0 +1,282 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.*;
+
+import java.util.*;
+
+/**
+ * Hash aggregation that writes rows to disk if there are more than a given
+ * number of groups.
+ *
+ * <p>If the input has no more groups than the threshold, the aggregation is
+ * identical to the four-argument {@code groupBy} method of
+ * {@link ExtendedEnumerable}. Once the threshold is reached, the groups in
+ * memory continue to accumulate, but a row whose key does not belong to one of
+ * those groups is written to one of several temporary files, partitioned by
+ * a hash of its key. When the input is exhausted, the groups in memory are
+ * emitted, and each partition is then aggregated in the same way, using a
+ * different hash function. A partition that still has too many groups is
+ * partitioned again, up to a maximum depth; beyond that depth it is
+ * aggregated in memory.</p>
+ *
+ * <p>Because every row of a given group is either accumulated in memory or
+ * written to the same partition, accumulators never need to be combined.</p>
+ *
+ * <p>Rows must be serializable if the aggregation spills.</p>
+ *
+ * @param <TSource> Input row type
+ * @param <TKey> Key type
+ * @param <TAccumulate> Accumulator type
+ * @param <TResult> Result row type
+ */
+public class HashAggregate<TSource, TKey, TAccumulate, TResult>
+    extends AbstractEnumerable<TResult> {
+  private final Enumerable<TSource> source;
+  private final Function1<TSource, TKey> keySelector;
+  private final Function0<TAccumulate> accumulatorInitializer;
+  private final Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder;
+  private final Function2<TKey, TAccumulate, TResult> resultSelector;
+  private final EqualityComparer<TKey> comparer;
+  private final int spillThreshold;
+  private final int depth;
+
+  private HashAggregate(Enumerable<TSource> source,
+      Function1<TSource, TKey> keySelector,
+      Function0<TAccumulate> accumulatorInitializer,
+      Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+      Function2<TKey, TAccumulate, TResult> resultSelector,
+      EqualityComparer<TKey> comparer,
+      int spillThreshold,
+      int depth) {
+    this.source = source;
+    this.keySelector = keySelector;
+    this.accumulatorInitializer = accumulatorInitializer;
+    this.accumulatorAdder = accumulatorAdder;
+    this.resultSelector = resultSelector;
+    this.comparer = comparer;
+    this.spillThreshold = spillThreshold;
+    this.depth = depth;
+  }
+
+  /** Groups the rows of an input by key, writing rows to disk if there are
+   * more than {@code spillThreshold} groups.
+   *
+   * <p>Other arguments are as for the four-argument {@code groupBy} method of
+   * {@link ExtendedEnumerable}; {@code comparer} may be null.</p> */
+  public static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
+  groupBy(
+      Enumerable<TSource> source,
+      Function1<TSource, TKey> keySelector,
+      Function0<TAccumulate> accumulatorInitializer,
+      Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+      Function2<TKey, TAccumulate, TResult> resultSelector,
+      EqualityComparer<TKey> comparer,
+      int spillThreshold) {
+    return new HashAggregate<TSource, TKey, TAccumulate, TResult>(source,
+        keySelector, accumulatorInitializer, accumulatorAdder, resultSelector,
+        comparer, spillThreshold, 0);
+  }
+
+  public Enumerator<TResult> enumerator() {
+    final Map<Object, Group> groups = new HashMap<Object, Group>();
+    List<Spill.RowFile<TSource>> files = null;
+    final Enumerator<TSource> rows = source.enumerator();
+    try {
+      while (rows.moveNext()) {
+        final TSource row = rows.current();
+        final TKey key = keySelector.apply(row);
+        final Object wrappedKey = wrap(key);
+        Group group = groups.get(wrappedKey);
+        if (group == null) {
+          if (groups.size() >= spillThreshold
+              && depth < HashJoin.MAX_DEPTH) {
+            if (files == null) {
+              files = new ArrayList<Spill.RowFile<TSource>>();
+              for (int i = 0; i < HashJoin.PARTITION_COUNT; i++) {
+                files.add(new Spill.RowFile<TSource>("aggregate"));
+              }
+            }
+            files.get(partition(key)).add(row);
+            continue;
+          }
+          group = new Group(key, accumulatorInitializer.apply());
+          groups.put(wrappedKey, group);
+        }
+        group.accumulator = accumulatorAdder.apply(group.accumulator, row);
+      }
+      if (files != null) {
+        final Spill.Stats stats = new Spill.Stats("aggregate");
+        for (Spill.RowFile<TSource> file : files) {
+          file.close();
+          stats.add(file);
+        }
+        Hook.SPILL.run(stats);
+      }
+    } catch (RuntimeException e) {
+      if (files != null) {
+        deleteAll(files, 0);
+      }
+      throw e;
+    } finally {
+      rows.close();
+    }
+    return new AggregateEnumerator(groups.values().iterator(), files);
+  }
+
+  /** Wraps a key so that the map uses the comparer, if there is one. */
+  private Object wrap(TKey key) {
+    return comparer == null ? key : new Wrapped<TKey>(key, comparer);
+  }
+
+  /** Returns the partition that a key belongs to. */
+  private int partition(TKey key) {
+    if (key == null) {
+      return 0;
+    }
+    return HashJoin.partition(
+        comparer == null ? key.hashCode() : comparer.hashCode(key), depth);
+  }
+
+  private static void deleteAll(List<? extends Spill.RowFile> files,
+      int start) {
+    for (int i = start; i < files.size(); i++) {
+      files.get(i).delete();
+    }
+  }
+
+  /** A group's key and accumulator. */
+  private class Group {
+    final TKey key;
+    TAccumulate accumulator;
+
+    Group(TKey key, TAccumulate accumulator) {
+      this.key = key;
+      this.accumulator = accumulator;
+    }
+  }
+
+  /** Key whose {@link #equals} and {@link #hashCode} methods use an
+   * {@link EqualityComparer}.
+   *
+   * @param <K> Key type
+   */
+  private static class Wrapped<K> {
+    private final K key;
+    private final EqualityComparer<K> comparer;
+
+    Wrapped(K key, EqualityComparer<K> comparer) {
+      this.key = key;
+      this.comparer = comparer;
+    }
+
+    @Override public int hashCode() {
+      return key == null ? 0 : comparer.hashCode(key);
+    }
+
+    @Override public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      }
+      if (!(obj instanceof Wrapped)) {
+        return false;
+      }
+      //noinspection unchecked
+      final K key1 = ((Wrapped<K>) obj).key;
+      return key == null
+          ? key1 == null
+          : key1 != null && comparer.equal(key, key1);
+    }
+  }
+
+  /** Enumerator that emits the groups held in memory, then aggregates each
+   * spilled partition in turn, deleting each partition's file when it is done
+   * with it. */
+  private class AggregateEnumerator implements Enumerator<TResult> {
+    private final Iterator<Group> groups;
+    private final List<Spill.RowFile<TSource>> files;
+    private int i = -1;
+    private Enumerator<TResult> partition;
+    private TResult current;
+
+    AggregateEnumerator(Iterator<Group> groups,
+        List<Spill.RowFile<TSource>> files) {
+      this.groups = groups;
+      this.files = files;
+    }
+
+    public TResult current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (groups.hasNext()) {
+        final Group group = groups.next();
+        current = resultSelector.apply(group.key, group.accumulator);
+        return true;
+      }
+      if (files == null) {
+        return false;
+      }
+      for (;;) {
+        if (partition != null) {
+          if (partition.moveNext()) {
+            current = partition.current();
+            return true;
+          }
+          partition.close();
+          partition = null;
+          files.get(i).delete();
+        }
+        if (++i >= files.size()) {
+          return false;
+        }
+        final Spill.RowFile<TSource> file = files.get(i);
+        if (file.size() == 0) {
+          file.delete();
+          continue;
+        }
+        partition =
+            new HashAggregate<TSource, TKey, TAccumulate, TResult>(
+                file.asEnumerable(), keySelector, accumulatorInitializer,
+                accumulatorAdder, resultSelector, comparer, spillThreshold,
+                depth + 1)
+                .enumerator();
+      }
+    }
+
+    public void reset() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      if (partition != null) {
+        partition.close();
+        partition = null;
+      }
+      if (files != null) {
+        deleteAll(files, Math.max(i, 0));
+        i = files.size();
+      }
+    }
+  }
+}
+
+// End HashAggregate.java
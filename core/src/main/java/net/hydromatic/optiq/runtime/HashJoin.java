@@ -0,0 +1,265 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.*;
+
+import java.util.*;
+
+/**
+ * Hash join that writes its inputs to disk if the build (inner) input has
+ * more rows than a given threshold.
+ *
+ * <p>If the inner input fits within the threshold, the join is identical to
+ * the seven-argument {@code join} method of {@link ExtendedEnumerable}.
+ * Otherwise the join follows the "grace" algorithm: both inputs are
+ * partitioned by a hash of their join key into temporary files, and each
+ * pair of partitions is joined separately. A pair whose inner partition is
+ * still too large is partitioned again, using a different hash function, up
+ * to a maximum depth; beyond that depth it is joined in memory.</p>
+ *
+ * <p>Rows must be serializable if the join spills.</p>
+ *
+ * @param <TSource> Outer row type
+ * @param <TInner> Inner row type
+ * @param <TKey> Key type
+ * @param <TResult> Result row type
+ */
+public class HashJoin<TSource, TInner, TKey, TResult>
+    extends AbstractEnumerable<TResult> {
+  /** Number of partitions each input is split into when the join spills. */
+  static final int PARTITION_COUNT = 16;
+
+  /** Maximum number of times a partition is re-partitioned. */
+  static final int MAX_DEPTH = 4;
+
+  private final Enumerable<TSource> outer;
+  private final Enumerable<TInner> inner;
+  private final Function1<TSource, TKey> outerKeySelector;
+  private final Function1<TInner, TKey> innerKeySelector;
+  private final Function2<TSource, TInner, TResult> resultSelector;
+  private final EqualityComparer<TKey> comparer;
+  private final boolean generateNullsOnLeft;
+  private final boolean generateNullsOnRight;
+  private final int spillThreshold;
+  private final int depth;
+
+  private HashJoin(Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer,
+      boolean generateNullsOnLeft,
+      boolean generateNullsOnRight,
+      int spillThreshold,
+      int depth) {
+    this.outer = outer;
+    this.inner = inner;
+    this.outerKeySelector = outerKeySelector;
+    this.innerKeySelector = innerKeySelector;
+    this.resultSelector = resultSelector;
+    this.comparer = comparer;
+    this.generateNullsOnLeft = generateNullsOnLeft;
+    this.generateNullsOnRight = generateNullsOnRight;
+    this.spillThreshold = spillThreshold;
+    this.depth = depth;
+  }
+
+  /** Joins two inputs, writing them to disk if the inner input has more
+   * than {@code spillThreshold} rows.
+   *
+   * <p>Other arguments are as for the seven-argument {@code join} method of
+   * {@link ExtendedEnumerable}.</p> */
+  public static <TSource, TInner, TKey, TResult> Enumerable<TResult> join(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer,
+      boolean generateNullsOnLeft,
+      boolean generateNullsOnRight,
+      int spillThreshold) {
+    return new HashJoin<TSource, TInner, TKey, TResult>(outer, inner,
+        outerKeySelector, innerKeySelector, resultSelector, comparer,
+        generateNullsOnLeft, generateNullsOnRight, spillThreshold, 0);
+  }
+
+  public Enumerator<TResult> enumerator() {
+    final List<TInner> buffered = new ArrayList<TInner>();
+    final Enumerator<TInner> inners = inner.enumerator();
+    try {
+      while (inners.moveNext()) {
+        buffered.add(inners.current());
+        if (buffered.size() > spillThreshold && depth < MAX_DEPTH) {
+          return spill(buffered, inners);
+        }
+      }
+    } finally {
+      inners.close();
+    }
+    return outer.join(Linq4j.asEnumerable(buffered), outerKeySelector,
+        innerKeySelector, resultSelector, comparer, generateNullsOnLeft,
+        generateNullsOnRight)
+        .enumerator();
+  }
+
+  /** Writes both inputs to partitioned files, and returns an enumerator
+   * that joins each pair of partitions in turn. */
+  private Enumerator<TResult> spill(List<TInner> buffered,
+      Enumerator<TInner> inners) {
+    final List<Spill.RowFile<TInner>> innerFiles =
+        new ArrayList<Spill.RowFile<TInner>>();
+    final List<Spill.RowFile<TSource>> outerFiles =
+        new ArrayList<Spill.RowFile<TSource>>();
+    try {
+      for (int i = 0; i < PARTITION_COUNT; i++) {
+        innerFiles.add(new Spill.RowFile<TInner>("join"));
+        outerFiles.add(new Spill.RowFile<TSource>("join"));
+      }
+      for (TInner row : buffered) {
+        innerFiles.get(partition(innerKeySelector.apply(row))).add(row);
+      }
+      buffered.clear();
+      while (inners.moveNext()) {
+        final TInner row = inners.current();
+        innerFiles.get(partition(innerKeySelector.apply(row))).add(row);
+      }
+      final Enumerator<TSource> outers = outer.enumerator();
+      try {
+        while (outers.moveNext()) {
+          final TSource row = outers.current();
+          outerFiles.get(partition(outerKeySelector.apply(row))).add(row);
+        }
+      } finally {
+        outers.close();
+      }
+      final Spill.Stats stats = new Spill.Stats("join");
+      for (int i = 0; i < PARTITION_COUNT; i++) {
+        innerFiles.get(i).close();
+        outerFiles.get(i).close();
+        stats.add(innerFiles.get(i));
+        stats.add(outerFiles.get(i));
+      }
+      Hook.SPILL.run(stats);
+    } catch (RuntimeException e) {
+      deleteAll(innerFiles, 0);
+      deleteAll(outerFiles, 0);
+      throw e;
+    }
+    return new PartitionEnumerator(innerFiles, outerFiles);
+  }
+
+  /** Returns the partition that a key belongs to. The hash function depends
+   * on the depth, so that a partition that is re-partitioned does not put all
+   * of its rows into the same child partition. */
+  private int partition(TKey key) {
+    if (key == null) {
+      return 0;
+    }
+    return partition(
+        comparer == null ? key.hashCode() : comparer.hashCode(key), depth);
+  }
+
+  /** Returns the partition that a hash code belongs to at a given depth of
+   * re-partitioning. */
+  static int partition(int hashCode, int depth) {
+    int h = hashCode + depth * 0x9E3779B9;
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return (h & Integer.MAX_VALUE) % PARTITION_COUNT;
+  }
+
+  private static void deleteAll(List<? extends Spill.RowFile> files,
+      int start) {
+    for (int i = start; i < files.size(); i++) {
+      files.get(i).delete();
+    }
+  }
+
+  /** Enumerator that joins each pair of partitions in turn, deleting each
+   * pair's files when it is done with them. */
+  private class PartitionEnumerator implements Enumerator<TResult> {
+    private final List<Spill.RowFile<TInner>> innerFiles;
+    private final List<Spill.RowFile<TSource>> outerFiles;
+    private int i = -1;
+    private Enumerator<TResult> current;
+
+    PartitionEnumerator(List<Spill.RowFile<TInner>> innerFiles,
+        List<Spill.RowFile<TSource>> outerFiles) {
+      this.innerFiles = innerFiles;
+      this.outerFiles = outerFiles;
+    }
+
+    public TResult current() {
+      return current.current();
+    }
+
+    public boolean moveNext() {
+      for (;;) {
+        if (current != null) {
+          if (current.moveNext()) {
+            return true;
+          }
+          current.close();
+          current = null;
+          innerFiles.get(i).delete();
+          outerFiles.get(i).delete();
+        }
+        if (++i >= PARTITION_COUNT) {
+          return false;
+        }
+        final Spill.RowFile<TInner> innerFile = innerFiles.get(i);
+        final Spill.RowFile<TSource> outerFile = outerFiles.get(i);
+        if (innerFile.size() == 0 && !generateNullsOnRight
+            || outerFile.size() == 0 && !generateNullsOnLeft) {
+          // Partition cannot produce any rows.
+          innerFile.delete();
+          outerFile.delete();
+          continue;
+        }
+        current =
+            new HashJoin<TSource, TInner, TKey, TResult>(
+                outerFile.asEnumerable(), innerFile.asEnumerable(),
+                outerKeySelector, innerKeySelector, resultSelector, comparer,
+                generateNullsOnLeft, generateNullsOnRight, spillThreshold,
+                depth + 1)
+                .enumerator();
+      }
+    }
+
+    public void reset() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+      deleteAll(innerFiles, Math.max(i, 0));
+      deleteAll(outerFiles, Math.max(i, 0));
+      i = PARTITION_COUNT;
+    }
+  }
+}
+
+// End HashJoin.java
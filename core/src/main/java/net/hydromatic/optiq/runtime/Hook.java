@@ -50,7 +50,18 @@ public enum Hook {
   /** Called with a query that has been generated to send to a back-end system.
    * The query might be a SQL string (for the JDBC adapter), a list of Mongo
    * pipeline expressions (for the MongoDB adapter), et cetera. */
-  QUERY_PLAN;
+  QUERY_PLAN,
+
+  /** Called when an operator has written data to temporary files because its
+   * input did not fit within its memory budget. The argument is a
+   * {@link Spill.Stats}. */
+  SPILL,
+
+  /** Called while the contents of a clone table are being loaded: after each
+   * batch of rows has been read, after each column has been encoded, and
+   * when loading is complete. The argument is a
+   * {@link net.hydromatic.optiq.impl.clone.ArrayTable.LoadStats}. */
+  CLONE_LOAD;
 
   private final List<Function1<Object, Object>> handlers =
       new CopyOnWriteArrayList<Function1<Object, Object>>();
@@ -17,11 +17,50 @@
 */
 package net.hydromatic.optiq.runtime;
 
+import net.hydromatic.linq4j.function.Deterministic;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
 /**
  * Utilities for converting SQL {@code LIKE} and {@code SIMILAR} operators
  * to regular expressions.
  */
 public class Like {
+  /** Maximum number of compiled patterns held by each cache. */
+  private static final int CACHE_SIZE = 1000;
+
+  /** Compiled LIKE patterns, keyed by [pattern, escape]. LIKE's '%' matches
+   * any characters, including line terminators, hence DOTALL. */
+  private static final LoadingCache<List<String>, Pattern> LIKE_PATTERNS =
+      CacheBuilder.newBuilder()
+          .maximumSize(CACHE_SIZE)
+          .build(
+              new CacheLoader<List<String>, Pattern>() {
+                public Pattern load(List<String> key) {
+                  return Pattern.compile(
+                      sqlToRegexLike(key.get(0), key.get(1)), Pattern.DOTALL);
+                }
+              });
+
+  /** Compiled SIMILAR patterns, keyed by [pattern, escape]. */
+  private static final LoadingCache<List<String>, Pattern> SIMILAR_PATTERNS =
+      CacheBuilder.newBuilder()
+          .maximumSize(CACHE_SIZE)
+          .build(
+              new CacheLoader<List<String>, Pattern>() {
+                public Pattern load(List<String> key) {
+                  return Pattern.compile(
+                      sqlToRegexSimilar(key.get(0), key.get(1)));
+                }
+              });
+
   private static final String JAVA_REGEX_SPECIALS = "[]()|^-+*?{}$\\";
   private static final String SQL_SIMILAR_SPECIALS = "[]()|^-+*_%?{}";
   private static final String [] REG_CHAR_CLASSES = {
@@ -44,6 +83,90 @@ public class Like {
   private Like() {
   }
 
+  /** Returns the compiled regular expression for a SQL LIKE pattern, with
+   * optional escape string.
+   *
+   * <p>Patterns are compiled once and cached, so that evaluating
+   * {@code LIKE} for each row of a table does not re-compile the pattern
+   * each time. If the pattern is constant, the code generator hoists the
+   * call into a static field of the generated class.</p> */
+  @Deterministic
+  public static Pattern likePattern(String sqlPattern, String escape) {
+    return get(LIKE_PATTERNS, sqlPattern, escape);
+  }
+
+  /** Returns the compiled regular expression for a SQL SIMILAR pattern, with
+   * optional escape string. Patterns are cached. */
+  @Deterministic
+  public static Pattern similarPattern(String sqlPattern, String escape) {
+    return get(SIMILAR_PATTERNS, sqlPattern, escape);
+  }
+
+  private static Pattern get(LoadingCache<List<String>, Pattern> cache,
+      String sqlPattern, String escape) {
+    try {
+      return cache.getUnchecked(Arrays.asList(sqlPattern, escape));
+    } catch (UncheckedExecutionException e) {
+      // Preserve the error for an invalid pattern or escape character
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a description of a SQL LIKE pattern if it is a literal string,
+   * optionally preceded and/or followed by '%' (for example 'abc',
+   * 'abc%', '%abc' or '%abc%'); otherwise null.
+   *
+   * <p>Such a pattern can be evaluated using {@link String#equals},
+   * {@link String#startsWith}, {@link String#endsWith} or
+   * {@link String#contains} rather than a regular expression.</p>
+   */
+  public static SimpleLike simpleLike(String sqlPattern, String escape) {
+    if (escape != null
+        && (escape.length() != 1
+            || escape.charAt(0) == '%'
+            || escape.charAt(0) == '_')) {
+      return null;
+    }
+    final int len = sqlPattern.length();
+    int start = 0;
+    while (start < len && sqlPattern.charAt(start) == '%') {
+      ++start;
+    }
+    final StringBuilder buf = new StringBuilder(len - start);
+    boolean endsWithAny = false;
+    for (int i = start; i < len; i++) {
+      final char c = sqlPattern.charAt(i);
+      if (escape != null && c == escape.charAt(0)) {
+        if (i == len - 1) {
+          return null;
+        }
+        final char nextChar = sqlPattern.charAt(++i);
+        if (nextChar != '_' && nextChar != '%' && nextChar != c) {
+          return null;
+        }
+        buf.append(nextChar);
+      } else if (c == '_') {
+        return null;
+      } else if (c == '%') {
+        // Only a trailing sequence of '%' is allowed
+        for (int j = i + 1; j < len; j++) {
+          if (sqlPattern.charAt(j) != '%') {
+            return null;
+          }
+        }
+        endsWithAny = true;
+        break;
+      } else {
+        buf.append(c);
+      }
+    }
+    return new SimpleLike(buf.toString(), start > 0, endsWithAny);
+  }
+
   /**
    * Translates a SQL LIKE pattern to Java regex pattern, with optional
    * escape string.
@@ -304,6 +427,25 @@ static String sqlToRegexSimilar(
 
     return javaPattern.toString();
   }
+
+  /** LIKE pattern that is a literal string, optionally preceded and/or
+   * followed by '%'.
+   *
+   * @see Like#simpleLike(String, String) */
+  public static class SimpleLike {
+    /** The literal string, with escape characters removed. */
+    public final String literal;
+    /** Whether the pattern starts with '%'. */
+    public final boolean startsWithAny;
+    /** Whether the pattern ends with '%'. */
+    public final boolean endsWithAny;
+
+    SimpleLike(String literal, boolean startsWithAny, boolean endsWithAny) {
+      this.literal = literal;
+      this.startsWithAny = startsWithAny;
+      this.endsWithAny = endsWithAny;
+    }
+  }
 }
 
 // End Like.java
@@ -0,0 +1,217 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.*;
+
+import java.util.*;
+
+/**
+ * Inner join of two inputs that are sorted on their join keys.
+ *
+ * <p>Reads both inputs once, in step. The only rows held in memory are the
+ * rows of the inner (right) input that have the current key, so if the
+ * right key is unique, memory use is constant.</p>
+ *
+ * <p>Both inputs must be sorted in ascending order of key. A key is either a
+ * single value or, if the join has several keys, a list of values; the
+ * values must be {@link Comparable}. Rows whose key is or contains null
+ * never match, and are skipped wherever they occur.</p>
+ *
+ * @param <TSource> Outer row type
+ * @param <TInner> Inner row type
+ * @param <TKey> Key type
+ * @param <TResult> Result row type
+ */
+public class MergeJoin<TSource, TInner, TKey, TResult>
+    extends AbstractEnumerable<TResult> {
+  private final Enumerable<TSource> outer;
+  private final Enumerable<TInner> inner;
+  private final Function1<TSource, TKey> outerKeySelector;
+  private final Function1<TInner, TKey> innerKeySelector;
+  private final Function2<TSource, TInner, TResult> resultSelector;
+
+  private MergeJoin(Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector) {
+    this.outer = outer;
+    this.inner = inner;
+    this.outerKeySelector = outerKeySelector;
+    this.innerKeySelector = innerKeySelector;
+    this.resultSelector = resultSelector;
+  }
+
+  /** Joins two inputs that are sorted on their keys. */
+  public static <TSource, TInner, TKey, TResult> Enumerable<TResult> join(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector) {
+    return new MergeJoin<TSource, TInner, TKey, TResult>(outer, inner,
+        outerKeySelector, innerKeySelector, resultSelector);
+  }
+
+  public Enumerator<TResult> enumerator() {
+    return new MergeJoinEnumerator();
+  }
+
+  /** Returns whether a key is null or contains a null. */
+  private static boolean isNull(Object key) {
+    if (key == null) {
+      return true;
+    }
+    if (key instanceof List) {
+      for (Object o : (List) key) {
+        if (o == null) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Compares two keys, neither of which contains null. */
+  static int compare(Object key0, Object key1) {
+    if (key0 instanceof List) {
+      final List list0 = (List) key0;
+      final List list1 = (List) key1;
+      for (int i = 0; i < list0.size(); i++) {
+        final int c = compare(list0.get(i), list1.get(i));
+        if (c != 0) {
+          return c;
+        }
+      }
+      return 0;
+    }
+    //noinspection unchecked
+    return ((Comparable) key0).compareTo(key1);
+  }
+
+  /** Enumerator that performs the merge. */
+  private class MergeJoinEnumerator implements Enumerator<TResult> {
+    private final Enumerator<TSource> outers = outer.enumerator();
+    private final Enumerator<TInner> inners = inner.enumerator();
+
+    /** Current outer row and its key. */
+    private TSource outerRow;
+    private TKey outerKey;
+
+    /** Inner rows whose key is {@link #groupKey}. */
+    private final List<TInner> group = new ArrayList<TInner>();
+    private TKey groupKey;
+    private int groupIndex;
+
+    /** Next inner row not yet in a group, and its key. */
+    private TInner innerRow;
+    private TKey innerKey;
+    private boolean innerStarted;
+    private boolean innerDone;
+
+    private TResult current;
+
+    public TResult current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      for (;;) {
+        if (outerRow != null && groupIndex < group.size()) {
+          current = resultSelector.apply(outerRow, group.get(groupIndex++));
+          return true;
+        }
+        if (!advanceOuter()) {
+          return false;
+        }
+        if (!group.isEmpty() && compare(outerKey, groupKey) == 0) {
+          // Same key as the previous outer row; re-use the group.
+          groupIndex = 0;
+          continue;
+        }
+        group.clear();
+        groupIndex = 0;
+        if (!innerStarted) {
+          innerStarted = true;
+          advanceInner();
+        }
+        while (!innerDone && compare(innerKey, outerKey) < 0) {
+          advanceInner();
+        }
+        if (innerDone) {
+          // No more inner rows, and this outer row does not match the
+          // group (if any). No further rows can match.
+          return false;
+        }
+        if (compare(innerKey, outerKey) > 0) {
+          continue;
+        }
+        groupKey = innerKey;
+        do {
+          group.add(innerRow);
+          advanceInner();
+        } while (!innerDone && compare(innerKey, groupKey) == 0);
+      }
+    }
+
+    /** Moves to the next outer row whose key is not null. */
+    private boolean advanceOuter() {
+      while (outers.moveNext()) {
+        outerRow = outers.current();
+        outerKey = outerKeySelector.apply(outerRow);
+        if (!isNull(outerKey)) {
+          return true;
+        }
+      }
+      outerRow = null;
+      return false;
+    }
+
+    /** Moves to the next inner row whose key is not null. */
+    private void advanceInner() {
+      while (inners.moveNext()) {
+        innerRow = inners.current();
+        innerKey = innerKeySelector.apply(innerRow);
+        if (!isNull(innerKey)) {
+          return;
+        }
+      }
+      innerRow = null;
+      innerDone = true;
+    }
+
+    public void reset() {
+      outers.reset();
+      inners.reset();
+      outerRow = null;
+      group.clear();
+      groupIndex = 0;
+      innerRow = null;
+      innerStarted = false;
+      innerDone = false;
+      current = null;
+    }
+
+    public void close() {
+      outers.close();
+      inners.close();
+    }
+  }
+}
+
+// End MergeJoin.java
@@ -24,9 +24,19 @@
 import net.hydromatic.linq4j.function.Function0;
 import net.hydromatic.linq4j.function.Function1;
 
+import net.hydromatic.optiq.DataContext;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sql.DataSource;
@@ -34,15 +44,56 @@
 /**
  * Executes a SQL statement and returns the result as an {@link Enumerable}.
  *
+ * <p>If the statement has parameters, it is executed as a
+ * {@link PreparedStatement}. Data sources that pool prepared statements,
+ * such as those created by
+ * {@link net.hydromatic.optiq.impl.jdbc.JdbcSchema#dataSource}, can then
+ * re-use the statement, and the database its plan, each time the query is
+ * executed on the same connection.</p>
+ *
  * @param <T> Element type
  */
 public class ResultSetEnumerable<T> extends AbstractEnumerable<T> {
   private final DataSource dataSource;
   private final String sql;
   private final Function1<ResultSet, Function0<T>> rowBuilderFactory;
+  private final Options options;
+  private final Object[] parameters;
   private static final Logger LOGGER = Logger.getLogger(
       ResultSetEnumerable.class.getName());
 
+  /** Executes the threads that read ahead; see {@link Options#readAhead}. */
+  private static final ExecutorService READ_AHEAD_EXECUTOR =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("optiq-jdbc-read-ahead-%d")
+              .build());
+
+  /** Executes queries started by {@link #prefetch()}. The number of threads
+   * is set by the system property "optiq.jdbc.prefetch.threads" (default
+   * 16). */
+  private static final ExecutorService PREFETCH_EXECUTOR =
+      Executors.newFixedThreadPool(
+          Integer.getInteger("optiq.jdbc.prefetch.threads", 16),
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("optiq-jdbc-prefetch-%d")
+              .build());
+
+  /** Number of rows that {@link #prefetch()} buffers if
+   * {@link Options#readAhead} is not set. */
+  public static final int PREFETCH_BUFFER_SIZE = 1000;
+
+  /** Number of milliseconds for which prefetched rows are kept, once the
+   * buffer is full, before the query is abandoned. */
+  public static final long PREFETCH_IDLE_MILLIS = 60000L;
+
+  /** Values of the claim of a {@link ReadAheadEnumerator}. */
+  private static final int UNCLAIMED = 0;
+  private static final int CLAIMED = 1;
+  private static final int ABANDONED = 2;
+
   private static final Function1<ResultSet, Function0<Object>>
   AUTO_ROW_BUILDER_FACTORY =
       new Function1<ResultSet, Function0<Object>>() {
@@ -96,10 +147,14 @@ public Object[] apply() {
   private ResultSetEnumerable(
       DataSource dataSource,
       String sql,
-      Function1<ResultSet, Function0<T>> rowBuilderFactory) {
+      Function1<ResultSet, Function0<T>> rowBuilderFactory,
+      Options options,
+      Object[] parameters) {
     this.dataSource = dataSource;
     this.sql = sql;
     this.rowBuilderFactory = rowBuilderFactory;
+    this.options = options;
+    this.parameters = parameters;
   }
 
   /** Creates an ResultSetEnumerable. */
@@ -120,26 +175,167 @@ public static <T> Enumerable<T> of(
       DataSource dataSource,
       String sql,
       Function1<ResultSet, Function0<T>> rowBuilderFactory) {
-    return new ResultSetEnumerable<T>(dataSource, sql, rowBuilderFactory);
+    return of(dataSource, sql, rowBuilderFactory, Options.DEFAULT);
+  }
+
+  /** Executes a SQL query with given options and returns the results as an
+   * enumerator, using a row builder to convert JDBC column values into
+   * rows. */
+  public static <T> Enumerable<T> of(
+      DataSource dataSource,
+      String sql,
+      Function1<ResultSet, Function0<T>> rowBuilderFactory,
+      Options options) {
+    return new ResultSetEnumerable<T>(dataSource, sql, rowBuilderFactory,
+        options, null);
+  }
+
+  /** Executes a SQL query that has parameters ("?"), binding the given
+   * values to them, and returns the results as an enumerator. */
+  public static <T> ResultSetEnumerable<T> of(
+      DataSource dataSource,
+      String sql,
+      Function1<ResultSet, Function0<T>> rowBuilderFactory,
+      Options options,
+      Object[] parameters) {
+    return new ResultSetEnumerable<T>(dataSource, sql, rowBuilderFactory,
+        options, parameters);
   }
 
   public Enumerator<T> enumerator() {
+    final Enumerator<T> enumerator = open();
+    if (options.readAhead > 0) {
+      return new ReadAheadEnumerator<T>(
+          new Function0<Enumerator<T>>() {
+            public Enumerator<T> apply() {
+              return enumerator;
+            }
+          },
+          options.readAhead, READ_AHEAD_EXECUTOR, false,
+          new AtomicInteger(CLAIMED));
+    }
+    return enumerator;
+  }
+
+  /** Returns an enumerable that starts executing the query now, in a
+   * background thread, and buffers rows until they are needed.
+   *
+   * <p>Use this to run several queries at the same time, rather than one
+   * after another. The first enumerator returned by the enumerable reads
+   * the buffered rows; any further enumerators execute the query again.
+   * If no enumerator has been created within
+   * {@link #PREFETCH_IDLE_MILLIS} of the buffer becoming full, the query is
+   * abandoned, so as to free its connection, and will be executed again if
+   * an enumerator is created later.</p>
+   *
+   * <p>Background threads are drawn from a pool of fixed size. If a query
+   * has not started by the time that its rows are needed, it is executed in
+   * the thread that needs them.</p> */
+  public Enumerable<T> prefetch() {
+    return prefetch(null);
+  }
+
+  /** As {@link #prefetch()}, but ties the query to the statement that is
+   * executing. The query is registered as one of the statement's
+   * {@link DataContext.Variable#STATEMENT_RESOURCES resources}, so if the
+   * statement is closed or cancelled, the query is stopped and its
+   * connection freed, and a consumer waiting for its rows gets an error.
+   *
+   * <p>Generated code calls this method.</p>
+   *
+   * @param root Data context of the statement, or null
+   */
+  public Enumerable<T> prefetch(DataContext root) {
+    final AtomicInteger claim = new AtomicInteger(UNCLAIMED);
+    final ReadAheadEnumerator<T> prefetched =
+        new ReadAheadEnumerator<T>(
+            new Function0<Enumerator<T>>() {
+              public Enumerator<T> apply() {
+                return open();
+              }
+            },
+            options.readAhead > 0 ? options.readAhead : PREFETCH_BUFFER_SIZE,
+            PREFETCH_EXECUTOR, true, claim);
+    if (root != null) {
+      final Collection<Closeable> resources =
+          DataContext.Variable.STATEMENT_RESOURCES.get(root);
+      if (resources != null) {
+        resources.add(
+            new Closeable() {
+              public void close() {
+                prefetched.cancel();
+              }
+            });
+      }
+    }
+    return new AbstractEnumerable<T>() {
+      public Enumerator<T> enumerator() {
+        if (claim.compareAndSet(UNCLAIMED, CLAIMED)) {
+          return prefetched;
+        }
+        return ResultSetEnumerable.this.enumerator();
+      }
+    };
+  }
+
+  /** Executes the query and returns an enumerator over its result set. */
+  private Enumerator<T> open() {
     Connection connection = null;
     Statement statement = null;
+    boolean restoreAutoCommit = false;
     try {
       connection = dataSource.getConnection();
-      statement = connection.createStatement();
-      try {
-        statement.setQueryTimeout(10);
-      } catch (SQLFeatureNotSupportedException e) {
-        if (LOGGER.isLoggable(Level.FINE)) {
-          LOGGER.fine("Failed to set query timeout.");
+      if (options.streaming) {
+        // Some drivers, PostgreSQL's among them, only fetch rows
+        // incrementally within a transaction. The enumerator ends the
+        // transaction and restores auto-commit when it is closed.
+        if (connection.getAutoCommit()) {
+          connection.setAutoCommit(false);
+          restoreAutoCommit = true;
+        }
+        statement = parameters == null
+            ? connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)
+            : connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+      } else {
+        statement = parameters == null
+            ? connection.createStatement()
+            : connection.prepareStatement(sql);
+      }
+      if (options.queryTimeout > 0) {
+        try {
+          statement.setQueryTimeout(options.queryTimeout);
+        } catch (SQLFeatureNotSupportedException e) {
+          if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Failed to set query timeout.");
+          }
+        }
+      }
+      if (options.fetchSize != 0) {
+        try {
+          statement.setFetchSize(options.fetchSize);
+        } catch (SQLException e) {
+          if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Failed to set fetch size.");
+          }
+        }
+      }
+      final ResultSet resultSet;
+      if (parameters == null) {
+        resultSet = statement.executeQuery(sql);
+      } else {
+        final PreparedStatement preparedStatement =
+            (PreparedStatement) statement;
+        for (int i = 0; i < parameters.length; i++) {
+          preparedStatement.setObject(i + 1, parameters[i]);
         }
+        resultSet = preparedStatement.executeQuery();
       }
-      final ResultSet resultSet = statement.executeQuery(sql);
       statement = null;
       connection = null;
-      return new ResultSetEnumerator<T>(resultSet, rowBuilderFactory);
+      return new ResultSetEnumerator<T>(resultSet, rowBuilderFactory,
+          restoreAutoCommit);
     } catch (SQLException e) {
       throw new RuntimeException("while executing SQL [" + sql + "]", e);
     } finally {
@@ -151,11 +347,35 @@ public Enumerator<T> enumerator() {
         }
       }
       if (connection != null) {
+        closeConnection(connection, restoreAutoCommit);
+      }
+    }
+  }
+
+  /** Closes a connection. If auto-commit was switched off in order to
+   * stream results, first ends the transaction, by commit or, if that fails,
+   * by rollback, and switches auto-commit back on; a data source that pools
+   * connections then gets the connection back in the state in which it
+   * handed it out. */
+  private static void closeConnection(Connection connection,
+      boolean restoreAutoCommit) {
+    try {
+      if (restoreAutoCommit) {
         try {
-          connection.close();
+          // The transaction only read, so commit and rollback are the same.
+          connection.commit();
         } catch (SQLException e) {
-          // ignore
+          connection.rollback();
         }
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Failed to restore auto-commit", e);
+    } finally {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // ignore
       }
     }
   }
@@ -164,13 +384,25 @@ public Enumerator<T> enumerator() {
    * {@link ResultSet}. */
   private static class ResultSetEnumerator<T> implements Enumerator<T> {
     private final Function0<T> rowBuilder;
+    private final boolean restoreAutoCommit;
     private ResultSet resultSet;
 
+    /** Creates a ResultSetEnumerator.
+     *
+     * @param resultSet Result set
+     * @param rowBuilderFactory Creates a row from the current row of the
+     *                          result set
+     * @param restoreAutoCommit Whether auto-commit was switched off, and
+     *                          should be switched back on when the connection
+     *                          is closed
+     */
     public ResultSetEnumerator(
         ResultSet resultSet,
-        Function1<ResultSet, Function0<T>> rowBuilderFactory) {
+        Function1<ResultSet, Function0<T>> rowBuilderFactory,
+        boolean restoreAutoCommit) {
       this.resultSet = resultSet;
       this.rowBuilder = rowBuilderFactory.apply(resultSet);
+      this.restoreAutoCommit = restoreAutoCommit;
     }
 
     public T current() {
@@ -196,21 +428,285 @@ public void reset() {
     public void close() {
       ResultSet savedResultSet = resultSet;
       if (savedResultSet != null) {
+        Connection connection = null;
         try {
           resultSet = null;
           final Statement statement = savedResultSet.getStatement();
           savedResultSet.close();
           if (statement != null) {
-            final Connection connection = statement.getConnection();
+            connection = statement.getConnection();
             statement.close();
-            if (connection != null) {
-              connection.close();
-            }
           }
         } catch (SQLException e) {
           // ignore
         }
+        if (connection != null) {
+          closeConnection(connection, restoreAutoCommit);
+        }
+      }
+    }
+  }
+
+  /** Enumerator that reads rows from another enumerator in a background
+   * thread, into a buffer of bounded size. Fetching rows from the database
+   * overlaps with processing them.
+   *
+   * <p>Rows are built by the background thread, so the row builder must
+   * create a new object for each row. The background thread closes the
+   * underlying enumerator when it reaches the end, when there is an error,
+   * or when this enumerator is closed.</p>
+   *
+   * <p>If the source is lazy, that is, if it opens the underlying enumerator
+   * only when called, and the background thread has not started when the
+   * first row is requested, this enumerator opens and reads the underlying
+   * enumerator directly. Therefore a consumer never waits for a thread from
+   * a busy pool.</p>
+   *
+   * <p>While this enumerator is unclaimed, that is, while no consumer has
+   * asked for it, the background thread gives up if the buffer stays full
+   * for {@link #PREFETCH_IDLE_MILLIS}, and marks it abandoned.</p> */
+  private static class ReadAheadEnumerator<T> implements Enumerator<T> {
+    /** Marks the end of the rows. */
+    private static final Object END = new Object();
+
+    /** Stands for a null row, because a queue cannot hold nulls. */
+    private static final Object NULL = new Object();
+
+    private final Function0<Enumerator<T>> source;
+    private final BlockingQueue<Object> queue;
+    private final boolean lazy;
+    private final AtomicInteger claim;
+
+    /** Set by whichever of the background thread and the consumer opens the
+     * underlying enumerator. */
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Future<?> future;
+    private volatile boolean closed;
+    private boolean done;
+    private Object current;
+
+    /** Underlying enumerator, if the consumer opened it. */
+    private Enumerator<T> inline;
+
+    ReadAheadEnumerator(Function0<Enumerator<T>> source, int bufferSize,
+        ExecutorService executor, boolean lazy, AtomicInteger claim) {
+      this.source = source;
+      this.queue = new ArrayBlockingQueue<Object>(bufferSize);
+      this.lazy = lazy;
+      this.claim = claim;
+      this.future = executor.submit(
+          new Runnable() {
+            public void run() {
+              if (started.compareAndSet(false, true)) {
+                produce();
+              }
+            }
+          });
+    }
+
+    /** Reads rows from the underlying enumerator into the queue. Runs in the
+     * background thread. */
+    private void produce() {
+      Object last = END;
+      Enumerator<T> enumerator = null;
+      try {
+        enumerator = source.apply();
+        while (!closed && enumerator.moveNext()) {
+          final T row = enumerator.current();
+          if (!put(row == null ? NULL : row)) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        // This enumerator has been closed.
+        return;
+      } catch (Throwable e) {
+        last = new Failure(e);
+      } finally {
+        if (enumerator != null) {
+          enumerator.close();
+        }
+      }
+      try {
+        if (!closed) {
+          put(last);
+        }
+      } catch (InterruptedException e) {
+        // This enumerator has been closed.
+      }
+    }
+
+    /** Adds an element to the queue, waiting for space if necessary. Returns
+     * false if this enumerator has been abandoned. */
+    private boolean put(Object o) throws InterruptedException {
+      while (!queue.offer(o, PREFETCH_IDLE_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (claim.compareAndSet(UNCLAIMED, ABANDONED)) {
+          queue.clear();
+          return false;
+        }
       }
+      return true;
+    }
+
+    public T current() {
+      if (inline != null) {
+        return inline.current();
+      }
+      //noinspection unchecked
+      return current == NULL ? null : (T) current;
+    }
+
+    public boolean moveNext() {
+      if (done) {
+        return false;
+      }
+      if (lazy
+          && inline == null
+          && started.compareAndSet(false, true)) {
+        // The background thread has not started. Rather than wait for it,
+        // read the rows in this thread.
+        future.cancel(false);
+        inline = source.apply();
+      }
+      if (inline != null) {
+        return inline.moveNext();
+      }
+      final Object o;
+      try {
+        o = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      if (o == END) {
+        done = true;
+        return false;
+      }
+      if (o instanceof Failure) {
+        done = true;
+        final Throwable e = ((Failure) o).e;
+        if (e instanceof RuntimeException) {
+          throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+          throw (Error) e;
+        }
+        throw new RuntimeException(e);
+      }
+      current = o;
+      return true;
+    }
+
+    public void reset() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      closed = true;
+      done = true;
+      future.cancel(true);
+      queue.clear();
+      if (inline != null) {
+        inline.close();
+        inline = null;
+      } else if (!lazy && started.compareAndSet(false, true)) {
+        // The background thread never started, so it will not close the
+        // underlying enumerator, which was already open.
+        source.apply().close();
+      }
+    }
+
+    /** Stops the background thread, if it has not finished, and makes a
+     * consumer that is waiting for rows, or asks for them later, fail.
+     *
+     * <p>Unlike {@link #close()}, may be called from a thread other than the
+     * consumer's, for example when a statement is closed or cancelled. It
+     * does not touch an underlying enumerator that the consumer opened
+     * itself.</p> */
+    void cancel() {
+      closed = true;
+      // Prevent the consumer from running the query itself.
+      started.set(true);
+      future.cancel(true);
+      final Failure failure =
+          new Failure(new CancellationException("Query was cancelled"));
+      // The background thread may add a row or two before it notices that
+      // it has been interrupted.
+      while (!queue.offer(failure)) {
+        queue.clear();
+      }
+    }
+
+    /** Error that occurred in the background thread. */
+    private static class Failure {
+      final Throwable e;
+
+      Failure(Throwable e) {
+        this.e = e;
+      }
+    }
+  }
+
+  /** Options for executing a query. */
+  public static class Options {
+    /** Options used if none are specified: a query timeout of 10 seconds,
+     * and the driver's default fetch size. */
+    public static final Options DEFAULT = new Options(0, 10, false, 0);
+
+    /** Number of rows to fetch from the database at a time, or 0 to use the
+     * driver's default. */
+    public final int fetchSize;
+
+    /** Number of seconds to wait for the query to execute, or 0 for no
+     * limit. */
+    public final int queryTimeout;
+
+    /** Whether to read the results as a forward-only, read-only result set,
+     * outside auto-commit mode. Together with a fetch size, this allows
+     * drivers that would otherwise read the whole result into memory to
+     * return rows as they arrive. */
+    public final boolean streaming;
+
+    /** Number of rows to read ahead in a background thread, or 0 to read
+     * rows only when they are requested. */
+    public final int readAhead;
+
+    public Options(int fetchSize, int queryTimeout, boolean streaming,
+        int readAhead) {
+      this.fetchSize = fetchSize;
+      this.queryTimeout = queryTimeout;
+      this.streaming = streaming;
+      this.readAhead = readAhead;
+    }
+
+    /** Creates options from a map of property/value pairs, such as the
+     * operand of a schema in a model. Missing properties take their default
+     * values. */
+    public static Options of(Map<String, Object> operand) {
+      return new Options(
+          intValue(operand.get("fetchSize"), DEFAULT.fetchSize),
+          intValue(operand.get("queryTimeout"), DEFAULT.queryTimeout),
+          booleanValue(operand.get("streaming"), DEFAULT.streaming),
+          intValue(operand.get("readAhead"), DEFAULT.readAhead));
+    }
+
+    private static int intValue(Object o, int defaultValue) {
+      return o == null ? defaultValue
+          : o instanceof Number ? ((Number) o).intValue()
+          : Integer.parseInt(o.toString());
+    }
+
+    private static boolean booleanValue(Object o, boolean defaultValue) {
+      return o == null ? defaultValue
+          : o instanceof Boolean ? (Boolean) o
+          : Boolean.parseBoolean(o.toString());
+    }
+
+    @Override public String toString() {
+      return "Options(fetchSize: " + fetchSize
+          + ", queryTimeout: " + queryTimeout
+          + ", streaming: " + streaming
+          + ", readAhead: " + readAhead + ")";
     }
   }
 
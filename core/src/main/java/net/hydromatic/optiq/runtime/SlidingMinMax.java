@@ -0,0 +1,211 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Accumulator for MIN or MAX over a window whose frame slides forward.
+ *
+ * <p>Keeps a deque of candidate values whose row indexes ascend and whose
+ * values ascend (for MIN) or descend (for MAX). A value that can never again
+ * be the extremum, because a later row has a value at least as good, is
+ * discarded when that later row is added. The extremum of the frame is
+ * therefore at the head of the deque. Each row is added and removed at most
+ * once, so a partition of n rows is processed in O(n) time however large the
+ * frame.</p>
+ *
+ * <p>Rows must be added in ascending order of index, and removed in the same
+ * order.</p>
+ *
+ * <p>Sub-classes hold the values: {@link OfLong} and {@link OfDouble} in
+ * primitive arrays, so that numeric values are not boxed, and
+ * {@link OfComparable} for other types.</p>
+ */
+public abstract class SlidingMinMax {
+  protected final boolean min;
+  int[] indexes = new int[16];
+  int head;
+  int tail;
+
+  protected SlidingMinMax(boolean min) {
+    this.min = min;
+  }
+
+  /** Removes the value of a row that has left the frame. */
+  public void remove(int index) {
+    if (tail > head && indexes[head] == index) {
+      clear(head++);
+    }
+  }
+
+  /** Returns whether the frame contains no values. */
+  public boolean isEmpty() {
+    return tail == head;
+  }
+
+  /** Makes room for one more value at the tail of the deque. */
+  final void ensureCapacity() {
+    if (tail == indexes.length) {
+      final int n = tail - head;
+      if (head > indexes.length / 2) {
+        // More than half of the array is free at the front; shift down.
+        System.arraycopy(indexes, head, indexes, 0, n);
+        shift(head, n);
+        tail = n;
+        head = 0;
+      } else {
+        indexes = Arrays.copyOf(indexes, indexes.length * 2);
+        resize(indexes.length);
+      }
+    }
+  }
+
+  /** Releases the value at a given position, which has left the deque. */
+  void clear(int i) {
+  }
+
+  /** Moves {@code n} values starting at {@code from} to the start of the
+   * value array. */
+  abstract void shift(int from, int n);
+
+  /** Grows the value array to a given capacity. */
+  abstract void resize(int capacity);
+
+  /** Deque of objects, compared using {@link Comparable#compareTo}. */
+  public static class OfComparable extends SlidingMinMax {
+    private Comparable[] values = new Comparable[16];
+
+    public OfComparable(boolean min) {
+      super(min);
+    }
+
+    /** Adds the value of a row that has entered the frame. */
+    public void add(int index, Comparable value) {
+      while (tail > head && isWorse(values[tail - 1], value)) {
+        values[--tail] = null;
+      }
+      ensureCapacity();
+      indexes[tail] = index;
+      values[tail++] = value;
+    }
+
+    /** Returns the minimum (or maximum) value in the frame, or null if the
+     * frame is empty. */
+    public Object get() {
+      return tail == head ? null : values[head];
+    }
+
+    private boolean isWorse(Comparable existing, Comparable value) {
+      //noinspection unchecked
+      final int c = existing.compareTo(value);
+      return min ? c >= 0 : c <= 0;
+    }
+
+    @Override
+    void clear(int i) {
+      values[i] = null;
+    }
+
+    void shift(int from, int n) {
+      System.arraycopy(values, from, values, 0, n);
+      Arrays.fill(values, n, from + n, null);
+    }
+
+    void resize(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+  }
+
+  /** Deque of {@code long} values. Also used for {@code byte},
+   * {@code short} and {@code int}. */
+  public static class OfLong extends SlidingMinMax {
+    private long[] values = new long[16];
+
+    public OfLong(boolean min) {
+      super(min);
+    }
+
+    /** Adds the value of a row that has entered the frame. */
+    public void add(int index, long value) {
+      while (tail > head
+          && (min ? values[tail - 1] >= value : values[tail - 1] <= value)) {
+        --tail;
+      }
+      ensureCapacity();
+      indexes[tail] = index;
+      values[tail++] = value;
+    }
+
+    /** Returns the minimum (or maximum) value in the frame. The frame must
+     * not be empty. */
+    public long getLong() {
+      return values[head];
+    }
+
+    void shift(int from, int n) {
+      System.arraycopy(values, from, values, 0, n);
+    }
+
+    void resize(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+  }
+
+  /** Deque of {@code double} values. Also used for {@code float}. Values are
+   * compared as {@link Double#compare} does, so that the result is the same
+   * as for boxed values. */
+  public static class OfDouble extends SlidingMinMax {
+    private double[] values = new double[16];
+
+    public OfDouble(boolean min) {
+      super(min);
+    }
+
+    /** Adds the value of a row that has entered the frame. */
+    public void add(int index, double value) {
+      while (tail > head && isWorse(values[tail - 1], value)) {
+        --tail;
+      }
+      ensureCapacity();
+      indexes[tail] = index;
+      values[tail++] = value;
+    }
+
+    /** Returns the minimum (or maximum) value in the frame. The frame must
+     * not be empty. */
+    public double getDouble() {
+      return values[head];
+    }
+
+    private boolean isWorse(double existing, double value) {
+      final int c = Double.compare(existing, value);
+      return min ? c >= 0 : c <= 0;
+    }
+
+    void shift(int from, int n) {
+      System.arraycopy(values, from, values, 0, n);
+    }
+
+    void resize(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+  }
+}
+
+// End SlidingMinMax.java
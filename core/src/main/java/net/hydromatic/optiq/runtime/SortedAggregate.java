@@ -0,0 +1,210 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.*;
+
+/**
+ * Aggregation of an input whose rows arrive grouped by key.
+ *
+ * <p>Rows with equal keys must be adjacent, as they are if the input is
+ * sorted on the key columns, in any direction. Each group is emitted as soon
+ * as a row with a different key arrives, so only one accumulator is held in
+ * memory at a time, however many groups there are.</p>
+ *
+ * <p>Keys are compared using {@link Object#equals}; null keys are equal to
+ * each other.</p>
+ */
+public class SortedAggregate {
+  private SortedAggregate() {
+  }
+
+  /** Groups the rows of an input that is sorted on the key, and applies an
+   * accumulator to each group. Equivalent to the four-argument
+   * {@code groupBy} method of {@link ExtendedEnumerable}, but does not build
+   * a hash table. */
+  public static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
+  groupBy(
+      final Enumerable<TSource> source,
+      final Function1<TSource, TKey> keySelector,
+      final Function0<TAccumulate> accumulatorInitializer,
+      final Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+      final Function2<TKey, TAccumulate, TResult> resultSelector) {
+    return new AbstractEnumerable<TResult>() {
+      public Enumerator<TResult> enumerator() {
+        return new GroupEnumerator<TSource, TKey, TAccumulate, TResult>(
+            source.enumerator(), keySelector, accumulatorInitializer,
+            accumulatorAdder, resultSelector);
+      }
+    };
+  }
+
+  /** Removes adjacent duplicate rows from an input that is sorted on all of
+   * its columns.
+   *
+   * @param source Input
+   * @param comparer Comparer, or null to use {@link Object#equals}
+   */
+  public static <TSource> Enumerable<TSource> distinct(
+      final Enumerable<TSource> source,
+      final EqualityComparer<TSource> comparer) {
+    return new AbstractEnumerable<TSource>() {
+      public Enumerator<TSource> enumerator() {
+        return new DistinctEnumerator<TSource>(source.enumerator(), comparer);
+      }
+    };
+  }
+
+  private static boolean equal(Object o0, Object o1) {
+    return o0 == o1 || o0 != null && o0.equals(o1);
+  }
+
+  /** Enumerator that emits one row per group of adjacent rows with the same
+   * key.
+   *
+   * @param <TSource> Input row type
+   * @param <TKey> Key type
+   * @param <TAccumulate> Accumulator type
+   * @param <TResult> Result row type
+   */
+  private static class GroupEnumerator<TSource, TKey, TAccumulate, TResult>
+      implements Enumerator<TResult> {
+    private final Enumerator<TSource> input;
+    private final Function1<TSource, TKey> keySelector;
+    private final Function0<TAccumulate> accumulatorInitializer;
+    private final Function2<TAccumulate, TSource, TAccumulate>
+    accumulatorAdder;
+    private final Function2<TKey, TAccumulate, TResult> resultSelector;
+
+    /** First row of the next group, already read from the input. */
+    private TSource pending;
+    private boolean hasPending;
+    private boolean started;
+    private TResult current;
+
+    GroupEnumerator(Enumerator<TSource> input,
+        Function1<TSource, TKey> keySelector,
+        Function0<TAccumulate> accumulatorInitializer,
+        Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+        Function2<TKey, TAccumulate, TResult> resultSelector) {
+      this.input = input;
+      this.keySelector = keySelector;
+      this.accumulatorInitializer = accumulatorInitializer;
+      this.accumulatorAdder = accumulatorAdder;
+      this.resultSelector = resultSelector;
+    }
+
+    public TResult current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (!started) {
+        started = true;
+        hasPending = input.moveNext();
+        if (hasPending) {
+          pending = input.current();
+        }
+      }
+      if (!hasPending) {
+        return false;
+      }
+      final TKey key = keySelector.apply(pending);
+      TAccumulate accumulator = accumulatorInitializer.apply();
+      accumulator = accumulatorAdder.apply(accumulator, pending);
+      hasPending = false;
+      pending = null;
+      while (input.moveNext()) {
+        final TSource row = input.current();
+        if (!equal(key, keySelector.apply(row))) {
+          pending = row;
+          hasPending = true;
+          break;
+        }
+        accumulator = accumulatorAdder.apply(accumulator, row);
+      }
+      current = resultSelector.apply(key, accumulator);
+      return true;
+    }
+
+    public void reset() {
+      input.reset();
+      started = false;
+      hasPending = false;
+      pending = null;
+      current = null;
+    }
+
+    public void close() {
+      input.close();
+    }
+  }
+
+  /** Enumerator that skips rows equal to the previous row.
+   *
+   * @param <TSource> Row type
+   */
+  private static class DistinctEnumerator<TSource>
+      implements Enumerator<TSource> {
+    private final Enumerator<TSource> input;
+    private final EqualityComparer<TSource> comparer;
+    private boolean started;
+    private TSource current;
+
+    DistinctEnumerator(Enumerator<TSource> input,
+        EqualityComparer<TSource> comparer) {
+      this.input = input;
+      this.comparer = comparer;
+    }
+
+    public TSource current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      while (input.moveNext()) {
+        final TSource row = input.current();
+        if (!started) {
+          started = true;
+          current = row;
+          return true;
+        }
+        if (comparer == null
+            ? !equal(current, row)
+            : !comparer.equal(current, row)) {
+          current = row;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public void reset() {
+      input.reset();
+      started = false;
+      current = null;
+    }
+
+    public void close() {
+      input.close();
+    }
+  }
+}
+
+// End SortedAggregate.java
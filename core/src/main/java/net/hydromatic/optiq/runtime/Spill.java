@@ -0,0 +1,517 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Utilities for operators that write rows to temporary files when their
+ * input does not fit within a memory budget.
+ */
+public class Spill {
+  /** Number of rows after which a {@link RowFile} resets its object stream,
+   * so that the stream does not hold references to every row written. */
+  private static final int RESET_INTERVAL = 1024;
+
+  /** Longest string that is written in the compact format. Longer strings
+   * might exceed the 65,535 byte limit of modified UTF-8. */
+  private static final int MAX_UTF_LENGTH = 16384;
+
+  // Tags of values in the compact format.
+  private static final byte NULL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte BYTE = 3;
+  private static final byte SHORT = 4;
+  private static final byte INTEGER = 5;
+  private static final byte LONG = 6;
+  private static final byte FLOAT = 7;
+  private static final byte DOUBLE = 8;
+  private static final byte STRING = 9;
+  private static final byte BIG_DECIMAL = 10;
+  private static final byte ARRAY = 11;
+  private static final byte OBJECT = 12;
+  private static final byte FIELDS = 13;
+  private static final byte LIST = 14;
+
+  private Spill() {
+  }
+
+  /** Statistics about the temporary files written by an operator.
+   *
+   * <p>An operator that spills creates a Stats, {@link #add adds} each file
+   * after writing it, and passes the Stats to {@link Hook#SPILL}.</p> */
+  public static class Stats {
+    /** Name of the operator, for example "join". */
+    public final String operator;
+    private int fileCount;
+    private long rowCount;
+    private long byteCount;
+
+    public Stats(String operator) {
+      this.operator = operator;
+    }
+
+    /** Records a file that has been written. */
+    public void add(RowFile file) {
+      ++fileCount;
+      rowCount += file.size();
+      byteCount += file.byteCount();
+    }
+
+    /** Returns the number of files written. */
+    public int getFileCount() {
+      return fileCount;
+    }
+
+    /** Returns the number of rows written. */
+    public long getRowCount() {
+      return rowCount;
+    }
+
+    /** Returns the number of bytes written. */
+    public long getByteCount() {
+      return byteCount;
+    }
+
+    @Override public String toString() {
+      return "Spill(operator: " + operator
+          + ", files: " + fileCount
+          + ", rows: " + rowCount
+          + ", bytes: " + byteCount + ")";
+    }
+  }
+
+  /** Writes a value in the compact format.
+   *
+   * <p>Nulls, primitive values, strings, decimals and arrays of those (which
+   * are what most rows consist of) are written as a tag byte followed by
+   * their value. Other objects are written using Java serialization, and
+   * must therefore be serializable.</p> */
+  public static void write(ObjectOutputStream out, Object o)
+      throws IOException {
+    write(out, o, null);
+  }
+
+  /** Writes a value in the compact format, writing objects of classes that
+   * are not part of the JDK field by field if a class table is given. */
+  private static void write(ObjectOutputStream out, Object o,
+      ClassTable classes) throws IOException {
+    if (o == null) {
+      out.writeByte(NULL);
+    } else if (o instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) o);
+    } else if (o instanceof String
+        && ((String) o).length() <= MAX_UTF_LENGTH) {
+      out.writeByte(STRING);
+      out.writeUTF((String) o);
+    } else if (o instanceof Object[]) {
+      final Object[] objects = (Object[]) o;
+      out.writeByte(ARRAY);
+      out.writeInt(objects.length);
+      for (Object object : objects) {
+        write(out, object, classes);
+      }
+    } else if (o instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) o);
+    } else if (o instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) o);
+    } else if (o instanceof Boolean) {
+      out.writeByte((Boolean) o ? TRUE : FALSE);
+    } else if (o instanceof BigDecimal) {
+      out.writeByte(BIG_DECIMAL);
+      out.writeUTF(o.toString());
+    } else if (o instanceof Short) {
+      out.writeByte(SHORT);
+      out.writeShort((Short) o);
+    } else if (o instanceof Byte) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte) o);
+    } else if (o instanceof Float) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float) o);
+    } else if (classes != null
+        && o instanceof List
+        && o.getClass().getClassLoader() == null) {
+      // A JDK list, perhaps a field of a row, may contain objects that
+      // need to be written field by field. It is read back as an ArrayList.
+      final List list = (List) o;
+      out.writeByte(LIST);
+      out.writeInt(list.size());
+      for (Object object : list) {
+        write(out, object, classes);
+      }
+    } else if (classes != null
+        && o.getClass().getClassLoader() != null
+        && classes.codec(o.getClass()) != null) {
+      // Row classes generated by Janino, and classes such as those of a
+      // ReflectiveSchema, are often not serializable, and if they are, a
+      // stream would not be able to find them when reading them back.
+      final ClassCodec codec = classes.codec(o.getClass());
+      out.writeByte(FIELDS);
+      out.writeInt(codec.id);
+      codec.write(out, o, classes);
+    } else {
+      out.writeByte(OBJECT);
+      out.writeObject(o);
+    }
+  }
+
+  /** Reads a value written by {@link #write}. */
+  public static Object read(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    return read(in, null);
+  }
+
+  private static Object read(ObjectInputStream in, ClassTable classes)
+      throws IOException, ClassNotFoundException {
+    final byte tag = in.readByte();
+    switch (tag) {
+    case NULL:
+      return null;
+    case TRUE:
+      return Boolean.TRUE;
+    case FALSE:
+      return Boolean.FALSE;
+    case BYTE:
+      return in.readByte();
+    case SHORT:
+      return in.readShort();
+    case INTEGER:
+      return in.readInt();
+    case LONG:
+      return in.readLong();
+    case FLOAT:
+      return in.readFloat();
+    case DOUBLE:
+      return in.readDouble();
+    case STRING:
+      return in.readUTF();
+    case BIG_DECIMAL:
+      return new BigDecimal(in.readUTF());
+    case ARRAY:
+      final Object[] objects = new Object[in.readInt()];
+      for (int i = 0; i < objects.length; i++) {
+        objects[i] = read(in, classes);
+      }
+      return objects;
+    case OBJECT:
+      return in.readObject();
+    case LIST:
+      final int size = in.readInt();
+      final List<Object> list = new ArrayList<Object>(size);
+      for (int i = 0; i < size; i++) {
+        list.add(read(in, classes));
+      }
+      return list;
+    case FIELDS:
+      if (classes == null) {
+        throw new IOException("no class table to read object");
+      }
+      return classes.codecs.get(in.readInt()).read(in, classes);
+    default:
+      throw new IOException("unknown tag " + tag);
+    }
+  }
+
+  /** Classes of the objects written field by field to a {@link RowFile}.
+   *
+   * <p>The file refers to each class by its position in the table. The
+   * file is read by the same process that wrote it, so the table holds the
+   * classes themselves, and never needs to find a class by name.</p> */
+  private static class ClassTable {
+    final List<ClassCodec> codecs = new ArrayList<ClassCodec>();
+    final Map<Class, ClassCodec> map = new HashMap<Class, ClassCodec>();
+
+    /** Returns the codec for a class, creating it if necessary, or null if
+     * the class cannot be written field by field. */
+    ClassCodec codec(Class clazz) {
+      if (map.containsKey(clazz)) {
+        return map.get(clazz);
+      }
+      final ClassCodec codec = ClassCodec.create(clazz, codecs.size());
+      if (codec != null) {
+        codecs.add(codec);
+      }
+      map.put(clazz, codec);
+      return codec;
+    }
+  }
+
+  /** Writes and reads the instance fields of objects of a given class.
+   *
+   * <p>An object is re-created using the class's constructor with no
+   * arguments, after which its fields are assigned, or a constructor whose
+   * parameters have the same types as its fields, in order. Classes that
+   * Optiq generates for rows have the latter, as do most classes with
+   * public final fields.</p> */
+  private static class ClassCodec {
+    final int id;
+    final List<Field> fields;
+    final Constructor constructor;
+
+    private ClassCodec(int id, List<Field> fields, Constructor constructor) {
+      this.id = id;
+      this.fields = fields;
+      this.constructor = constructor;
+    }
+
+    static ClassCodec create(Class clazz, int id) {
+      if (clazz.isArray() || clazz.isInterface()
+          || Modifier.isAbstract(clazz.getModifiers())
+          || Enum.class.isAssignableFrom(clazz)) {
+        return null;
+      }
+      final List<Class> classes = new ArrayList<Class>();
+      for (Class c = clazz; c != Object.class; c = c.getSuperclass()) {
+        classes.add(0, c);
+      }
+      final List<Field> fields = new ArrayList<Field>();
+      final List<Class> fieldTypes = new ArrayList<Class>();
+      for (Class c : classes) {
+        for (Field field : c.getDeclaredFields()) {
+          final int modifiers = field.getModifiers();
+          if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+              || field.isSynthetic()) {
+            continue;
+          }
+          fields.add(field);
+          fieldTypes.add(field.getType());
+        }
+      }
+      Constructor constructor = null;
+      for (Constructor c : clazz.getDeclaredConstructors()) {
+        final List<Class> parameterTypes =
+            Arrays.<Class>asList(c.getParameterTypes());
+        if (parameterTypes.isEmpty() || parameterTypes.equals(fieldTypes)) {
+          constructor = c;
+          if (parameterTypes.isEmpty()) {
+            break;
+          }
+        }
+      }
+      if (constructor == null) {
+        return null;
+      }
+      try {
+        constructor.setAccessible(true);
+        for (Field field : fields) {
+          field.setAccessible(true);
+        }
+      } catch (SecurityException e) {
+        return null;
+      }
+      return new ClassCodec(id, fields, constructor);
+    }
+
+    void write(ObjectOutputStream out, Object o, ClassTable classes)
+        throws IOException {
+      try {
+        for (Field field : fields) {
+          Spill.write(out, field.get(o), classes);
+        }
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    Object read(ObjectInputStream in, ClassTable classes)
+        throws IOException, ClassNotFoundException {
+      final Object[] values = new Object[fields.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = Spill.read(in, classes);
+      }
+      try {
+        if (constructor.getParameterTypes().length == 0) {
+          final Object o = constructor.newInstance();
+          for (int i = 0; i < values.length; i++) {
+            fields.get(i).set(o, values[i]);
+          }
+          return o;
+        }
+        return constructor.newInstance(values);
+      } catch (InstantiationException e) {
+        throw new RuntimeException(e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      } catch (InvocationTargetException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
+
+  /** Temporary file of rows.
+   *
+   * <p>Rows are written in a compact format (see {@link Spill#write}).
+   * A row object whose class is not part of the JDK is written field by
+   * field (see {@link ClassCodec}); other objects must be serializable.
+   * After all rows have been written, call {@link #close};
+   * the rows can then be read, any number of times, using
+   * {@link #asEnumerable}. Call {@link #delete} when the file is no longer
+   * needed.</p>
+   *
+   * @param <T> Row type */
+  public static class RowFile<T> {
+    private final File file;
+    private final ClassTable classes = new ClassTable();
+    private ObjectOutputStream out;
+    private int rowCount;
+
+    public RowFile(String prefix) {
+      try {
+        file = File.createTempFile("optiq-" + prefix, ".tmp");
+        file.deleteOnExit();
+        out = new ObjectOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+      } catch (IOException e) {
+        throw new RuntimeException("Error while creating spill file", e);
+      }
+    }
+
+    /** Writes a row. */
+    public void add(T row) {
+      try {
+        write(out, row, classes);
+        if (++rowCount % RESET_INTERVAL == 0) {
+          out.reset();
+        }
+      } catch (NotSerializableException e) {
+        throw new RuntimeException("Cannot spill row to disk; class "
+            + e.getMessage() + " is not serializable, and has no suitable"
+            + " constructor to re-create it from its fields", e);
+      } catch (IOException e) {
+        throw new RuntimeException("Error while writing spill file", e);
+      }
+    }
+
+    /** Returns the number of rows written. */
+    public int size() {
+      return rowCount;
+    }
+
+    /** Returns the size of the file, in bytes. */
+    public long byteCount() {
+      return file.length();
+    }
+
+    /** Finishes writing. */
+    public void close() {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          throw new RuntimeException("Error while writing spill file", e);
+        } finally {
+          out = null;
+        }
+      }
+    }
+
+    /** Deletes the file. */
+    public void delete() {
+      try {
+        close();
+      } finally {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+
+    /** Returns the rows in the file. The file must be closed. */
+    public Enumerable<T> asEnumerable() {
+      assert out == null : "file must be closed before it is read";
+      return new AbstractEnumerable<T>() {
+        public Enumerator<T> enumerator() {
+          return new RowFileEnumerator<T>(file, rowCount, classes);
+        }
+      };
+    }
+  }
+
+  /** Enumerator that reads the rows of a {@link RowFile}.
+   *
+   * @param <T> Row type */
+  private static class RowFileEnumerator<T> implements Enumerator<T> {
+    private final File file;
+    private final int rowCount;
+    private final ClassTable classes;
+    private ObjectInputStream in;
+    private int i;
+    private T current;
+
+    RowFileEnumerator(File file, int rowCount, ClassTable classes) {
+      this.file = file;
+      this.rowCount = rowCount;
+      this.classes = classes;
+    }
+
+    public T current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (i >= rowCount) {
+        close();
+        return false;
+      }
+      try {
+        if (in == null) {
+          in = new ObjectInputStream(
+              new BufferedInputStream(new FileInputStream(file)));
+        }
+        //noinspection unchecked
+        current = (T) read(in, classes);
+        ++i;
+        return true;
+      } catch (IOException e) {
+        throw new RuntimeException("Error while reading spill file", e);
+      } catch (ClassNotFoundException e) {
+        throw new RuntimeException("Error while reading spill file", e);
+      }
+    }
+
+    public void reset() {
+      close();
+      i = 0;
+      current = null;
+    }
+
+    public void close() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // ignore
+        }
+        in = null;
+      }
+    }
+  }
+}
+
+// End Spill.java
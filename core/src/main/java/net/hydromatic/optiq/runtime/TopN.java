@@ -0,0 +1,132 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.Function1;
+
+import java.util.*;
+
+/**
+ * Returns the first rows of a sorted input, using a bounded heap rather than
+ * sorting the whole input.
+ *
+ * <p>To return the {@code fetch} rows after skipping {@code offset} rows,
+ * the heap holds at most {@code offset + fetch} rows, so the time is
+ * O(n log k) and the space O(k), where k = offset + fetch, rather than
+ * O(n log n) and O(n). Like the {@code orderBy} method of
+ * {@link ExtendedEnumerable}, the sort is stable.</p>
+ */
+public class TopN {
+  private TopN() {
+  }
+
+  /** Sorts the rows of {@code source}, skips {@code offset} rows and
+   * returns the next {@code fetch} rows.
+   *
+   * @param source Input
+   * @param keySelector Computes the sort key of a row
+   * @param comparator Compares sort keys; if null, keys must be
+   *                   {@link Comparable}
+   * @param offset Number of rows to skip
+   * @param fetch Maximum number of rows to return
+   */
+  public static <T, K> Enumerable<T> orderBy(final Enumerable<T> source,
+      final Function1<T, K> keySelector, Comparator<K> comparator,
+      final int offset, final int fetch) {
+    final Comparator<K> keyComparator = comparator == null
+        ? ExternalSort.<K>naturalOrder()
+        : comparator;
+    return new AbstractEnumerable<T>() {
+      public Enumerator<T> enumerator() {
+        return Linq4j.enumerator(
+            top(source, keySelector, keyComparator, offset, fetch));
+      }
+    };
+  }
+
+  private static <T, K> List<T> top(Enumerable<T> source,
+      Function1<T, K> keySelector, final Comparator<K> comparator,
+      int offset, int fetch) {
+    if (fetch <= 0) {
+      return Collections.emptyList();
+    }
+    final int limit = (int) Math.min((long) offset + fetch, Integer.MAX_VALUE);
+    final Comparator<Entry<T, K>> entryComparator =
+        new Comparator<Entry<T, K>>() {
+          public int compare(Entry<T, K> o1, Entry<T, K> o2) {
+            final int c = comparator.compare(o1.key, o2.key);
+            if (c != 0) {
+              return c;
+            }
+            return o1.ordinal < o2.ordinal ? -1
+                : o1.ordinal > o2.ordinal ? 1
+                : 0;
+          }
+        };
+
+    // Heap whose head is the greatest entry, that is, the one that would be
+    // discarded first.
+    final PriorityQueue<Entry<T, K>> heap =
+        new PriorityQueue<Entry<T, K>>(Math.max(1, Math.min(limit, 1024)),
+            Collections.reverseOrder(entryComparator));
+    final Enumerator<T> rows = source.enumerator();
+    try {
+      long ordinal = 0;
+      while (rows.moveNext()) {
+        final T row = rows.current();
+        final K key = keySelector.apply(row);
+        if (heap.size() < limit) {
+          heap.add(new Entry<T, K>(row, key, ordinal));
+        } else if (comparator.compare(key, heap.peek().key) < 0) {
+          // The new row is less than the greatest row in the heap. (If it is
+          // equal, the row in the heap wins because it was read earlier.)
+          heap.poll();
+          heap.add(new Entry<T, K>(row, key, ordinal));
+        }
+        ++ordinal;
+      }
+    } finally {
+      rows.close();
+    }
+
+    final List<Entry<T, K>> entries = new ArrayList<Entry<T, K>>(heap);
+    Collections.sort(entries, entryComparator);
+    final List<T> list = new ArrayList<T>();
+    for (Entry<T, K> entry : entries.subList(
+        Math.min(offset, entries.size()), entries.size())) {
+      list.add(entry.row);
+    }
+    return list;
+  }
+
+  /** Row in the heap, with its sort key and its position in the input. */
+  private static class Entry<T, K> {
+    final T row;
+    final K key;
+    final long ordinal;
+
+    Entry(T row, K key, long ordinal) {
+      this.row = row;
+      this.key = key;
+      this.ordinal = ordinal;
+    }
+  }
+}
+
+// End TopN.java
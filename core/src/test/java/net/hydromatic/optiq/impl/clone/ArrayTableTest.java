@@ -17,17 +17,33 @@
 */
 package net.hydromatic.optiq.impl.clone;
 
+import net.hydromatic.linq4j.AbstractEnumerable;
 import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
 import net.hydromatic.linq4j.Linq4j;
+import net.hydromatic.linq4j.function.Function1;
 
+import net.hydromatic.optiq.Statistics;
 import net.hydromatic.optiq.jdbc.JavaTypeFactoryImpl;
+import net.hydromatic.optiq.runtime.Hook;
+import net.hydromatic.optiq.util.BitSets;
 
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeImpl;
+import org.eigenbase.sql.SqlKind;
 
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -281,6 +297,57 @@ public class ArrayTableTest {
     assertEquals(2, pair.cardinality);
   }
 
+  /** Tests that a condition on a dictionary-encoded column is translated
+   * into a set of codes, and gives the same result as evaluating the
+   * condition on each decoded value. */
+  @Test public void testDictionaryCondition() {
+    final ColumnLoader.ValueSet valueSet =
+        new ColumnLoader.ValueSet(String.class);
+    final String[] strings = {"b", null, "d", "a", "b"};
+    for (int i = 0; i < 3000; i++) {
+      valueSet.add(strings[i % strings.length]);
+    }
+    final ArrayTable.Column column = valueSet.freeze(0, null);
+    final ArrayTable.ObjectDictionary representation =
+        (ArrayTable.ObjectDictionary) column.representation;
+
+    // Codes are in value order: a=0, b=1, d=2, null=3.
+    checkCodes(column, new ArrayTable.Condition(0, SqlKind.EQUALS, "b"),
+        "{1}");
+    checkCodes(column, new ArrayTable.Condition(0, SqlKind.EQUALS, "c"),
+        "{}");
+    checkCodes(column, new ArrayTable.Condition(0, SqlKind.NOT_EQUALS, "b"),
+        "{0, 2}");
+    checkCodes(column, new ArrayTable.Condition(0, SqlKind.LESS_THAN, "c"),
+        "{0, 1}");
+    checkCodes(column,
+        new ArrayTable.Condition(0, SqlKind.LESS_THAN_OR_EQUAL, "b"),
+        "{0, 1}");
+    checkCodes(column, new ArrayTable.Condition(0, SqlKind.GREATER_THAN, "b"),
+        "{2}");
+    checkCodes(column,
+        new ArrayTable.Condition(0, SqlKind.GREATER_THAN_OR_EQUAL, "0"),
+        "{0, 1, 2}");
+    checkCodes(column,
+        new ArrayTable.Condition(0, new Comparable[] {"d", "c", "a"}),
+        "{0, 2}");
+    assertEquals("d", representation.getObject(column.dataSet, 2));
+  }
+
+  private void checkCodes(ArrayTable.Column column,
+      ArrayTable.Condition condition, String expected) {
+    final ArrayTable.ObjectDictionary representation =
+        (ArrayTable.ObjectDictionary) column.representation;
+    assertEquals(expected,
+        representation.codes(column.dataSet, condition).toString());
+    final ArrayTable.Filter filter = condition.filter(column);
+    for (int i = 0; i < 3000; i++) {
+      assertEquals(
+          condition.evaluate(representation.getObject(column.dataSet, i)),
+          filter.evaluate(i));
+    }
+  }
+
   @Test public void testLoadSorted() {
     final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
     final RelDataType rowType =
@@ -350,6 +417,624 @@ public class ArrayTableTest {
         "Column(representation=ObjectArray(ordinal=2), value=[Bill, Sebastian, Theodore, Eric])");
   }
 
+  /** Tests loading a table with more rows than fit into one batch, and
+   * that progress is reported to a hook. */
+  @Test public void testLoadBatches() {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .add("name", typeFactory.createType(String.class))
+            .add("x", typeFactory.createType(int.class))
+            .build();
+    final int n = ColumnLoader.BATCH_SIZE * 2 + 5;
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < n; i++) {
+      rows.add(new Object[]{n - i, "n" + (i % 3), i % 10});
+    }
+    final List<Integer> rowCounts = new ArrayList<Integer>();
+    final List<ArrayTable.LoadStats> doneList =
+        new ArrayList<ArrayTable.LoadStats>();
+    final Hook.Closeable closeable =
+        Hook.CLONE_LOAD.addThread(
+            new Function1<Object, Object>() {
+              public Object apply(Object a0) {
+                final ArrayTable.LoadStats stats = (ArrayTable.LoadStats) a0;
+                if (stats.isDone()) {
+                  doneList.add(stats);
+                } else if (rowCounts.isEmpty()
+                    || rowCounts.get(rowCounts.size() - 1)
+                    != stats.getRowCount()) {
+                  rowCounts.add(stats.getRowCount());
+                }
+                return null;
+              }
+            });
+    final ColumnLoader<Object[]> loader;
+    try {
+      loader =
+          new ColumnLoader<Object[]>(typeFactory, Linq4j.asEnumerable(rows),
+              RelDataTypeImpl.proto(rowType), null);
+    } finally {
+      closeable.close();
+    }
+    assertEquals(n, loader.size());
+    assertEquals(
+        Arrays.asList(ColumnLoader.BATCH_SIZE, ColumnLoader.BATCH_SIZE * 2, n),
+        rowCounts);
+    assertEquals(1, doneList.size());
+    assertEquals(3, doneList.get(0).getFrozenColumnCount());
+
+    // Rows are sorted on "id", the first unique column. The row with id 1
+    // was the last row read.
+    assertEquals(0, loader.sortField);
+    final ArrayTable.Column id = loader.representationValues.get(0);
+    final ArrayTable.Column name = loader.representationValues.get(1);
+    final ArrayTable.Column x = loader.representationValues.get(2);
+    for (int i : new int[] {0, 1, ColumnLoader.BATCH_SIZE, n - 1}) {
+      final int source = n - 1 - i;
+      assertEquals(i + 1, id.representation.getObject(id.dataSet, i));
+      assertEquals("n" + (source % 3),
+          name.representation.getObject(name.dataSet, i));
+      assertEquals(source % 10, x.representation.getObject(x.dataSet, i));
+    }
+  }
+
+  /** Tests writing the contents of a table to a file and reading them
+   * back. */
+  @Test public void testContentFile() throws IOException {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .add("name", typeFactory.createType(String.class))
+            .add("dept", typeFactory.createType(String.class))
+            .add("big", typeFactory.createType(long.class))
+            .add("score", typeFactory.createType(double.class))
+            .add("k", typeFactory.createType(int.class))
+            .add("delta", typeFactory.createType(int.class))
+            .build();
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 3000; i++) {
+      rows.add(
+          new Object[] {
+            i, "name" + i, i % 7 == 0 ? null : "d" + (i % 5),
+            i * 1000000007L - 1500000000000L, i * 0.5D, 7, i * 10 - 15000
+          });
+    }
+    final ColumnLoader<Object[]> loader =
+        new ColumnLoader<Object[]>(typeFactory, Linq4j.asEnumerable(rows),
+            RelDataTypeImpl.proto(rowType), null);
+    final ArrayTable.Content content =
+        new ArrayTable.Content(loader.representationValues, loader.size(),
+            loader.sortField);
+    assertEquals(
+        Arrays.asList(
+            ArrayTable.RepresentationType.BIT_SLICED_PRIMITIVE_ARRAY,
+            ArrayTable.RepresentationType.OBJECT_ARRAY,
+            ArrayTable.RepresentationType.OBJECT_DICTIONARY,
+            ArrayTable.RepresentationType.PRIMITIVE_ARRAY,
+            ArrayTable.RepresentationType.PRIMITIVE_ARRAY,
+            ArrayTable.RepresentationType.CONSTANT,
+            ArrayTable.RepresentationType.BIT_SLICED_PRIMITIVE_ARRAY),
+        types(content));
+
+    final File file = File.createTempFile("optiq-test", ContentFile.SUFFIX);
+    try {
+      ContentFile.write(content, file);
+      final ArrayTable.Content content2 = ContentFile.read(file);
+      assertEquals(content.size, content2.size);
+      assertEquals(content.sortField, content2.sortField);
+      assertEquals(types(content), types(content2));
+      for (int i = 0; i < content.columns.size(); i++) {
+        final ArrayTable.Column column = content.columns.get(i);
+        final ArrayTable.Column column2 = content2.columns.get(i);
+        assertEquals(column.cardinality, column2.cardinality);
+        assertEquals(column.representation.toString(),
+            column2.representation.toString());
+        assertEquals(
+            ArrayTable.Column.asList(column.representation, column.dataSet)
+                .subList(0, content.size),
+            ArrayTable.Column.asList(column2.representation, column2.dataSet)
+                .subList(0, content.size));
+      }
+
+      // Primitive data are mapped, not copied onto the heap.
+      assertTrue(content2.columns.get(0).dataSet instanceof Buffer);
+      assertTrue(content2.columns.get(3).dataSet instanceof Buffer);
+      assertTrue(content2.columns.get(4).dataSet instanceof Buffer);
+
+      // Search uses the mapped sort column.
+      final int[] bounds =
+          content2.search(
+              new ArrayTable.Range[] {
+                new ArrayTable.Range(10, true, 20, false)
+              });
+      assertEquals("[10, 20]", Arrays.toString(bounds));
+
+      // A file that is not a content file is rejected.
+      final FileOutputStream out = new FileOutputStream(file);
+      out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+      out.close();
+      try {
+        final ArrayTable.Content content3 = ContentFile.read(file);
+        fail("expected error, got " + content3);
+      } catch (IOException e) {
+        assertTrue(e.getMessage().startsWith("Not a table content file"));
+      }
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Tests that a clone table saves its contents to a file, and that
+   * another clone table reads the contents from that file rather than from
+   * its source. */
+  @Test public void testCloneTableFile() throws IOException {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .add("name", typeFactory.createType(String.class))
+            .build();
+    final File file = File.createTempFile("optiq-test", ContentFile.SUFFIX);
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+    try {
+      final ArrayTable table =
+          (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+              RelDataTypeImpl.proto(rowType), null,
+              Linq4j.asEnumerable(
+                  Arrays.asList(
+                      new Object[] {2, "b"},
+                      new Object[] {1, "a"},
+                      new Object[] {3, "c"})),
+              file, false);
+      assertEquals(3D, table.getStatistic().getRowCount(), 0D);
+      assertTrue(file.exists());
+
+      final Enumerable<Object[]> emptySource =
+          new AbstractEnumerable<Object[]>() {
+            public Enumerator<Object[]> enumerator() {
+              throw new AssertionError("should read from file");
+            }
+          };
+      final ArrayTable table2 =
+          (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+              RelDataTypeImpl.proto(rowType), null, emptySource, file,
+              false);
+      assertEquals(3D, table2.getStatistic().getRowCount(), 0D);
+      assertEquals(0, table2.sortField());
+
+      // A table with the same number of columns but a different row type
+      // does not use the file; it reads its source and rewrites the file.
+      final RelDataType rowType2 =
+          typeFactory.builder()
+              .add("id", typeFactory.createType(long.class))
+              .add("title", typeFactory.createType(String.class))
+              .build();
+      final ArrayTable table3 =
+          (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+              RelDataTypeImpl.proto(rowType2), null,
+              Linq4j.asEnumerable(
+                  Collections.singletonList(new Object[] {7L, "x"})),
+              file, false);
+      assertEquals(1D, table3.getStatistic().getRowCount(), 0D);
+      try {
+        final ArrayTable.Content content = ContentFile.read(file, rowType);
+        fail("expected error, got " + content);
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("has row type"));
+      }
+
+      // A truncated file is reloaded from the source.
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.setLength(raf.length() / 2);
+      raf.close();
+      final ArrayTable table4 =
+          (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+              RelDataTypeImpl.proto(rowType2), null,
+              Linq4j.asEnumerable(
+                  Collections.singletonList(new Object[] {8L, "y"})),
+              file, false);
+      assertEquals(1D, table4.getStatistic().getRowCount(), 0D);
+      assertEquals(8L, table4.max(0));
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Tests that a clone table creates the directory of its file, and that
+   * it keeps its contents in memory if the file cannot be written. */
+  @Test public void testCloneTableFileDirectory() throws IOException {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .build();
+    final File dir = File.createTempFile("optiq-test", "");
+    //noinspection ResultOfMethodCallIgnored
+    dir.delete();
+    final File file = new File(new File(dir, "sub"), "t" + ContentFile.SUFFIX);
+    try {
+      final ArrayTable table =
+          (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+              RelDataTypeImpl.proto(rowType), null,
+              Linq4j.asEnumerable(Arrays.asList(2, 1)),
+              file, false);
+      assertEquals(2D, table.getStatistic().getRowCount(), 0D);
+      assertTrue(file.exists());
+
+      // "dir/sub/t.optiq/u.optiq" cannot be written, because
+      // "dir/sub/t.optiq" is a file; the table is still usable.
+      final ArrayTable table2 =
+          (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+              RelDataTypeImpl.proto(rowType), null,
+              Linq4j.asEnumerable(Arrays.asList(3, 4)),
+              new File(file, "u" + ContentFile.SUFFIX), false);
+      assertEquals(2D, table2.getStatistic().getRowCount(), 0D);
+      assertEquals(4, table2.max(0));
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      //noinspection ResultOfMethodCallIgnored
+      file.getParentFile().delete();
+      //noinspection ResultOfMethodCallIgnored
+      dir.delete();
+    }
+  }
+
+  /** Tests loading a table whose values are stored outside the heap. */
+  @Test public void testOffHeap() throws IOException {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .add("name", typeFactory.createType(String.class))
+            .add("dept", typeFactory.createType(String.class))
+            .add("big", typeFactory.createType(long.class))
+            .build();
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 3000; i++) {
+      rows.add(
+          new Object[] {
+            i, i % 11 == 0 ? null : "n\u00e4me" + i, "d" + (i % 5),
+            i * 1000000007L - 1500000000000L
+          });
+    }
+    final ColumnLoader<Object[]> heapLoader =
+        new ColumnLoader<Object[]>(typeFactory, Linq4j.asEnumerable(rows),
+            RelDataTypeImpl.proto(rowType), null);
+    final ColumnLoader<Object[]> loader =
+        new ColumnLoader<Object[]>(typeFactory, Linq4j.asEnumerable(rows),
+            RelDataTypeImpl.proto(rowType), null, -1, true);
+    final ArrayTable.Content content =
+        new ArrayTable.Content(loader.representationValues, loader.size(),
+            loader.sortField);
+    assertEquals(
+        Arrays.asList(
+            ArrayTable.RepresentationType.BIT_SLICED_PRIMITIVE_ARRAY,
+            ArrayTable.RepresentationType.STRING_DICTIONARY,
+            ArrayTable.RepresentationType.OBJECT_DICTIONARY,
+            ArrayTable.RepresentationType.PRIMITIVE_ARRAY),
+        types(content));
+    assertTrue(content.isOffHeap());
+    for (int i = 0; i < content.columns.size(); i++) {
+      final ArrayTable.Column heapColumn = heapLoader.representationValues
+          .get(i);
+      final ArrayTable.Column column = content.columns.get(i);
+      assertFalse(heapColumn.isOffHeap());
+      assertTrue(column.isOffHeap());
+      assertEquals(
+          ArrayTable.Column.asList(heapColumn.representation,
+              heapColumn.dataSet).subList(0, content.size),
+          ArrayTable.Column.asList(column.representation, column.dataSet)
+              .subList(0, content.size));
+    }
+    final ArrayTable.Column name = content.columns.get(1);
+    assertNull(name.representation.getObject(name.dataSet, 0));
+    assertEquals("n\u00e4me1", name.representation.getObject(name.dataSet, 1));
+    assertNull(name.representation.getObject(name.dataSet, 2999 - 2999 % 11));
+
+    // String tables can be written to a file and read back.
+    final File file = File.createTempFile("optiq-test", ContentFile.SUFFIX);
+    try {
+      ContentFile.write(content, file);
+      final ArrayTable.Content content2 = ContentFile.read(file);
+      assertEquals(types(content), types(content2));
+      final ArrayTable.Column name2 = content2.columns.get(1);
+      assertEquals(
+          ArrayTable.Column.asList(name.representation, name.dataSet),
+          ArrayTable.Column.asList(name2.representation, name2.dataSet));
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Tests that an off-heap buffer whose size in bytes does not fit in an
+   * {@code int} is refused, rather than allocated with an overflowed size. */
+  @Test public void testDirectBufferLimit() {
+    assertEquals(64, ArrayTable.directBuffer(8, 8).capacity());
+    try {
+      final ByteBuffer buffer =
+          ArrayTable.directBuffer(Integer.MAX_VALUE / 4 + 1, 4);
+      fail("expected error, got " + buffer);
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(),
+          e.getMessage().startsWith("Cannot allocate buffer of 536870912 "
+              + "elements of 4 bytes: 2147483648 bytes exceeds limit"));
+    }
+  }
+
+  /** Tests that the primitive accessors of each representation return the
+   * same values as {@link ArrayTable.Representation#getObject}, and that
+   * conditions on numeric columns, which use them, give the same result as
+   * evaluating the condition on each value. */
+  @Test public void testPrimitiveAccessors() {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .add("big", typeFactory.createType(long.class))
+            .add("d", typeFactory.createType(double.class))
+            .add("n", typeFactory.createType(Integer.class))
+            .add("k", typeFactory.createType(int.class))
+            .build();
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 3000; i++) {
+      rows.add(
+          new Object[] {
+            i - 1000, i * 1000000007L - 1500000000000L, i / 4d,
+            i % 7 == 0 ? null : i % 10, 7
+          });
+    }
+    for (boolean offHeap : new boolean[] {false, true}) {
+      final ColumnLoader<Object[]> loader =
+          new ColumnLoader<Object[]>(typeFactory, Linq4j.asEnumerable(rows),
+              RelDataTypeImpl.proto(rowType), null, -1, offHeap);
+      for (ArrayTable.Column column : loader.representationValues) {
+        final ArrayTable.Representation representation =
+            column.representation;
+        for (int i = 0; i < loader.size(); i++) {
+          final Object o = representation.getObject(column.dataSet, i);
+          assertEquals(o == null, representation.isNull(column.dataSet, i));
+          if (o != null) {
+            assertEquals(((Number) o).longValue(),
+                representation.getLong(column.dataSet, i));
+            assertEquals(((Number) o).doubleValue(),
+                representation.getDouble(column.dataSet, i), 0d);
+          }
+        }
+        checkFilter(column, loader.size(),
+            new ArrayTable.Condition(0, SqlKind.LESS_THAN, 5));
+        checkFilter(column, loader.size(),
+            new ArrayTable.Condition(0, SqlKind.GREATER_THAN_OR_EQUAL, 7L));
+        checkFilter(column, loader.size(),
+            new ArrayTable.Condition(0, SqlKind.NOT_EQUALS, 3));
+        checkFilter(column, loader.size(),
+            new ArrayTable.Condition(0, new Comparable[] {3, 7L, 1000}));
+      }
+    }
+  }
+
+  private void checkFilter(ArrayTable.Column column, int size,
+      ArrayTable.Condition condition) {
+    final ArrayTable.Filter filter = condition.filter(column);
+    for (int i = 0; i < size; i++) {
+      assertEquals(
+          condition.evaluate(
+              column.representation.getObject(column.dataSet, i)),
+          filter.evaluate(i));
+    }
+  }
+
+  /** Tests appending rows to a table. */
+  @Test public void testAppend() {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(Integer.class))
+            .add("name", typeFactory.createType(String.class))
+            .build();
+    final ArrayTable table =
+        (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+            RelDataTypeImpl.proto(rowType), null,
+            Linq4j.asEnumerable(
+                Arrays.asList(
+                    new Object[] {2, "b"},
+                    new Object[] {1, "a"},
+                    new Object[] {3, "c"})));
+    assertEquals(3, table.max(0));
+    assertEquals("c", table.max(1));
+
+    // Rows with greater ids. The table is still sorted on "id".
+    assertEquals(2,
+        table.append(typeFactory, null,
+            Linq4j.asEnumerable(
+                Arrays.asList(
+                    new Object[] {5, "e"},
+                    new Object[] {4, "d"}))));
+    assertEquals(5, table.max(0));
+    assertEquals(5D, table.getStatistic().getRowCount(), 0D);
+    assertEquals(1, Statistics.collations(table.getStatistic()).size());
+    assertEquals("[[1, a], [2, b], [3, c], [4, d], [5, e]]",
+        scan(table, null));
+    assertEquals("[[3, c], [4, d]]",
+        scan(table,
+            new ArrayTable.Range[] {new ArrayTable.Range(3, true, 4, true)}));
+
+    // Rows that would not keep the table sorted on "id" are refused: an id
+    // that precedes existing ids, ids that are not unique, a null id.
+    checkAppendFails(table, typeFactory,
+        Collections.singletonList(new Object[] {0, "z"}));
+    checkAppendFails(table, typeFactory,
+        Arrays.asList(new Object[] {9, "y"}, new Object[] {9, "x"}));
+    checkAppendFails(table, typeFactory,
+        Arrays.asList(new Object[] {10, "y"}, new Object[] {null, "x"}));
+    assertEquals(5D, table.getStatistic().getRowCount(), 0D);
+    assertEquals(1, Statistics.collations(table.getStatistic()).size());
+    assertTrue(table.getStatistic().isKey(BitSets.of(0)));
+    assertEquals("[[1, a], [2, b], [3, c], [4, d], [5, e]]",
+        scan(table, null));
+
+    // A table that is not sorted accepts any rows.
+    final RelDataType rowType2 =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(Integer.class))
+            .add("name", typeFactory.createType(String.class))
+            .build();
+    final ArrayTable table2 =
+        (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+            RelDataTypeImpl.proto(rowType2), null,
+            Linq4j.asEnumerable(
+                Arrays.asList(
+                    new Object[] {2, "b"},
+                    new Object[] {2, "b"})));
+    assertEquals(-1, table2.sortField());
+    assertEquals(3,
+        table2.append(typeFactory, null,
+            Linq4j.asEnumerable(
+                Arrays.asList(
+                    new Object[] {1, "a"},
+                    new Object[] {null, "z"},
+                    new Object[] {1, "a"}))));
+    assertEquals(5D, table2.getStatistic().getRowCount(), 0D);
+    assertEquals(0, Statistics.collations(table2.getStatistic()).size());
+    assertEquals("[[2, b], [2, b], [1, a], [null, z], [1, a]]",
+        scan(table2, null));
+  }
+
+  private void checkAppendFails(ArrayTable table,
+      JavaTypeFactoryImpl typeFactory, List<Object[]> rows) {
+    try {
+      final int n = table.append(typeFactory, null, Linq4j.asEnumerable(rows));
+      fail("expected error, got " + n);
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Cannot append"));
+    }
+  }
+
+  /** Tests that a scan evaluates conditions on batches of rows, including
+   * ranges that start and end within a batch, and gives the same result as
+   * evaluating each condition on each row. */
+  @Test public void testScanBatches() {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .add("v", typeFactory.createType(int.class))
+            .add("big", typeFactory.createType(long.class))
+            .add("name", typeFactory.createType(String.class))
+            .build();
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 5000; i++) {
+      rows.add(
+          new Object[] {
+            i, (i * 7919) % 5000000, i * 1000000007L - 1500000000000L,
+            "n" + (i % 3)
+          });
+    }
+    final ArrayTable table =
+        (ArrayTable) CloneSchema.createCloneTable(typeFactory,
+            RelDataTypeImpl.proto(rowType), null, Linq4j.asEnumerable(rows));
+    assertEquals(0, table.sortField());
+    final ArrayTable.Content content = table.segments().get(0);
+    assertTrue(content.columns.get(1).dataSet instanceof int[]);
+    assertTrue(content.columns.get(2).dataSet instanceof long[]);
+
+    final ArrayTable.Condition[] conditions = {
+      new ArrayTable.Condition(1, SqlKind.LESS_THAN, 2500000),
+      new ArrayTable.Condition(1, SqlKind.NOT_EQUALS, 7919 * 7),
+      new ArrayTable.Condition(2, SqlKind.GREATER_THAN, 0),
+      new ArrayTable.Condition(3, new Comparable[] {"n0", "n2"})
+    };
+    final ArrayTable.Range[] ranges = {
+      new ArrayTable.Range(5, true, 1500, false),
+      new ArrayTable.Range(2047, false, 4100, true)
+    };
+    final List<Integer> expected = new ArrayList<Integer>();
+    outer:
+    for (Object[] row : rows) {
+      for (ArrayTable.Condition condition : conditions) {
+        if (!condition.evaluate(row[condition.field])) {
+          continue outer;
+        }
+      }
+      if (contains(ranges[0], row[0]) || contains(ranges[1], row[0])) {
+        expected.add((Integer) row[0]);
+      }
+    }
+    final List<Object> actual = new ArrayList<Object>();
+    for (Object o : table.scan(new int[] {0}, conditions, ranges)) {
+      actual.add(o);
+    }
+    assertEquals(expected, actual);
+
+    // A cursor returns the same rows a batch at a time, copying values into
+    // vectors.
+    final ArrayTable.Cursor cursor =
+        table.cursor(new int[] {0, 2}, conditions, ranges);
+    final int[] ids = new int[ArrayTable.BATCH_SIZE];
+    final long[] bigs = new long[ArrayTable.BATCH_SIZE];
+    final boolean[] nulls = new boolean[ArrayTable.BATCH_SIZE];
+    final List<Object> actual2 = new ArrayList<Object>();
+    int batchCount = 0;
+    while (cursor.nextBatch()) {
+      ++batchCount;
+      final int count = cursor.batchSize();
+      assertTrue(count > 0 && count <= ArrayTable.BATCH_SIZE);
+      cursor.getInts(0, ids);
+      cursor.getLongs(1, bigs);
+      cursor.getNulls(1, nulls);
+      for (int k = 0; k < count; k++) {
+        actual2.add(ids[k]);
+        assertEquals(rows.get(ids[k])[2], bigs[k]);
+        assertFalse(nulls[k]);
+      }
+    }
+    assertEquals(expected, actual2);
+    assertTrue(batchCount > 1);
+  }
+
+  /** Returns whether a range contains a non-null value. */
+  private static boolean contains(ArrayTable.Range range, Object o) {
+    if (range.lower != null) {
+      final int c = ArrayTable.Condition.compare(o, range.lower);
+      if (c < 0 || c == 0 && !range.lowerInclusive) {
+        return false;
+      }
+    }
+    if (range.upper != null) {
+      final int c = ArrayTable.Condition.compare(o, range.upper);
+      if (c > 0 || c == 0 && !range.upperInclusive) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String scan(ArrayTable table, ArrayTable.Range[] ranges) {
+    final List<String> list = new ArrayList<String>();
+    for (Object o
+        : table.scan(new int[] {0, 1}, new ArrayTable.Condition[0], ranges)) {
+      list.add(Arrays.toString((Object[]) o));
+    }
+    return list.toString();
+  }
+
+  private static List<ArrayTable.RepresentationType> types(
+      ArrayTable.Content content) {
+    final List<ArrayTable.RepresentationType> list =
+        new ArrayList<ArrayTable.RepresentationType>();
+    for (ArrayTable.Column column : content.columns) {
+      list.add(column.representation.getType());
+    }
+    return list;
+  }
+
   private void checkColumn(ArrayTable.Column x,
       ArrayTable.RepresentationType expectedRepresentationType,
       String expectedString) {
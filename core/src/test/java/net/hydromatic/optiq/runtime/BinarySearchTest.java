@@ -37,6 +37,20 @@ private void search(int key, int lower, int upper, Integer... array) {
         BinarySearch.upperBound(array, key, Ordering.<Integer>natural()));
   }
 
+  private void searchList(int key, int notLess, int greater,
+      Integer... array) {
+    Assert.assertEquals(
+        "first not less than " + key + " in " + Arrays.toString(array),
+        notLess,
+        BinarySearch.firstNotLess(Arrays.asList(array), key,
+            Ordering.<Integer>natural()));
+    Assert.assertEquals(
+        "first greater than " + key + " in " + Arrays.toString(array),
+        greater,
+        BinarySearch.firstGreater(Arrays.asList(array), key,
+            Ordering.<Integer>natural()));
+  }
+
   @Test
   public void testSimple() {
     search(1, 0, 0, 1, 2, 3);
@@ -76,6 +90,21 @@ public void testAllTheSame() {
     search(0, -1, -1, 1, 1, 1, 1);
     search(2, 4, 4, 1, 1, 1, 1);
   }
+
+  /** Tests {@link BinarySearch#firstNotLess} and
+   * {@link BinarySearch#firstGreater}, which always return the bounds of a
+   * half-open range. */
+  @Test
+  public void testList() {
+    searchList(0, 0, 0, 1, 2, 4);
+    searchList(1, 0, 1, 1, 2, 4);
+    searchList(3, 2, 2, 1, 2, 4);
+    searchList(4, 2, 3, 1, 2, 4);
+    searchList(5, 3, 3, 1, 2, 4);
+    searchList(2, 2, 4, 1, 1, 2, 2, 3, 3);
+    searchList(42, 0, 0);
+    searchList(1, 0, 4, 1, 1, 1, 1);
+  }
 }
 
 // End BinarySearchTest.java
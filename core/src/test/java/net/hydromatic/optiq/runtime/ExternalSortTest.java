@@ -0,0 +1,150 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Linq4j;
+import net.hydromatic.linq4j.function.Function1;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ExternalSort} and {@link TopN}.
+ */
+public class ExternalSortTest {
+  private static final Function1<Object[], Integer> KEY =
+      new Function1<Object[], Integer>() {
+        public Integer apply(Object[] a0) {
+          return (Integer) a0[0];
+        }
+      };
+
+  private static final Comparator<Object[]> ROW_COMPARATOR =
+      new Comparator<Object[]>() {
+        public int compare(Object[] o1, Object[] o2) {
+          return ((Integer) o1[0]).compareTo((Integer) o2[0]);
+        }
+      };
+
+  /** Returns rows [key, ordinal, string] with many duplicate keys. */
+  private static List<Object[]> rows(int count) {
+    final Random random = new Random(1234);
+    final List<Object[]> list = new ArrayList<Object[]>();
+    for (int i = 0; i < count; i++) {
+      list.add(new Object[] {random.nextInt(50), i, "row " + i});
+    }
+    return list;
+  }
+
+  private static List<String> toStrings(Iterable<Object[]> rows) {
+    final List<String> list = new ArrayList<String>();
+    for (Object[] row : rows) {
+      list.add(Arrays.toString(row));
+    }
+    return list;
+  }
+
+  private static List<String> sorted(List<Object[]> rows) {
+    final List<Object[]> list = new ArrayList<Object[]>(rows);
+    Collections.sort(list, ROW_COMPARATOR);
+    return toStrings(list);
+  }
+
+  @Test public void testInMemory() {
+    final List<Object[]> rows = rows(100);
+    final Enumerable<Object[]> e =
+        ExternalSort.orderBy(Linq4j.asEnumerable(rows), KEY, null, 1000);
+    assertThat(toStrings(e), equalTo(sorted(rows)));
+  }
+
+  /** Tests a sort that writes more runs than can be merged in one pass, and
+   * checks that it is stable. */
+  @Test public void testSpill() {
+    final List<Object[]> rows = rows(1000);
+    final List<Spill.Stats> statsList = new ArrayList<Spill.Stats>();
+    final Hook.Closeable hook = Hook.SPILL.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            statsList.add((Spill.Stats) a0);
+            return null;
+          }
+        });
+    try {
+      final Enumerable<Object[]> e =
+          ExternalSort.orderBy(Linq4j.asEnumerable(rows), KEY,
+              Collections.<Integer>reverseOrder(), 7);
+      final List<Object[]> list = new ArrayList<Object[]>(rows);
+      Collections.sort(list, Collections.reverseOrder(ROW_COMPARATOR));
+      assertThat(toStrings(e), equalTo(toStrings(list)));
+    } finally {
+      hook.close();
+    }
+    assertThat(statsList.size(), equalTo(1));
+    assertThat(statsList.get(0).operator, equalTo("sort"));
+    assertThat(statsList.get(0).getFileCount(), equalTo(142));
+    assertThat(statsList.get(0).getRowCount(), equalTo(994L));
+  }
+
+  @Test public void testTopN() {
+    final List<Object[]> rows = rows(500);
+    final List<String> expected = sorted(rows);
+    assertThat(
+        toStrings(TopN.orderBy(Linq4j.asEnumerable(rows), KEY, null, 0, 10)),
+        equalTo(expected.subList(0, 10)));
+    assertThat(
+        toStrings(TopN.orderBy(Linq4j.asEnumerable(rows), KEY, null, 95, 10)),
+        equalTo(expected.subList(95, 105)));
+    assertThat(
+        toStrings(TopN.orderBy(Linq4j.asEnumerable(rows), KEY, null, 495, 10)),
+        equalTo(expected.subList(495, 500)));
+    assertThat(
+        toStrings(TopN.orderBy(Linq4j.asEnumerable(rows), KEY, null, 0, 0))
+            .isEmpty(),
+        is(true));
+  }
+
+  /** Tests that values survive a round trip through a spill file. */
+  @Test public void testRowFile() {
+    final Object[] row = {
+      null, true, false, (byte) 1, (short) 2, 3, 4L, 5f, 6d, "seven",
+      new BigDecimal("8.90"), new Object[] {10, "eleven"},
+      Arrays.asList(12, 13)
+    };
+    final Spill.RowFile<Object[]> file = new Spill.RowFile<Object[]>("test");
+    try {
+      file.add(row);
+      file.add(new Object[0]);
+      file.close();
+      assertThat(file.size(), equalTo(2));
+      final List<Object[]> list = file.asEnumerable().toList();
+      assertThat(list.size(), equalTo(2));
+      assertThat(Arrays.deepEquals(list.get(0), row), is(true));
+      assertThat(list.get(1).length, equalTo(0));
+    } finally {
+      file.delete();
+    }
+  }
+}
+
+// End ExternalSortTest.java
@@ -17,12 +17,110 @@
 */
 package net.hydromatic.optiq.test;
 
+import net.hydromatic.linq4j.function.Function0;
+import net.hydromatic.linq4j.function.Function1;
+
+import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
+import net.hydromatic.optiq.jdbc.OptiqConnection;
+import net.hydromatic.optiq.runtime.Hook;
+import net.hydromatic.optiq.runtime.ResultSetEnumerable;
+
 import org.junit.Test;
 
+import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import javax.sql.DataSource;
+
+import static org.junit.Assert.*;
+
 /**
  * Tests for the {@code net.hydromatic.optiq.impl.jdbc} package.
  */
 public class JdbcAdapterTest {
+  /** Tests a JDBC schema that streams results with a given fetch size, and
+   * reads rows ahead into a buffer that is smaller than the result. */
+  @Test public void testFetchOptions() {
+    final String schema =
+        JdbcTest.FOODMART_SCHEMA.replace(
+            "jdbcSchema: 'foodmart'\n",
+            "jdbcSchema: 'foodmart',\n"
+            + "       fetchSize: 3,\n"
+            + "       queryTimeout: 0,\n"
+            + "       streaming: true,\n"
+            + "       readAhead: 2\n");
+    OptiqAssert.that()
+        .withModel(
+            "{\n"
+            + "  version: '1.0',\n"
+            + "  defaultSchema: 'foodmart',\n"
+            + "   schemas: [\n"
+            + schema
+            + "   ]\n"
+            + "}")
+        .query("select * from \"days\" where \"day\" < 6")
+        .returnsUnordered(
+            "day=1; week_day=Sunday",
+            "day=2; week_day=Monday",
+            "day=3; week_day=Tuesday",
+            "day=4; week_day=Wednesday",
+            "day=5; week_day=Thursday");
+
+    // Check that the options take effect: the statement has the fetch size,
+    // rows are built on a read-ahead thread, and the connection goes back
+    // to the data source in auto-commit mode.
+    final Recorder recorder = new Recorder();
+    final DataSource dataSource =
+        JdbcProxy.wrap(
+            JdbcSchema.dataSource(
+                OptiqAssert.CONNECTION_SPEC.url,
+                OptiqAssert.CONNECTION_SPEC.driver,
+                OptiqAssert.CONNECTION_SPEC.username,
+                OptiqAssert.CONNECTION_SPEC.password),
+            DataSource.class, recorder);
+    final List<String> threadNames =
+        Collections.synchronizedList(new ArrayList<String>());
+    final List<Integer> days =
+        ResultSetEnumerable.of(dataSource,
+            "select \"day\" from \"foodmart\".\"days\"\n"
+            + "where \"day\" < 6 order by \"day\"",
+            new Function1<ResultSet, Function0<Integer>>() {
+              public Function0<Integer> apply(final ResultSet resultSet) {
+                return new Function0<Integer>() {
+                  public Integer apply() {
+                    threadNames.add(Thread.currentThread().getName());
+                    try {
+                      return resultSet.getInt(1);
+                    } catch (SQLException e) {
+                      throw new RuntimeException(e);
+                    }
+                  }
+                };
+              }
+            },
+            new ResultSetEnumerable.Options(3, 0, true, 2)).toList();
+    assertEquals("[1, 2, 3, 4, 5]", days.toString());
+    assertEquals(5, threadNames.size());
+    for (String threadName : threadNames) {
+      assertTrue(threadName, threadName.startsWith("optiq-jdbc-read-ahead-"));
+    }
+    assertEquals(
+        "[Connection.setAutoCommit[false], "
+        + "Statement.setFetchSize[3], "
+        + "ResultSet.close(), "
+        + "Statement.close(), "
+        + "Connection.commit(), "
+        + "Connection.setAutoCommit[true], "
+        + "Connection.close()]",
+        recorder.calls.toString());
+  }
+
   @Test public void testUnionPlan() {
     OptiqAssert.that()
         .withModel(JdbcTest.FOODMART_MODEL)
@@ -59,11 +157,11 @@ public class JdbcAdapterTest {
         .planHasSql(
             "SELECT *\n"
             + "FROM \"foodmart\".\"sales_fact_1997\"\n"
-            + "WHERE \"product_id\" = 1\n"
+            + "WHERE \"product_id\" = ?\n"
             + "UNION ALL\n"
             + "SELECT *\n"
             + "FROM \"foodmart\".\"sales_fact_1998\"\n"
-            + "WHERE \"product_id\" = 1");
+            + "WHERE \"product_id\" = ?");
   }
 
   @Test public void testInPlan() {
@@ -88,6 +186,114 @@ public class JdbcAdapterTest {
             + "store_id=16; store_name=Store 16\n"
             + "store_id=24; store_name=Store 24\n");
   }
+
+  /** Tests that numeric literals in comparisons are sent to the database as
+   * parameters, so that queries that differ only in their literals have the
+   * same SQL. {@code CHAR} literals stay inline, so that the database
+   * compares them with {@code CHAR} semantics. */
+  @Test public void testBindLiterals() {
+    OptiqAssert.that()
+        .withModel(JdbcTest.FOODMART_MODEL)
+        .query(
+            "select * from \"days\"\n"
+            + "where \"day\" < 4 and \"week_day\" <> 'Monday'")
+        .runs()
+        .enable(OptiqAssert.CONNECTION_SPEC.url.startsWith("jdbc:hsqldb:"))
+        .planHasSql(
+            "SELECT *\n"
+            + "FROM \"foodmart\".\"days\"\n"
+            + "WHERE \"day\" < ? AND \"week_day\" <> 'Monday'")
+        .returnsUnordered(
+            "day=1; week_day=Sunday",
+            "day=3; week_day=Tuesday");
+  }
+
+  /** Tests a prepared statement with a dynamic parameter in a condition
+   * that is pushed down to a JDBC schema. The parameter is passed on to the
+   * database, so the statement is planned once and runs with any value. */
+  @Test public void testDynamicParameter() throws Exception {
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.JDBC_FOODMART)
+        .doWithConnection(
+            new Function1<OptiqConnection, Void>() {
+              public Void apply(OptiqConnection connection) {
+                final List<String> plans = new ArrayList<String>();
+                final List<String> sqls = new ArrayList<String>();
+                final Hook.Closeable planHook = Hook.JAVA_PLAN.addThread(
+                    new Function1<Object, Object>() {
+                      public Object apply(Object a0) {
+                        plans.add((String) a0);
+                        return null;
+                      }
+                    });
+                final Hook.Closeable sqlHook = Hook.QUERY_PLAN.addThread(
+                    new Function1<Object, Object>() {
+                      public Object apply(Object a0) {
+                        sqls.add((String) a0);
+                        return null;
+                      }
+                    });
+                try {
+                  final PreparedStatement statement =
+                      connection.prepareStatement(
+                          "select * from \"foodmart\".\"days\"\n"
+                          + "where \"day\" < ?");
+                  statement.setInt(1, 3);
+                  assertEquals(
+                      "[day=1; week_day=Sunday, day=2; week_day=Monday]",
+                      OptiqAssert.toStringList(statement.executeQuery(),
+                          new TreeSet<String>()).toString());
+                  statement.setInt(1, 5);
+                  assertEquals(
+                      "[day=1; week_day=Sunday, day=2; week_day=Monday, "
+                      + "day=3; week_day=Tuesday, day=4; week_day=Wednesday]",
+                      OptiqAssert.toStringList(statement.executeQuery(),
+                          new TreeSet<String>()).toString());
+                  statement.close();
+                } catch (SQLException e) {
+                  throw new RuntimeException(e);
+                } finally {
+                  planHook.close();
+                  sqlHook.close();
+                }
+                assertEquals(1, sqls.size());
+                if (OptiqAssert.CONNECTION_SPEC.url.startsWith(
+                    "jdbc:hsqldb:")) {
+                  assertEquals(
+                      "SELECT *\n"
+                      + "FROM \"foodmart\".\"days\"\n"
+                      + "WHERE \"day\" < ?",
+                      sqls.get(0));
+                } else {
+                  assertTrue(sqls.get(0), sqls.get(0).endsWith(" < ?"));
+                }
+                // The generated code reads the parameter's value from the
+                // data context each time the statement is executed.
+                assertEquals(1, plans.size());
+                assertTrue(plans.get(0), plans.get(0).contains(".get(\"?0\")"));
+                return null;
+              }
+            });
+  }
+
+  /** Records calls to the methods of JDBC objects that control
+   * transactions, fetching and closing. */
+  private static class Recorder implements JdbcProxy.BeforeCall {
+    private static final List<String> RECORDED_METHODS =
+        Arrays.asList(
+            "setAutoCommit", "commit", "rollback", "setFetchSize", "close");
+
+    final List<String> calls =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    public Object apply(Class<?> type, Method method, Object[] args) {
+      if (RECORDED_METHODS.contains(method.getName())) {
+        calls.add(type.getSimpleName() + "." + method.getName()
+            + (args == null ? "()" : Arrays.toString(args)));
+      }
+      return JdbcProxy.PROCEED;
+    }
+  }
 }
 
 // End JdbcAdapterTest.java
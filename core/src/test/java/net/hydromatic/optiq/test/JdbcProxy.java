@@ -0,0 +1,119 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps a JDBC object, and the connections, statements, metadata and result
+ * sets that it creates, in proxies that call a hook before each method.
+ *
+ * <p>Tests use it to observe, delay or alter the calls that Optiq makes to
+ * a JDBC data source.</p>
+ */
+class JdbcProxy {
+  /** Value that {@link BeforeCall#apply} returns to have the method invoked
+   * on the wrapped object. */
+  static final Object PROCEED = new Object();
+
+  private static final List<Class<?>> WRAPPED_TYPES =
+      Arrays.<Class<?>>asList(
+          Connection.class, Statement.class, PreparedStatement.class,
+          DatabaseMetaData.class, ResultSet.class);
+
+  private final BeforeCall beforeCall;
+
+  /** Proxy for each object wrapped so far, so that, say,
+   * {@link ResultSet#getStatement()} returns the proxy of the statement
+   * that created the result set. */
+  private final Map<Object, Object> proxies =
+      Collections.synchronizedMap(new IdentityHashMap<Object, Object>());
+
+  private JdbcProxy(BeforeCall beforeCall) {
+    this.beforeCall = beforeCall;
+  }
+
+  /** Wraps a JDBC object, typically a {@link javax.sql.DataSource}, and the
+   * objects that it creates. */
+  static <T> T wrap(T target, Class<T> type, BeforeCall beforeCall) {
+    return new JdbcProxy(beforeCall).wrap(target, type);
+  }
+
+  private <T> T wrap(final T target, final Class<T> type) {
+    if (target == null) {
+      return null;
+    }
+    Object proxy = proxies.get(target);
+    if (proxy == null) {
+      proxy = Proxy.newProxyInstance(type.getClassLoader(),
+          new Class[] {type},
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+              final Object result = beforeCall.apply(type, method, args);
+              if (result != PROCEED) {
+                return result;
+              }
+              final Object o;
+              try {
+                o = method.invoke(target, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+              //noinspection SuspiciousMethodCalls
+              if (WRAPPED_TYPES.contains(method.getReturnType())) {
+                //noinspection unchecked
+                return wrap(o, (Class<Object>) method.getReturnType());
+              }
+              return o;
+            }
+          });
+      proxies.put(target, proxy);
+    }
+    return type.cast(proxy);
+  }
+
+  /** Hook that is called before each method of a wrapped object. */
+  interface BeforeCall {
+    /** Called before a method is invoked on a wrapped object.
+     *
+     * @param type Interface through which the object was wrapped
+     * @param method Method
+     * @param args Arguments, or null if the method has no parameters
+     * @return {@link JdbcProxy#PROCEED} to invoke the method, otherwise the
+     *   value to return instead
+     */
+    Object apply(Class<?> type, Method method, Object[] args)
+        throws Throwable;
+  }
+}
+
+// End JdbcProxy.java
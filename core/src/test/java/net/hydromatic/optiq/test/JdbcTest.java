@@ -26,6 +26,7 @@
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.impl.*;
+import net.hydromatic.optiq.impl.clone.ArrayTable;
 import net.hydromatic.optiq.impl.clone.CloneSchema;
 import net.hydromatic.optiq.impl.generate.RangeTable;
 import net.hydromatic.optiq.impl.java.AbstractQueryableTable;
@@ -35,9 +36,12 @@
 import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
 import net.hydromatic.optiq.jdbc.*;
 import net.hydromatic.optiq.jdbc.Driver;
+import net.hydromatic.optiq.prepare.BindableCache;
 import net.hydromatic.optiq.prepare.OptiqPrepareImpl;
 import net.hydromatic.optiq.prepare.Prepare;
+import net.hydromatic.optiq.runtime.Bindable;
 import net.hydromatic.optiq.runtime.Hook;
+import net.hydromatic.optiq.runtime.Spill;
 import net.hydromatic.optiq.runtime.SqlFunctions;
 import net.hydromatic.optiq.tools.SqlRun;
 
@@ -45,6 +49,7 @@
 import org.eigenbase.relopt.*;
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeFactory;
+import org.eigenbase.reltype.RelDataTypeImpl;
 import org.eigenbase.reltype.RelProtoDataType;
 import org.eigenbase.sql.*;
 import org.eigenbase.sql.advise.SqlAdvisorGetHintsFunction;
@@ -71,6 +76,7 @@
 import java.sql.Date;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.Callable;
 import javax.sql.DataSource;
 
 import static org.hamcrest.CoreMatchers.*;
@@ -102,6 +108,17 @@ public class JdbcTest {
       Types.lookupMethod(JdbcTest.class, "processCursors",
           int.class, Enumerable.class, Enumerable.class);
 
+  /** Type factory for row types of tables that tests create; see
+   * {@link #cloneTableFactory}. */
+  private static final JavaTypeFactory TYPE_FACTORY =
+      new JavaTypeFactoryImpl();
+
+  private static final RelDataType ID_NAME_ROW_TYPE =
+      TYPE_FACTORY.builder()
+          .add("ID", SqlTypeName.INTEGER)
+          .add("NAME", SqlTypeName.VARCHAR, 10)
+          .build();
+
   public static final String FOODMART_SCHEMA =
       "     {\n"
       + "       type: 'jdbc',\n"
@@ -972,6 +989,255 @@ public Object apply(OptiqConnection c) {
     connection.close();
   }
 
+  /** Returns a connection factory whose connections have a schema "s" that
+   * contains a clone table for each entry of {@code tables}. Each table has
+   * the given row type and contains the given rows. */
+  private static OptiqAssert.ConnectionFactory cloneTableFactory(
+      RelDataType rowType, Map<String, Object[][]> tables) {
+    return cloneTableFactory(new Properties(), rowType, tables);
+  }
+
+  /** As {@link #cloneTableFactory(RelDataType, Map)}, with given connection
+   * properties. */
+  private static OptiqAssert.ConnectionFactory cloneTableFactory(
+      final Properties info, final RelDataType rowType,
+      final Map<String, Object[][]> tables) {
+    return new OptiqAssert.ConnectionFactory() {
+      public OptiqConnection createConnection() throws Exception {
+        Class.forName("net.hydromatic.optiq.jdbc.Driver");
+        final Connection connection =
+            DriverManager.getConnection("jdbc:optiq:", info);
+        final OptiqConnection optiqConnection =
+            connection.unwrap(OptiqConnection.class);
+        final JavaTypeFactory typeFactory = optiqConnection.getTypeFactory();
+        final SchemaPlus s =
+            optiqConnection.getRootSchema().add("s", new AbstractSchema());
+        for (Map.Entry<String, Object[][]> entry : tables.entrySet()) {
+          s.add(entry.getKey(),
+              CloneSchema.createCloneTable(typeFactory,
+                  RelDataTypeImpl.proto(rowType), null,
+                  Linq4j.asEnumerable(entry.getValue())));
+        }
+        return optiqConnection;
+      }
+    };
+  }
+
+  /** Tests that a join between two clone tables that are sorted on the join
+   * key uses a merge join. */
+  @Test public void testMergeJoin() {
+    OptiqAssert.that()
+        .with(
+            cloneTableFactory(ID_NAME_ROW_TYPE,
+                ImmutableMap.of(
+                    "A",
+                    new Object[][] {{3, "c"}, {1, "a"}, {5, "e"}, {2, "b"}},
+                    "B",
+                    new Object[][] {{4, "z"}, {5, "w"}, {1, "x"}, {3, "y"}})))
+        .query("select * from \"s\".a join \"s\".b on a.id = b.id")
+        .explainContains(
+            "EnumerableMergeJoinRel(condition=[=($0, $2)], joinType=[inner])")
+        .returns(
+            "ID=1; NAME=a; ID0=1; NAME0=x\n"
+            + "ID=3; NAME=c; ID0=3; NAME0=y\n"
+            + "ID=5; NAME=e; ID0=5; NAME0=w\n");
+  }
+
+  /** Tests that rows appended to clone tables after a merge join over them
+   * has been prepared do not break the join. Rows that keep the tables sorted
+   * on the join key are visible to the prepared statement; other rows are
+   * refused. */
+  @Test public void testMergeJoinAppend() throws Exception {
+    final OptiqConnection connection =
+        cloneTableFactory(ID_NAME_ROW_TYPE,
+            ImmutableMap.of(
+                "A",
+                new Object[][] {{3, "c"}, {1, "a"}, {5, "e"}, {2, "b"}},
+                "B",
+                new Object[][] {{4, "z"}, {5, "w"}, {1, "x"}, {3, "y"}}))
+            .createConnection();
+    final JavaTypeFactory typeFactory = connection.getTypeFactory();
+    final SchemaPlus s = connection.getRootSchema().getSubSchema("s");
+    final ArrayTable a = (ArrayTable) s.getTable("A");
+    final ArrayTable b = (ArrayTable) s.getTable("B");
+    final String sql = "select a.id, a.name, b.name as bname\n"
+        + "from \"s\".a join \"s\".b on a.id = b.id";
+    final Statement statement = connection.createStatement();
+    final ResultSet plan = statement.executeQuery("explain plan for " + sql);
+    assertThat(OptiqAssert.toString(plan),
+        containsString("EnumerableMergeJoinRel"));
+    plan.close();
+    final PreparedStatement preparedStatement =
+        connection.prepareStatement(sql);
+    final String expected =
+        "ID=1; NAME=a; BNAME=x\n"
+        + "ID=3; NAME=c; BNAME=y\n"
+        + "ID=5; NAME=e; BNAME=w\n";
+    assertEquals(expected,
+        OptiqAssert.toString(preparedStatement.executeQuery()));
+
+    // Rows whose ids follow the existing ids are appended, and the prepared
+    // join sees them.
+    b.append(typeFactory, null,
+        Linq4j.asEnumerable(new Object[][] {{6, "v"}, {8, "u"}}));
+    a.append(typeFactory, null,
+        Linq4j.asEnumerable(new Object[][] {{7, "g"}, {6, "f"}}));
+    final String expected2 = expected + "ID=6; NAME=f; BNAME=v\n";
+    assertEquals(expected2,
+        OptiqAssert.toString(preparedStatement.executeQuery()));
+
+    // Rows that would precede existing ids are refused, so the join still
+    // reads both inputs in order.
+    try {
+      final int n = b.append(typeFactory, null,
+          Linq4j.asEnumerable(new Object[][] {{2, "t"}, {7, "s"}}));
+      fail("expected error, got " + n);
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("Cannot append rows"));
+    }
+    assertEquals(expected2,
+        OptiqAssert.toString(preparedStatement.executeQuery()));
+    connection.close();
+  }
+
+  /** Tests that an aggregate whose input is sorted on the group key emits
+   * groups as it goes, without a hash table. The group key is not unique, so
+   * some groups have several rows. */
+  @Test public void testSortedAggregate() {
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"deptno\", count(*) as c, sum(\"empid\") as s\n"
+            + "from (select \"deptno\", \"empid\" from \"hr\".\"emps\"\n"
+            + "  order by \"deptno\")\n"
+            + "group by \"deptno\"")
+        .explainContains(
+            "EnumerableSortedAggregateRel(group=[{0}], C=[COUNT()], S=[SUM($1)])")
+        .returns(
+            "deptno=10; C=3; S=360\n"
+            + "deptno=20; C=1; S=200\n");
+  }
+
+  /** Tests that projections and simple conditions are evaluated by the scan
+   * of a clone table, that conditions on the column on which the table is
+   * sorted become binary searches, and that other conditions remain in a
+   * calc. */
+  @Test public void testArrayTablePushDown() {
+    final OptiqAssert.AssertThat with = OptiqAssert.that()
+        .with(
+            cloneTableFactory(
+                TYPE_FACTORY.builder()
+                    .add("ID", SqlTypeName.INTEGER)
+                    .add("NAME", SqlTypeName.VARCHAR, 10)
+                    .add("V", SqlTypeName.INTEGER)
+                    .build(),
+                ImmutableMap.of("T",
+                    new Object[][] {
+                      {3, "c", 30}, {1, "a", 10}, {5, "e", 50},
+                      {2, "b", 20}, {4, "d", 40}
+                    })));
+    with.query(
+            "select name from \"s\".t\n"
+            + "where id >= 2 and name <> 'c' and 50 >= v")
+        .explainContains(
+            "PLAN=ArrayTableAccessRel(table=[[s, T]], fields=[[1]], condition=[AND(<>($1, 'c'), <=($2, 50))], search=[>=($0, 2)])")
+        .returnsUnordered(
+            "NAME=b",
+            "NAME=d",
+            "NAME=e");
+    with.query(
+            "select v, id from \"s\".t\n"
+            + "where id < 4 and v + 1 > 20")
+        .explainContains(
+            "PLAN=EnumerableCalcRel(expr#0..1=[{inputs}], expr#2=[1], expr#3=[+($t0, $t2)], expr#4=[20], expr#5=[>($t3, $t4)], proj#0..1=[{exprs}], $condition=[$t5])\n"
+            + "  ArrayTableAccessRel(table=[[s, T]], fields=[[2, 0]], search=[<($0, 4)])")
+        .returnsUnordered(
+            "V=20; ID=2",
+            "V=30; ID=3");
+
+    // Disjunction on the sort column becomes a list of ranges, each found by
+    // binary search; rows come out in sort order.
+    with.query(
+            "select id, v from \"s\".t\n"
+            + "where id in (5, 2, 3) or id < 2 or id > 100")
+        .explainContains(
+            "ArrayTableAccessRel(table=[[s, T]], fields=[[0, 2]], search=[OR(")
+        .returns(
+            "ID=1; V=10\n"
+            + "ID=2; V=20\n"
+            + "ID=3; V=30\n"
+            + "ID=5; V=50\n");
+    with.query(
+            "select id from \"s\".t\n"
+            + "where id > 3 and id < 3")
+        .returns("");
+
+    // IN list on a column other than the sort column becomes a single
+    // condition, evaluated by the scan.
+    with.query(
+            "select id from \"s\".t\n"
+            + "where name in ('b', 'e', 'x')")
+        .explainContains(
+            "PLAN=ArrayTableAccessRel(table=[[s, T]], fields=[[0]], condition=[OR(=($1, 'b'), =($1, 'e'), =($1, 'x'))])")
+        .returnsUnordered(
+            "ID=2",
+            "ID=5");
+  }
+
+  /** Tests that an aggregate over a scan of a clone table reads numeric
+   * values a batch at a time into primitive vectors, using
+   * {@link ArrayTable.Cursor}, with a null mask if the column is nullable,
+   * rather than creating a row object per row. */
+  @Test public void testArrayTableAggregate() {
+    final OptiqAssert.AssertThat with = OptiqAssert.that()
+        .with(
+            cloneTableFactory(
+                TYPE_FACTORY.builder()
+                    .add("ID", SqlTypeName.INTEGER)
+                    .add("NAME", SqlTypeName.VARCHAR, 10)
+                    .add("V", SqlTypeName.INTEGER)
+                    .nullable(true)
+                    .add("B", SqlTypeName.BIGINT)
+                    .add("D", SqlTypeName.DOUBLE)
+                    .nullable(true)
+                    .build(),
+                ImmutableMap.of("T",
+                    new Object[][] {
+                      {3, "c", 30, 3000L, 3.5},
+                      {1, "a", null, 1000L, null},
+                      {5, "e", 50, 5000L, 0.5},
+                      {2, "b", 20, 2000L, 2.5},
+                      {4, "d", null, 4000L, 4.5}
+                    })));
+    with.query(
+            "select count(*) as c, count(v) as cv, sum(v) as s,\n"
+            + " min(b) as mi, max(d) as ma\n"
+            + "from \"s\".t")
+        .explainContains(
+            "PLAN=ArrayTableAggregateRel(group=[{}], C=[COUNT()], CV=[COUNT($0)], S=[SUM($0)], MI=[MIN($1)], MA=[MAX($2)])\n"
+            + "  ArrayTableAccessRel(table=[[s, T]], fields=[[2, 3, 4]])")
+        .planContains(".nextBatch()")
+        .planContains(".getInts(0, ")
+        .planContains(".getNulls(0, ")
+        .planContains(".getLongs(1, ")
+        .planContains(".getDoubles(2, ")
+        .planContains(".getNulls(2, ")
+        .returns("C=5; CV=3; S=100; MI=1000; MA=4.5\n");
+
+    // Conditions on the sort column are still evaluated by binary search.
+    with.query(
+            "select sum(b) as s from \"s\".t where id >= 3")
+        .explainContains(
+            "PLAN=ArrayTableAggregateRel(group=[{}], S=[SUM($0)])\n"
+            + "  ArrayTableAccessRel(table=[[s, T]], fields=[[3]], search=[>=($0, 3)])")
+        .returns("S=12000\n");
+
+    // If there are no rows, SUM returns null and COUNT returns 0.
+    with.query(
+            "select sum(v) as s, count(*) as c from \"s\".t where id > 10")
+        .returns("S=null; C=0\n");
+  }
+
   @Test public void testCloneGroupBy() {
     OptiqAssert.that()
         .with(OptiqAssert.Config.FOODMART_CLONE)
@@ -2026,6 +2292,24 @@ private void checkNullableTimestamp(OptiqAssert.Config config) {
             "hire_date=1994-12-01 00:00:00; end_date=null; birth_date=1961-08-26\n");
   }
 
+  /** Tests that LIKE with a constant pattern does not compile a regular
+   * expression for each row, and uses a String method if it can. */
+  @Test public void testLikeConstantPattern() {
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"name\" from \"hr\".\"emps\" where \"name\" like '%o%'")
+        .planContains(".contains(\"o\")")
+        .returns("name=Theodore\n");
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"name\" from \"hr\".\"emps\" where \"name\" like 'B_l%'")
+        .planContains(
+            "net.hydromatic.optiq.runtime.Like.likePattern(\"B_l%\"")
+        .returns("name=Bill\n");
+  }
+
   @Test public void testReuseExpressionWhenNullChecking() {
     OptiqAssert.that()
         .with(OptiqAssert.Config.REGULAR)
@@ -2345,8 +2629,7 @@ private static ImmutableMultimap<Class, Integer> x() {
         .explainContains(
             "EnumerableAggregateRel(group=[{}], m0=[COUNT($0)])\n"
             + "  EnumerableAggregateRel(group=[{0}])\n"
-            + "    EnumerableCalcRel(expr#0..7=[{inputs}], unit_sales=[$t7])\n"
-            + "      EnumerableTableAccessRel(table=[[foodmart2, sales_fact_1997]])")
+            + "    ArrayTableAccessRel(table=[[foodmart2, sales_fact_1997]], fields=[[7]])")
         .returns("m0=6\n");
   }
 
@@ -2363,8 +2646,7 @@ private static ImmutableMultimap<Class, Integer> x() {
             "EnumerableCalcRel(expr#0..1=[{inputs}], expr#2=[CAST($t0):INTEGER NOT NULL], u=[$t2], m0=[$t1])\n"
             + "  EnumerableAggregateRel(group=[{0}], m0=[COUNT($1)])\n"
             + "    EnumerableAggregateRel(group=[{0, 1}])\n"
-            + "      EnumerableCalcRel(expr#0..7=[{inputs}], unit_sales=[$t7], customer_id=[$t2])\n"
-            + "        EnumerableTableAccessRel(table=[[foodmart2, sales_fact_1997]])")
+            + "      ArrayTableAccessRel(table=[[foodmart2, sales_fact_1997]], fields=[[7, 2]])")
         .returnsUnordered(
             "u=1; m0=523",
             "u=5; m0=1059",
@@ -2391,10 +2673,9 @@ private static ImmutableMultimap<Class, Integer> x() {
             + "  EnumerableAggregateRel(group=[{0, 1}])\n"
             + "    EnumerableCalcRel(expr#0..3=[{inputs}], c0=[$t3], unit_sales=[$t1])\n"
             + "      EnumerableJoinRel(condition=[=($0, $2)], joinType=[inner])\n"
-            + "        EnumerableCalcRel(expr#0..7=[{inputs}], time_id=[$t1], unit_sales=[$t7])\n"
-            + "          EnumerableTableAccessRel(table=[[foodmart2, sales_fact_1997]])\n"
-            + "        EnumerableCalcRel(expr#0..9=[{inputs}], expr#10=[CAST($t4):INTEGER], expr#11=[1997], expr#12=[=($t10, $t11)], time_id=[$t0], the_year=[$t4], $condition=[$t12])\n"
-            + "          EnumerableTableAccessRel(table=[[foodmart2, time_by_day]])")
+            + "        ArrayTableAccessRel(table=[[foodmart2, sales_fact_1997]], fields=[[1, 7]])\n"
+            + "        EnumerableCalcRel(expr#0..1=[{inputs}], expr#2=[CAST($t1):INTEGER], expr#3=[1997], expr#4=[=($t2, $t3)], proj#0..1=[{exprs}], $condition=[$t4])\n"
+            + "          ArrayTableAccessRel(table=[[foodmart2, time_by_day]], fields=[[0, 4]])")
         .returns("c0=1997; m0=6\n");
   }
 
@@ -2650,10 +2931,8 @@ private static ImmutableMultimap<Class, Integer> x() {
             + "where \"store_id\" < 10\n"
             + "order by 1 fetch first 5 rows only")
         .explainContains(
-            "PLAN=EnumerableLimitRel(fetch=[5])\n"
-            + "  EnumerableSortRel(sort0=[$0], dir0=[ASC])\n"
-            + "    EnumerableCalcRel(expr#0..23=[{inputs}], expr#24=[10], expr#25=[<($t0, $t24)], store_id=[$t0], grocery_sqft=[$t16], $condition=[$t25])\n"
-            + "      EnumerableTableAccessRel(table=[[foodmart2, store]])\n")
+            "PLAN=EnumerableSortRel(sort0=[$0], dir0=[ASC], fetch=[5])\n"
+            + "  ArrayTableAccessRel(table=[[foodmart2, store]], fields=[[0, 16]], search=[<($0, 10)])\n")
         .returns(
             "store_id=0; grocery_sqft=null\n"
             + "store_id=1; grocery_sqft=17475\n"
@@ -2670,6 +2949,8 @@ private static ImmutableMultimap<Class, Integer> x() {
             "select \"store_id\", \"grocery_sqft\" from \"store\"\n"
             + "where \"store_id\" < 10\n"
             + "order by 1 offset 2 rows fetch next 5 rows only")
+        .explainContains(
+            "PLAN=EnumerableSortRel(sort0=[$0], dir0=[ASC], offset=[2], fetch=[5])\n")
         .returns(
             "store_id=2; grocery_sqft=22271\n"
             + "store_id=3; grocery_sqft=24390\n"
@@ -3700,6 +3981,30 @@ private void startOfGroupStep3(String startOfGroup) {
             "empid=200; commission=500; M=260");
   }
 
+  /** Tests aggregates over a sliding window, which are computed
+   * incrementally by removing the rows that leave the frame. */
+  @Test public void testSlidingWindow() {
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"empid\",\n"
+            + "  sum(\"empid\") over w as s,\n"
+            + "  count(\"commission\") over w as c,\n"
+            + "  sum(\"commission\") over w as sc,\n"
+            + "  avg(\"commission\") over w as ac,\n"
+            + "  min(\"commission\") over w as mi,\n"
+            + "  max(\"commission\") over w as ma,\n"
+            + "  sum(\"commission\") over (partition by 42 order by \"empid\"\n"
+            + "    rows between 1 following and 1 following) as n\n"
+            + "from \"hr\".\"emps\"\n"
+            + "window w as (partition by 42 order by \"empid\" rows 1 preceding)")
+        .returnsUnordered(
+            "empid=100; S=100; C=1; SC=1000; AC=1000; MI=1000; MA=1000; N=250",
+            "empid=110; S=210; C=2; SC=1250; AC=625; MI=250; MA=1000; N=null",
+            "empid=150; S=260; C=1; SC=250; AC=250; MI=250; MA=250; N=500",
+            "empid=200; S=350; C=1; SC=500; AC=500; MI=500; MA=500; N=null");
+  }
+
   /** Tests windowed aggregation with no ORDER BY clause.
    *
    * <p>Test case for
@@ -5547,6 +5852,411 @@ public Object apply(Object a0) {
     }
   }
 
+  /** Tests {@link BindableCache}. */
+  @Test public void testBindableCache() throws Exception {
+    final BindableCache cache = new BindableCache(1000000);
+    final int[] compileCount = {0};
+    final Callable<Class> compiler = new Callable<Class>() {
+      public Class call() {
+        ++compileCount[0];
+        return EmptyBindable.class;
+      }
+    };
+    final Bindable bindable0 = cache.get("class Foo {}", compiler);
+    assertThat(compileCount[0], equalTo(1));
+    assertThat(cache.missCount(), equalTo(1L));
+    assertThat(cache.hitCount(), equalTo(0L));
+
+    // Same source, so no need to compile. But we get a new instance.
+    final Bindable bindable1 = cache.get("class Foo {}", compiler);
+    assertThat(compileCount[0], equalTo(1));
+    assertThat(cache.missCount(), equalTo(1L));
+    assertThat(cache.hitCount(), equalTo(1L));
+    assertThat(bindable1, instanceOf(EmptyBindable.class));
+    assertThat(bindable1, not(sameInstance(bindable0)));
+
+    cache.get("class Bar {}", compiler);
+    assertThat(compileCount[0], equalTo(2));
+    assertThat(cache.size(), equalTo(2L));
+
+    // A cache that is too small to hold anything evicts immediately.
+    final BindableCache cache2 = new BindableCache(0);
+    cache2.get("class Foo {}", compiler);
+    cache2.get("class Foo {}", compiler);
+    assertThat(cache2.missCount(), equalTo(2L));
+    assertThat(cache2.hitCount(), equalTo(0L));
+    assertThat(cache2.size(), equalTo(0L));
+  }
+
+  /** Tests that preparing the same statement twice compiles its generated
+   * code once, the second prepare using {@link BindableCache#INSTANCE}.
+   *
+   * <p>Other tests may use the shared cache at the same time, so the test
+   * checks that the hit count grows, and then that the cache holds the
+   * generated code, rather than checking exact counts.</p> */
+  @Test public void testBindableCacheShared() throws Exception {
+    final Connection connection = DriverManager.getConnection("jdbc:optiq:");
+    final OptiqConnection optiqConnection =
+        connection.unwrap(OptiqConnection.class);
+    optiqConnection.getRootSchema().add("hr",
+        new ReflectiveSchema(new HrSchema()));
+    final List<String> sources = new ArrayList<String>();
+    final Hook.Closeable hook = Hook.JAVA_PLAN.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            sources.add((String) a0);
+            return null;
+          }
+        });
+    try {
+      final String sql = "select \"name\", \"empid\" * 7 as e\n"
+          + "from \"hr\".\"emps\" where \"deptno\" = 10 order by 2";
+      connection.prepareStatement(sql).close();
+      final long hitCount = BindableCache.INSTANCE.hitCount();
+      final PreparedStatement statement = connection.prepareStatement(sql);
+      assertThat(BindableCache.INSTANCE.hitCount() > hitCount, is(true));
+      assertThat(sources.size(), equalTo(2));
+      assertThat(sources.get(1), equalTo(sources.get(0)));
+
+      final int[] compileCount = {0};
+      BindableCache.INSTANCE.get(sources.get(0),
+          new Callable<Class>() {
+            public Class call() {
+              ++compileCount[0];
+              return EmptyBindable.class;
+            }
+          });
+      assertThat(compileCount[0], equalTo(0));
+
+      final ResultSet resultSet = statement.executeQuery();
+      assertThat(OptiqAssert.toString(resultSet),
+          equalTo("name=Bill; E=700\n"
+              + "name=Theodore; E=770\n"
+              + "name=Sebastian; E=1050\n"));
+      resultSet.close();
+      statement.close();
+    } finally {
+      hook.close();
+    }
+    connection.close();
+  }
+
+  /** Tests that the plan cache re-uses a plan for statements that differ only
+   * in the values of their literals. */
+  @Test public void testPlanCache() throws Exception {
+    final Properties info = new Properties();
+    info.setProperty("planCache", "true");
+    final Connection connection =
+        DriverManager.getConnection("jdbc:optiq:", info);
+    final OptiqConnection optiqConnection =
+        connection.unwrap(OptiqConnection.class);
+    optiqConnection.getRootSchema().add("hr",
+        new ReflectiveSchema(new HrSchema()));
+    final int[] codeCount = {0};
+    final Hook.Closeable hook = Hook.JAVA_PLAN.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            ++codeCount[0];
+            return null;
+          }
+        });
+    try {
+      final Statement statement = connection.createStatement();
+      final String sql =
+          "select \"name\" from \"hr\".\"emps\" where \"empid\" = ";
+      ResultSet resultSet = statement.executeQuery(sql + "100");
+      assertThat(OptiqAssert.toString(resultSet), equalTo("name=Bill\n"));
+      resultSet.close();
+      assertThat(codeCount[0], equalTo(1));
+
+      // Different literal, same plan.
+      resultSet = statement.executeQuery(sql + "200");
+      assertThat(OptiqAssert.toString(resultSet), equalTo("name=Eric\n"));
+      resultSet.close();
+      assertThat(codeCount[0], equalTo(1));
+
+      // Literal cannot be converted to the type of "empid" without loss, so
+      // statement is prepared with its literal intact.
+      resultSet = statement.executeQuery(sql + "150.5");
+      assertThat(OptiqAssert.toString(resultSet), equalTo(""));
+      resultSet.close();
+      assertThat(codeCount[0], equalTo(2));
+      statement.close();
+    } finally {
+      hook.close();
+      connection.close();
+    }
+  }
+
+  /** Tests that the plan cache keeps the literals of comparisons that the
+   * scan of a clone table would evaluate by binary search, and replaces
+   * other literals. */
+  @Test public void testPlanCacheCloneTable() throws Exception {
+    final Properties info = new Properties();
+    info.setProperty("planCache", "true");
+    final OptiqConnection connection =
+        cloneTableFactory(info,
+            TYPE_FACTORY.builder()
+                .add("ID", SqlTypeName.INTEGER)
+                .add("V", SqlTypeName.INTEGER)
+                .build(),
+            ImmutableMap.of("T",
+                new Object[][] {{3, 30}, {1, 10}, {5, 50}, {2, 20}, {4, 40}}))
+            .createConnection();
+    final int[] codeCount = {0};
+    final Hook.Closeable hook = Hook.JAVA_PLAN.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            ++codeCount[0];
+            return null;
+          }
+        });
+    try {
+      final Statement statement = connection.createStatement();
+      // The table is sorted on ID, so each literal gets its own plan, with
+      // a binary search.
+      final String sql = "select v from \"s\".t where id >= ";
+      ResultSet resultSet = statement.executeQuery(sql + "4");
+      assertThat(OptiqAssert.toString(resultSet), equalTo("V=40\nV=50\n"));
+      assertThat(codeCount[0], equalTo(1));
+      resultSet = statement.executeQuery(sql + "5");
+      assertThat(OptiqAssert.toString(resultSet), equalTo("V=50\n"));
+      assertThat(codeCount[0], equalTo(2));
+      resultSet = statement.executeQuery(sql + "4");
+      assertThat(OptiqAssert.toString(resultSet), equalTo("V=40\nV=50\n"));
+      assertThat(codeCount[0], equalTo(2));
+
+      // V is neither the sort column nor in a dictionary, so statements that
+      // differ in the value share a plan.
+      final String sql2 = "select id from \"s\".t where v > ";
+      resultSet = statement.executeQuery(sql2 + "35");
+      assertThat(OptiqAssert.toString(resultSet), equalTo("ID=4\nID=5\n"));
+      assertThat(codeCount[0], equalTo(3));
+      resultSet = statement.executeQuery(sql2 + "15");
+      assertThat(OptiqAssert.toString(resultSet),
+          equalTo("ID=2\nID=3\nID=4\nID=5\n"));
+      assertThat(codeCount[0], equalTo(3));
+      statement.close();
+    } finally {
+      hook.close();
+      connection.close();
+    }
+  }
+
+  /** Tests a join whose right input has more rows than the
+   * "joinSpillThreshold" connection property, and is therefore written to
+   * disk. */
+  @Test public void testJoinSpill() {
+    final List<Spill.Stats> statsList = new ArrayList<Spill.Stats>();
+    final Hook.Closeable hook = Hook.SPILL.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            statsList.add((Spill.Stats) a0);
+            return null;
+          }
+        });
+    try {
+      final String values =
+          "from (values (1, 'a'), (2, 'b'), (3, 'c')) as t(x, y)\n"
+          + "%s (values (1, 'x'), (1, 'y'), (3, 'z'), (4, 'w')) as u(x, z)\n"
+          + "on t.x = u.x";
+      final OptiqAssert.AssertThat with =
+          OptiqAssert.that()
+              .with(ImmutableMap.of("joinSpillThreshold", "2"));
+      with.query("select t.x, t.y, u.z "
+          + String.format(values, "join"))
+          .returnsUnordered(
+              "X=1; Y=a; Z=x",
+              "X=1; Y=a; Z=y",
+              "X=3; Y=c; Z=z");
+      assertThat(statsList.isEmpty(), is(false));
+      assertThat(statsList.get(0).operator, equalTo("join"));
+      assertThat(statsList.get(0).getRowCount(), equalTo(7L));
+
+      statsList.clear();
+      with.query("select t.x, t.y, u.z "
+          + String.format(values, "left join"))
+          .returnsUnordered(
+              "X=1; Y=a; Z=x",
+              "X=1; Y=a; Z=y",
+              "X=2; Y=b; Z=null",
+              "X=3; Y=c; Z=z");
+      assertThat(statsList.isEmpty(), is(false));
+
+      // Rows of a reflective schema are not serializable; they, and the
+      // list of employees in each department, are written field by field.
+      statsList.clear();
+      final OptiqAssert.AssertThat hr =
+          withHr(ImmutableMap.of("joinSpillThreshold", "1"));
+      hr.query("select e.\"name\", d.\"name\" as dname\n"
+          + "from \"hr\".\"emps\" as e\n"
+          + "join \"hr\".\"depts\" as d on e.\"deptno\" = d.\"deptno\"")
+          .returnsUnordered(
+              "name=Bill; DNAME=Sales",
+              "name=Sebastian; DNAME=Sales",
+              "name=Theodore; DNAME=Sales");
+      assertThat(statsList.isEmpty(), is(false));
+
+      // Rows of a projection are of a class generated by Janino.
+      statsList.clear();
+      hr.query("select e.n, e.id, d.\"name\" as dname\n"
+          + "from (select \"deptno\", \"name\" as n, \"empid\" + 1 as id\n"
+          + "  from \"hr\".\"emps\") as e\n"
+          + "join (select \"deptno\", \"name\" from \"hr\".\"depts\") as d\n"
+          + "on e.\"deptno\" = d.\"deptno\"")
+          .returnsUnordered(
+              "N=Bill; ID=101; DNAME=Sales",
+              "N=Sebastian; ID=151; DNAME=Sales",
+              "N=Theodore; ID=111; DNAME=Sales");
+      assertThat(statsList.isEmpty(), is(false));
+    } finally {
+      hook.close();
+    }
+  }
+
+  /** Returns an assert on a connection that has the "hr" schema and the
+   * given connection properties. */
+  private static OptiqAssert.AssertThat withHr(
+      final Map<String, String> properties) {
+    return OptiqAssert.that().with(
+        new OptiqAssert.ConnectionFactory() {
+          public OptiqConnection createConnection() throws Exception {
+            Class.forName("net.hydromatic.optiq.jdbc.Driver");
+            final Properties info = new Properties();
+            info.putAll(properties);
+            final OptiqConnection connection =
+                DriverManager.getConnection("jdbc:optiq:", info)
+                    .unwrap(OptiqConnection.class);
+            connection.getRootSchema().add("hr",
+                new ReflectiveSchema(new HrSchema()));
+            return connection;
+          }
+        });
+  }
+
+  /** Tests a sort whose input has more rows than the "sortSpillThreshold"
+   * connection property, and a sort followed by a limit, which uses a bounded
+   * heap. */
+  @Test public void testSortSpill() {
+    final List<Spill.Stats> statsList = new ArrayList<Spill.Stats>();
+    final Hook.Closeable hook = Hook.SPILL.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            statsList.add((Spill.Stats) a0);
+            return null;
+          }
+        });
+    try {
+      final String sql = "select x, y\n"
+          + "from (values (1, 'a'), (3, 'b'), (2, 'c'), (3, 'd'), (1, 'e'))\n"
+          + "  as t(x, y)\n"
+          + "order by x desc, y";
+      final OptiqAssert.AssertThat with =
+          OptiqAssert.that()
+              .with(ImmutableMap.of("sortSpillThreshold", "2"));
+      with.query(sql)
+          .returns("X=3; Y=b\n"
+              + "X=3; Y=d\n"
+              + "X=2; Y=c\n"
+              + "X=1; Y=a\n"
+              + "X=1; Y=e\n");
+      assertThat(statsList.size(), equalTo(1));
+      assertThat(statsList.get(0).operator, equalTo("sort"));
+      assertThat(statsList.get(0).getFileCount(), equalTo(2));
+      assertThat(statsList.get(0).getRowCount(), equalTo(4L));
+
+      statsList.clear();
+      with.query(sql + " limit 2 offset 1")
+          .returns("X=3; Y=d\n"
+              + "X=2; Y=c\n");
+      assertThat(statsList.isEmpty(), is(true));
+
+      // Sort rows of a reflective schema, and of a projection.
+      statsList.clear();
+      final OptiqAssert.AssertThat hr =
+          withHr(ImmutableMap.of("sortSpillThreshold", "2"));
+      hr.query("select * from \"hr\".\"emps\" order by \"name\" desc")
+          .returns(
+              "empid=110; deptno=10; name=Theodore; salary=11500.0;"
+              + " commission=250\n"
+              + "empid=150; deptno=10; name=Sebastian; salary=7000.0;"
+              + " commission=null\n"
+              + "empid=200; deptno=20; name=Eric; salary=8000.0;"
+              + " commission=500\n"
+              + "empid=100; deptno=10; name=Bill; salary=10000.0;"
+              + " commission=1000\n");
+      assertThat(statsList.isEmpty(), is(false));
+
+      statsList.clear();
+      hr.query("select \"name\", \"empid\" + 1 as id\n"
+          + "from \"hr\".\"emps\" order by 2")
+          .returns(
+              "name=Bill; ID=101\n"
+              + "name=Theodore; ID=111\n"
+              + "name=Sebastian; ID=151\n"
+              + "name=Eric; ID=201\n");
+      assertThat(statsList.isEmpty(), is(false));
+    } finally {
+      hook.close();
+    }
+  }
+
+  @Test public void testAggregateSpill() {
+    final List<Spill.Stats> statsList = new ArrayList<Spill.Stats>();
+    final Hook.Closeable hook = Hook.SPILL.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            statsList.add((Spill.Stats) a0);
+            return null;
+          }
+        });
+    try {
+      OptiqAssert.that()
+          .with(ImmutableMap.of("aggregateSpillThreshold", "2"))
+          .query(
+              "select x, count(*) as c, sum(y) as s\n"
+              + "from (values (1, 10), (2, 20), (3, 30), (1, 1), (4, 40),\n"
+              + "  (5, 50), (3, 3), (4, 4)) as t(x, y)\n"
+              + "group by x")
+          .returnsUnordered(
+              "X=1; C=2; S=11",
+              "X=2; C=1; S=20",
+              "X=3; C=2; S=33",
+              "X=4; C=2; S=44",
+              "X=5; C=1; S=50");
+      // Groups 1 and 2 stay in memory; rows of the other groups spill.
+      assertThat(statsList.isEmpty(), is(false));
+      assertThat(statsList.get(0).operator, equalTo("aggregate"));
+      assertThat(statsList.get(0).getRowCount(), equalTo(5L));
+
+      // Aggregate rows of a reflective schema, and of a projection. Group
+      // 10 stays in memory; Eric's row, in group 20, spills.
+      statsList.clear();
+      final OptiqAssert.AssertThat hr =
+          withHr(ImmutableMap.of("aggregateSpillThreshold", "1"));
+      hr.query("select \"deptno\", count(*) as c, sum(\"empid\") as s\n"
+          + "from \"hr\".\"emps\"\n"
+          + "group by \"deptno\"")
+          .returnsUnordered(
+              "deptno=10; C=3; S=360",
+              "deptno=20; C=1; S=200");
+      assertThat(statsList.isEmpty(), is(false));
+      assertThat(statsList.get(0).getRowCount(), equalTo(1L));
+
+      statsList.clear();
+      hr.query("select d, count(*) as c, sum(id) as s\n"
+          + "from (select \"deptno\" * 2 as d, \"empid\" + 1 as id\n"
+          + "  from \"hr\".\"emps\")\n"
+          + "group by d")
+          .returnsUnordered(
+              "D=20; C=3; S=363",
+              "D=40; C=1; S=201");
+      assertThat(statsList.isEmpty(), is(false));
+    } finally {
+      hook.close();
+    }
+  }
+
   /** Tests {@link SqlDialect}. */
   @Test public void testDialect() {
     final String[] sqls = {null};
@@ -6110,6 +6820,13 @@ public static QueryableTable eval(String s) {
       return oneThreePlus(s);
     }
   }
+
+  /** Bindable that returns no rows. Used to test {@link BindableCache}. */
+  public static class EmptyBindable implements Bindable {
+    public Enumerable bind(DataContext dataContext) {
+      return Linq4j.emptyEnumerable();
+    }
+  }
 }
 
 // End JdbcTest.java
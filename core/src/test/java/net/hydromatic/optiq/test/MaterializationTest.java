@@ -19,7 +19,12 @@
 
 import net.hydromatic.linq4j.function.Function1;
 
+import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.impl.java.ReflectiveSchema;
 import net.hydromatic.optiq.jdbc.JavaTypeFactoryImpl;
+import net.hydromatic.optiq.jdbc.OptiqConnection;
+import net.hydromatic.optiq.jdbc.OptiqSchema;
+import net.hydromatic.optiq.materialize.MaterializationKey;
 import net.hydromatic.optiq.materialize.MaterializationService;
 import net.hydromatic.optiq.prepare.Prepare;
 
@@ -28,11 +33,19 @@
 import org.eigenbase.rex.*;
 import org.eigenbase.sql.fun.SqlStdOperatorTable;
 
+import com.google.common.collect.ImmutableList;
+
 import org.junit.Ignore;
 import org.junit.Test;
 
 import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
@@ -45,7 +58,7 @@
 public class MaterializationTest {
   private static final Function1<ResultSet, Void> CONTAINS_M0 =
       OptiqAssert.checkResultContains(
-          "EnumerableTableAccessRel(table=[[hr, m0]])");
+          "ArrayTableAccessRel(table=[[hr, m0]]");
 
   final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
   final RexBuilder rexBuilder = new RexBuilder(typeFactory);
@@ -61,7 +74,7 @@ public class MaterializationTest {
             "select \"empid\" + 1 from \"emps\" where \"deptno\" = 10")
         .enableMaterializations(true)
         .explainContains(
-            "EnumerableTableAccessRel(table=[[hr, m0]])")
+            "ArrayTableAccessRel(table=[[hr, m0]]")
         .sameResultWithMaterializationsDisabled();
   }
 
@@ -79,7 +92,7 @@ public class MaterializationTest {
               "select \"empid\" + 1 as x from \"emps\" where \"deptno\" = 10")
           .enableMaterializations(true)
           .explainContains(
-              "EnumerableTableAccessRel(table=[[hr, m0]])")
+              "ArrayTableAccessRel(table=[[hr, m0]]")
           .sameResultWithMaterializationsDisabled();
     } finally {
       Prepare.THREAD_TRIM.set(false);
@@ -598,6 +611,90 @@ private void checkSatisfiable(RexNode e, String s) {
         + "join \"depts\" using (\"deptno\")";
     checkNoMaterialize(q, q, JdbcTest.HR_MODEL);
   }
+
+  /** Tests that {@link MaterializationService#query} returns only the
+   * materializations defined within the given root schema, even if another
+   * root schema has similar contents. */
+  @Test public void testQueryByRootSchema() throws Exception {
+    MaterializationService.setThreadLocal();
+    final MaterializationService service = MaterializationService.instance();
+    final Connection connection1 = DriverManager.getConnection("jdbc:optiq:");
+    final Connection connection2 = DriverManager.getConnection("jdbc:optiq:");
+    final Connection connection3 = DriverManager.getConnection("jdbc:optiq:");
+    final OptiqSchema hr1 = addHr(connection1);
+    final OptiqSchema hr2 = addHr(connection2);
+    final OptiqSchema hr3 = addHr(connection3);
+    final String sql = "select * from \"emps\" where \"deptno\" = 10";
+    final List<String> path = ImmutableList.of("hr");
+    final MaterializationKey key10 =
+        service.defineMaterialization(hr1, sql, path, "m0");
+    final MaterializationKey key11 =
+        service.defineMaterialization(hr1, sql, path, "m1");
+    final MaterializationKey key20 =
+        service.defineMaterialization(hr2, sql, path, "m0");
+    assertThat(service.query(hr1.root()).size(), equalTo(2));
+    assertThat(service.query(hr2.root()).size(), equalTo(1));
+    assertThat(service.query(hr3.root()).isEmpty(), is(true));
+    assertThat(service.checkValid(key10).schema, sameInstance(hr1));
+    assertThat(service.checkValid(key11).schema, sameInstance(hr1));
+    assertThat(service.checkValid(key20).schema, sameInstance(hr2));
+
+    service.clear();
+    assertThat(service.query(hr1.root()).isEmpty(), is(true));
+    assertThat(service.query(hr2.root()).isEmpty(), is(true));
+    connection1.close();
+    connection2.close();
+    connection3.close();
+  }
+
+  /** Tests that {@link MaterializationService#query} can be called while
+   * another thread is defining materializations. (It used to iterate over a
+   * map that the other thread was modifying, and could throw
+   * {@link java.util.ConcurrentModificationException}.) */
+  @Test public void testQueryWhileDefining() throws Exception {
+    MaterializationService.setThreadLocal();
+    final MaterializationService service = MaterializationService.instance();
+    final Connection connection = DriverManager.getConnection("jdbc:optiq:");
+    final OptiqSchema hr = addHr(connection);
+    final int n = 20;
+    final List<Throwable> errors =
+        Collections.synchronizedList(new ArrayList<Throwable>());
+    final Thread thread = new Thread() {
+      public void run() {
+        try {
+          for (int i = 0; i < n; i++) {
+            service.defineMaterialization(hr,
+                "select * from \"emps\" where \"deptno\" = " + i,
+                ImmutableList.of("hr"), "m" + i);
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      }
+    };
+    thread.start();
+    int queryCount = 0;
+    int previous = 0;
+    while (thread.isAlive()) {
+      final int size = service.query(hr.root()).size();
+      assertThat(size >= previous, is(true));
+      previous = size;
+      ++queryCount;
+    }
+    thread.join();
+    assertThat(errors.toString(), errors.isEmpty(), is(true));
+    assertThat(queryCount > 0, is(true));
+    assertThat(service.query(hr.root()).size(), equalTo(n));
+    connection.close();
+  }
+
+  /** Adds an "hr" schema to the root schema of a connection. */
+  private static OptiqSchema addHr(Connection connection) throws SQLException {
+    final SchemaPlus rootSchema =
+        connection.unwrap(OptiqConnection.class).getRootSchema();
+    return OptiqSchema.from(
+        rootSchema.add("hr", new ReflectiveSchema(new JdbcTest.HrSchema())));
+  }
 }
 
 // End MaterializationTest.java
@@ -17,18 +17,37 @@
 */
 package net.hydromatic.optiq.test;
 
+import net.hydromatic.linq4j.function.Function1;
+
 import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.Statistic;
+import net.hydromatic.optiq.impl.AbstractSchema;
+import net.hydromatic.optiq.impl.clone.CloneSchema;
 import net.hydromatic.optiq.impl.java.ReflectiveSchema;
 import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
 import net.hydromatic.optiq.jdbc.OptiqConnection;
+import net.hydromatic.optiq.jdbc.OptiqSchema;
+import net.hydromatic.optiq.materialize.MaterializationKey;
+import net.hydromatic.optiq.materialize.MaterializationService;
 import net.hydromatic.optiq.prepare.OptiqPrepareImpl;
+import net.hydromatic.optiq.runtime.Hook;
+import net.hydromatic.optiq.util.BitSets;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 
 import org.junit.Test;
 
+import java.lang.reflect.Method;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.sql.DataSource;
 
@@ -38,6 +57,57 @@
 /** Test case for joining tables from two different JDBC databases. */
 public class MultiJdbcSchemaJoinTest {
   @Test public void test() throws SQLException, ClassNotFoundException {
+    checkJoin(new Properties(), null);
+  }
+
+  /** As {@link #test}, but the queries against the two databases run in
+   * parallel. */
+  @Test public void testParallel() throws SQLException {
+    final Properties info = new Properties();
+    info.setProperty("parallelJdbcQueries", "2");
+    final List<String> plans = new ArrayList<String>();
+    final Hook.Closeable hook =
+        Hook.JAVA_PLAN.addThread(
+            new Function1<Object, Object>() {
+              public Object apply(Object a0) {
+                plans.add((String) a0);
+                return null;
+              }
+            });
+    // Before it executes, each query waits for the other. If the queries
+    // ran one after the other, the first would time out.
+    final AtomicInteger trips = new AtomicInteger();
+    final CyclicBarrier barrier =
+        new CyclicBarrier(2,
+            new Runnable() {
+              public void run() {
+                trips.incrementAndGet();
+              }
+            });
+    try {
+      checkJoin(info, barrier);
+    } finally {
+      hook.close();
+    }
+    assertThat(plans.size(), equalTo(1));
+    final String plan = plans.get(0);
+    final String prefetch = ".prefetch(root)";
+    // Both queries start when the statement is executed
+    final int first = plan.indexOf(prefetch);
+    assertThat(first, not(equalTo(-1)));
+    assertThat(plan.indexOf(prefetch, first + 1), not(equalTo(-1)));
+    assertThat(barrier.isBroken(), is(false));
+    assertThat(trips.get(), equalTo(1));
+  }
+
+  /** Runs a query that joins tables from two databases.
+   *
+   * @param info Connection properties
+   * @param barrier If not null, each query against either database waits at
+   *                this barrier before executing
+   */
+  private void checkJoin(Properties info, CyclicBarrier barrier)
+      throws SQLException {
     // Create two databases
     // It's two times hsqldb, but imagine they are different rdbms's
     final String db1 = TempDb.INSTANCE.getUrl();
@@ -59,15 +129,19 @@ public class MultiJdbcSchemaJoinTest {
     c2.close();
 
     // Connect via optiq to these databases
-    Connection connection = DriverManager.getConnection("jdbc:optiq:");
+    Connection connection = DriverManager.getConnection("jdbc:optiq:", info);
     OptiqConnection optiqConnection = connection.unwrap(OptiqConnection.class);
     SchemaPlus rootSchema = optiqConnection.getRootSchema();
     final DataSource ds1 =
-        JdbcSchema.dataSource(db1, "org.hsqldb.jdbcDriver", "", "");
+        awaiting(
+            JdbcSchema.dataSource(db1, "org.hsqldb.jdbcDriver", "", ""),
+            DataSource.class, barrier);
     rootSchema.add("DB1",
         JdbcSchema.create(rootSchema, "DB1", ds1, null, null));
     final DataSource ds2 =
-        JdbcSchema.dataSource(db2, "org.hsqldb.jdbcDriver", "", "");
+        awaiting(
+            JdbcSchema.dataSource(db2, "org.hsqldb.jdbcDriver", "", ""),
+            DataSource.class, barrier);
     rootSchema.add("DB2",
         JdbcSchema.create(rootSchema, "DB2", ds2, null, null));
 
@@ -78,6 +152,32 @@ public class MultiJdbcSchemaJoinTest {
     assertThat(OptiqAssert.toString(rs), equalTo("ID=a; FIELD1=aaaa\n"));
   }
 
+  /** Wraps a JDBC object, and the connections and statements that it
+   * creates, so that each query waits at a barrier before it executes. If
+   * the barrier is null, returns the object unchanged. */
+  private static <T> T awaiting(T target, Class<T> type,
+      final CyclicBarrier barrier) {
+    if (barrier == null) {
+      return target;
+    }
+    return JdbcProxy.wrap(target, type,
+        new JdbcProxy.BeforeCall() {
+          public Object apply(Class<?> type, Method method, Object[] args)
+              throws InterruptedException {
+            if (method.getName().equals("executeQuery")) {
+              try {
+                barrier.await(10, TimeUnit.SECONDS);
+              } catch (TimeoutException e) {
+                // The barrier is now broken; the test will fail.
+              } catch (BrokenBarrierException e) {
+                // ditto
+              }
+            }
+            return JdbcProxy.PROCEED;
+          }
+        });
+  }
+
   /** Makes sure that {@link #test} is re-entrant.
    * Effectively a test for {@link TempDb}. */
   @Test public void test2() throws SQLException, ClassNotFoundException {
@@ -181,9 +281,9 @@ private Set<Integer> runQuery(Connection optiqConn, String query)
     SchemaPlus rootSchema = optiqConnection.getRootSchema();
     final DataSource ds =
         JdbcSchema.dataSource(db, "org.hsqldb.jdbcDriver", "", "");
-    final SchemaPlus s =
-        rootSchema.add("DB",
-            JdbcSchema.create(rootSchema, "DB", ds, null, null));
+    final JdbcSchema jdbcSchema =
+        JdbcSchema.create(rootSchema, "DB", ds, null, null);
+    final SchemaPlus s = rootSchema.add("DB", jdbcSchema);
 
     Statement stmt3 = connection.createStatement();
     ResultSet rs;
@@ -211,13 +311,223 @@ private Set<Integer> runQuery(Connection optiqConn, String query)
           equalTo("Table 'DB.TABLE2' not found"));
     }
 
-    // disable caching and table becomes visible
+    // disable caching; table not visible, because JdbcSchema caches
+    // metadata too
     s.setCacheEnabled(false);
+    try {
+      rs = stmt3.executeQuery("select * from db.table2");
+      fail("expected error, got " + rs);
+    } catch (SQLException e) {
+      assertThat(e.getCause().getCause().getMessage(),
+          equalTo("Table 'DB.TABLE2' not found"));
+    }
+
+    // invalidate JdbcSchema's metadata and table becomes visible
+    jdbcSchema.invalidate();
     rs = stmt3.executeQuery("select * from db.table2");
     assertThat(OptiqAssert.toString(rs), equalTo("ID=a; FIELD1=aaaa\n"));
     c1.close();
   }
 
+  /** Tests that a JDBC table derives its unique keys from the primary key
+   * and unique indexes of the table in the database. */
+  @Test public void testStatistics() throws Exception {
+    final String db = TempDb.INSTANCE.getUrl();
+    Connection c1 = DriverManager.getConnection(db, "", "");
+    Statement stmt1 = c1.createStatement();
+    stmt1.execute(
+        "create table table1(id integer not null primary key, "
+            + "code varchar(10) not null, field1 varchar(10), "
+            + "field2 varchar(10), unique (code), unique (field2))");
+    stmt1.execute("insert into table1 values(1, 'a', 'foo', null)");
+    stmt1.execute("insert into table1 values(2, 'b', 'bar', null)");
+    c1.close();
+
+    Connection connection = DriverManager.getConnection("jdbc:optiq:");
+    OptiqConnection optiqConnection = connection.unwrap(OptiqConnection.class);
+    SchemaPlus rootSchema = optiqConnection.getRootSchema();
+    final JdbcSchema jdbcSchema =
+        JdbcSchema.create(rootSchema, "DB",
+            JdbcSchema.dataSource(db, "org.hsqldb.jdbcDriver", "", ""),
+            null, null);
+    final Statistic statistic =
+        jdbcSchema.getTable("TABLE1").getStatistic();
+    assertThat(statistic.isKey(BitSets.of(0)), is(true));
+    assertThat(statistic.isKey(BitSets.of(1)), is(true));
+    assertThat(statistic.isKey(BitSets.of(1, 2)), is(true));
+    assertThat(statistic.isKey(BitSets.of(2)), is(false));
+    // FIELD2 has a unique index, but is nullable, so is not a key
+    assertThat(statistic.isKey(BitSets.of(3)), is(false));
+    // Row count is the database's own estimate, or the cardinality of a
+    // NOT NULL unique index. HSQLDB reports neither, so the row count is
+    // unknown.
+    assertThat(statistic.getRowCount(), nullValue());
+
+    // A database that reports the cardinality of its indexes
+    final JdbcSchema jdbcSchema2 =
+        JdbcSchema.create(rootSchema, "DB2",
+            withIndexCardinality(
+                JdbcSchema.dataSource(db, "org.hsqldb.jdbcDriver", "", ""),
+                DataSource.class, 2L),
+            null, null);
+    final Statistic statistic2 =
+        jdbcSchema2.getTable("TABLE1").getStatistic();
+    assertThat(statistic2.getRowCount(), equalTo(2d));
+    assertThat(statistic2.isKey(BitSets.of(0)), is(true));
+    assertThat(statistic2.isKey(BitSets.of(3)), is(false));
+    connection.close();
+  }
+
+  /** Wraps a JDBC object, and the connections and metadata that it creates,
+   * so that the result of {@link DatabaseMetaData#getIndexInfo} reports a
+   * given cardinality for every index. */
+  private static <T> T withIndexCardinality(T target, Class<T> type,
+      final long cardinality) {
+    return JdbcProxy.wrap(target, type,
+        new JdbcProxy.BeforeCall() {
+          public Object apply(Class<?> type, Method method, Object[] args) {
+            // Of the result sets that JdbcSchema reads, only that of
+            // getIndexInfo has a long in column 11, CARDINALITY
+            if (type == ResultSet.class
+                && method.getName().equals("getLong")
+                && Integer.valueOf(11).equals(args[0])) {
+              return cardinality;
+            }
+            return JdbcProxy.PROCEED;
+          }
+        });
+  }
+
+  /** Tests {@link CloneSchema#refresh}. Only rows of the source whose value
+   * of the watermark column is greater than that of every row in the clone
+   * are read, and the source's database evaluates that condition. */
+  @Test public void testCloneRefresh() throws Exception {
+    final String db = TempDb.INSTANCE.getUrl();
+    Connection c1 = DriverManager.getConnection(db, "", "");
+    Statement stmt1 = c1.createStatement();
+    stmt1.execute("create table t(id integer not null primary key, "
+        + "name varchar(10) not null)");
+    stmt1.execute("insert into t values(1, 'a')");
+    stmt1.execute("insert into t values(2, 'b')");
+
+    Connection connection = DriverManager.getConnection("jdbc:optiq:");
+    OptiqConnection optiqConnection = connection.unwrap(OptiqConnection.class);
+    SchemaPlus rootSchema = optiqConnection.getRootSchema();
+    final SchemaPlus s =
+        rootSchema.add("DB",
+            JdbcSchema.create(rootSchema, "DB",
+                JdbcSchema.dataSource(db, "org.hsqldb.jdbcDriver", "", ""),
+                null, null));
+    final CloneSchema cloneSchema = new CloneSchema(s);
+    rootSchema.add("C", cloneSchema);
+    final String sql = "select * from c.t order by id";
+    Statement stmt2 = connection.createStatement();
+    assertThat(OptiqAssert.toString(stmt2.executeQuery(sql)),
+        equalTo("ID=1; NAME=a\nID=2; NAME=b\n"));
+
+    // Row 0 is below the watermark, so is not appended
+    stmt1.execute("insert into t values(3, 'c')");
+    stmt1.execute("insert into t values(0, 'z')");
+    stmt1.execute("insert into t values(4, 'd')");
+    final List<String> sqls = new ArrayList<String>();
+    final Hook.Closeable hook =
+        Hook.QUERY_PLAN.addThread(
+            new Function1<Object, Object>() {
+              public Object apply(Object a0) {
+                sqls.add((String) a0);
+                return null;
+              }
+            });
+    try {
+      assertThat(cloneSchema.refresh("T", "ID"), equalTo(2));
+    } finally {
+      hook.close();
+    }
+    assertThat(sqls.size(), equalTo(1));
+    assertThat(sqls.get(0), containsString("WHERE \"ID\" > ?"));
+    final String expected = "ID=1; NAME=a\n"
+        + "ID=2; NAME=b\n"
+        + "ID=3; NAME=c\n"
+        + "ID=4; NAME=d\n";
+    assertThat(OptiqAssert.toString(stmt2.executeQuery(sql)),
+        equalTo(expected));
+
+    // Nothing new
+    assertThat(cloneSchema.refresh("T", "ID"), equalTo(0));
+
+    // The clone is sorted on ID. Row 0 is above the watermark of NAME, but
+    // appending it would break the sort order, so the refresh fails and
+    // the clone is unchanged.
+    try {
+      final int n = cloneSchema.refresh("T", "NAME");
+      fail("expected error, got " + n);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          containsString("on which the table is sorted"));
+    }
+    assertThat(OptiqAssert.toString(stmt2.executeQuery(sql)),
+        equalTo(expected));
+    c1.close();
+    connection.close();
+  }
+
+  /** Tests {@link MaterializationService#refreshMaterialization}. */
+  @Test public void testRefreshMaterialization() throws Exception {
+    final String db = TempDb.INSTANCE.getUrl();
+    Connection c1 = DriverManager.getConnection(db, "", "");
+    Statement stmt1 = c1.createStatement();
+    stmt1.execute("create table t(id integer not null primary key, "
+        + "name varchar(10) not null)");
+    stmt1.execute("insert into t values(1, 'a')");
+    stmt1.execute("insert into t values(2, 'b')");
+
+    MaterializationService.setThreadLocal();
+    Connection connection = DriverManager.getConnection("jdbc:optiq:");
+    OptiqConnection optiqConnection = connection.unwrap(OptiqConnection.class);
+    SchemaPlus rootSchema = optiqConnection.getRootSchema();
+    rootSchema.add("DB",
+        JdbcSchema.create(rootSchema, "DB",
+            JdbcSchema.dataSource(db, "org.hsqldb.jdbcDriver", "", ""),
+            null, null));
+    final SchemaPlus m = rootSchema.add("M", new AbstractSchema());
+    final MaterializationService service = MaterializationService.instance();
+    final MaterializationKey key =
+        service.defineMaterialization(OptiqSchema.from(m),
+            "select * from t where name <> 'x'", ImmutableList.of("DB"),
+            "MT");
+    final String sql = "select * from m.mt order by id";
+    Statement stmt2 = connection.createStatement();
+    assertThat(OptiqAssert.toString(stmt2.executeQuery(sql)),
+        equalTo("ID=1; NAME=a\nID=2; NAME=b\n"));
+
+    // Row 0 is below the watermark; row 4 does not satisfy the
+    // materialization's query
+    stmt1.execute("insert into t values(3, 'c')");
+    stmt1.execute("insert into t values(0, 'z')");
+    stmt1.execute("insert into t values(4, 'x')");
+    assertThat(service.refreshMaterialization(key, "ID"), equalTo(1));
+    final String expected = "ID=1; NAME=a\n"
+        + "ID=2; NAME=b\n"
+        + "ID=3; NAME=c\n";
+    assertThat(OptiqAssert.toString(stmt2.executeQuery(sql)),
+        equalTo(expected));
+    assertThat(service.refreshMaterialization(key, "ID"), equalTo(0));
+
+    // Row 0 is above the watermark of NAME, but would break the table's
+    // sort order on ID
+    try {
+      final int n = service.refreshMaterialization(key, "NAME");
+      fail("expected error, got " + n);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          containsString("on which the table is sorted"));
+    }
+    assertThat(OptiqAssert.toString(stmt2.executeQuery(sql)),
+        equalTo(expected));
+    c1.close();
+    connection.close();
+  }
+
   /** Pool of temporary databases. */
   static class TempDb {
     public static final TempDb INSTANCE = new TempDb();
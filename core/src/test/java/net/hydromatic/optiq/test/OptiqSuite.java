@@ -19,6 +19,7 @@
 
 import net.hydromatic.optiq.impl.clone.ArrayTableTest;
 import net.hydromatic.optiq.runtime.BinarySearchTest;
+import net.hydromatic.optiq.runtime.ExternalSortTest;
 import net.hydromatic.optiq.tools.FrameworksTest;
 import net.hydromatic.optiq.tools.PlannerTest;
 import net.hydromatic.optiq.util.PartiallyOrderedSetTest;
@@ -70,6 +71,7 @@
     RelWriterTest.class,
     RexProgramTest.class,
     BinarySearchTest.class,
+    ExternalSortTest.class,
 
     // medium tests (above 0.1s)
     SqlParserTest.class,
@@ -67,6 +67,46 @@ public class SqlFunctionsTest {
     assertEquals(" B0123b", initcap(" b0123B"));
   }
 
+  @Test public void testLike() {
+    assertTrue(like("abc", "a_c"));
+    assertTrue(like("abc", "a_c")); // second time, pattern is cached
+    assertFalse(like("abcd", "a_c"));
+    assertTrue(like("a\nc", "a%"));
+    assertTrue(like("a%c", "a!%%", "!"));
+    assertFalse(like("abc", "a!%%", "!"));
+    assertSame(Like.likePattern("a%", null), Like.likePattern("a%", null));
+    try {
+      boolean b = like("abc", "a%", "!!");
+      fail("expected error, got " + b);
+    } catch (RuntimeException e) {
+      assertEquals("Invalid escape character '!!'", e.getMessage());
+    }
+  }
+
+  @Test public void testSimpleLike() {
+    checkSimpleLike("abc", null, "abc", false, false);
+    checkSimpleLike("abc%", null, "abc", false, true);
+    checkSimpleLike("%abc", null, "abc", true, false);
+    checkSimpleLike("%%abc%%", null, "abc", true, true);
+    checkSimpleLike("%", null, "", true, false);
+    checkSimpleLike("a!%c%", "!", "a%c", false, true);
+    checkSimpleLike("a!!c", "!", "a!c", false, false);
+    assertNull(Like.simpleLike("a_c", null));
+    assertNull(Like.simpleLike("a%c", null));
+    assertNull(Like.simpleLike("a!c", "!"));
+    assertNull(Like.simpleLike("abc!", "!"));
+    assertNull(Like.simpleLike("abc", "%"));
+  }
+
+  private void checkSimpleLike(String pattern, String escape, String literal,
+      boolean startsWithAny, boolean endsWithAny) {
+    final Like.SimpleLike simpleLike = Like.simpleLike(pattern, escape);
+    assertNotNull(simpleLike);
+    assertEquals(literal, simpleLike.literal);
+    assertEquals(startsWithAny, simpleLike.startsWithAny);
+    assertEquals(endsWithAny, simpleLike.endsWithAny);
+  }
+
   @Test public void testLesser() {
     assertEquals("a", lesser("a", "bc"));
     assertEquals("ac", lesser("bc", "ac"));
@@ -2968,6 +2968,9 @@ protected static Calendar getCalendarNotTooNear(int timeUnit) {
     tester.checkBoolean("'ab'   like '_b'", Boolean.TRUE);
     tester.checkBoolean("'abcd' like '_d'", Boolean.FALSE);
     tester.checkBoolean("'abcd' like '%d'", Boolean.TRUE);
+    tester.checkBoolean("'abcd' like '%bc%'", Boolean.TRUE);
+    tester.checkBoolean("'abcd' like '%cb%'", Boolean.FALSE);
+    tester.checkBoolean("'abcd' like 'abc'", Boolean.FALSE);
   }
 
   @Test public void testNotSimilarToOperator() {
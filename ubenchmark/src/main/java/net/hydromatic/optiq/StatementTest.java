@@ -52,6 +52,7 @@ public static class HrConnection {
         Properties info = new Properties();
         info.put("lex", "JAVA");
         info.put("quoting", "DOUBLE_QUOTE");
+        addProperties(info);
         connection = DriverManager.getConnection("jdbc:optiq:", info);
       } catch (SQLException e) {
         throw new IllegalStateException(e);
@@ -72,12 +73,26 @@ public static class HrConnection {
       con = connection;
     }
 
+    /** Allows sub-classes to add connection properties. */
+    protected void addProperties(Properties info) {
+    }
+
     @Setup(Level.Iteration)
     public void pickEmployee() {
       id = hr.emps[rnd.nextInt(4)].empid;
     }
   }
 
+  /**
+   * Connection that caches plans, so that statements that differ only in
+   * literal values are prepared only once.
+   */
+  public static class HrPlanCacheConnection extends HrConnection {
+    @Override protected void addProperties(Properties info) {
+      info.put("planCache", "true");
+    }
+  }
+
   /**
    * Tests performance of reused execution of prepared statement.
    */
@@ -146,6 +161,18 @@ public String executeQuery(HrConnection state) throws SQLException {
     return ename;
   }
 
+  @GenerateMicroBenchmark
+  public String prepareBindExecutePlanCache(HrPlanCacheConnection state)
+    throws SQLException {
+    return prepareBindExecute(state);
+  }
+
+  @GenerateMicroBenchmark
+  public String executeQueryPlanCache(HrPlanCacheConnection state)
+    throws SQLException {
+    return executeQuery(state);
+  }
+
   @GenerateMicroBenchmark
   public String forEach(HrConnection state) throws SQLException {
     final Employee[] emps = state.hr.emps;